@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.junit.Test;
+
+/** JUnit test of the {@link BulkImporter}
+ *
+ *  <p>Runs against a minimal stand-in for the InfluxDB write API.
+ */
+@SuppressWarnings("nls")
+public class BulkImporterTest
+{
+    /** Counts points written per database, rejects writes to one database */
+    private static class WriteServer implements AutoCloseable
+    {
+        final private ServerSocket server;
+        final private Map<String, AtomicLong> points = new ConcurrentHashMap<>();
+        volatile String rejected_db = "";
+
+        WriteServer() throws IOException
+        {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    while (true)
+                    {
+                        final Socket socket = server.accept();
+                        final Thread connection = new Thread(() -> serve(socket), "Write Server Connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                }
+                catch (IOException ex)
+                {
+                    // Closed
+                }
+            }, "Write Server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getURL()
+        {
+            return "http://localhost:" + server.getLocalPort();
+        }
+
+        long getPoints(final String dbName)
+        {
+            final AtomicLong count = points.get(dbName);
+            return count == null ? 0 : count.get();
+        }
+
+        private void serve(final Socket socket)
+        {
+            try
+            (
+                final Socket s = socket;
+                final DataInputStream in = new DataInputStream(s.getInputStream());
+                final OutputStream out = s.getOutputStream();
+            )
+            {
+                String request;
+                while ((request = readLine(in)) != null)
+                {
+                    int length = 0;
+                    String header;
+                    while ((header = readLine(in)) != null  &&  !header.isEmpty())
+                        if (header.toLowerCase().startsWith("content-length:"))
+                            length = Integer.parseInt(header.substring(15).trim());
+                    final byte[] body = new byte[length];
+                    in.readFully(body);
+
+                    final Matcher db = Pattern.compile("[?&]db=([^& ]*)").matcher(request);
+                    final String dbName = db.find() ? db.group(1) : "";
+                    if (dbName.equals(rejected_db))
+                        respond(out, 400, "{\"error\":\"unable to parse\"}");
+                    else
+                    {
+                        long lines = 0;
+                        for (byte b : body)
+                            if (b == '\n')
+                                ++lines;
+                        points.computeIfAbsent(dbName, d -> new AtomicLong()).addAndGet(lines);
+                        respond(out, 204, "");
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                // Client closed connection
+            }
+        }
+
+        private static void respond(final OutputStream out, final int code, final String body) throws IOException
+        {
+            final byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            out.write(("HTTP/1.1 " + code + (code < 300 ? " OK" : " Error") + "\r\n" +
+                       "Content-Type: application/json\r\n" +
+                       "Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(content);
+            out.flush();
+        }
+
+        private static String readLine(final DataInputStream in) throws IOException
+        {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0  &&  c != '\n')
+                if (c != '\r')
+                    line.append((char) c);
+            return (c < 0  &&  line.length() == 0) ? null : line.toString();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            server.close();
+        }
+    }
+
+    private static void write(final File file, final String text) throws Exception
+    {
+        try (Writer out = new FileWriter(file))
+        {
+            out.write(text);
+        }
+    }
+
+    private static BulkImporter createImporter(final WriteServer server, final File dir, final File checkpoint) throws Exception
+    {
+        // One thread per stage, so files are written in order
+        final BulkImporter importer = new BulkImporter(server.getURL(), null, null, false, new DefaultDBNameMap(), "a", 2,
+                                                       new ImportCheckpoint(checkpoint), 1, 1, 1, 1000);
+        importer.addFiles(dir);
+        return importer;
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws Exception
+    {
+        final File dir = Files.createTempDirectory("import").toFile();
+        final StringBuilder a = new StringBuilder(), b = new StringBuilder("# CONTEXT-DATABASE: b\n"), c = new StringBuilder();
+        for (int i=0; i<10; ++i)
+        {
+            a.append("x value=").append(i).append(' ').append(1490000000000000000L + i).append('\n');
+            b.append("y value=").append(i).append(' ').append(1490000000000000000L + i).append('\n');
+        }
+        for (int i=0; i<5; ++i)
+            c.append("pv:c,").append(1490000000000000000L + i).append(",NONE,NO_ALARM,").append(i).append('\n');
+        write(new File(dir, "a.lp"), a.toString());
+        write(new File(dir, "b.lp"), b.toString());
+        write(new File(dir, "c.csv"), c.toString());
+        final File checkpoint = File.createTempFile("checkpoint", ".txt");
+        checkpoint.delete();
+
+        final DefaultDBNameMap dbnames = new DefaultDBNameMap();
+        try
+        (
+            final WriteServer server = new WriteServer();
+        )
+        {
+            // Import stops when database "b" rejects the points
+            server.rejected_db = "b";
+            BulkImporter importer = createImporter(server, dir, checkpoint);
+            assertEquals(3, importer.getFileCount());
+            try
+            {
+                importer.run();
+                fail("Import did not report error");
+            }
+            catch (Exception ex)
+            {
+                System.out.println("Import failed: " + ex.getMessage());
+            }
+            assertEquals(1, importer.getFilesDone());
+            assertEquals(10, server.getPoints("a"));
+            assertEquals(0, server.getPoints("b"));
+            assertEquals(0, server.getPoints(dbnames.getDataDBName("pv:c")));
+
+            // Next run skips the completed file and imports the rest
+            server.rejected_db = "";
+            importer = createImporter(server, dir, checkpoint);
+            assertEquals(1, importer.getFilesSkipped());
+            assertEquals(2, importer.getFileCount());
+            importer.run();
+            System.out.println(importer);
+            assertEquals(2, importer.getFilesDone());
+            assertEquals(10, server.getPoints("a"));
+            assertEquals(10, server.getPoints("b"));
+            assertEquals(5, server.getPoints(dbnames.getDataDBName("pv:c")));
+            assertEquals(1, server.getPoints(dbnames.getMetaDBName("pv:c")));
+
+            // All files are done
+            final ImportCheckpoint done = new ImportCheckpoint(checkpoint);
+            for (File file : dir.listFiles())
+                assertTrue(done.isDone(file));
+            done.close();
+        }
+        finally
+        {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+            checkpoint.delete();
+        }
+    }
+}
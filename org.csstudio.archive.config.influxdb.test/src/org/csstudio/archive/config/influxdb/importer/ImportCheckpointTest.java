@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+/** JUnit test of the {@link ImportCheckpoint} */
+@SuppressWarnings("nls")
+public class ImportCheckpointTest
+{
+    private static void write(final File file, final String text) throws Exception
+    {
+        try (Writer out = new FileWriter(file))
+        {
+            out.write(text);
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception
+    {
+        final File dir = Files.createTempDirectory("checkpoint").toFile();
+        final File a = new File(dir, "a.lp"), b = new File(dir, "b.lp"), file = new File(dir, "checkpoint.txt");
+        write(a, "x value=1 1\n");
+        write(b, "x value=2 2\n");
+
+        ImportCheckpoint checkpoint = new ImportCheckpoint(file);
+        assertFalse(checkpoint.isDone(a));
+        checkpoint.markDone(a);
+        assertTrue(checkpoint.isDone(a));
+        assertFalse(checkpoint.isDone(b));
+        checkpoint.close();
+
+        // Next run resumes from the saved checkpoint
+        checkpoint = new ImportCheckpoint(file);
+        assertTrue(checkpoint.isDone(a));
+        assertFalse(checkpoint.isDone(b));
+
+        // File that changed since it was imported needs to be imported again
+        write(a, "x value=1 1\nx value=3 3\n");
+        assertFalse(checkpoint.isDone(a));
+        checkpoint.close();
+
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testWithoutFile() throws Exception
+    {
+        final File a = File.createTempFile("import", ".lp");
+        final ImportCheckpoint checkpoint = new ImportCheckpoint(null);
+        assertFalse(checkpoint.isDone(a));
+        checkpoint.markDone(a);
+        assertTrue(checkpoint.isDone(a));
+        checkpoint.close();
+        a.delete();
+    }
+}
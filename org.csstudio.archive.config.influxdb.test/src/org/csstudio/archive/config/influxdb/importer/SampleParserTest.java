@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+
+import org.csstudio.archive.config.influxdb.importer.SampleParser.Sample;
+import org.csstudio.archive.vtype.VTypeHelper;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.VNumber;
+import org.diirt.vtype.VNumberArray;
+import org.diirt.vtype.VString;
+import org.junit.Test;
+
+/** JUnit test of the {@link SampleParser} */
+@SuppressWarnings("nls")
+public class SampleParserTest
+{
+    final private SampleParser parser = new SampleParser(2);
+
+    @Test
+    public void testNumber() throws Exception
+    {
+        final Sample sample = parser.parse("pv:a, 2017-03-20T12:00:00.123456789Z, MINOR, LOW, 3.14 ");
+        assertEquals("pv:a", sample.channel);
+        assertEquals(Instant.parse("2017-03-20T12:00:00.123456789Z"), VTypeHelper.getTimestamp(sample.value));
+        assertEquals(AlarmSeverity.MINOR, VTypeHelper.getSeverity(sample.value));
+        assertEquals("LOW", VTypeHelper.getMessage(sample.value));
+        assertEquals(3.14, ((VNumber) sample.value).getValue().doubleValue(), 0.0);
+    }
+
+    @Test
+    public void testTimeInNanoseconds() throws Exception
+    {
+        final Sample sample = parser.parse("pv:a,1490011200123456789,,,1");
+        assertEquals(Instant.ofEpochSecond(1490011200L, 123456789), VTypeHelper.getTimestamp(sample.value));
+        // Empty severity means no alarm
+        assertEquals(AlarmSeverity.NONE, VTypeHelper.getSeverity(sample.value));
+    }
+
+    @Test
+    public void testArray() throws Exception
+    {
+        final Sample sample = parser.parse("pv:b,2017-03-20T12:00:00Z,NONE,NO_ALARM,1, 2 ,3");
+        final VNumberArray array = (VNumberArray) sample.value;
+        assertEquals(3, array.getData().size());
+        assertEquals(2.0, array.getData().getDouble(1), 0.0);
+    }
+
+    @Test
+    public void testText() throws Exception
+    {
+        Sample sample = parser.parse("pv:c,2017-03-20T12:00:00Z,NONE,NO_ALARM, Hello ");
+        assertEquals("Hello", ((VString) sample.value).getValue());
+
+        // Text may contain commas
+        sample = parser.parse("pv:c,2017-03-20T12:00:00Z,NONE,NO_ALARM,Hello, World");
+        assertTrue(sample.value instanceof VString);
+        assertEquals("Hello, World", ((VString) sample.value).getValue());
+
+        // Numbers and text are text
+        sample = parser.parse("pv:c,2017-03-20T12:00:00Z,NONE,NO_ALARM,1,2,three");
+        assertEquals("1,2,three", ((VString) sample.value).getValue());
+    }
+
+    @Test
+    public void testSkippedLines() throws Exception
+    {
+        assertNull(parser.parse(""));
+        assertNull(parser.parse("# channel,time,severity,status,value"));
+    }
+
+    @Test
+    public void testErrors() throws Exception
+    {
+        for (String line : new String[] { "pv:a,2017-03-20T12:00:00Z,NONE,NO_ALARM",
+                                          "pv:a,yesterday,NONE,NO_ALARM,1" })
+        {
+            try
+            {
+                parser.parse(line);
+                fail("Parsed '" + line + "'");
+            }
+            catch (Exception ex)
+            {
+                // Expected
+            }
+        }
+    }
+}
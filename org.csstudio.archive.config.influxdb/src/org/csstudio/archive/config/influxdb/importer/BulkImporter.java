@@ -0,0 +1,624 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+import org.csstudio.archive.config.influxdb.Activator;
+import org.csstudio.archive.config.influxdb.importer.SampleParser.Sample;
+import org.csstudio.archive.influxdb.InfluxDBQueries.DBNameMap;
+import org.csstudio.archive.influxdb.MetaTypes;
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.csstudio.archive.vtype.VTypeHelper;
+import org.csstudio.archive.writer.influxdb.InfluxDBHttpWriter;
+import org.csstudio.archive.writer.influxdb.InfluxDBSampleEncoder;
+import org.csstudio.archive.writer.influxdb.InfluxDBWriteChannel;
+import org.csstudio.archive.writer.influxdb.LineProtocolBuffer;
+import org.csstudio.archive.writer.influxdb.Preferences;
+import org.csstudio.archive.writer.influxdb.WritePolicy;
+import org.csstudio.archive.writer.influxdb.WriterMetrics;
+import org.influxdb.dto.Point;
+
+/** Parallel import of samples from files into InfluxDB
+ *
+ *  <p>Files are processed in a pipeline:
+ *  <ol>
+ *  <li>Reader threads read one file at a time.
+ *      Files ending in ".csv" (or ".csv.gz") are parsed by the {@link SampleParser},
+ *      samples are passed in chunks to an encoder.
+ *      All other files are read as InfluxDB line protocol,
+ *      as written by <code>influx_inspect export</code>,
+ *      and passed to the writers as they are.
+ *  <li>Encoder threads encode samples and their meta data,
+ *      the same way as the archive writer,
+ *      into a batch per database.
+ *      Each channel is always handled by the same encoder,
+ *      so its meta data is written in order.
+ *  <li>Writer threads write the batches, each using its own connection.
+ *  </ol>
+ *  The queues between the stages are bounded,
+ *  so readers slow down when the writers fall behind.
+ *
+ *  <p>A file is added to the {@link ImportCheckpoint} once all its points are written.
+ *  When the import stops on an error, the files that were not completed are
+ *  imported again by the next run.
+ */
+@SuppressWarnings("nls")
+public class BulkImporter
+{
+    /** Samples per chunk passed from reader to encoder */
+    final private static int CHUNK_SIZE = 1000;
+
+    /** Chunks queued per encoder */
+    final private static int ENCODER_QUEUE = 16;
+
+    /** Initial size of batch buffers */
+    final private static int BUFFER_CAPACITY = 64*1024;
+
+    final private DBNameMap dbnames;
+    final private String default_db;
+    final private int precision;
+    final private ImportCheckpoint checkpoint;
+    final private int batch_points;
+    final private InfluxDBHttpWriter writer;
+    final private WritePolicy default_policy = Preferences.getWritePolicy();
+    final private Map<String, WritePolicy> policies = Preferences.getWritePolicies(default_policy);
+    final private boolean sort_batches = Preferences.sortBatches();
+    final private WriterMetrics metrics = new WriterMetrics();
+
+    final private Encoder[] encoders;
+    final private Thread[] reader_threads, writer_threads;
+    final private BlockingQueue<Batch> write_queue;
+
+    /** Files to import */
+    final private ConcurrentLinkedQueue<FileState> files = new ConcurrentLinkedQueue<>();
+
+    final private AtomicInteger files_total = new AtomicInteger(),
+                                files_done = new AtomicInteger(),
+                                files_skipped = new AtomicInteger();
+    final private LongAdder samples_read = new LongAdder(),
+                            lines_skipped = new LongAdder();
+
+    /** First error that stopped the import */
+    private volatile Exception error = null;
+
+    /** Input file and the number of chunks or batches that still need to be written */
+    private class FileState
+    {
+        final File file;
+        /** Starts at one for the reader, which releases it at the end of the file */
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        FileState(final File file)
+        {
+            this.file = file;
+        }
+
+        void release(final int count) throws Exception
+        {
+            if (pending.addAndGet(-count) != 0)
+                return;
+            checkpoint.markDone(file);
+            files_done.incrementAndGet();
+        }
+    }
+
+    /** Samples read from one file */
+    private static class Chunk
+    {
+        final FileState file;
+        final List<Sample> samples = new ArrayList<>(CHUNK_SIZE);
+
+        Chunk(final FileState file)
+        {
+            this.file = file;
+        }
+    }
+
+    /** Batches that were flushed together, releasing their files once all are written */
+    private static class Flush
+    {
+        final Map<FileState, Integer> files;
+        final AtomicInteger batches;
+
+        Flush(final Map<FileState, Integer> files, final int batches)
+        {
+            this.files = files;
+            this.batches = new AtomicInteger(batches);
+        }
+
+        void written() throws Exception
+        {
+            if (batches.decrementAndGet() != 0)
+                return;
+            for (Map.Entry<FileState, Integer> entry : files.entrySet())
+                entry.getKey().release(entry.getValue());
+        }
+    }
+
+    /** Points for one database */
+    private static class Batch
+    {
+        final String dbName;
+        final LineProtocolBuffer points;
+        final Flush flush;
+
+        Batch(final String dbName, final LineProtocolBuffer points, final Flush flush)
+        {
+            this.dbName = dbName;
+            this.points = points;
+            this.flush = flush;
+        }
+    }
+
+    final private static Chunk END_OF_CHUNKS = new Chunk(null);
+    final private static Batch END_OF_BATCHES = new Batch(null, null, null);
+
+    /** Encoder of samples for a subset of the channels */
+    private class Encoder implements Runnable
+    {
+        final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(ENCODER_QUEUE);
+        final Map<String, InfluxDBWriteChannel> channels = new HashMap<>();
+        /** Batch buffers by database name */
+        final Map<String, LineProtocolBuffer> buffers = new HashMap<>();
+        /** Files and their chunks in the current buffers */
+        Map<FileState, Integer> files = new HashMap<>();
+        int points = 0;
+        final Thread thread;
+
+        Encoder(final int index)
+        {
+            thread = new Thread(this, "Import Encoder " + index);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Chunk chunk;
+                while ((chunk = take(queue)) != END_OF_CHUNKS)
+                {
+                    if (chunk == null)
+                        return;
+                    for (Sample sample : chunk.samples)
+                        encode(sample);
+                    files.merge(chunk.file, 1, Integer::sum);
+                    if (points >= batch_points)
+                        flush();
+                }
+                flush();
+            }
+            catch (Exception ex)
+            {
+                fail(ex);
+            }
+        }
+
+        private LineProtocolBuffer getBuffer(final String dbName)
+        {
+            LineProtocolBuffer buffer = buffers.get(dbName);
+            if (buffer == null)
+            {
+                buffer = new LineProtocolBuffer(BUFFER_CAPACITY);
+                buffers.put(dbName, buffer);
+            }
+            return buffer;
+        }
+
+        private void encode(final Sample sample) throws Exception
+        {
+            final long start = System.nanoTime();
+            InfluxDBWriteChannel channel = channels.get(sample.channel);
+            if (channel == null)
+            {
+                channel = new InfluxDBWriteChannel(sample.channel);
+                channels.put(sample.channel, channel);
+            }
+            final StoreAs storeas = MetaTypes.writeVtypeAs(sample.value);
+            final Instant stamp = VTypeHelper.getTimestamp(sample.value);
+            final Point meta = InfluxDBSampleEncoder.encodeMetaData(channel, stamp, sample.value, storeas);
+            if (meta != null)
+            {
+                final String meta_db = dbnames.getMetaDBName(sample.channel);
+                getBuffer(meta_db).addLine(meta.lineProtocol());
+                metrics.metaDataEncoded(meta_db, storeas);
+                ++points;
+            }
+            final String data_db = dbnames.getDataDBName(sample.channel);
+            final LineProtocolBuffer buffer = getBuffer(data_db);
+            final int old_points = buffer.getPointCount(), old_size = buffer.size();
+            InfluxDBSampleEncoder.encodeSample(buffer, channel, stamp, sample.value, storeas);
+            final int new_points = buffer.getPointCount() - old_points;
+            points += new_points;
+            metrics.sampleEncoded(data_db, storeas, new_points, buffer.size() - old_size, System.nanoTime() - start);
+        }
+
+        private void flush() throws Exception
+        {
+            final List<Batch> batches = new ArrayList<>();
+            final Flush flush = new Flush(files, buffers.size());
+            for (Map.Entry<String, LineProtocolBuffer> entry : buffers.entrySet())
+                batches.add(new Batch(entry.getKey(), entry.getValue(), flush));
+            buffers.clear();
+            files = new HashMap<>();
+            points = 0;
+            if (batches.isEmpty())
+                flush.written();
+            for (Batch batch : batches)
+                put(write_queue, batch);
+        }
+    }
+
+    /** Initialize
+     *  @param url InfluxDB URL
+     *  @param user .. user name
+     *  @param password .. password
+     *  @param gzip Compress requests with gzip?
+     *  @param dbnames Databases for channel data and meta data
+     *  @param default_db Database for line protocol files that don't name one
+     *  @param precision Precision of imported numeric samples
+     *  @param checkpoint Checkpoint
+     *  @param readers Number of reader threads
+     *  @param encoders Number of encoder threads
+     *  @param writers Number of writer threads
+     *  @param batch_points Number of points per batch
+     *  @throws Exception on error
+     */
+    public BulkImporter(final String url, final String user, final String password, final boolean gzip,
+                        final DBNameMap dbnames, final String default_db, final int precision,
+                        final ImportCheckpoint checkpoint,
+                        final int readers, final int encoders, final int writers, final int batch_points) throws Exception
+    {
+        this.dbnames = dbnames;
+        this.default_db = default_db;
+        this.precision = precision;
+        this.checkpoint = checkpoint;
+        this.batch_points = Math.max(1, batch_points);
+        writer = new InfluxDBHttpWriter(url, user, password, gzip, Preferences.getMaxRequestBytes(), Preferences.getWriteRetry());
+
+        this.encoders = new Encoder[Math.max(1, encoders)];
+        for (int i=0; i<this.encoders.length; ++i)
+            this.encoders[i] = new Encoder(i);
+        reader_threads = new Thread[Math.max(1, readers)];
+        for (int i=0; i<reader_threads.length; ++i)
+            reader_threads[i] = new Thread(this::read, "Import Reader " + i);
+        writer_threads = new Thread[Math.max(1, writers)];
+        for (int i=0; i<writer_threads.length; ++i)
+            writer_threads[i] = new Thread(this::write, "Import Writer " + i);
+        write_queue = new ArrayBlockingQueue<>(4 * writer_threads.length);
+    }
+
+    /** Add files to import
+     *  @param file File, or directory to search for files
+     */
+    public void addFiles(final File file)
+    {
+        if (file.isDirectory())
+        {
+            final File[] content = file.listFiles();
+            if (content == null)
+                return;
+            Arrays.sort(content);
+            for (File sub : content)
+                addFiles(sub);
+        }
+        else if (checkpoint.isDone(file))
+            files_skipped.incrementAndGet();
+        else
+        {
+            files.add(new FileState(file));
+            files_total.incrementAndGet();
+        }
+    }
+
+    /** Import all files
+     *
+     *  <p>Blocks until all files have been imported,
+     *  or the import stopped on an error.
+     *  @throws Exception on error
+     */
+    public void run() throws Exception
+    {
+        for (Thread thread : writer_threads)
+            thread.start();
+        for (Encoder encoder : encoders)
+            encoder.thread.start();
+        for (Thread thread : reader_threads)
+            thread.start();
+
+        // Shut down one stage after the other
+        for (Thread thread : reader_threads)
+            thread.join();
+        for (Encoder encoder : encoders)
+            end(encoder.queue, END_OF_CHUNKS);
+        for (Encoder encoder : encoders)
+            encoder.thread.join();
+        for (int i=0; i<writer_threads.length; ++i)
+            end(write_queue, END_OF_BATCHES);
+        for (Thread thread : writer_threads)
+            thread.join();
+        writer.close();
+        checkpoint.close();
+        if (error != null)
+            throw error;
+    }
+
+    /** Stop the import on error */
+    private void fail(final Exception ex)
+    {
+        synchronized (this)
+        {
+            if (error != null)
+                return;
+            error = ex;
+        }
+        Activator.getLogger().log(Level.SEVERE, "Import failed", ex);
+    }
+
+    /** Take item from queue, waiting for one unless the import failed
+     *  @return Item, <code>null</code> when the import failed
+     */
+    private <T> T take(final BlockingQueue<T> queue) throws InterruptedException
+    {
+        while (error == null)
+        {
+            final T item = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (item != null)
+                return item;
+        }
+        return null;
+    }
+
+    /** Put item on queue, waiting for space unless the import failed */
+    private <T> void put(final BlockingQueue<T> queue, final T item) throws Exception
+    {
+        while (! queue.offer(item, 100, TimeUnit.MILLISECONDS))
+            if (error != null)
+                throw new Exception("Import stopped", error);
+    }
+
+    /** Put end-of-input marker on queue unless the import failed */
+    private <T> void end(final BlockingQueue<T> queue, final T item) throws InterruptedException
+    {
+        while (error == null)
+            if (queue.offer(item, 100, TimeUnit.MILLISECONDS))
+                return;
+    }
+
+    /** Reader thread */
+    private void read()
+    {
+        FileState file;
+        while (error == null  &&  (file = files.poll()) != null)
+        {
+            try
+            {
+                final String name = file.file.getName();
+                if (name.endsWith(".csv")  ||  name.endsWith(".csv.gz"))
+                    readSamples(file);
+                else
+                    readLineProtocol(file);
+                file.release(1);
+            }
+            catch (Exception ex)
+            {
+                fail(new Exception("Cannot import " + file.file, ex));
+            }
+        }
+    }
+
+    private BufferedReader open(final File file) throws Exception
+    {
+        InputStream stream = new FileInputStream(file);
+        if (file.getName().endsWith(".gz"))
+            stream = new GZIPInputStream(stream, 64*1024);
+        return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8), 64*1024);
+    }
+
+    /** Read samples, passing them in chunks to the encoder for their channel */
+    private void readSamples(final FileState file) throws Exception
+    {
+        final SampleParser parser = new SampleParser(precision);
+        final Chunk[] chunks = new Chunk[encoders.length];
+        try (BufferedReader reader = open(file.file))
+        {
+            String line;
+            int line_no = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                ++line_no;
+                final Sample sample;
+                try
+                {
+                    sample = parser.parse(line);
+                }
+                catch (Exception ex)
+                {
+                    if (lines_skipped.sum() < 100)
+                        Activator.getLogger().log(Level.WARNING, file.file + ":" + line_no + ": " + ex.getMessage());
+                    lines_skipped.increment();
+                    continue;
+                }
+                if (sample == null)
+                    continue;
+                final int e = (sample.channel.hashCode() & Integer.MAX_VALUE) % encoders.length;
+                if (chunks[e] == null)
+                    chunks[e] = new Chunk(file);
+                chunks[e].samples.add(sample);
+                if (chunks[e].samples.size() >= CHUNK_SIZE)
+                {
+                    submit(e, chunks[e]);
+                    chunks[e] = null;
+                }
+            }
+        }
+        for (int e=0; e<chunks.length; ++e)
+            if (chunks[e] != null)
+                submit(e, chunks[e]);
+    }
+
+    private void submit(final int encoder, final Chunk chunk) throws Exception
+    {
+        chunk.file.pending.incrementAndGet();
+        samples_read.add(chunk.samples.size());
+        put(encoders[encoder].queue, chunk);
+    }
+
+    /** Read line protocol, passing batches to the writers */
+    private void readLineProtocol(final FileState file) throws Exception
+    {
+        String dbName = default_db;
+        LineProtocolBuffer buffer = new LineProtocolBuffer(BUFFER_CAPACITY);
+        try (BufferedReader reader = open(file.file))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith("# CONTEXT-DATABASE:"))
+                {
+                    final String new_db = line.substring(19).trim();
+                    if (! new_db.equals(dbName))
+                    {
+                        submit(file, dbName, buffer);
+                        buffer = new LineProtocolBuffer(BUFFER_CAPACITY);
+                        dbName = new_db;
+                    }
+                    continue;
+                }
+                if (line.isEmpty()  ||  line.charAt(0) == '#'  ||  line.startsWith("CREATE "))
+                    continue;
+                if (dbName == null)
+                    throw new Exception("No database for line protocol, need '# CONTEXT-DATABASE:' or default database");
+                buffer.addLine(line);
+                samples_read.increment();
+                if (buffer.getPointCount() >= batch_points)
+                {
+                    submit(file, dbName, buffer);
+                    buffer = new LineProtocolBuffer(BUFFER_CAPACITY);
+                }
+            }
+        }
+        submit(file, dbName, buffer);
+    }
+
+    private void submit(final FileState file, final String dbName, final LineProtocolBuffer buffer) throws Exception
+    {
+        if (buffer.getPointCount() <= 0)
+            return;
+        file.pending.incrementAndGet();
+        final Map<FileState, Integer> files = new HashMap<>();
+        files.put(file, 1);
+        put(write_queue, new Batch(dbName, buffer, new Flush(files, 1)));
+    }
+
+    /** Writer thread */
+    private void write()
+    {
+        try
+        {
+            Batch batch;
+            while ((batch = take(write_queue)) != END_OF_BATCHES)
+            {
+                if (batch == null)
+                    return;
+                final WritePolicy policy = policies.getOrDefault(batch.dbName, default_policy);
+                final long start = System.nanoTime();
+                try
+                {
+                    if (sort_batches)
+                        batch.points.sortBySeries();
+                    writer.write(batch.dbName, policy.getRetention(), policy.getConsistency(), batch.points);
+                }
+                catch (Exception ex)
+                {
+                    metrics.batchWritten(batch.dbName, batch.points.size(), System.nanoTime() - start, false);
+                    throw new Exception("Cannot write " + batch.points.getPointCount() + " points to " + batch.dbName, ex);
+                }
+                metrics.batchWritten(batch.dbName, batch.points.size(), System.nanoTime() - start, true);
+                batch.flush.written();
+            }
+        }
+        catch (Exception ex)
+        {
+            fail(ex);
+        }
+    }
+
+    /** @return Metrics of encoded and written points */
+    public WriterMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** @return Number of files to import */
+    public int getFileCount()
+    {
+        return files_total.get();
+    }
+
+    /** @return Number of files that have been imported */
+    public int getFilesDone()
+    {
+        return files_done.get();
+    }
+
+    /** @return Number of files skipped because the checkpoint lists them as done */
+    public int getFilesSkipped()
+    {
+        return files_skipped.get();
+    }
+
+    /** @return Number of samples or line protocol points read */
+    public long getSamplesRead()
+    {
+        return samples_read.sum();
+    }
+
+    /** @return Number of lines that could not be parsed */
+    public long getLinesSkipped()
+    {
+        return lines_skipped.sum();
+    }
+
+    /** @return Number of bytes written */
+    public long getBytesWritten()
+    {
+        return writer.getBytesWritten();
+    }
+
+    @Override
+    public String toString()
+    {
+        int chunks = 0;
+        for (Encoder encoder : encoders)
+            chunks += encoder.queue.size();
+        return String.format("Files %d/%d, %d samples read, %d skipped lines, %d bytes written, queued: %d chunks, %d batches",
+                             getFilesDone(), getFileCount(), getSamplesRead(), getLinesSkipped(),
+                             getBytesWritten(), chunks, write_queue.size());
+    }
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.csstudio.apputil.args.ArgParser;
+import org.csstudio.apputil.args.BooleanOption;
+import org.csstudio.apputil.args.IntegerOption;
+import org.csstudio.apputil.args.StringOption;
+import org.csstudio.archive.config.influxdb.Activator;
+import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.writer.influxdb.WriterMetrics;
+import org.csstudio.security.PasswordInput;
+import org.csstudio.security.preferences.SecurePreferences;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.influxdb.InfluxDB;
+import org.osgi.service.prefs.BackingStoreException;
+
+/** Eclipse Application for bulk import of historic samples into InfluxDB
+ *
+ *  <p>Imports files with samples exported from another archive,
+ *  see {@link SampleParser}, or InfluxDB line protocol.
+ *  Uses the InfluxDB URL, database names and write preferences
+ *  of the archive writer.
+ */
+@SuppressWarnings("nls")
+public class ImportApp implements IApplication
+{
+    private List<String> file_names;
+    private File checkpoint_file;
+    private String default_db;
+    private int readers, encoders, writers, batch_points, precision;
+    private boolean create_dbs, verbose;
+
+    String[] getPrefValue(final String option)
+    {
+        if (option == null)
+            return null;
+        // Split "plugin/key=value"
+        final String[] pref_val = new String[2];
+        final int sep = option.indexOf("=");
+        if (sep >= 0)
+        {
+            pref_val[0] = option.substring(0, sep);
+            pref_val[1] = option.substring(sep + 1);
+        }
+        else
+        {
+            pref_val[0] = option;
+            pref_val[1] = null;
+        }
+        return pref_val;
+    }
+
+    void printVersion(final IApplicationContext context)
+    {
+        final String version = context.getBrandingBundle().getHeaders().get("Bundle-Version");
+        System.out.println(context.getBrandingName() + " " + version);
+    }
+
+    void printHelp(final IApplicationContext context, final ArgParser parser)
+    {
+        printVersion(context);
+        System.out.println("\n\n" + parser.getHelp());
+    }
+
+    void printUsageError(final IApplicationContext context, final ArgParser parser, final String msg)
+    {
+        printHelp(context, parser);
+        System.err.println(msg);
+    }
+
+    /** Obtain settings from preferences and command-line arguments
+     *  @param args Command-line arguments
+     *  @return <code>true</code> if continue, <code>false</code> to end application
+     */
+    private boolean getSettings(final String args[], final IApplicationContext context)
+    {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final ArgParser parser = new ArgParser();
+        final BooleanOption help_opt = new BooleanOption(parser, "-help", "Display help", false);
+        final BooleanOption version_opt = new BooleanOption(parser, "-version", "Display version info", false);
+        final BooleanOption verbose_opt = new BooleanOption(parser, "-verbose", "Verbose status output", false);
+        final BooleanOption create_dbs_opt = new BooleanOption(parser, "-create_dbs", "Create the databases", false);
+        final StringOption files_opt = new StringOption(parser, "-files", "path/to/fileordir",
+                "File to import or directory tree with files to import (*.csv[.gz] samples, others line protocol), may be repeated", null);
+        final StringOption checkpoint_opt = new StringOption(parser, "-checkpoint", "path/to/file",
+                "File that lists imported files, which are skipped when the import is restarted", null);
+        final StringOption db_opt = new StringOption(parser, "-db", "name",
+                "Database for line protocol files without '# CONTEXT-DATABASE:'", null);
+        final IntegerOption readers_opt = new IntegerOption(parser, "-readers", "count",
+                "Number of threads reading files", Math.max(1, cpus / 4));
+        final IntegerOption encoders_opt = new IntegerOption(parser, "-encoders", "count",
+                "Number of threads encoding samples", Math.max(1, cpus / 2));
+        final IntegerOption writers_opt = new IntegerOption(parser, "-writers", "count",
+                "Number of concurrent connections writing to InfluxDB", 4);
+        final IntegerOption batch_opt = new IntegerOption(parser, "-batch", "points",
+                "Number of points per write", 5000);
+        final IntegerOption precision_opt = new IntegerOption(parser, "-precision", "digits",
+                "Display precision of imported numeric samples", 4);
+        final StringOption preference_opt = new StringOption(parser, "-set_pref", "plugin.name/preference=value",
+                "Set a preference for a specific plugin", null);
+        final StringOption set_password_opt = new StringOption(parser,
+                "-set_password", "plugin/key=value", "Set secure preferences", null);
+
+        parser.addEclipseParameters();
+        try
+        {
+            parser.parse(args);
+        }
+        catch (final Exception ex)
+        {   // Bad options
+            printUsageError(context, parser, ex.getMessage());
+            return false;
+        }
+
+        if (help_opt.get())
+        {   // Help requested
+            printHelp(context, parser);
+            return false;
+        }
+        if (version_opt.get())
+        {   // Version requested
+            printVersion(context);
+            return false;
+        }
+
+        String[] pref_val = getPrefValue(set_password_opt.get());
+        if (pref_val != null)
+        {
+            if (pref_val[1] == null)
+                pref_val[1] = PasswordInput.readPassword("Value for " + pref_val[0] + ":");
+            try
+            {
+                SecurePreferences.set(pref_val[0], pref_val[1]);
+            }
+            catch (Exception ex)
+            {
+                ex.printStackTrace();
+            }
+            return false;
+        }
+
+        for (final String pref_opt : preference_opt.getMany())
+        {
+            pref_val = getPrefValue(pref_opt);
+            final String pref = pref_val[0];
+            final String value = pref_val[1];
+            final int sep = pref.indexOf('/');
+            if (value == null  ||  sep < 0)
+            {
+                printUsageError(context, parser, "Malformed option " + preference_opt.getOption() + " " + pref_opt);
+                return false;
+            }
+            final String plugin = pref.substring(0, sep);
+            final String preference = pref.substring(sep + 1);
+            final IEclipsePreferences pref_node = InstanceScope.INSTANCE.getNode(plugin);
+            pref_node.put(preference, value);
+            try
+            {
+                pref_node.flush();
+            }
+            catch (BackingStoreException e)
+            {
+                Activator.getLogger().log(Level.SEVERE,
+                        "Could not set plugin preference " + plugin + "/" + preference, e);
+            }
+        }
+
+        file_names = files_opt.getMany();
+        if (file_names.isEmpty())
+        {
+            printUsageError(context, parser, "Must specify files option: " + files_opt.getOption());
+            return false;
+        }
+        final String checkpoint = checkpoint_opt.get();
+        checkpoint_file = checkpoint == null ? null : new File(checkpoint);
+        default_db = db_opt.get();
+        readers = readers_opt.get();
+        encoders = encoders_opt.get();
+        writers = writers_opt.get();
+        batch_points = batch_opt.get();
+        precision = precision_opt.get();
+        create_dbs = create_dbs_opt.get();
+        verbose = verbose_opt.get();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object start(final IApplicationContext context) throws Exception
+    {
+        final String args[] =
+            (String []) context.getArguments().get("application.args");
+        if (!getSettings(args, context))
+            return Integer.valueOf(-2);
+
+        final String url = InfluxDBArchivePreferences.getURL();
+        final String user = InfluxDBArchivePreferences.getUser();
+        final String password = InfluxDBArchivePreferences.getPassword();
+        final DefaultDBNameMap dbnames = new DefaultDBNameMap();
+
+        if (create_dbs)
+        {
+            final InfluxDB influxdb = InfluxDBUtil.connect(url, user, password);
+            new InfluxDBQueries(influxdb, dbnames).initDatabases(influxdb);
+            if (default_db != null)
+                influxdb.createDatabase(default_db);
+            influxdb.close();
+        }
+
+        final ImportCheckpoint checkpoint = new ImportCheckpoint(checkpoint_file);
+        final BulkImporter importer = new BulkImporter(url, user, password, InfluxDBArchivePreferences.useGzip(),
+                dbnames, default_db, precision, checkpoint, readers, encoders, writers, batch_points);
+        for (String name : file_names)
+            importer.addFiles(new File(name));
+        System.out.format("Importing %d files into %s, %d already imported\n",
+                          importer.getFileCount(), url, importer.getFilesSkipped());
+
+        // Run the import, displaying progress
+        final Thread thread = new Thread(() ->
+        {
+            try
+            {
+                importer.run();
+            }
+            catch (Exception ex)
+            {
+                // Logged by importer, final result checked below
+            }
+        }, "Import");
+        final long start = System.nanoTime();
+        thread.start();
+        long last_samples = 0, last_bytes = 0, last_time = start;
+        while (thread.isAlive())
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(2));
+            final long now = System.nanoTime();
+            final long samples = importer.getSamplesRead(), bytes = importer.getBytesWritten();
+            final double secs = (now - last_time) / 1e9;
+            System.out.format("%s: %.0f samples/sec, %.1f MB/sec\n",
+                              importer, (samples - last_samples) / secs, (bytes - last_bytes) / secs / 1e6);
+            last_samples = samples;
+            last_bytes = bytes;
+            last_time = now;
+        }
+
+        final double secs = (System.nanoTime() - start) / 1e9;
+        final WriterMetrics metrics = importer.getMetrics();
+        System.out.format("Imported %d samples in %.1f sec, %.0f samples/sec\n",
+                          importer.getSamplesRead(), secs, importer.getSamplesRead() / secs);
+        if (verbose)
+            System.out.println(metrics.snapshot());
+        if (importer.getFilesDone() < importer.getFileCount())
+        {
+            System.err.format("Import stopped, %d of %d files imported. Run again to continue.\n",
+                              importer.getFilesDone(), importer.getFileCount());
+            return Integer.valueOf(-1);
+        }
+        return EXIT_OK;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop()
+    {
+    }
+}
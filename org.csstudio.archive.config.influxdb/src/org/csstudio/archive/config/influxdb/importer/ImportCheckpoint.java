@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Checkpoint of an import: Input files that have been written completely
+ *
+ *  <p>A file is identified by its path, size and modification time,
+ *  so a file that changed since it was imported is imported again.
+ *  Files that were only partially written when the import was interrupted
+ *  are imported again from the start.
+ *  This overwrites the points that were already written with identical ones.
+ */
+@SuppressWarnings("nls")
+public class ImportCheckpoint
+{
+    final private Set<String> done = new HashSet<>();
+    final private Writer out;
+
+    /** @param file Checkpoint file, created if it does not exist, <code>null</code> for none
+     *  @throws IOException on error
+     */
+    public ImportCheckpoint(final File file) throws IOException
+    {
+        if (file == null)
+        {
+            out = null;
+            return;
+        }
+        if (file.exists())
+            try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    done.add(line);
+            }
+        out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    }
+
+    private static String getKey(final File file)
+    {
+        return file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+    }
+
+    /** @param file Input file
+     *  @return <code>true</code> if the file was already imported
+     */
+    public synchronized boolean isDone(final File file)
+    {
+        return done.contains(getKey(file));
+    }
+
+    /** @param file Input file that has been imported
+     *  @throws IOException on error
+     */
+    public synchronized void markDone(final File file) throws IOException
+    {
+        final String key = getKey(file);
+        if (! done.add(key)  ||  out == null)
+            return;
+        out.write(key);
+        out.write('\n');
+        out.flush();
+    }
+
+    /** Close checkpoint file */
+    public synchronized void close()
+    {
+        if (out == null)
+            return;
+        try
+        {
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.importer;
+
+import java.time.Instant;
+
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVNumberArray;
+import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.VType;
+import org.diirt.vtype.ValueFactory;
+
+/** Parser for samples exported from another archive as comma-separated text
+ *
+ *  <p>Each line is
+ *  <pre>
+ *  channel,time,severity,status,value[,value...]
+ *  </pre>
+ *  with the time in ISO-8601 format like <code>2017-03-20T12:00:00.123456789Z</code>
+ *  or as nanoseconds since epoch.
+ *  A single numeric value becomes a number sample,
+ *  several numeric values become an array.
+ *  Any other value becomes a text sample,
+ *  which may contain commas.
+ *  Empty lines and lines starting with '#' are skipped.
+ *
+ *  <p>The export does not include display information,
+ *  numeric samples have no units and limits, only a configurable precision.
+ */
+@SuppressWarnings("nls")
+public class SampleParser
+{
+    /** Display for imported numeric samples */
+    final private Display display;
+
+    /** Parsed sample */
+    public static class Sample
+    {
+        /** Channel name */
+        final public String channel;
+        /** Sample */
+        final public VType value;
+
+        Sample(final String channel, final VType value)
+        {
+            this.channel = channel;
+            this.value = value;
+        }
+    }
+
+    /** @param precision Precision of numeric samples */
+    public SampleParser(final int precision)
+    {
+        display = ValueFactory.newDisplay(Double.NaN, Double.NaN, Double.NaN, "", NumberFormats.format(precision),
+                                          Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /** @param line Line of text
+     *  @return {@link Sample}, <code>null</code> for comment or empty line
+     *  @throws Exception on error
+     */
+    public Sample parse(final String line) throws Exception
+    {
+        if (line.isEmpty()  ||  line.charAt(0) == '#')
+            return null;
+        final String[] items = line.split(",", 5);
+        if (items.length < 5)
+            throw new Exception("Expected 'channel,time,severity,status,value', got '" + line + "'");
+        final String channel = items[0].trim();
+        final Instant time = parseTime(items[1].trim());
+        final AlarmSeverity severity = parseSeverity(items[2].trim());
+        final String status = items[3].trim();
+        final String value = items[4].trim();
+
+        final String[] elements = value.split(",");
+        final int count = elements.length;
+        final double[] values = new double[count];
+        for (int i=0; i<count; ++i)
+        {
+            try
+            {
+                values[i] = Double.parseDouble(elements[i].trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                return new Sample(channel, new ArchiveVString(time, severity, status, value));
+            }
+        }
+        if (count == 1)
+            return new Sample(channel, new ArchiveVNumber(time, severity, status, display, values[0]));
+        return new Sample(channel, new ArchiveVNumberArray(time, severity, status, display, values));
+    }
+
+    private static Instant parseTime(final String text) throws Exception
+    {
+        if (! text.isEmpty()  &&  Character.isDigit(text.charAt(text.length()-1))  &&  text.indexOf('-') < 0)
+        {
+            final long nanos = Long.parseLong(text);
+            return Instant.ofEpochSecond(nanos / 1000000000L, nanos % 1000000000L);
+        }
+        return Instant.parse(text);
+    }
+
+    private static AlarmSeverity parseSeverity(final String text)
+    {
+        try
+        {
+            return AlarmSeverity.valueOf(text.toUpperCase());
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return text.isEmpty() ? AlarmSeverity.NONE : AlarmSeverity.UNDEFINED;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.config.influxdb.provision;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.csstudio.apputil.args.ArgParser;
+import org.csstudio.apputil.args.BooleanOption;
+import org.csstudio.apputil.args.StringOption;
+import org.csstudio.archive.config.influxdb.Activator;
+import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.influxdb.RetentionTiers;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+import org.influxdb.InfluxDB;
+import org.osgi.service.prefs.BackingStoreException;
+
+/** Eclipse Application that provisions the archive databases
+ *
+ *  <p>Creates the databases, and the retention policies and continuous queries
+ *  of the retention tiers configured in org.csstudio.archive.influxdb.
+ *  Can be run repeatedly, only creating or updating what's missing or changed.
+ */
+@SuppressWarnings("nls")
+public class ProvisionApp implements IApplication
+{
+    private boolean dry_run, replace_queries;
+
+    void printVersion(final IApplicationContext context)
+    {
+        final String version = context.getBrandingBundle().getHeaders().get("Bundle-Version");
+        System.out.println(context.getBrandingName() + " " + version);
+    }
+
+    void printHelp(final IApplicationContext context, final ArgParser parser)
+    {
+        printVersion(context);
+        System.out.println("\n\n" + parser.getHelp());
+    }
+
+    /** Obtain settings from preferences and command-line arguments
+     *  @param args Command-line arguments
+     *  @return <code>true</code> if continue, <code>false</code> to end application
+     */
+    private boolean getSettings(final String args[], final IApplicationContext context)
+    {
+        final ArgParser parser = new ArgParser();
+        final BooleanOption help_opt = new BooleanOption(parser, "-help", "Display help", false);
+        final BooleanOption version_opt = new BooleanOption(parser, "-version", "Display version info", false);
+        final BooleanOption dry_run_opt = new BooleanOption(parser, "-dry_run", "Only list the statements that would be executed", false);
+        final BooleanOption replace_opt = new BooleanOption(parser, "-replace_queries",
+                "Replace existing continuous queries, for example after changing a rollup interval", false);
+        final StringOption preference_opt = new StringOption(parser, "-set_pref", "plugin.name/preference=value",
+                "Set a preference for a specific plugin", null);
+
+        parser.addEclipseParameters();
+        try
+        {
+            parser.parse(args);
+        }
+        catch (final Exception ex)
+        {   // Bad options
+            printHelp(context, parser);
+            System.err.println(ex.getMessage());
+            return false;
+        }
+
+        if (help_opt.get())
+        {   // Help requested
+            printHelp(context, parser);
+            return false;
+        }
+        if (version_opt.get())
+        {   // Version requested
+            printVersion(context);
+            return false;
+        }
+
+        for (final String pref_opt : preference_opt.getMany())
+        {   // Split "plugin/key=value"
+            final int sep = pref_opt.indexOf('/'), eq = pref_opt.indexOf('=');
+            if (sep < 0  ||  eq < sep)
+            {
+                printHelp(context, parser);
+                System.err.println("Malformed option " + preference_opt.getOption() + " " + pref_opt);
+                return false;
+            }
+            final String plugin = pref_opt.substring(0, sep);
+            final String preference = pref_opt.substring(sep + 1, eq);
+            final IEclipsePreferences pref_node = InstanceScope.INSTANCE.getNode(plugin);
+            pref_node.put(preference, pref_opt.substring(eq + 1));
+            try
+            {
+                pref_node.flush();
+            }
+            catch (BackingStoreException e)
+            {
+                Activator.getLogger().log(Level.SEVERE,
+                        "Could not set plugin preference " + plugin + "/" + preference, e);
+            }
+        }
+
+        dry_run = dry_run_opt.get();
+        replace_queries = replace_opt.get();
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object start(final IApplicationContext context) throws Exception
+    {
+        final String args[] =
+            (String []) context.getArguments().get("application.args");
+        if (!getSettings(args, context))
+            return Integer.valueOf(-2);
+
+        final String url = InfluxDBArchivePreferences.getURL();
+        final DefaultDBNameMap dbnames = new DefaultDBNameMap();
+        final InfluxDB influxdb = InfluxDBUtil.connect(url, InfluxDBArchivePreferences.getUser(),
+                                                       InfluxDBArchivePreferences.getPassword());
+        try
+        {
+            System.out.println("Provisioning " + url);
+            if (dry_run)
+            {   // Only list statements, don't change anything
+                final List<String> existing = influxdb.describeDatabases();
+                for (String db : dbnames.getAllDBNames())
+                {
+                    final RetentionTiers tiers = dbnames.getRetentionTiers(db);
+                    System.out.println("Database " + db + (tiers.isEmpty() ? "" : ", tiers " + tiers));
+                    final List<String> statements;
+                    if (existing.contains(db))
+                        statements = tiers.plan(influxdb, db, replace_queries);
+                    else
+                    {   // New database would only have the 'autogen' policy, kept forever
+                        System.out.println("  Would execute: CREATE DATABASE \"" + db + "\"");
+                        statements = tiers.getStatements(db, Collections.singletonMap("autogen", 0L), "autogen",
+                                                         Collections.emptySet(), replace_queries);
+                    }
+                    for (String statement : statements)
+                        System.out.println("  Would execute: " + statement);
+                }
+                return EXIT_OK;
+            }
+
+            final InfluxDBQueries queries = new InfluxDBQueries(influxdb, dbnames);
+            for (String db : dbnames.getAllDBNames())
+                influxdb.createDatabase(db);
+            final List<String> statements = queries.provisionRetentionTiers(influxdb, replace_queries);
+            for (String statement : statements)
+                System.out.println("Executed: " + statement);
+            if (statements.isEmpty())
+                System.out.println("Databases are up to date");
+        }
+        catch (Exception ex)
+        {
+            System.err.println("Provisioning failed: " + ex.getMessage());
+            return Integer.valueOf(-1);
+        }
+        finally
+        {
+            influxdb.close();
+        }
+        return EXIT_OK;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop()
+    {
+    }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.influxdb;
+
+import org.influxdb.dto.QueryResult;
+
+import okhttp3.Call;
+
+/** Chunked query in progress, see {@link ChunkedQueryClient}
+ *
+ *  <p>Cancelling the query aborts its HTTP request,
+ *  which stops InfluxDB from streaming the remaining chunks.
+ */
+@SuppressWarnings("nls")
+public class ChunkedQuery
+{
+    /** Error of the result that is passed to the consumer when a query is cancelled */
+    public static final String CANCELLED = "Query cancelled";
+
+    /** Result that is passed to the consumer after the last chunk of a complete response.
+     *  Compare by identity, do not modify.
+     */
+    public static final QueryResult END = new QueryResult();
+
+    final private Call call;
+    final private String statement;
+    private volatile boolean done = false;
+
+    ChunkedQuery(final Call call, final String statement)
+    {
+        this.call = call;
+        this.statement = statement;
+    }
+
+    /** Mark as done once the response has been read */
+    void done()
+    {
+        done = true;
+    }
+
+    /** @return <code>true</code> when the response has been read, failed, or was cancelled */
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    /** @return <code>true</code> if the query was cancelled */
+    public boolean isCancelled()
+    {
+        return call.isCanceled();
+    }
+
+    /** Abort the HTTP request. OK to call more than once, or after the query is done */
+    public void cancel()
+    {
+        if (! done)
+            call.cancel();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Chunked query " + statement + (done ? " (done)" : "");
+    }
+}
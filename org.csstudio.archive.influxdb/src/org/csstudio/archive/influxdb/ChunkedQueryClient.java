@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.influxdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.influxdb.dto.QueryResult;
+
+import com.squareup.moshi.JsonAdapter;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/** Chunked queries via the InfluxDB HTTP API that can be cancelled
+ *
+ *  <p>Like <code>InfluxDB.query(Query, int, Consumer)</code>,
+ *  the chunks of the result are passed to a consumer
+ *  as they are read from the response.
+ *  In addition, each query returns a {@link ChunkedQuery}
+ *  that allows aborting the HTTP request.
+ *
+ *  <p>Each chunked response is read on its own thread, not a thread of the
+ *  HTTP client's dispatcher.
+ *  A consumer may block to pause reading the response.
+ *
+ *  <p>The number of concurrent queries, plain or chunked, is limited
+ *  to protect the server.
+ *  A chunked query counts against the limit until its response has been read,
+ *  also while its consumer pauses it.
+ *  Queries beyond the limit wait for a running query to complete,
+ *  and fail if none completes within the chunk timeout.
+ *
+ *  <p>When the request fails, the consumer receives a result
+ *  with the error, so it does not need to wait for a timeout.
+ *  A cancelled query passes a result with the error {@link ChunkedQuery#CANCELLED}.
+ *  A complete response ends with {@link ChunkedQuery#END}.
+ *
+ *  <p>Queries request <code>epoch=ns</code> time stamps,
+ *  which are read as exact <code>Long</code> values of the "time" column,
+ *  see {@link InfluxDBUtil#fromInfluxDBTimeFormat(Object)}.
+ *  This avoids formatting and parsing an ISO-8601 string for each row.
+ *  Plain, not chunked queries are also supported.
+ *
+ *  <p>Thread safe.
+ */
+@SuppressWarnings("nls")
+public class ChunkedQueryClient
+{
+    final private OkHttpClient client;
+
+    /** Threads that read chunked responses */
+    final private ExecutorService streams = Executors.newCachedThreadPool(runnable ->
+    {
+        final Thread thread = new Thread(runnable, "InfluxDB Chunked Query");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Permits for concurrent queries */
+    final private Semaphore permits;
+
+    /** Maximum number of concurrent queries */
+    final private int max_queries;
+
+    /** Seconds to wait for a permit */
+    final private long timeout_secs;
+
+    /** URL of the query endpoint with credentials, but no database or query */
+    final private HttpUrl query_url;
+
+    final private static JsonAdapter<QueryResult> adapter = new QueryResultAdapter();
+
+    /** Initialize
+     *  @param url InfluxDB URL
+     *  @param user .. user name, may be <code>null</code>
+     *  @param password .. password, may be <code>null</code>
+     *  @param max_queries Maximum number of concurrent queries
+     *  @throws Exception on invalid URL
+     */
+    public ChunkedQueryClient(final String url, final String user, final String password,
+                              final int max_queries) throws Exception
+    {
+        final HttpUrl base = HttpUrl.parse(url);
+        if (base == null)
+            throw new Exception("Invalid InfluxDB URL " + url);
+        final HttpUrl.Builder builder = base.newBuilder()
+                                            .addPathSegment("query");
+        if (! (user == null || user.isEmpty() || password == null || password.isEmpty()))
+            builder.addQueryParameter("u", user)
+                   .addQueryParameter("p", password);
+        query_url = builder.build();
+        this.max_queries = max_queries;
+        permits = new Semaphore(max_queries, true);
+        timeout_secs = InfluxDBArchivePreferences.getChunkTimeoutSecs();
+
+        // Chunked queries are executed on the 'streams' threads, not via the Dispatcher,
+        // with the 'permits' limiting all queries and thus the connections in use.
+        // Readers wait this long for the next chunk, so fail the request after the same time
+        client = new OkHttpClient.Builder()
+                                 .connectionPool(new ConnectionPool(max_queries, 5, TimeUnit.MINUTES))
+                                 .readTimeout(timeout_secs, TimeUnit.SECONDS)
+                                 .build();
+    }
+
+    /** @param json JSON of an <code>epoch=ns</code> query result
+     *  @return {@link QueryResult} with <code>Long</code> time stamps
+     *  @throws Exception on error
+     */
+    public static QueryResult parse(final String json) throws Exception
+    {
+        return adapter.fromJson(json);
+    }
+
+    /** @param stmt Query statement
+     *  @param dbName Database
+     *  @return URL builder for the query with <code>epoch=ns</code>
+     */
+    private HttpUrl.Builder createURL(final String stmt, final String dbName)
+    {
+        return query_url.newBuilder()
+                        .addQueryParameter("db", dbName)
+                        .addQueryParameter("q", stmt)
+                        .addQueryParameter("epoch", "ns");
+    }
+
+    /** Perform a query
+     *  @param stmt Query statement
+     *  @param dbName Database
+     *  @return {@link QueryResult}
+     *  @throws Exception on error
+     */
+    public QueryResult query(final String stmt, final String dbName) throws Exception
+    {
+        Activator.getLogger().log(Level.FINE, "InfluxDB query ({0}): {1}", new Object[] {dbName, stmt});
+        final Call call = client.newCall(new Request.Builder().url(createURL(stmt, dbName).build()).build());
+        acquire(call);
+        try
+        {
+            final Response response = call.execute();
+            try (final ResponseBody body = response.body())
+            {
+                if (! response.isSuccessful())
+                    throw new Exception("Query failed with HTTP " + response.code() + ": " + body.string());
+                return adapter.fromJson(body.source());
+            }
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    /** Wait for a permit to run a query
+     *  @param call Call of the query, which may be cancelled while waiting
+     *  @throws IOException when cancelled, interrupted, or no permit became available in time
+     */
+    private void acquire(final Call call) throws IOException
+    {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout_secs);
+        try
+        {
+            while (! permits.tryAcquire(100, TimeUnit.MILLISECONDS))
+            {
+                if (call.isCanceled())
+                    throw new IOException("Canceled");
+                if (System.nanoTime() - end > 0)
+                    throw new IOException("No query completed within " + timeout_secs +
+                                          " seconds while " + max_queries + " queries were active");
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to run query");
+        }
+    }
+
+    /** Start a chunked query
+     *  @param stmt Query statement
+     *  @param dbName Database
+     *  @param chunk_size Number of points per chunk
+     *  @param consumer Consumer for the chunks, called on a thread that reads the response.
+     *                  May block to pause reading.
+     *  @return {@link ChunkedQuery} that allows cancelling the query
+     */
+    public ChunkedQuery query(final String stmt, final String dbName, final int chunk_size,
+                              final Consumer<QueryResult> consumer)
+    {
+        Activator.getLogger().log(Level.FINE, "InfluxDB cancellable chunked ({2}) query ({0}): {1}", new Object[] {dbName, stmt, chunk_size});
+        final HttpUrl url = createURL(stmt, dbName)
+                                     .addQueryParameter("chunked", "true")
+                                     .addQueryParameter("chunk_size", Integer.toString(chunk_size))
+                                     .build();
+        final Call call = client.newCall(new Request.Builder().url(url).build());
+        final ChunkedQuery query = new ChunkedQuery(call, stmt);
+        streams.execute(() -> read(call, query, stmt, consumer));
+        return query;
+    }
+
+    /** Read the chunks of a response
+     *  @param call Call of the query
+     *  @param query Query to mark as done
+     *  @param stmt Query statement
+     *  @param consumer Consumer for the chunks
+     */
+    private void read(final Call call, final ChunkedQuery query, final String stmt,
+                      final Consumer<QueryResult> consumer)
+    {
+        try
+        {
+            acquire(call);
+        }
+        catch (IOException ex)
+        {
+            if (call.isCanceled())
+                fail(consumer, ChunkedQuery.CANCELLED);
+            else
+                fail(consumer, "Query failed: " + ex.getMessage());
+            query.done();
+            return;
+        }
+        try
+        {
+            final Response response = call.execute();
+            try (final ResponseBody body = response.body())
+            {
+                if (! response.isSuccessful())
+                {
+                    fail(consumer, "Query failed with HTTP " + response.code() + ": " + body.string());
+                    return;
+                }
+                // Response is a sequence of JSON objects, one per chunk.
+                // A response that breaks off within a chunk is an error, not the end
+                final BufferedSource source = body.source();
+                while (! call.isCanceled())
+                {
+                    if (isExhausted(source))
+                    {
+                        consumer.accept(ChunkedQuery.END);
+                        return;
+                    }
+                    final QueryResult result = adapter.fromJson(source);
+                    if (result != null)
+                        consumer.accept(result);
+                }
+                fail(consumer, ChunkedQuery.CANCELLED);
+            }
+        }
+        catch (IOException ex)
+        {
+            if (call.isCanceled())
+                fail(consumer, ChunkedQuery.CANCELLED);
+            else
+            {
+                Activator.getLogger().log(Level.WARNING, "Chunked query " + stmt + " failed", ex);
+                fail(consumer, "Query failed: " + ex.getMessage());
+            }
+        }
+        finally
+        {
+            permits.release();
+            query.done();
+        }
+    }
+
+    /** @param source Response
+     *  @return <code>true</code> at the end of the response, skipping whitespace between chunks
+     *  @throws IOException on error
+     */
+    private static boolean isExhausted(final BufferedSource source) throws IOException
+    {
+        while (! source.exhausted())
+        {
+            final byte b = source.buffer().getByte(0);
+            if (b != ' '  &&  b != '\n'  &&  b != '\r'  &&  b != '\t')
+                return false;
+            source.skip(1);
+        }
+        return true;
+    }
+
+    /** @param consumer Consumer to notify
+     *  @param error Error message
+     */
+    private static void fail(final Consumer<QueryResult> consumer, final String error)
+    {
+        final QueryResult result = new QueryResult();
+        result.setError(error);
+        consumer.accept(result);
+    }
+
+    /** Release the threads and connections of the HTTP client */
+    public void close()
+    {
+        client.dispatcher().cancelAll();
+        client.dispatcher().executorService().shutdown();
+        streams.shutdown();
+        client.connectionPool().evictAll();
+    }
+}
@@ -21,6 +21,10 @@ public class InfluxDBArchivePreferences
     public static final String USER = "user";
     public static final String PASSWORD = "password";
     public static final String TIMEOUT = "timeout_secs";
+    public static final String GZIP = "gzip";
+    public static final String UDP_PORT = "udp_port";
+    public static final String RETENTION_TIERS = "retention_tiers";
+    public static final String SERVER_SIDE_OPTIMIZATION = "server_side_optimization";
 
     //TODO: Multiple databases?
     // public static final String DFLT_DBNAME = "channel_data";
@@ -78,6 +82,42 @@ public class InfluxDBArchivePreferences
         return prefs.getInt(Activator.ID, TIMEOUT, 0, null);
     }
 
+    /** @return Compress request bodies sent to InfluxDB with gzip? */
+    public static boolean useGzip()
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return false;
+        return prefs.getBoolean(Activator.ID, GZIP, false, null);
+    }
+
+    /** @return Port of the UDP listener for the default data database, 0 to only use HTTP */
+    public static int getUDPPort()
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return 0;
+        return prefs.getInt(Activator.ID, UDP_PORT, 0, null);
+    }
+
+    /** @return Retention tiers of the default data database, see {@link RetentionTiers#parse(String)} */
+    public static String getRetentionTiers()
+    {
+        final String ret = getString(RETENTION_TIERS);
+        if (ret == null)
+            return "";
+        return ret;
+    }
+
+    /** @return Compute optimized values with GROUP BY time() in InfluxDB? */
+    public static boolean useServerSideOptimization()
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return true;
+        return prefs.getBoolean(Activator.ID, SERVER_SIDE_OPTIMIZATION, true, null);
+    }
+
     /** Get string preference
      *  @param key Preference key
      *  @return String or <code>null</code>
@@ -12,6 +12,7 @@ public class InfluxDBDataSource {
     static public String USER_KEY = "user";
     static public String PASSW_KEY = "password";
     static public String METADB_KEY = "meta_db";
+    static public String GZIP_KEY = "gzip";
 
     final protected String url;
     final protected Map<String, String> args;
@@ -33,6 +34,18 @@ public class InfluxDBDataSource {
         return ret;
     }
 
+    /** @param argkey Argument key
+     *  @param default_value Value to use when the argument is not set
+     *  @return <code>true</code> if the argument is "true" (ignoring case)
+     */
+    public boolean getArgBoolean(final String argkey, final boolean default_value)
+    {
+        final String ret = args.get(argkey);
+        if (ret == null)
+            return default_value;
+        return Boolean.parseBoolean(ret);
+    }
+
     InfluxDBDataSource(final String url, final Map<String, String> args)
     {
         this.url = url;
@@ -2,6 +2,7 @@ package org.csstudio.archive.influxdb;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -20,15 +21,43 @@ public class InfluxDBQueries
         public abstract String getMetaDBName(final String channel_name) throws Exception;
 
         public abstract List<String> getAllDBNames();
+
+        /** @return Databases that hold meta data, may be empty if not known */
+        public List<String> getMetaDBNames() {
+            return new ArrayList<String>();
+        }
+
+        /** Scalar numeric samples of a data database may be written via UDP,
+         *  where InfluxDB's UDP listener for that database accepts line protocol
+         *  without acknowledging it.
+         *  Meta data, strings, enums and arrays are always written via HTTP.
+         *  @param db_name Data database
+         *  @return UDP port of the database, 0 to only use HTTP
+         */
+        public int getUDPPort(final String db_name) {
+            return 0;
+        }
+
+        /** @param db_name Database
+         *  @return Retention policies with downsampled tiers of the database
+         */
+        public RetentionTiers getRetentionTiers(final String db_name) {
+            return RetentionTiers.NONE;
+        }
     };
 
     private final DBNameMap dbnames;
 
+    /** Client for cancellable chunked queries, may be <code>null</code> */
+    private final ChunkedQueryClient chunked_client;
+
     public static class DefaultDBNameMap extends DBNameMap {
 
         protected final String db_name;
         protected final String meta_db_name;
         protected final List<String> all_names;
+        protected final int udp_port;
+        protected final RetentionTiers tiers;
 
         public DefaultDBNameMap() {
             db_name = InfluxDBArchivePreferences.getDBPrefix() + InfluxDBArchivePreferences.getDBName();
@@ -37,6 +66,15 @@ public class InfluxDBQueries
             all_names = new ArrayList<String>();
             all_names.add(db_name);
             all_names.add(meta_db_name);
+            udp_port = InfluxDBArchivePreferences.getUDPPort();
+            RetentionTiers parsed;
+            try {
+                parsed = RetentionTiers.parse(InfluxDBArchivePreferences.getRetentionTiers());
+            } catch (Exception ex) {
+                Activator.getLogger().log(Level.SEVERE, "Invalid retention tiers", ex);
+                parsed = RetentionTiers.NONE;
+            }
+            tiers = parsed;
         }
 
         @Override
@@ -53,6 +91,23 @@ public class InfluxDBQueries
         public List<String> getAllDBNames() {
             return all_names;
         }
+
+        @Override
+        public List<String> getMetaDBNames() {
+            final List<String> names = new ArrayList<String>();
+            names.add(meta_db_name);
+            return names;
+        }
+
+        @Override
+        public int getUDPPort(final String db_name) {
+            return db_name.equals(this.db_name) ? udp_port : 0;
+        }
+
+        @Override
+        public RetentionTiers getRetentionTiers(final String db_name) {
+            return db_name.equals(this.db_name) ? tiers : RetentionTiers.NONE;
+        }
     };
 
     public List<String> getAllDBNames() {
@@ -63,39 +118,97 @@ public class InfluxDBQueries
         for (String db : dbnames.getAllDBNames()) {
             influxdb.createDatabase(db);
         }
+        try {
+            provisionRetentionTiers(influxdb, false);
+        } catch (Exception ex) {
+            Activator.getLogger().log(Level.WARNING, "Cannot provision retention tiers", ex);
+        }
+    }
+
+    /** Create or update the retention policies and continuous queries
+     *  of databases that have retention tiers
+     *  @param influxdb InfluxDB
+     *  @param replace_queries Replace existing continuous queries?
+     *  @return Statements that were executed, empty if all databases were already provisioned
+     *  @throws Exception on error
+     */
+    public List<String> provisionRetentionTiers(final InfluxDB influxdb, final boolean replace_queries) throws Exception {
+        final List<String> statements = new ArrayList<String>();
+        for (String db : dbnames.getAllDBNames()) {
+            statements.addAll(dbnames.getRetentionTiers(db).provision(influxdb, db, replace_queries));
+        }
+        return statements;
     }
 
     public InfluxDBQueries(InfluxDB influxdb, final DBNameMap dbnames)
+    {
+        this(influxdb, null, dbnames);
+    }
+
+    /** @param influxdb InfluxDB
+     *  @param chunked_client Client for chunked queries that can be cancelled,
+     *                        or <code>null</code> to perform them via <code>influxdb</code>
+     *  @param dbnames Database names
+     */
+    public InfluxDBQueries(InfluxDB influxdb, final ChunkedQueryClient chunked_client, final DBNameMap dbnames)
     {
         this.influxdb = influxdb;
+        this.chunked_client = chunked_client;
         if (dbnames == null)
             this.dbnames = new DefaultDBNameMap();
         else
             this.dbnames = dbnames;
     }
 
-    //TODO: timestamps come back with wrong values stored in Double... would be faster if it worked.
-    //private final static boolean query_nanos = true;
-
+    /** Perform query
+     *
+     *  <p>Time stamps are returned as ISO-8601 strings,
+     *  because the InfluxDB client would read <code>epoch=ns</code> time stamps
+     *  as <code>Double</code>, which lacks the precision for nanoseconds.
+     */
     public static QueryResult makeQuery(final InfluxDB influxdb, final String stmt, final String dbName)
     {
         Activator.getLogger().log(Level.FINE, "InfluxDB query ({0}): {1}", new Object[] {dbName, stmt});
-        //if (query_nanos)
-        //    return influxdb.query(new Query(stmt, dbName), TimeUnit.NANOSECONDS);
         return influxdb.query(new Query(stmt, dbName));
+    }
+
+    /** Perform query, with <code>Long</code> nanosecond time stamps if there is a {@link ChunkedQueryClient}
+     *  @see InfluxDBUtil#fromInfluxDBTimeFormat(Object)
+     */
+    private QueryResult query(final String stmt, final String dbName) throws Exception
+    {
+        if (chunked_client != null)
+            return chunked_client.query(stmt, dbName);
+        return makeQuery(influxdb, stmt, dbName);
+    }
 
+    /** Execute several statements in one request, see {@link #query(String, String)}
+     *  @return Results, use {@link InfluxDBResults#getResult(QueryResult, int)} to get those of each statement
+     */
+    private QueryResult multiQuery(final List<String> stmts, final String dbName) throws Exception
+    {
+        return query(String.join(";", stmts), dbName);
     }
 
     public static void makeChunkQuery(int chunkSize, Consumer<QueryResult> consumer,
             InfluxDB influxdb, String stmt, String dbName) throws Exception
     {
         Activator.getLogger().log(Level.FINE, "InfluxDB chunked ({2}) query ({0}): {1}", new Object[] {dbName, stmt, chunkSize});
-        //if (query_nanos)
-        //   influxdb.query(new Query(stmt, dbName), TimeUnit.NANOSECONDS, chunkSize, consumer);
-        //else
         influxdb.query(new Query(stmt, dbName), chunkSize, consumer);
     }
 
+    /** Perform chunked query, cancellable if there is a {@link ChunkedQueryClient}
+     *  @return {@link ChunkedQuery}, or <code>null</code> if the query cannot be cancelled
+     */
+    private ChunkedQuery makeChunkQuery(int chunkSize, Consumer<QueryResult> consumer,
+            String stmt, String dbName) throws Exception
+    {
+        if (chunked_client != null)
+            return chunked_client.query(stmt, dbName, chunkSize, consumer);
+        makeChunkQuery(chunkSize, consumer, influxdb, stmt, dbName);
+        return null;
+    }
+
 
     private static String get_points(final StringBuilder sb, final List<String> where_clauses,
             final Long limit)
@@ -158,6 +271,43 @@ public class InfluxDBQueries
         return get_points(sb, where_clauses, limit);
     }
 
+    /** @param select_what What to select
+     *  @param measurements Names of measurements
+     *  @param limit Number of points per measurement, negative for newest points
+     *  @return Query for the points of several measurements
+     */
+    public static String get_measurements_points(final String select_what, final List<String> measurements,
+            final Long limit) {
+        return get_measurements_points(select_what, measurements, null, null, limit);
+    }
+
+    /** @param select_what What to select
+     *  @param measurements Names of measurements
+     *  @param starttime Start time (inclusive) or <code>null</code>
+     *  @param endtime End time (inclusive) or <code>null</code>
+     *  @param limit Number of points per measurement, negative for newest points
+     *  @return Query for the points of several measurements
+     */
+    public static String get_measurements_points(final String select_what, final List<String> measurements,
+            final Instant starttime, final Instant endtime, final Long limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ").append(select_what).append(" FROM ");
+        for (int idx = 0; idx < measurements.size(); idx++) {
+            if (idx > 0)
+                sb.append(',');
+            sb.append('"');
+            final String name = measurements.get(idx);
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                if (c == '"' || c == '\\')
+                    sb.append('\\');
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+        return get_points(sb, getTimeClauses(starttime, endtime), limit);
+    }
+
     public static String get_pattern_points(final String select_what, final String pattern, final Instant starttime,
             final Instant endtime, final Long limit) {
         StringBuilder sb = new StringBuilder();
@@ -167,26 +317,36 @@ public class InfluxDBQueries
 
     ///////////////////////////// RAW DATA QUERIES
 
-    public void chunk_get_series_samples(final int chunkSize, final InfluxDBSeriesInfo series, final Instant starttime,
+    public ChunkedQuery chunk_get_series_samples(final int chunkSize, final InfluxDBSeriesInfo series, final Instant starttime,
             final Instant endtime, Long limit, Consumer<QueryResult> consumer) throws Exception {
-        makeChunkQuery(chunkSize, consumer, influxdb, get_series_points(series, starttime, endtime, limit),
+        return makeChunkQuery(chunkSize, consumer, get_series_points(series, starttime, endtime, limit),
                 dbnames.getDataDBName(series.getMeasurement()));
     }
 
+    /** Query several statements about the samples of a series in one request
+     *  @param series Series
+     *  @param stmts Statements, for example from {@link #get_series_points(InfluxDBSeriesInfo, Instant, Instant, Long)}
+     *  @return Results, use {@link InfluxDBResults#getResult(QueryResult, int)} to get those of each statement
+     *  @throws Exception on error
+     */
+    public QueryResult multi_get_series_samples(final InfluxDBSeriesInfo series, final String... stmts) throws Exception {
+        return multiQuery(Arrays.asList(stmts), dbnames.getDataDBName(series.getMeasurement()));
+    }
+
     public QueryResult get_oldest_series_sample(final InfluxDBSeriesInfo series) throws Exception {
-        return makeQuery(influxdb, get_series_points(series, null, null, 1L),
+        return query(get_series_points(series, null, null, 1L),
                 dbnames.getDataDBName(series.getMeasurement()));
     }
 
     public QueryResult get_newest_series_samples(final InfluxDBSeriesInfo series, final Instant starttime,
             final Instant endtime, Long num) throws Exception {
-        return makeQuery(influxdb, get_series_points(series, starttime, endtime, -num),
+        return query(get_series_points(series, starttime, endtime, -num),
                 dbnames.getDataDBName(series.getMeasurement()));
     }
 
     public QueryResult get_series_samples(final InfluxDBSeriesInfo series, final Instant starttime,
             final Instant endtime, Long num) throws Exception {
-        return makeQuery(influxdb, get_series_points(series, starttime, endtime, num),
+        return query(get_series_points(series, starttime, endtime, num),
                 dbnames.getDataDBName(series.getMeasurement()));
     }
 
@@ -194,42 +354,150 @@ public class InfluxDBQueries
 
     public QueryResult get_oldest_channel_sample(final String channel_name) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, null, null, 1L),
+        return query(get_channel_points("*", channel_name, null, null, 1L),
                 dbnames.getDataDBName(channel_name));
     }
 
     public QueryResult get_newest_channel_samples(final String channel_name, final Instant starttime,
             final Instant endtime, Long num) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, starttime, endtime, -num),
+        return query(get_channel_points("*", channel_name, starttime, endtime, -num),
                 dbnames.getDataDBName(channel_name));
     }
 
     public QueryResult get_channel_samples(final String channel_name, final Instant starttime, final Instant endtime,
             Long num) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, starttime, endtime, num),
+        return query(get_channel_points("*", channel_name, starttime, endtime, num),
                 dbnames.getDataDBName(channel_name));
     }
 
 
-    public void chunk_get_channel_samples(final int chunkSize,
+    public ChunkedQuery chunk_get_channel_samples(final int chunkSize,
             final String channel_name, final Instant starttime, final Instant endtime, Long limit, Consumer<QueryResult> consumer) throws Exception
     {
-        makeChunkQuery(
-                chunkSize, consumer, influxdb,
+        return makeChunkQuery(
+                chunkSize, consumer,
                 get_channel_points("*", channel_name, starttime, endtime, limit),
                 dbnames.getDataDBName(channel_name));
     }
 
+    /** Stream the samples of several channels with one query
+     *  @param chunkSize Number of points per chunk
+     *  @param channel_names Channels, all in the same data database
+     *  @param starttime Start time (inclusive) or <code>null</code>
+     *  @param endtime End time (inclusive) or <code>null</code>
+     *  @param consumer Consumer for the chunks, each series holding the samples of one channel
+     *  @return {@link ChunkedQuery}, or <code>null</code> if the query cannot be cancelled
+     *  @throws Exception on error
+     */
+    public ChunkedQuery chunk_get_channels_samples(final int chunkSize, final List<String> channel_names,
+            final Instant starttime, final Instant endtime, Consumer<QueryResult> consumer) throws Exception
+    {
+        return makeChunkQuery(
+                chunkSize, consumer,
+                get_measurements_points("*", channel_names, starttime, endtime, null),
+                dbnames.getDataDBName(channel_names.get(0)));
+    }
+
+    /** Column of the standard deviation in aggregated samples */
+    public static final String STDDEV = "stddev";
+
+    /** @param channel_name Channel name
+     *  @param starttime Start time, exclusive
+     *  @param endtime End time, inclusive
+     *  @param seconds Width of the time bins
+     *  @return Query for mean, min, max, standard deviation and count of the numeric samples per time bin,
+     *          one series for each severity and status
+     */
+    public static String get_aggregate_points(final String channel_name, final Instant starttime,
+            final Instant endtime, final long seconds) {
+        final String field = '"' + RetentionTiers.FIELD + '"';
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT mean(").append(field).append(") AS \"").append(RetentionTiers.MEAN).append('"');
+        sb.append(", min(").append(field).append(") AS \"").append(RetentionTiers.MIN).append('"');
+        sb.append(", max(").append(field).append(") AS \"").append(RetentionTiers.MAX).append('"');
+        sb.append(", stddev(").append(field).append(") AS \"").append(STDDEV).append('"');
+        sb.append(", count(").append(field).append(") AS \"").append(RetentionTiers.COUNT).append('"');
+        sb.append(" FROM \"").append(channel_name).append('"');
+        sb.append(" WHERE time > ").append(InfluxDBUtil.toNano(starttime).toString());
+        sb.append(" AND time <= ").append(InfluxDBUtil.toNano(endtime).toString());
+        sb.append(" GROUP BY time(").append(seconds).append("s),\"severity\",\"status\" fill(none)");
+        return sb.toString();
+    }
+
+    /** @param channel_name Channel name
+     *  @param tier Name of the rollup tier
+     *  @param starttime Start time, exclusive
+     *  @param endtime End time, inclusive
+     *  @return Query for the mean, min, max and count of each rollup interval
+     *  @see RetentionTiers#createContinuousQuery(String, RetentionTiers.Tier)
+     */
+    public static String get_rollup_points(final String channel_name, final String tier,
+            final Instant starttime, final Instant endtime) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT \"").append(RetentionTiers.MEAN).append("\",\"").append(RetentionTiers.MIN);
+        sb.append("\",\"").append(RetentionTiers.MAX).append("\",\"").append(RetentionTiers.COUNT).append('"');
+        sb.append(" FROM \"").append(tier).append("\".\"").append(channel_name).append('"');
+        sb.append(" WHERE time > ").append(InfluxDBUtil.toNano(starttime).toString());
+        sb.append(" AND time <= ").append(InfluxDBUtil.toNano(endtime).toString());
+        return sb.toString();
+    }
+
+    /** @param channel_name Channel name
+     *  @param starttime Start time, exclusive
+     *  @param endtime End time, inclusive
+     *  @param limit Maximum number of samples
+     *  @return Query for the samples that are in alarm or have no valid value
+     */
+    public static String get_alarm_points(final String channel_name, final Instant starttime,
+            final Instant endtime, final long limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT * FROM \"").append(channel_name).append('"');
+        sb.append(" WHERE \"severity\" != 'NONE'");
+        sb.append(" AND time > ").append(InfluxDBUtil.toNano(starttime).toString());
+        sb.append(" AND time <= ").append(InfluxDBUtil.toNano(endtime).toString());
+        sb.append(" LIMIT ").append(limit);
+        return sb.toString();
+    }
+
+    /** @param channel_name Channel name
+     *  @return Retention tiers of the channel's data database
+     */
+    public RetentionTiers getRetentionTiers(final String channel_name)
+    {
+        return dbnames.getRetentionTiers(dbnames.getDataDBName(channel_name));
+    }
+
+    /** Aggregate samples on the server
+     *  @param channel_name Channel name
+     *  @param starttime Start time, exclusive
+     *  @param endtime End time, inclusive
+     *  @param seconds Width of the time bins
+     *  @return Mean, min, max, standard deviation and count per time bin, one series for each severity and status
+     *  @throws Exception on error
+     *  @see #get_aggregate_points(String, Instant, Instant, long)
+     */
+    public QueryResult get_channel_aggregates(final String channel_name, final Instant starttime, final Instant endtime,
+            final long seconds) throws Exception
+    {
+        return query(get_aggregate_points(channel_name, starttime, endtime, seconds),
+                dbnames.getDataDBName(channel_name));
+    }
+
+    /** Query several statements about the samples of a channel in one request
+     *  @param channel_name Channel name
+     *  @param stmts Statements, for example from {@link #get_channel_points(String, String, Instant, Instant, Long)}
+     *  @return Results, use {@link InfluxDBResults#getResult(QueryResult, int)} to get those of each statement
+     *  @throws Exception on error
+     */
+    public QueryResult multi_get_channel_samples(final String channel_name, final String... stmts) throws Exception
+    {
+        return multiQuery(Arrays.asList(stmts), dbnames.getDataDBName(channel_name));
+    }
+
     public QueryResult get_newest_channel_datum_regex(final String pattern) throws Exception {
-        return makeQuery(influxdb, get_pattern_points("*", pattern, null, null, -1L), dbnames.getDataDBName(pattern));
+        return query(get_pattern_points("*", pattern, null, null, -1L), dbnames.getDataDBName(pattern));
     }
 
     ///////////////////////////// META DATA ARCHIVE QUERIES
@@ -237,38 +505,60 @@ public class InfluxDBQueries
     public QueryResult get_newest_meta_data(final String channel_name, final Instant starttime, final Instant endtime,
             Long num) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, starttime, endtime, -num),
+        return query(get_channel_points("*", channel_name, starttime, endtime, -num),
                 dbnames.getMetaDBName(channel_name));
     }
 
+    /** Query several statements about the meta data of a channel in one request
+     *  @param channel_name Channel name
+     *  @param stmts Statements, for example from {@link #get_channel_points(String, String, Instant, Instant, Long)}
+     *  @return Results, use {@link InfluxDBResults#getResult(QueryResult, int)} to get those of each statement
+     *  @throws Exception on error
+     */
+    public QueryResult multi_get_channel_meta_data(final String channel_name, final String... stmts) throws Exception
+    {
+        return multiQuery(Arrays.asList(stmts), dbnames.getMetaDBName(channel_name));
+    }
+
     public QueryResult get_newest_meta_datum(final String channel_name) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, null, null, -1L),
+        return query(get_channel_points("*", channel_name, null, null, -1L),
                 dbnames.getMetaDBName(channel_name));
     }
 
     public QueryResult get_newest_meta_datum_regex(final String pattern) throws Exception {
-        return makeQuery(influxdb, get_pattern_points("*", pattern, null, null, -1L),
+        return query(get_pattern_points("*", pattern, null, null, -1L),
                 dbnames.getMetaDBName(pattern));
     }
 
+    /** @param dbName Meta data database
+     *  @param channel_names Channels stored in that database
+     *  @return Newest meta data point of each channel that has meta data, one series per channel
+     */
+    public QueryResult get_newest_meta_datum(final String dbName, final List<String> channel_names) throws Exception
+    {
+        return query(get_measurements_points("*", channel_names, -1L), dbName);
+    }
+
+    /** @param dbName Database
+     *  @return Names of all measurements in the database, one value per name
+     */
+    public QueryResult get_measurement_names(final String dbName) throws Exception
+    {
+        return query("SHOW MEASUREMENTS", dbName);
+    }
+
     public QueryResult get_all_meta_data(final String channel_name) throws Exception
     {
-        return makeQuery(
-                influxdb,
-                get_channel_points("*", channel_name, null, null, null),
+        return query(get_channel_points("*", channel_name, null, null, null),
                 dbnames.getMetaDBName(channel_name));
     }
 
-    public void chunk_get_channel_metadata(final int chunkSize,
+    public ChunkedQuery chunk_get_channel_metadata(final int chunkSize,
             final String channel_name, final Instant starttime, final Instant endtime, Long limit, Consumer<QueryResult> consumer) throws Exception
     {
-        makeChunkQuery(
-                chunkSize, consumer, influxdb,
+        return makeChunkQuery(
+                chunkSize, consumer,
                 get_channel_points("*", channel_name, starttime, endtime, limit),
                 dbnames.getMetaDBName(channel_name));
     }
@@ -2,6 +2,7 @@ package org.csstudio.archive.influxdb;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -141,6 +142,22 @@ public class InfluxDBResults
         return vals.get(validx).get(cols.indexOf(colname));
     }
 
+    /** @param results Results of a request with several statements
+     *  @param index Index of a statement in the request
+     *  @return Results of that statement, empty if the request failed before reaching it
+     */
+    public static QueryResult getResult(final QueryResult results, final int index)
+    {
+        final QueryResult ret = new QueryResult();
+        if (results.hasError())
+            ret.setError(results.getError());
+        else if (results.getResults() != null  &&  index < results.getResults().size())
+            ret.setResults(Collections.singletonList(results.getResults().get(index)));
+        else
+            ret.setResults(Collections.<Result>emptyList());
+        return ret;
+    }
+
     public static Instant getTimestamp(QueryResult results)
     {
         //Activator.getLogger().log(Level.FINE, "Results from query: {0}", InfluxDBResults.toString(results));
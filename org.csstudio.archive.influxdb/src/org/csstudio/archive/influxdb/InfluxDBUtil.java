@@ -12,6 +12,9 @@ import java.util.logging.Level;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
 
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
 public class InfluxDBUtil
 {
     private static final BigInteger nanomult = new BigInteger("1000000000");
@@ -26,16 +29,15 @@ public class InfluxDBUtil
 
     public static long toNanoLong(Instant time)
     {
-        final BigInteger ret = toNano(time);
         try
         {
-            return ret.longValueExact();
+            return Math.addExact(Math.multiplyExact(time.getEpochSecond(), 1000000000L), time.getNano());
         }
-        catch (Exception e)
+        catch (ArithmeticException e)
         {
             Activator.getLogger().log(Level.WARNING, "Could not convert instant to long time stamp!", e);
         }
-        return ret.longValue();
+        return toNano(time).longValue();
     }
 
     /**
@@ -57,20 +59,34 @@ public class InfluxDBUtil
         return Instant.from(DateTimeFormatter.ISO_INSTANT.parse(timestamp));
     }
 
+    /** @param nanos Nanoseconds since epoch
+     *  @return Instant
+     */
+    public static Instant fromNanoLong(final long nanos)
+    {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1000000000L), Math.floorMod(nanos, 1000000000L));
+    }
+
+    /** @param timestamp Time stamp of a query result:
+     *                   <code>Long</code> nanoseconds of an <code>epoch=ns</code> query,
+     *                   or ISO-8601 string
+     *  @return Instant
+     *  @throws Exception on error
+     */
     public static Instant fromInfluxDBTimeFormat(final Object timestamp) throws Exception
     {
+        if (timestamp instanceof Long)
+            return fromNanoLong((Long)timestamp);
+
         if (timestamp == null)
             throw new Exception ("Cannot convert null to instant timestamp");
 
         if (timestamp instanceof String)
             return fromInfluxDBTimeFormat((String)timestamp);
 
+        // Nanoseconds read as Double lack precision below about a microsecond
         if (timestamp instanceof Double)
-        {
-            Double millis = (Double)timestamp / 1000000.0;
-            Double nanos = (Double)timestamp - (millis * 1000000.0);
-            return Instant.ofEpochMilli(millis.longValue()).plusNanos(nanos.longValue());
-        }
+            return fromNanoLong(((Double)timestamp).longValue());
 
         throw new Exception ("Cannot convert nonstring object to instant : " + timestamp.getClass().getName());
     }
@@ -78,16 +94,64 @@ public class InfluxDBUtil
 
 
     public static InfluxDB connect(final String url, final String user, final String password) throws Exception
+    {
+        return connect(url, user, password, InfluxDBArchivePreferences.useGzip());
+    }
+
+    /** Connect to InfluxDB
+     *
+     *  <p>Query responses are always accepted gzip-encoded,
+     *  because the HTTP client asks for that by default and decodes them transparently.
+     *
+     *  @param url InfluxDB URL
+     *  @param user .. user name, may be <code>null</code>
+     *  @param password .. password, may be <code>null</code>
+     *  @param gzip Compress request bodies, i.e. written points, with gzip?
+     *  @return InfluxDB connection
+     *  @throws Exception on error
+     */
+    public static InfluxDB connect(final String url, final String user, final String password, final boolean gzip) throws Exception
+    {
+        return connect(url, user, password, gzip, new OkHttpClient.Builder());
+    }
+
+    /** Connect to InfluxDB for reading
+     *
+     *  <p>A chunked query holds its HTTP connection until the reader
+     *  has consumed the chunks, so the HTTP client needs to allow
+     *  more than its default of 5 concurrent requests.
+     *
+     *  @param url InfluxDB URL
+     *  @param user .. user name, may be <code>null</code>
+     *  @param password .. password, may be <code>null</code>
+     *  @param gzip Compress request bodies with gzip?
+     *  @param max_queries Maximum number of concurrent queries
+     *  @return InfluxDB connection
+     *  @throws Exception on error
+     */
+    public static InfluxDB connect(final String url, final String user, final String password, final boolean gzip,
+                                   final int max_queries) throws Exception
+    {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(max_queries);
+        dispatcher.setMaxRequestsPerHost(max_queries);
+        return connect(url, user, password, gzip, new OkHttpClient.Builder().dispatcher(dispatcher));
+    }
+
+    private static InfluxDB connect(final String url, final String user, final String password, final boolean gzip,
+                                    final OkHttpClient.Builder client) throws Exception
     {
         Activator.getLogger().log(Level.FINE, "Connecting to {0}", url);
         InfluxDB influxdb;
         if (user == null || user.isEmpty() || password == null || password.isEmpty())
         {
-            influxdb = InfluxDBFactory.connect(url);
+            influxdb = InfluxDBFactory.connect(url, client);
         }
         else {
-            influxdb = InfluxDBFactory.connect(url, user, password);
+            influxdb = InfluxDBFactory.connect(url, user, password, client);
         }
+        if (gzip)
+            influxdb.enableGzip();
 
         try
         {
@@ -21,6 +21,11 @@ import org.csstudio.archive.vtype.ArchiveVEnum;
 import org.csstudio.archive.vtype.ArchiveVNumber;
 import org.csstudio.archive.vtype.ArchiveVNumberArray;
 import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.array.ListByte;
+import org.diirt.util.array.ListInt;
+import org.diirt.util.array.ListLong;
+import org.diirt.util.array.ListNumber;
+import org.diirt.util.array.ListShort;
 import org.diirt.util.text.NumberFormats;
 import org.diirt.vtype.Display;
 import org.diirt.vtype.VDouble;
@@ -46,7 +51,9 @@ public class MetaTypes
         ARCHIVE_DOUBLE (ArchiveVNumber.class),
         ARCHIVE_LONG (ArchiveVNumber.class),
         ARCHIVE_DOUBLE_ARRAY (ArchiveVNumberArray.class),
-        ARCHIVE_LONG_ARRAY (ArchiveVNumberArray.class);
+        ARCHIVE_LONG_ARRAY (ArchiveVNumberArray.class),
+        /** Array of doubles in one field, see {@link PackedDoubleArray} */
+        ARCHIVE_PACKED_DOUBLE_ARRAY (ArchiveVNumberArray.class);
 
         final public Class<?> objclass;
 
@@ -98,7 +105,10 @@ public class MetaTypes
         }
         else if (sample instanceof VNumberArray)
         {
-            //TODO: Detect arrays of long?
+            final ListNumber data = ((VNumberArray)sample).getData();
+            if (data instanceof ListLong  ||  data instanceof ListInt  ||
+                data instanceof ListShort  ||  data instanceof ListByte)
+                return StoreAs.ARCHIVE_LONG_ARRAY;
             return StoreAs.ARCHIVE_DOUBLE_ARRAY;
         }
         else if (sample instanceof VEnum)
@@ -131,6 +141,9 @@ public class MetaTypes
             return dest.cast(dflt);
         }
 
+        // Accept any number, not only Double
+        if (dest == Double.class  &&  src instanceof Number)
+            return ((Number) src).doubleValue();
         try
         {
             return dest.cast(src);
@@ -314,6 +327,7 @@ public class MetaTypes
         case ARCHIVE_LONG :
         case ARCHIVE_DOUBLE_ARRAY :
         case ARCHIVE_LONG_ARRAY :
+        case ARCHIVE_PACKED_DOUBLE_ARRAY :
             return new MetaObject(mapToDisplay(map), storeas, ts);
         case ARCHIVE_ENUM :
             return new MetaObject(mapToEnumList(map), storeas, ts);
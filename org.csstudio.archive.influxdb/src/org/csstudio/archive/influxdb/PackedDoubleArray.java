@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.influxdb;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.diirt.util.array.ListNumber;
+
+/** Array of doubles packed into one string field
+ *
+ *  <p>Used for {@link MetaTypes.StoreAs#ARCHIVE_PACKED_DOUBLE_ARRAY}.
+ *  The text is the base64 encoding of
+ *  <ul>
+ *  <li>Format version, one byte
+ *  <li>Number of elements N, 4 bytes big endian
+ *  <li>Deflated N*8 bytes of the IEEE 754 values, byte-shuffled:
+ *      the most significant bytes of all elements, then the next bytes and so on.
+ *  </ul>
+ *  Shuffling groups the sign and exponent bytes, which are often similar for neighbouring elements,
+ *  so the array compresses better than the plain values.
+ *  Unlike the array with one field per element, NaN and infinite elements are stored as they are.
+ */
+@SuppressWarnings("nls")
+public class PackedDoubleArray
+{
+    /** Name of the field that holds the packed array */
+    final public static String FIELD = "packed.0";
+
+    final private static byte VERSION = 1;
+    final private static int HEADER = 5;
+
+    /** @param data Array elements
+     *  @return Packed text
+     */
+    public static String encode(final ListNumber data)
+    {
+        final int N = data.size();
+        final byte[] shuffled = new byte[N * 8];
+        for (int i=0; i<N; ++i)
+        {
+            final long bits = Double.doubleToRawLongBits(data.getDouble(i));
+            for (int b=0; b<8; ++b)
+                shuffled[b*N + i] = (byte) (bits >>> (56 - 8*b));
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(shuffled);
+            deflater.finish();
+            byte[] packed = new byte[HEADER + shuffled.length / 2 + 64];
+            packed[0] = VERSION;
+            packed[1] = (byte) (N >>> 24);
+            packed[2] = (byte) (N >>> 16);
+            packed[3] = (byte) (N >>> 8);
+            packed[4] = (byte) N;
+            int size = HEADER;
+            while (! deflater.finished())
+            {
+                if (size >= packed.length)
+                    packed = Arrays.copyOf(packed, packed.length * 2);
+                size += deflater.deflate(packed, size, packed.length - size);
+            }
+            return Base64.getEncoder().encodeToString(Arrays.copyOf(packed, size));
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /** @param text Packed text
+     *  @return Array elements
+     *  @throws Exception on error
+     */
+    public static double[] decode(final String text) throws Exception
+    {
+        final byte[] packed = Base64.getDecoder().decode(text);
+        if (packed.length < HEADER  ||  packed[0] != VERSION)
+            throw new Exception("Cannot decode packed array, unknown format");
+        final int N = ((packed[1] & 0xFF) << 24) | ((packed[2] & 0xFF) << 16) |
+                      ((packed[3] & 0xFF) << 8)  |  (packed[4] & 0xFF);
+        if (N < 0  ||  N > Integer.MAX_VALUE / 8)
+            throw new Exception("Cannot decode packed array of " + N + " elements");
+
+        final byte[] shuffled = new byte[N * 8];
+        final Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(packed, HEADER, packed.length - HEADER);
+            int size = 0;
+            while (size < shuffled.length)
+            {
+                final int len = inflater.inflate(shuffled, size, shuffled.length - size);
+                if (len <= 0  &&  (inflater.finished()  ||  inflater.needsInput()))
+                    throw new Exception("Packed array ends after " + size + " of " + shuffled.length + " bytes");
+                size += len;
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new Exception("Cannot decode packed array", ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        final double[] data = new double[N];
+        for (int i=0; i<N; ++i)
+        {
+            long bits = 0;
+            for (int b=0; b<8; ++b)
+                bits = (bits << 8) | (shuffled[b*N + i] & 0xFF);
+            data[i] = Double.longBitsToDouble(bits);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+
+/** Reads and writes a {@link QueryResult} as the JSON of an <code>epoch=ns</code> query
+ *
+ *  <p>The default adapter reads all numbers as <code>Double</code>,
+ *  which cannot represent nanosecond time stamps
+ *  or integer fields beyond 2^53.
+ *  This adapter reads the "time" column and the "long.N" fields of archived
+ *  integer samples as an exact <code>Long</code>.
+ *  Other numbers remain <code>Double</code>, also when InfluxDB writes
+ *  a float field that holds a whole number like <code>4</code>,
+ *  so all samples of a channel have the same type.
+ *
+ *  <p>InfluxDB lists the "columns" of a series before its "values".
+ */
+@SuppressWarnings("nls")
+class QueryResultAdapter extends JsonAdapter<QueryResult>
+{
+    @Override
+    public QueryResult fromJson(final JsonReader reader) throws IOException
+    {
+        final QueryResult result = new QueryResult();
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
+            if ("results".equals(name)  &&  reader.peek() != JsonReader.Token.NULL)
+            {
+                final List<Result> results = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    results.add(readResult(reader));
+                reader.endArray();
+                result.setResults(results);
+            }
+            else if ("error".equals(name)  &&  reader.peek() != JsonReader.Token.NULL)
+                result.setError(reader.nextString());
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private Result readResult(final JsonReader reader) throws IOException
+    {
+        final Result result = new Result();
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
+            if ("series".equals(name)  &&  reader.peek() != JsonReader.Token.NULL)
+            {
+                final List<Series> series = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    series.add(readSeries(reader));
+                reader.endArray();
+                result.setSeries(series);
+            }
+            else if ("error".equals(name)  &&  reader.peek() != JsonReader.Token.NULL)
+                result.setError(reader.nextString());
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return result;
+    }
+
+    /** @param column Column name
+     *  @return <code>true</code> if the numbers of the column are read as <code>Long</code>
+     */
+    private static boolean isLongColumn(final String column)
+    {
+        return "time".equals(column)  ||  column.startsWith("long.");
+    }
+
+    private Series readSeries(final JsonReader reader) throws IOException
+    {
+        final Series series = new Series();
+        boolean[] long_cols = new boolean[0];
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonReader.Token.NULL)
+                reader.skipValue();
+            else if ("name".equals(name))
+                series.setName(reader.nextString());
+            else if ("tags".equals(name))
+            {
+                final Map<String, String> tags = new HashMap<>();
+                reader.beginObject();
+                while (reader.hasNext())
+                    tags.put(reader.nextName(), reader.nextString());
+                reader.endObject();
+                series.setTags(tags);
+            }
+            else if ("columns".equals(name))
+            {
+                final List<String> columns = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    columns.add(reader.nextString());
+                reader.endArray();
+                series.setColumns(columns);
+                long_cols = new boolean[columns.size()];
+                for (int i=0; i<long_cols.length; ++i)
+                    long_cols[i] = isLongColumn(columns.get(i));
+            }
+            else if ("values".equals(name))
+            {
+                final List<List<Object>> values = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext())
+                {
+                    final List<Object> row = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        row.add(readValue(reader, row.size() < long_cols.length  &&  long_cols[row.size()]));
+                    reader.endArray();
+                    values.add(row);
+                }
+                reader.endArray();
+                series.setValues(values);
+            }
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return series;
+    }
+
+    /** @param reader Reader positioned on a value
+     *  @param is_long Is this the value of a "time" or "long.N" column?
+     *  @return Long for integral numbers of such a column, Double for other numbers, String, Boolean or <code>null</code>
+     *  @throws IOException on error
+     */
+    private Object readValue(final JsonReader reader, final boolean is_long) throws IOException
+    {
+        switch (reader.peek())
+        {
+        case NUMBER:
+            if (is_long)
+                return parseNumber(reader.nextString());
+            return reader.nextDouble();
+        case STRING:
+            return reader.nextString();
+        case BOOLEAN:
+            return reader.nextBoolean();
+        case NULL:
+            return reader.nextNull();
+        default:
+            reader.skipValue();
+            return null;
+        }
+    }
+
+    /** @param text Text of a JSON number
+     *  @return Long if the number is integral and fits, else Double
+     *  @throws IOException on error
+     */
+    private static Number parseNumber(final String text) throws IOException
+    {
+        try
+        {
+            if (text.indexOf('.') < 0  &&  text.indexOf('e') < 0  &&  text.indexOf('E') < 0)
+            {
+                try
+                {
+                    return Long.valueOf(text);
+                }
+                catch (NumberFormatException ex)
+                {
+                    // Integral, but too large for a long
+                }
+            }
+            return Double.valueOf(text);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new IOException("Invalid number " + text, ex);
+        }
+    }
+
+    @Override
+    public void toJson(final JsonWriter writer, final QueryResult value) throws IOException
+    {
+        if (value == null)
+        {
+            writer.nullValue();
+            return;
+        }
+        writer.beginObject();
+        if (value.getResults() != null)
+        {
+            writer.name("results").beginArray();
+            for (Result result : value.getResults())
+                writeResult(writer, result);
+            writer.endArray();
+        }
+        if (value.getError() != null)
+            writer.name("error").value(value.getError());
+        writer.endObject();
+    }
+
+    private void writeResult(final JsonWriter writer, final Result result) throws IOException
+    {
+        writer.beginObject();
+        if (result.getSeries() != null)
+        {
+            writer.name("series").beginArray();
+            for (Series series : result.getSeries())
+                writeSeries(writer, series);
+            writer.endArray();
+        }
+        if (result.getError() != null)
+            writer.name("error").value(result.getError());
+        writer.endObject();
+    }
+
+    private void writeSeries(final JsonWriter writer, final Series series) throws IOException
+    {
+        writer.beginObject();
+        if (series.getName() != null)
+            writer.name("name").value(series.getName());
+        if (series.getTags() != null)
+        {
+            writer.name("tags").beginObject();
+            for (Map.Entry<String, String> tag : series.getTags().entrySet())
+                writer.name(tag.getKey()).value(tag.getValue());
+            writer.endObject();
+        }
+        if (series.getColumns() != null)
+        {
+            writer.name("columns").beginArray();
+            for (String column : series.getColumns())
+                writer.value(column);
+            writer.endArray();
+        }
+        if (series.getValues() != null)
+        {
+            writer.name("values").beginArray();
+            for (List<Object> row : series.getValues())
+            {
+                writer.beginArray();
+                for (Object item : row)
+                    writeValue(writer, item);
+                writer.endArray();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    /** @param writer Writer
+     *  @param value Long, Integer, other Number, String, Boolean or <code>null</code>
+     *  @throws IOException on error
+     */
+    private void writeValue(final JsonWriter writer, final Object value) throws IOException
+    {
+        if (value == null)
+            writer.nullValue();
+        else if (value instanceof Long  ||  value instanceof Integer  ||  value instanceof Short  ||  value instanceof Byte)
+            writer.value(((Number) value).longValue());
+        else if (value instanceof Number)
+            writer.value(((Number) value).doubleValue());
+        else if (value instanceof Boolean)
+            writer.value(((Boolean) value).booleanValue());
+        else
+            writer.value(value.toString());
+    }
+}
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/** Retention policies of a data database with downsampled tiers
+ *
+ *  <p>The raw tier is the default retention policy, receiving the samples.
+ *  Each rollup tier is a retention policy filled by a continuous query
+ *  that computes the mean, minimum, maximum and count of
+ *  the numeric samples of each channel over the interval of the tier.
+ *  Rollups cover channels stored as double, not integer, enum or text channels.
+ *  Samples with INVALID or UNDEFINED severity are excluded from the rollups.
+ *  This includes disconnected channels, and NaN or infinite samples,
+ *  which are stored as finite numbers with a "NaN", "Infinity" or "-Infinity" status.
+ *
+ *  <p>Tiers are declared as a comma-separated list of
+ *  <code>policy:duration[:interval]</code>, for example
+ *  <pre>
+ *  autogen:90d, rollup_1m:INF:1m, rollup_1h:INF:1h
+ *  </pre>
+ *  The first entry, without interval, is the raw tier.
+ *  Durations and intervals use the InfluxQL duration syntax,
+ *  <code>INF</code> keeps data forever.
+ *
+ *  <p>Provisioning is idempotent.
+ *  Missing policies are created, policies with a different duration are altered,
+ *  missing continuous queries are created.
+ *  Existing continuous queries are only replaced on request,
+ *  because InfluxDB reports them in a normalized form that
+ *  cannot be compared with the statement that created them.
+ */
+@SuppressWarnings("nls")
+public class RetentionTiers
+{
+    /** Field of numeric samples that the rollups aggregate */
+    public static final String FIELD = "double.0";
+
+    /** Fields of a rollup tier */
+    public static final String MEAN = "mean", MIN = "min", MAX = "max", COUNT = "count";
+
+    /** Severities of samples that the rollups skip */
+    final private static String[] SKIPPED_SEVERITIES = { "INVALID", "UNDEFINED" };
+
+    /** Status of samples that the rollups skip, because their stored value is not the actual value */
+    final private static String[] SKIPPED_STATUS = { "NaN", "Infinity", "-Infinity" };
+
+    /** No tiers: Database keeps its default retention policy */
+    public static final RetentionTiers NONE = new RetentionTiers(Collections.emptyList());
+
+    final private static Pattern DURATION_PART = Pattern.compile("([0-9]+)(ns|us|u|\u00b5s|\u00b5|ms|s|m|h|d|w)");
+
+    /** One tier */
+    public static class Tier
+    {
+        final private String name, duration, interval;
+
+        /** @param name Retention policy
+         *  @param duration Duration of the policy
+         *  @param interval Interval of the rollup, <code>null</code> for raw tier
+         */
+        public Tier(final String name, final String duration, final String interval)
+        {
+            this.name = name;
+            this.duration = duration;
+            this.interval = interval;
+        }
+
+        /** @return Retention policy */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** @return Duration of the policy, <code>INF</code> for forever */
+        public String getDuration()
+        {
+            return duration;
+        }
+
+        /** @return Interval of the rollup, <code>null</code> for raw tier */
+        public String getInterval()
+        {
+            return interval;
+        }
+
+        /** @return Interval in nanoseconds, 0 for raw tier */
+        public long getIntervalNanos()
+        {
+            return interval == null ? 0 : parseDuration(interval);
+        }
+
+        /** @return Name of the continuous query that fills the tier */
+        public String getContinuousQueryName()
+        {
+            return "cq_" + name;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ":" + duration + (interval == null ? "" : ":" + interval);
+        }
+    }
+
+    final private List<Tier> tiers;
+
+    /** @param tiers Raw tier followed by rollup tiers */
+    public RetentionTiers(final List<Tier> tiers)
+    {
+        this.tiers = Collections.unmodifiableList(new ArrayList<>(tiers));
+    }
+
+    /** @param spec Tiers as "policy:duration[:interval], ...", empty for none
+     *  @return {@link RetentionTiers}
+     *  @throws Exception on error
+     */
+    public static RetentionTiers parse(final String spec) throws Exception
+    {
+        if (spec == null  ||  spec.trim().isEmpty())
+            return NONE;
+        final List<Tier> tiers = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        for (String item : spec.split(","))
+        {
+            final String[] parts = item.trim().split(":");
+            if (parts.length < 2  ||  parts.length > 3)
+                throw new Exception("Expected 'policy:duration[:interval]', got '" + item.trim() + "'");
+            final String name = parts[0].trim();
+            final String duration = parts[1].trim();
+            final String interval = parts.length > 2 ? parts[2].trim() : null;
+            if (name.isEmpty()  ||  ! names.add(name))
+                throw new Exception("Missing or duplicate retention policy name in '" + item.trim() + "'");
+            parseDuration(duration);
+            if (tiers.isEmpty())
+            {
+                if (interval != null)
+                    throw new Exception("First tier '" + item.trim() + "' must be the raw tier, without interval");
+            }
+            else if (interval == null  ||  parseDuration(interval) <= 0)
+                throw new Exception("Rollup tier '" + item.trim() + "' needs an interval");
+            tiers.add(new Tier(name, duration, interval));
+        }
+        return new RetentionTiers(tiers);
+    }
+
+    /** @param text InfluxQL duration like "90d" or "1h30m", or duration reported by InfluxDB like "2160h0m0s"
+     *  @return Nanoseconds, 0 for "INF"
+     *  @throws IllegalArgumentException on error
+     */
+    public static long parseDuration(final String text)
+    {
+        if ("INF".equalsIgnoreCase(text))
+            return 0;
+        final Matcher matcher = DURATION_PART.matcher(text);
+        long nanos = 0;
+        int end = 0;
+        while (matcher.find()  &&  matcher.start() == end)
+        {
+            final long value = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2))
+            {
+            case "ns":                      nanos += value;                     break;
+            case "us": case "u":
+            case "\u00b5s": case "\u00b5":   nanos += value * 1000L;             break;
+            case "ms":                      nanos += value * 1000000L;          break;
+            case "s":                       nanos += value * 1000000000L;       break;
+            case "m":                       nanos += value * 60000000000L;      break;
+            case "h":                       nanos += value * 3600000000000L;    break;
+            case "d":                       nanos += value * 86400000000000L;   break;
+            default:                        nanos += value * 604800000000000L;  break;
+            }
+            end = matcher.end();
+        }
+        if (end == 0  ||  end != text.length())
+            throw new IllegalArgumentException("Invalid duration '" + text + "'");
+        return nanos;
+    }
+
+    /** @return <code>true</code> if there are no tiers */
+    public boolean isEmpty()
+    {
+        return tiers.isEmpty();
+    }
+
+    /** @return Raw tier, <code>null</code> if there are no tiers */
+    public Tier getRawTier()
+    {
+        return tiers.isEmpty() ? null : tiers.get(0);
+    }
+
+    /** @return Rollup tiers, from finest to coarsest as declared */
+    public List<Tier> getRollupTiers()
+    {
+        return tiers.isEmpty() ? tiers : tiers.subList(1, tiers.size());
+    }
+
+    private static String quote(final String name)
+    {
+        return '"' + name.replace("\"", "\\\"") + '"';
+    }
+
+    /** @return Condition that skips samples without valid value */
+    private static String getValidCondition()
+    {
+        final StringBuilder condition = new StringBuilder();
+        for (String severity : SKIPPED_SEVERITIES)
+            condition.append(condition.length() > 0 ? " AND " : "")
+                     .append("\"severity\" != '").append(severity).append("'");
+        for (String status : SKIPPED_STATUS)
+            condition.append(" AND \"status\" != '").append(status).append("'");
+        return condition.toString();
+    }
+
+    /** @param db Database
+     *  @param tier Rollup tier
+     *  @return Statement that creates the continuous query for the tier
+     */
+    public String createContinuousQuery(final String db, final Tier tier)
+    {
+        final String field = quote(FIELD);
+        return "CREATE CONTINUOUS QUERY " + quote(tier.getContinuousQueryName()) + " ON " + quote(db) +
+               " BEGIN SELECT mean(" + field + ") AS " + quote(MEAN) +
+               ", min(" + field + ") AS " + quote(MIN) +
+               ", max(" + field + ") AS " + quote(MAX) +
+               ", count(" + field + ") AS " + quote(COUNT) +
+               " INTO " + quote(db) + "." + quote(tier.getName()) + ".:MEASUREMENT" +
+               " FROM " + quote(db) + "." + quote(getRawTier().getName()) + "./.*/" +
+               " WHERE " + getValidCondition() +
+               " GROUP BY time(" + tier.getInterval() + ") END";
+    }
+
+    /** Determine statements that provision the tiers
+     *  @param db Database
+     *  @param policies Duration in nanoseconds of each existing retention policy, 0 for INF
+     *  @param default_policy Current default retention policy
+     *  @param queries Names of existing continuous queries of the database
+     *  @param replace_queries Replace existing continuous queries?
+     *  @return Statements to execute, empty if the database is already provisioned
+     */
+    public List<String> getStatements(final String db, final Map<String, Long> policies, final String default_policy,
+                                      final Set<String> queries, final boolean replace_queries)
+    {
+        final List<String> statements = new ArrayList<>();
+        for (Tier tier : tiers)
+        {
+            final boolean raw = tier == getRawTier();
+            final Long existing = policies.get(tier.getName());
+            final String settings = " ON " + quote(db) + " DURATION " + tier.getDuration();
+            if (existing == null)
+                statements.add("CREATE RETENTION POLICY " + quote(tier.getName()) + settings +
+                               " REPLICATION 1" + (raw ? " DEFAULT" : ""));
+            else if (existing.longValue() != parseDuration(tier.getDuration())  ||
+                     (raw  &&  ! tier.getName().equals(default_policy)))
+                statements.add("ALTER RETENTION POLICY " + quote(tier.getName()) + settings + (raw ? " DEFAULT" : ""));
+        }
+        for (Tier tier : getRollupTiers())
+        {
+            final String name = tier.getContinuousQueryName();
+            if (queries.contains(name))
+            {
+                if (! replace_queries)
+                    continue;
+                statements.add("DROP CONTINUOUS QUERY " + quote(name) + " ON " + quote(db));
+            }
+            statements.add(createContinuousQuery(db, tier));
+        }
+        return statements;
+    }
+
+    /** Determine statements that provision the tiers, based on what's in the database
+     *  @param influxdb InfluxDB
+     *  @param db Database, must exist
+     *  @param replace_queries Replace existing continuous queries?
+     *  @return Statements to execute, empty if the database is already provisioned
+     *  @throws Exception on error
+     */
+    public List<String> plan(final InfluxDB influxdb, final String db, final boolean replace_queries) throws Exception
+    {
+        if (tiers.isEmpty())
+            return Collections.emptyList();
+
+        final Map<String, Long> policies = new HashMap<>();
+        String default_policy = null;
+        for (Series series : getSeries(influxdb, "SHOW RETENTION POLICIES ON " + quote(db), db))
+        {
+            final int name = series.getColumns().indexOf("name");
+            final int duration = series.getColumns().indexOf("duration");
+            final int is_default = series.getColumns().indexOf("default");
+            for (List<Object> values : series.getValues())
+            {
+                policies.put(values.get(name).toString(), parseDuration(values.get(duration).toString()));
+                if (Boolean.TRUE.equals(values.get(is_default)))
+                    default_policy = values.get(name).toString();
+            }
+        }
+
+        final Set<String> queries = new HashSet<>();
+        for (Series series : getSeries(influxdb, "SHOW CONTINUOUS QUERIES", db))
+        {
+            if (! db.equals(series.getName())  ||  series.getValues() == null)
+                continue;
+            final int name = series.getColumns().indexOf("name");
+            for (List<Object> values : series.getValues())
+                queries.add(values.get(name).toString());
+        }
+
+        return getStatements(db, policies, default_policy, queries, replace_queries);
+    }
+
+    /** Provision the tiers
+     *  @param influxdb InfluxDB
+     *  @param db Database, must exist
+     *  @param replace_queries Replace existing continuous queries?
+     *  @return Statements that were executed
+     *  @throws Exception on error
+     */
+    public List<String> provision(final InfluxDB influxdb, final String db, final boolean replace_queries) throws Exception
+    {
+        final List<String> statements = plan(influxdb, db, replace_queries);
+        for (String statement : statements)
+        {
+            Activator.getLogger().log(Level.INFO, "Provisioning {0}: {1}", new Object[] { db, statement });
+            checkError(statement, influxdb.query(new Query(statement, db, true)));
+        }
+        return statements;
+    }
+
+    private static List<Series> getSeries(final InfluxDB influxdb, final String statement, final String db) throws Exception
+    {
+        final QueryResult results = InfluxDBQueries.makeQuery(influxdb, statement, db);
+        checkError(statement, results);
+        return InfluxDBResults.getSeries(results);
+    }
+
+    private static void checkError(final String statement, final QueryResult results) throws Exception
+    {
+        if (results.hasError())
+            throw new Exception(statement + ": " + results.getError());
+        if (results.getResults() != null)
+            for (Result result : results.getResults())
+                if (result.hasError())
+                    throw new Exception(statement + ": " + result.getError());
+    }
+
+    @Override
+    public String toString()
+    {
+        return tiers.toString();
+    }
+}
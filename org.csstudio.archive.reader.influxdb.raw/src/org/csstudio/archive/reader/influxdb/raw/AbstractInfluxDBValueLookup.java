@@ -7,6 +7,9 @@
  ******************************************************************************/
 package org.csstudio.archive.reader.influxdb.raw;
 
+import java.time.Instant;
+import java.util.List;
+
 import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
 
 /**
@@ -22,4 +25,22 @@ abstract public class AbstractInfluxDBValueLookup
     public abstract boolean hasValue(String colname);
 
     public abstract MetaObject getMeta();
+
+    /** @return Plan for the columns of the current row, <code>null</code> if not known */
+    public DecodePlan getPlan()
+    {
+        return null;
+    }
+
+    /** @return Time stamp of the current row if already decoded, else <code>null</code> */
+    public Instant getTime()
+    {
+        return null;
+    }
+
+    /** @return Values of the current row in the order of the plan's columns, <code>null</code> if not known */
+    public List<Object> getRow()
+    {
+        return null;
+    }
 }
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb.raw;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/** Queue of result chunks with a memory budget
+ *
+ *  <p>Receives the chunks of a query from the HTTP client.
+ *  When the chunks that have not been read exceed the budget,
+ *  {@link #accept(QueryResult)} blocks, which stops reading
+ *  the HTTP response until the reader catches up.
+ *  A single chunk is always accepted, even if it exceeds the budget.
+ *  Results with an error and {@link ChunkedQuery#END} are always accepted
+ *  without blocking.
+ *
+ *  <p>{@link #poll(long, TimeUnit)} only returns <code>null</code>
+ *  for the end of the response.
+ *  A timeout or a closed queue is an error, not the end of the data.
+ */
+@SuppressWarnings("nls")
+public class ChunkQueue implements Consumer<QueryResult>
+{
+    /** Estimated heap size of one decoded value: Boxed number or string, list entry */
+    final private static long BYTES_PER_VALUE = 40;
+
+    /** Estimated heap size of one decoded row: List */
+    final private static long BYTES_PER_ROW = 40;
+
+    /** Chunk with its estimated size */
+    private static class Chunk
+    {
+        final QueryResult result;
+        final long bytes;
+
+        Chunk(final QueryResult result, final long bytes)
+        {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
+    final private long budget;
+
+    /** Chunks that have not been read. SYNC on this */
+    final private LinkedList<Chunk> chunks = new LinkedList<>();
+
+    /** Estimated size of the chunks. SYNC on this */
+    private long buffered = 0;
+
+    /** Most ever buffered. SYNC on this */
+    private long max_buffered = 0;
+
+    /** Closed, dropping further chunks. SYNC on this */
+    private boolean closed = false;
+
+    /** End of the response has been read. SYNC on this */
+    private boolean ended = false;
+
+    /** @param budget Memory budget in bytes */
+    public ChunkQueue(final long budget)
+    {
+        this.budget = budget;
+    }
+
+    /** @param result Chunk
+     *  @return Estimated heap size of the decoded chunk
+     */
+    public static long estimateBytes(final QueryResult result)
+    {
+        long bytes = BYTES_PER_ROW;
+        if (result == null  ||  result.getResults() == null)
+            return bytes;
+        for (Result r : result.getResults())
+        {
+            if (r.getSeries() == null)
+                continue;
+            for (Series series : r.getSeries())
+            {
+                if (series.getValues() == null  ||  series.getColumns() == null)
+                    continue;
+                bytes += series.getValues().size() * (series.getColumns().size() * BYTES_PER_VALUE + BYTES_PER_ROW);
+            }
+        }
+        return bytes;
+    }
+
+    /** Add chunk, waiting for room within the budget
+     *  @param result Chunk, result with error, or {@link ChunkedQuery#END}
+     */
+    @Override
+    public synchronized void accept(final QueryResult result)
+    {
+        final boolean last = result == ChunkedQuery.END  ||  result.hasError();
+        final long bytes = last ? 0 : estimateBytes(result);
+        try
+        {
+            while (!closed  &&  !last  &&  buffered > 0  &&  buffered + bytes > budget)
+                wait();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (closed)
+            return;
+        add(result, bytes);
+    }
+
+    /** Add chunk if there is room within the budget
+     *
+     *  <p>Like {@link #accept(QueryResult)}, but returns instead of waiting.
+     *  @param result Chunk, result with error, or {@link ChunkedQuery#END}
+     *  @return <code>false</code> if the chunk was not added because it would exceed the budget
+     */
+    public synchronized boolean offer(final QueryResult result)
+    {
+        final boolean last = result == ChunkedQuery.END  ||  result.hasError();
+        final long bytes = last ? 0 : estimateBytes(result);
+        if (!closed  &&  !last  &&  buffered > 0  &&  buffered + bytes > budget)
+            return false;
+        if (! closed)
+            add(result, bytes);
+        return true;
+    }
+
+    /** @param result Chunk to add
+     *  @param bytes Its estimated size
+     */
+    private void add(final QueryResult result, final long bytes)
+    {
+        chunks.add(new Chunk(result, bytes));
+        buffered += bytes;
+        if (buffered > max_buffered)
+            max_buffered = buffered;
+        notifyAll();
+    }
+
+    /** @param timeout Maximum time to wait for a chunk
+     *  @param unit Unit of the timeout
+     *  @return Next chunk, which may have an error, or <code>null</code> at the end of the response
+     *  @throws InterruptedException when interrupted
+     *  @throws Exception on timeout or when closed
+     */
+    public synchronized QueryResult poll(final long timeout, final TimeUnit unit) throws InterruptedException, Exception
+    {
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!closed  &&  !ended  &&  chunks.isEmpty())
+        {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+            if (millis <= 0)
+                throw new Exception("No chunk of results received within " + timeout + " " + unit.toString().toLowerCase());
+            wait(millis);
+        }
+        if (closed)
+            throw new Exception("Chunk queue is closed");
+        final Chunk chunk = chunks.poll();
+        if (chunk == null  ||  chunk.result == ChunkedQuery.END)
+        {
+            ended = true;
+            return null;
+        }
+        buffered -= chunk.bytes;
+        notifyAll();
+        return chunk.result;
+    }
+
+    /** @return Estimated size of the chunks that have not been read */
+    public synchronized long getBufferedBytes()
+    {
+        return buffered;
+    }
+
+    /** @return Largest estimated size of the chunks that have not been read */
+    public synchronized long getMaxBufferedBytes()
+    {
+        return max_buffered;
+    }
+
+    /** @return <code>true</code> once closed */
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    /** Drop buffered chunks and those that arrive later,
+     *  releasing a blocked {@link #accept(QueryResult)}
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        chunks.clear();
+        buffered = 0;
+        notifyAll();
+    }
+}
@@ -14,6 +14,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.csstudio.archive.influxdb.ChunkedQueryClient;
+import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
 import org.csstudio.archive.influxdb.InfluxDBUtil;
 import org.influxdb.InfluxDB;
 
@@ -29,12 +31,14 @@ public class ConnectionCache
     private static class ID
     {
         private final String url, user, password;
+        private final boolean gzip;
 
-        ID(final String url, final String user, final String password)
+        ID(final String url, final String user, final String password, final boolean gzip)
         {
             this.url = Objects.requireNonNull(url);
             this.user = user;
             this.password = password;
+            this.gzip = gzip;
         }
 
         @Override
@@ -45,12 +49,13 @@ public class ConnectionCache
             final ID other = (ID) obj;
             return url.equals(other.url)   &&
                     user.equals(other.user) &&
-                    Objects.equals(password, other.password);
+                    Objects.equals(password, other.password) &&
+                    gzip == other.gzip;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(url, user, password);
+            return Objects.hash(url, user, password, gzip);
         }
     }
 
@@ -60,11 +65,13 @@ public class ConnectionCache
         private final ID id;
         private final AtomicInteger references = new AtomicInteger(1);
         private final InfluxDB influxdb;
+        private final ChunkedQueryClient chunked_client;
 
-        Entry(final ID id, final InfluxDB influxdb)
+        Entry(final ID id, final InfluxDB influxdb, final ChunkedQueryClient chunked_client)
         {
             this.id = id;
             this.influxdb = influxdb;
+            this.chunked_client = chunked_client;
         }
 
         /**
@@ -75,6 +82,12 @@ public class ConnectionCache
         {
             return this.influxdb;
         }
+
+        /** @return Client for chunked queries that can be cancelled */
+        public ChunkedQueryClient getChunkedQueryClient()
+        {
+            return chunked_client;
+        }
     }
 
     /** Cache */
@@ -114,14 +127,38 @@ public class ConnectionCache
     public static Entry get(final String url, final String user, final String password)
             throws Exception
     {
-        final ID id = new ID(url, user, password);
+        return get(url, user, password, InfluxDBArchivePreferences.useGzip());
+    }
+
+    /**
+     * Get a cached InfluxDB connection
+     *
+     * @param url
+     *            Database URL
+     * @param user
+     *            .. user
+     * @param password
+     *            .. password
+     * @param gzip
+     *            Compress request bodies with gzip?
+     * @return {@link Entry}
+     * @throws Exception
+     *             on error
+     * @see #release(Entry)
+     */
+    public static Entry get(final String url, final String user, final String password, final boolean gzip)
+            throws Exception
+    {
+        final ID id = new ID(url, user, password, gzip);
         synchronized (cache)
         {
             Entry entry = find(id);
             if (entry == null)
             {
                 logger.log(Level.FINE, "Creating Cached Connection to {0}", url);
-                entry = new Entry(id, InfluxDBUtil.connect(url, user, password));
+                final int max_queries = Preferences.getMaxConcurrentQueries();
+                entry = new Entry(id, InfluxDBUtil.connect(url, user, password, gzip, max_queries),
+                                  new ChunkedQueryClient(url, user, password, max_queries));
                 // TODO: Can we set read only mode for this connection? Do we need to?
                 //entry.getConnection().setReadOnly(true);
             }
@@ -141,6 +178,7 @@ public class ConnectionCache
             cache.remove(entry);
         }
         entry.influxdb.close();
+        entry.chunked_client.close();
         logger.log(Level.FINE, "Closed {0}", entry.id.url);
     }
 
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb.raw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.csstudio.archive.influxdb.PackedDoubleArray;
+
+/** Column indices for decoding the rows of one series schema
+ *
+ *  <p>Computed once for the columns of a series,
+ *  so decoding a row needs no lookup of column names.
+ */
+@SuppressWarnings("nls")
+public class DecodePlan
+{
+    /** Column names */
+    final private List<String> columns;
+
+    /** Index of each column */
+    final private Map<String, Integer> index = new HashMap<>();
+
+    /** Index of the time, status and severity column, -1 if missing */
+    final public int time, status, severity;
+
+    /** Index of the "string.0" and packed array column, -1 if missing */
+    final public int string, packed;
+
+    /** Indices of the "double.0", "double.1", ... columns, up to the first missing element */
+    final public int[] doubles;
+
+    /** Indices of the "long.0", "long.1", ... columns, up to the first missing element */
+    final public int[] longs;
+
+    /** @param columns Column names of a series */
+    public DecodePlan(final List<String> columns)
+    {
+        this.columns = columns;
+        for (int i=0; i<columns.size(); ++i)
+            index.put(columns.get(i), i);
+        time = getColumn("time");
+        status = getColumn("status");
+        severity = getColumn("severity");
+        string = getColumn("string.0");
+        packed = getColumn(PackedDoubleArray.FIELD);
+        doubles = getElementColumns("double.");
+        longs = getElementColumns("long.");
+    }
+
+    /** @param prefix Prefix of array element columns
+     *  @return Indices of the element columns
+     */
+    private int[] getElementColumns(final String prefix)
+    {
+        final List<Integer> elements = new ArrayList<>();
+        int col = getColumn(prefix + "0");
+        while (col >= 0)
+        {
+            elements.add(col);
+            col = getColumn(prefix + elements.size());
+        }
+        return elements.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Create plan for a lookup that does not provide one
+     *  by probing for the columns that are used to decode samples
+     *  @param vals Lookup
+     *  @return Plan for the columns of the lookup
+     */
+    public static DecodePlan probe(final AbstractInfluxDBValueLookup vals)
+    {
+        final List<String> columns = new ArrayList<>();
+        for (String name : Arrays.asList("time", "status", "severity", "string.0", PackedDoubleArray.FIELD))
+            if (vals.hasValue(name))
+                columns.add(name);
+        for (String prefix : Arrays.asList("double.", "long."))
+            for (int i=0; vals.hasValue(prefix + i); ++i)
+                columns.add(prefix + i);
+        return new DecodePlan(columns);
+    }
+
+    /** @param columns Column names
+     *  @return <code>true</code> if plan applies to those columns
+     */
+    public boolean matches(final List<String> columns)
+    {
+        return this.columns.equals(columns);
+    }
+
+    /** @return Column names */
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    /** @param name Column name
+     *  @return Index of the column, -1 if missing
+     */
+    public int getColumn(final String name)
+    {
+        final Integer col = index.get(name);
+        return col == null ? -1 : col;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Decode plan for " + columns;
+    }
+}
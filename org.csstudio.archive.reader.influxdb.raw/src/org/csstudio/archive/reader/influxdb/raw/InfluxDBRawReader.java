@@ -11,6 +11,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.csstudio.archive.influxdb.ChunkedQuery;
 import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
 import org.csstudio.archive.influxdb.InfluxDBQueries;
 import org.csstudio.archive.influxdb.InfluxDBQueries.DBNameMap;
@@ -41,6 +42,9 @@ public class InfluxDBRawReader implements ArchiveReader
     final private ConnectionCache.Entry influxdb;
     final private InfluxDBQueries influxQuery;
 
+    /** Cancellation of queries and threads that open iterators */
+    final private ReaderConcurrency concurrency = new ReaderConcurrency();
+
     public static class DBNameMapRaw extends DBNameMap {
         private final String mydbname;
 
@@ -91,6 +95,20 @@ public class InfluxDBRawReader implements ArchiveReader
      */
     public InfluxDBRawReader(final String url, final String user, final String password, final String dbName)
             throws Exception
+    {
+        this(url, user, password, dbName, InfluxDBArchivePreferences.useGzip());
+    }
+
+    /** Initialize
+     *  @param url Database URL
+     *  @param user .. user
+     *  @param password .. password
+     *  @param dbName Database to read
+     *  @param gzip Compress requests with gzip?
+     *  @throws Exception on error
+     */
+    public InfluxDBRawReader(final String url, final String user, final String password, final String dbName,
+            final boolean gzip) throws Exception
     {
         this.url = url;
         this.user = user;
@@ -98,8 +116,8 @@ public class InfluxDBRawReader implements ArchiveReader
         this.dbname = dbName;
 
         timeout = InfluxDBArchivePreferences.getChunkTimeoutSecs();
-        influxdb = ConnectionCache.get(url, user, password);
-        influxQuery = new InfluxDBQueries(influxdb.getConnection(), new DBNameMapRaw(dbName));
+        influxdb = ConnectionCache.get(url, user, password, gzip);
+        influxQuery = new InfluxDBQueries(influxdb.getConnection(), influxdb.getChunkedQueryClient(), new DBNameMapRaw(dbName));
     }
 
 
@@ -211,7 +229,19 @@ public class InfluxDBRawReader implements ArchiveReader
     public ValueIterator getRawValues(final String name,
             final Instant start, final Instant end) throws Exception
     {
-        return new SampleIterator(this, InfluxDBSeriesInfo.decodeLineProtocol(name), start, end);
+        return openSamples(InfluxDBSeriesInfo.decodeLineProtocol(name), start, end);
+    }
+
+    /** @param series Series to read
+     *  @param start Start time
+     *  @param end End time
+     *  @return {@link SampleIterator}, opened in the background when concurrency is enabled
+     *  @throws Exception on error
+     */
+    private ValueIterator openSamples(final InfluxDBSeriesInfo series,
+            final Instant start, final Instant end) throws Exception
+    {
+        return concurrency.open(() -> new SampleIterator(this, series, start, end));
     }
 
     /** {@inheritDoc} */
@@ -225,26 +255,74 @@ public class InfluxDBRawReader implements ArchiveReader
 
         // TODO: Implement server side downsample query
         // TODO: Implement fallback client side downsample
-        return new SampleIterator(this, InfluxDBSeriesInfo.decodeLineProtocol(name), start, end);
+        return openSamples(InfluxDBSeriesInfo.decodeLineProtocol(name), start, end);
     }
 
 
+    /** Add a query to the list of queries-to-cancel in cancel()
+     *  @param query Query to cancel, may be <code>null</code>
+     *  @see #cancel()
+     */
+    void addForCancellation(final ChunkedQuery query)
+    {
+        concurrency.addForCancellation(query);
+    }
+
+    /** Remove a query from the list of queries-to-cancel in cancel()
+     *  @param query Query that should no longer be cancelled, may be <code>null</code>
+     *  @see #cancel()
+     */
+    void removeFromCancellation(final ChunkedQuery query)
+    {
+        concurrency.removeFromCancellation(query);
+    }
+
+    /** Check if an exception indicates InfluxDB query was canceled,
+     *  i.e. this program requested the operation to abort
+     *  @param ex Exception (Throwable) to test
+     *  @return <code>true</code> if it looks like the result of cancellation.
+     */
+    public static boolean isCancellation(final Throwable ex)
+    {
+        final String message = ex.getMessage();
+        if (message != null)
+        {
+            // Error of a cancelled ChunkedQuery, or IOException of the cancelled HTTP call
+            if (message.contains(ChunkedQuery.CANCELLED)  ||  message.equals("Canceled"))
+                return true;
+        }
+        if (ex instanceof InterruptedException)
+            return true;
+        final Throwable cause = ex.getCause();
+        if (cause != null  &&  cause != ex)
+            return isCancellation(cause);
+        return false;
+    }
+
+    /** Abort all chunked queries that are still streaming results,
+     *  and those of iterators of the current read that are still being opened.
+     *  Their iterators end with the samples received so far.
+     *  Later reads are not affected.
+     *  @see ReaderConcurrency#cancel()
+     */
     @Override
     public void cancel()
     {
+        concurrency.cancel();
     }
 
     /** {@inheritDoc} */
     @Override
     public void close()
     {
-        cancel();
+        concurrency.close();
         ConnectionCache.release(influxdb);
     }
 
+    /** {@inheritDoc} */
     @Override
     public void enableConcurrency(boolean concurrency) {
-        //TODO: does enable concurrency mean anything for InfluxDB?
+        this.concurrency.enableConcurrency(concurrency);
     }
 
 }
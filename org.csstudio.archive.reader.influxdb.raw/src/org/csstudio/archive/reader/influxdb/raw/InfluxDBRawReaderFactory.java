@@ -7,6 +7,7 @@
  ******************************************************************************/
 package org.csstudio.archive.reader.influxdb.raw;
 
+import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
 import org.csstudio.archive.influxdb.InfluxDBDataSource;
 import org.csstudio.archive.reader.ArchiveReader;
 import org.csstudio.archive.reader.ArchiveReaderFactory;
@@ -27,6 +28,7 @@ public class InfluxDBRawReaderFactory implements ArchiveReaderFactory
         // db=DBNAME (required) Using influxdb database DBNAME
         // user=USER (optional) login as USER
         // password=PASSWORD (optional) login as USER with PASSWORD
+        // gzip=true|false (optional) compress requests, default from preferences
 
 
         final Activator instance = Activator.getInstance();
@@ -39,7 +41,8 @@ public class InfluxDBRawReaderFactory implements ArchiveReaderFactory
         {
             return new InfluxDBRawReader(ds.getURL(),
                     ds.getArg(InfluxDBDataSource.USER_KEY),
-                    ds.getArg(InfluxDBDataSource.PASSW_KEY), ds.getArgRequired(InfluxDBDataSource.DB_KEY));
+                    ds.getArg(InfluxDBDataSource.PASSW_KEY), ds.getArgRequired(InfluxDBDataSource.DB_KEY),
+                    ds.getArgBoolean(InfluxDBDataSource.GZIP_KEY, InfluxDBArchivePreferences.useGzip()));
         }
     }
 }
@@ -23,6 +23,9 @@ import org.eclipse.core.runtime.preferences.IPreferencesService;
 public class Preferences
 {
     final public static String CHUNK_SIZE = "chunk_size";
+    final public static String BUFFER_MB = "buffer_mb";
+    final public static String MAX_QUERIES = "max_concurrent_queries";
+    final public static String PREFETCH_THREADS = "prefetch_threads";
     // final public static String STORED_PROCEDURE = "use_stored_procedure";
     // final public static String STARTTIME_FUNCTION = "use_starttime_function";
 
@@ -35,6 +38,36 @@ public class Preferences
         return prefs.getInt(Activator.ID, CHUNK_SIZE, chunk_size, null);
     }
 
+    /** @return Memory budget in bytes of an iterator for chunks that have been received but not read */
+    public static long getBufferBytes()
+    {
+        int buffer_mb = 16;
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs != null)
+            buffer_mb = prefs.getInt(Activator.ID, BUFFER_MB, buffer_mb, null);
+        return Math.max(1, buffer_mb) * 1024L * 1024L;
+    }
+
+    /** @return Maximum number of concurrent queries of one connection */
+    public static int getMaxConcurrentQueries()
+    {
+        int max_queries = 64;
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return max_queries;
+        return Math.max(1, prefs.getInt(Activator.ID, MAX_QUERIES, max_queries, null));
+    }
+
+    /** @return Number of channels that a reader with enabled concurrency opens in parallel */
+    public static int getPrefetchThreads()
+    {
+        int threads = 8;
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return threads;
+        return Math.max(1, prefs.getInt(Activator.ID, PREFETCH_THREADS, threads, null));
+    }
+
     // public static String getStoredProcedure()
     // {
     // return getString(STORED_PROCEDURE, "");
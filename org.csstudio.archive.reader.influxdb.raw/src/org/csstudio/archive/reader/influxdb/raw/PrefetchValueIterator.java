@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb.raw;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.csstudio.archive.reader.ValueIterator;
+import org.diirt.vtype.VType;
+
+/** Value Iterator that opens another iterator in the background
+ *
+ *  <p>Opening an iterator performs the initial queries and
+ *  waits for the first chunk of samples.
+ *  When a display requests the samples of many channels,
+ *  each channel's iterator is thus opened on a thread of the pool
+ *  while the caller continues to request the next channel.
+ *  The first call to {@link #hasNext()} waits for the iterator to open.
+ *
+ *  <p>Errors of opening the iterator are reported by {@link #next()}.
+ */
+@SuppressWarnings("nls")
+public class PrefetchValueIterator implements ValueIterator
+{
+    /** Result of opening the iterator */
+    final private Future<?> opening;
+
+    /** Iterator once opened, until closed */
+    final private AtomicReference<ValueIterator> iterator = new AtomicReference<>();
+
+    final private AtomicBoolean closed = new AtomicBoolean(false);
+
+    /** Has the caller waited for <code>opening</code>? */
+    private boolean opened = false;
+
+    /** Error of opening the iterator, reported once by <code>next()</code> */
+    private Exception error = null;
+
+    /** @return Pool of threads for opening iterators, see {@link Preferences#getPrefetchThreads()} */
+    public static ExecutorService createPool()
+    {
+        final AtomicInteger thread_count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Preferences.getPrefetchThreads(), runnable ->
+        {
+            final Thread thread = new Thread(runnable, "InfluxDB Prefetch " + thread_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** @param pool Threads that open iterators
+     *  @param opener Opens the iterator
+     */
+    public PrefetchValueIterator(final ExecutorService pool, final Callable<ValueIterator> opener)
+    {
+        opening = pool.submit(() ->
+        {
+            iterator.set(opener.call());
+            // Closed while opening?
+            if (closed.get())
+                closeIterator();
+            return null;
+        });
+    }
+
+    /** @return Opened iterator, or <code>null</code> when closed or on error */
+    private ValueIterator getIterator()
+    {
+        if (! opened)
+        {
+            opened = true;
+            try
+            {
+                opening.get();
+            }
+            catch (ExecutionException ex)
+            {
+                final Throwable cause = ex.getCause();
+                if (! InfluxDBRawReader.isCancellation(cause))
+                    error = cause instanceof Exception ? (Exception) cause : ex;
+            }
+            catch (Exception ex)
+            {
+                // Interrupted, or cancelled by close()
+                if (! (closed.get()  ||  InfluxDBRawReader.isCancellation(ex)))
+                    error = ex;
+            }
+        }
+        return iterator.get();
+    }
+
+    private void closeIterator()
+    {
+        final ValueIterator base = iterator.getAndSet(null);
+        if (base != null)
+            base.close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext()
+    {
+        final ValueIterator base = getIterator();
+        // Have next() report the error
+        if (error != null)
+            return true;
+        return base != null  &&  base.hasNext();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public VType next() throws Exception
+    {
+        final ValueIterator base = getIterator();
+        if (error != null)
+        {
+            final Exception ex = error;
+            error = null;
+            throw ex;
+        }
+        if (base == null)
+            throw new Exception("PrefetchValueIterator.next() called after end");
+        return base.next();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close()
+    {
+        closed.set(true);
+        // Skip opening if it did not start, otherwise close once opened
+        opening.cancel(false);
+        closeIterator();
+    }
+}
@@ -15,7 +15,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -33,7 +32,7 @@ import org.influxdb.dto.QueryResult.Series;
 public class RawChunkReader extends AbstractInfluxDBValueLookup
 {
     /** Queue of result chunks of the sample query */
-    final BlockingQueue<QueryResult> sample_queue;
+    final ChunkQueue sample_queue;
 
     /** Expected last timestamp for samples */
     final Instant last_sample_time;
@@ -47,8 +46,11 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
     /** Column labels of current series of samples to process */
     public String[] cur_sample_columns;
 
-    /** Map of label strings to column index */
-    final protected Map<String, Integer> cur_column_map = new HashMap<String, Integer>();
+    /** Decoding plan for the columns of the current series */
+    protected DecodePlan cur_plan = null;
+
+    /** Plans for the series schemas seen so far */
+    final private Map<List<String>, DecodePlan> plans = new HashMap<>();
 
     /** Values of current sample series */
     public List<Object> cur_sample_values;
@@ -66,7 +68,7 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
     /** Decode samples into Vtype **/
     private final AbstractInfluxDBValueDecoder decoder;
 
-    protected RawChunkReader(final BlockingQueue<QueryResult> sample_queue, final Instant last_sample_time,
+    protected RawChunkReader(final ChunkQueue sample_queue, final Instant last_sample_time,
             final int timeout_secs, final AbstractInfluxDBValueDecoder.Factory decoder_factory)
     {
         this.sample_queue = sample_queue;
@@ -88,23 +90,32 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
         return decoder.decodeSampleValue();
     }
 
+    /** @param results Chunk of results, may be <code>null</code>
+     *  @throws Exception if the query failed or was cancelled
+     */
+    protected static void checkError(final QueryResult results) throws Exception
+    {
+        if (results != null  &&  results.hasError())
+            throw new Exception(results.getError());
+    }
+
+    /** @return <code>false</code> at the end of the response
+     *  @throws Exception on error, timeout, or when cancelled
+     */
     private boolean poll_next_sample_series() throws Exception
     {
         Series next_series = next_sample_series.poll();
 
         while (next_series == null)
         {
-            try
-            {
-                Activator.getLogger().log(Level.FINER, "Polling for next chunk of samples");
-                final QueryResult results = sample_queue.poll(timeout_secs, TimeUnit.SECONDS);
-                //Activator.getLogger().log(Level.FINEST, () -> "Got sample chunk : " + InfluxDBResults.toString(results) );
-                next_sample_series.addAll(InfluxDBResults.getSeries(results));
-            }
-            catch (Exception e)
-            {
+            Activator.getLogger().log(Level.FINER, "Polling for next chunk of samples");
+            final QueryResult results = sample_queue.poll(timeout_secs, TimeUnit.SECONDS);
+            if (results == null)
                 return false;
-            }
+            // Failed or cancelled query
+            checkError(results);
+            //Activator.getLogger().log(Level.FINEST, () -> "Got sample chunk : " + InfluxDBResults.toString(results) );
+            next_sample_series.addAll(InfluxDBResults.getSeries(results));
             next_series = next_sample_series.poll();
         }
 
@@ -123,16 +134,14 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
         if ((col_count < 1) || (val_count < 1))
             return poll_next_sample_series();
 
-        if (col_count != cur_sample_columns.length)
-            cur_sample_columns = new String[col_count];
-
-        cur_sample_columns = next_series.getColumns().toArray(cur_sample_columns);
-        cur_column_map.clear();
-        int i = 0;
-        for (String col : cur_sample_columns)
+        // Series of a chunked query usually share the same columns
+        final List<String> columns = next_series.getColumns();
+        if (cur_plan == null  ||  ! cur_plan.matches(columns))
         {
-            cur_column_map.put(col, i);
-            i++;
+            cur_plan = plans.computeIfAbsent(columns, DecodePlan::new);
+            if (col_count != cur_sample_columns.length)
+                cur_sample_columns = new String[col_count];
+            cur_sample_columns = columns.toArray(cur_sample_columns);
         }
 
         next_sample_values.addAll(next_series.getValues());
@@ -152,7 +161,7 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
         {
             if (!poll_next_sample_series())
             {
-                Activator.getLogger().log(Level.WARNING, () -> "Unable to poll next set of sample results. Possible timeout? Vals recieved = " + recv_vals + ", Step count = "
+                Activator.getLogger().log(Level.FINE, () -> "Samples ended before expected last sample time. Vals received = " + recv_vals + ", Step count = "
                         + step_count + ", last sample time = " + last_sample_time + " (" + InfluxDBUtil.toNanoLong(last_sample_time)
                         + ") cur sample time " + cur_sample_time + " (" + InfluxDBUtil.toNanoLong(cur_sample_time) + ")");
                 return false;
@@ -166,7 +175,9 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
         }
 
         cur_sample_values = vals;
-        cur_sample_time = InfluxDBUtil.fromInfluxDBTimeFormat(this.getValue("time"));
+        if (cur_plan.time < 0)
+            throw new Exception("No time column in " + Arrays.toString(cur_sample_columns));
+        cur_sample_time = InfluxDBUtil.fromInfluxDBTimeFormat(vals.get(cur_plan.time));
 
         Activator.getLogger().log(Level.FINER, () -> "sample step success: " + this.toString());
         step_count++;
@@ -175,7 +186,7 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
 
     public boolean containsColumn(String key)
     {
-        return cur_column_map.containsKey(key);
+        return cur_plan != null  &&  cur_plan.getColumn(key) >= 0;
     }
 
     @Override
@@ -189,8 +200,8 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
     @Override
     public Object getValue(final String colname) throws Exception
     {
-        Integer idx = cur_column_map.get(colname);
-        if (idx == null)
+        final int idx = cur_plan == null ? -1 : cur_plan.getColumn(colname);
+        if (idx < 0)
         {
             throw new Exception ("Tried to access sample value in nonexistant column " + colname);
         }
@@ -200,7 +211,25 @@ public class RawChunkReader extends AbstractInfluxDBValueLookup
     @Override
     public boolean hasValue(final String colname)
     {
-        return cur_column_map.containsKey(colname);
+        return containsColumn(colname);
+    }
+
+    @Override
+    public DecodePlan getPlan()
+    {
+        return cur_plan;
+    }
+
+    @Override
+    public Instant getTime()
+    {
+        return cur_sample_time;
+    }
+
+    @Override
+    public List<Object> getRow()
+    {
+        return cur_sample_values;
     }
 
     @Override
@@ -53,7 +53,10 @@ public class RawDecoder extends AbstractInfluxDBValueDecoder
                 10.0, 0.0, 10.0);
         final AlarmSeverity severity = AlarmSeverity.UNDEFINED;
         final String status = "OK";
-        final Instant time = InfluxDBUtil.fromInfluxDBTimeFormat(vals.getValue("time"));
+        // Chunk reader already decoded the time stamp
+        Instant time = vals.getTime();
+        if (time == null)
+            time = InfluxDBUtil.fromInfluxDBTimeFormat(vals.getValue("time"));
 
         Object val = vals.getValue(fieldname);
         if (val == null) {
@@ -62,9 +65,9 @@ public class RawDecoder extends AbstractInfluxDBValueDecoder
 
         Double dbl = null;
         String str = null;
-        try {
-            dbl = Double.class.cast(val);
-        } catch (Exception e) {
+        if (val instanceof Number) {
+            dbl = ((Number) val).doubleValue();
+        } else {
             try {
                 dbl = Double.valueOf(val.toString());
             } catch (Exception e1) {
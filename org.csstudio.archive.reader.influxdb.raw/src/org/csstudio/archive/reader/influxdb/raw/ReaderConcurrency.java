@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb.raw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.reader.ValueIterator;
+
+/** Cancellation of chunked queries and threads that open iterators,
+ *  shared by the InfluxDB archive readers
+ *
+ *  <p>{@link #cancel()} aborts the queries of the current read.
+ *  Iterators of that read which are still being opened,
+ *  for example on a prefetch thread, have the queries that they add
+ *  later cancelled right away, and those that did not start opening
+ *  remain empty.
+ *  Reads that start after the cancellation are not affected,
+ *  so the reader remains usable.
+ *
+ *  <p>Thread safe.
+ */
+@SuppressWarnings("nls")
+public class ReaderConcurrency
+{
+    /** Threads that open iterators when concurrency is enabled, else <code>null</code>. SYNC on this */
+    private ExecutorService prefetch_pool = null;
+
+    /** Chunked queries that are still streaming results, aborted in cancel() */
+    final private List<ChunkedQuery> cancellable_queries = new ArrayList<>();
+
+    /** Incremented by cancel(). SYNC on cancellable_queries */
+    private long read = 0;
+
+    /** Read of the iterator that the current thread is opening, <code>null</code> if none */
+    final private ThreadLocal<Long> opening_read = new ThreadLocal<>();
+
+    /** Add a query to the list of queries-to-cancel in cancel(),
+     *  or cancel it right away if the read that opens it has already been cancelled
+     *  @param query Query to cancel, may be <code>null</code>
+     *  @see #cancel()
+     */
+    public void addForCancellation(final ChunkedQuery query)
+    {
+        if (query == null)
+            return;
+        final Long opener = opening_read.get();
+        synchronized (cancellable_queries)
+        {
+            if (opener == null  ||  opener.longValue() == read)
+            {
+                // Forget queries that completed without being removed
+                cancellable_queries.removeIf(ChunkedQuery::isDone);
+                cancellable_queries.add(query);
+                return;
+            }
+        }
+        query.cancel();
+    }
+
+    /** Remove a query from the list of queries-to-cancel in cancel()
+     *  @param query Query that should no longer be cancelled, may be <code>null</code>
+     *  @see #cancel()
+     */
+    public void removeFromCancellation(final ChunkedQuery query)
+    {
+        if (query == null)
+            return;
+        synchronized (cancellable_queries)
+        {
+            cancellable_queries.remove(query);
+        }
+    }
+
+    /** Abort all chunked queries that are still streaming results,
+     *  and those that iterators of the current read add later.
+     *  Their iterators end with the samples received so far.
+     */
+    public void cancel()
+    {
+        final List<ChunkedQuery> queries;
+        synchronized (cancellable_queries)
+        {
+            ++read;
+            queries = new ArrayList<>(cancellable_queries);
+            cancellable_queries.clear();
+        }
+        for (ChunkedQuery query : queries)
+            query.cancel();
+    }
+
+    /** Open an iterator as part of the current read,
+     *  in the background when concurrency is enabled
+     *  @param opener Opens the iterator
+     *  @return {@link ValueIterator}
+     *  @throws Exception on error
+     */
+    public ValueIterator open(final Callable<ValueIterator> opener) throws Exception
+    {
+        final long current;
+        synchronized (cancellable_queries)
+        {
+            current = read;
+        }
+        final Callable<ValueIterator> read_opener = () ->
+        {
+            synchronized (cancellable_queries)
+            {
+                // Read was cancelled before the iterator started to open
+                if (current != read)
+                    throw new Exception(ChunkedQuery.CANCELLED);
+            }
+            opening_read.set(current);
+            try
+            {
+                return opener.call();
+            }
+            finally
+            {
+                opening_read.remove();
+            }
+        };
+        final ExecutorService pool = getPrefetchPool();
+        if (pool != null)
+            return new PrefetchValueIterator(pool, read_opener);
+        return read_opener.call();
+    }
+
+    /** @return Threads that open iterators, <code>null</code> when concurrency is disabled */
+    public synchronized ExecutorService getPrefetchPool()
+    {
+        return prefetch_pool;
+    }
+
+    /** When enabled, iterators are opened in parallel on a bounded pool of threads
+     *  while the caller continues to request the samples of other channels.
+     *  @param concurrency Open iterators in parallel?
+     */
+    public synchronized void enableConcurrency(final boolean concurrency)
+    {
+        if (concurrency)
+        {
+            if (prefetch_pool == null)
+                prefetch_pool = PrefetchValueIterator.createPool();
+        }
+        else if (prefetch_pool != null)
+        {
+            // Iterators that are still opening complete, but no new ones start
+            prefetch_pool.shutdown();
+            prefetch_pool = null;
+        }
+    }
+
+    /** Cancel queries and stop the prefetch threads */
+    public void close()
+    {
+        cancel();
+        enableConcurrency(false);
+    }
+}
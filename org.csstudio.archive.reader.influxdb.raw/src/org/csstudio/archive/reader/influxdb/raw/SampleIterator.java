@@ -8,10 +8,9 @@
 package org.csstudio.archive.reader.influxdb.raw;
 
 import java.time.Instant;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.function.Consumer;
 
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
 import org.csstudio.archive.influxdb.InfluxDBResults;
 import org.csstudio.archive.influxdb.InfluxDBSeriesInfo;
 import org.diirt.vtype.VType;
@@ -24,7 +23,13 @@ import org.influxdb.dto.QueryResult;
 public class SampleIterator extends AbstractInfluxDBValueIterator
 {
     /** Queue of result chunks of the sample query */
-    final BlockingQueue<QueryResult> sample_queue = new LinkedBlockingQueue<>();
+    final ChunkQueue sample_queue = new ChunkQueue(Preferences.getBufferBytes());
+
+    /** Reader that cancels the queries */
+    final private InfluxDBRawReader influx_reader;
+
+    /** Query for the samples, <code>null</code> when not started or not cancellable */
+    private ChunkedQuery sample_query = null;
 
     /** 'Current' value that <code>next()</code> will return,
      *  or <code>null</code>
@@ -54,18 +59,25 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
             final Instant end) throws Exception
     {
         super(reader, sample_series.getMeasurement());
+        influx_reader = reader;
         Instant sample_endtime, sample_starttime;
 
         sample_chunk_size = Preferences.getChunkSize();
 
-        //Get the timestamp of the last sample at or before the indicated start time.
-        sample_starttime = InfluxDBResults.getTimestamp(
-                reader.getQueries().get_newest_series_samples(sample_series, null, start, 1L));
+        // Determine the sample time range with one request
+        final QueryResult sample_bounds = reader.getQueries().multi_get_series_samples(sample_series,
+                // Last sample at or before the indicated start time
+                InfluxDBQueries.get_series_points(sample_series, null, start, -1L),
+                // Oldest sample in range
+                InfluxDBQueries.get_series_points(sample_series, start, end, 1L),
+                // Last sample in range
+                InfluxDBQueries.get_series_points(sample_series, null, end, -1L));
+
+        sample_starttime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 0));
         if (sample_starttime == null)
         {
-            //No samples at or before start, find oldest sample in range
-            sample_starttime = InfluxDBResults
-                    .getTimestamp(reader.getQueries().get_series_samples(sample_series, start, end, 1L));
+            //No samples at or before start, use oldest sample in range
+            sample_starttime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 1));
 
             //No samples before the end time. We are done
             if (sample_starttime == null)
@@ -75,30 +87,53 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
                 return;
             }
         }
-
-        //Get the timestamp of the last sample in the range.
-        sample_endtime = InfluxDBResults
-                .getTimestamp(reader.getQueries().get_newest_series_samples(sample_series, sample_starttime, end, 1L));
+        sample_endtime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 2));
 
         // Set up a consumer for chunks of sample data coming from the DB
-        reader.getQueries().chunk_get_series_samples(sample_chunk_size, sample_series, sample_starttime, end, null,
-                new Consumer<QueryResult>() {
-            @Override
-            public void accept(QueryResult result) {
-                sample_queue.add(result);
-                //Activator.getLogger().log(Level.FINE, () -> "Got chunk of sample vals size " + InfluxDBResults.getValueCount(result) + " for total size: " + sample_queue.size());
-                sample_queue.add(result);
-            }});
-
-        // Make a chunk reader to consume and decode the sample data coming from
-        // the DB
-        samples = new RawChunkReader(sample_queue, sample_endtime, reader.getTimeout(),
-                new RawDecoder.Factory(sample_series.getField()));
-
-        if (samples.step())
-            next_value = samples.decodeSampleValue();
-        else
+        // The response is read on a thread of the chunked query client.
+        // The queue blocks that thread when full,
+        // which pauses reading the response until this iterator catches up
+        try
+        {
+            sample_query = reader.getQueries().chunk_get_series_samples(sample_chunk_size, sample_series, sample_starttime, end, null,
+                    sample_queue);
+            reader.addForCancellation(sample_query);
+
+            // Make a chunk reader to consume and decode the sample data coming from
+            // the DB
+            samples = new RawChunkReader(sample_queue, sample_endtime, reader.getTimeout(),
+                    new RawDecoder.Factory(sample_series.getField()));
+
+            fetchNext();
+        }
+        catch (Exception ex)
+        {
+            // Stop the query that was started
             close();
+            throw ex;
+        }
+    }
+
+    /** Prepare the value that <code>next()</code> will return,
+     *  closing the iterator at the end of the samples or when the reader was cancelled
+     *  @throws Exception on error
+     */
+    private void fetchNext() throws Exception
+    {
+        try
+        {
+            if (samples.step())
+            {
+                next_value = samples.decodeSampleValue();
+                return;
+            }
+        }
+        catch (Exception ex)
+        {
+            if (! InfluxDBRawReader.isCancellation(ex))
+                throw ex;
+        }
+        close();
     }
 
 
@@ -123,10 +158,7 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
         final VType result = next_value;
 
         // ... and prepare next value
-        if (samples.step())
-            next_value = samples.decodeSampleValue();
-        else
-            close();
+        fetchNext();
 
         return result;
     }
@@ -138,6 +170,14 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
     public void close()
     {
         super.close();
+        // Stop streaming results that will not be read
+        if (sample_query != null)
+        {
+            sample_query.cancel();
+            influx_reader.removeFromCancellation(sample_query);
+            sample_query = null;
+        }
+        sample_queue.close();
         next_value = null;
     }
 }
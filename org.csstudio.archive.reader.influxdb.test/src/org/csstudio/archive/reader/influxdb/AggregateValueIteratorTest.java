@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.RetentionTiers;
+import org.csstudio.archive.influxdb.RetentionTiers.Tier;
+import org.csstudio.archive.reader.influxdb.AggregateValueIterator.Bin;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVStatistics;
+import org.csstudio.archive.vtype.VTypeHelper;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.VType;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+
+/** JUnit test of decoding samples aggregated by InfluxDB
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class AggregateValueIteratorTest
+{
+    final private static List<String> COLUMNS = Arrays.asList("time", "mean", "min", "max", "stddev", "count");
+
+    private static Series createSeries(final String severity, final String status, final Object[]... rows)
+    {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("severity", severity);
+        tags.put("status", status);
+        final List<List<Object>> values = new ArrayList<>();
+        for (Object[] row : rows)
+            values.add(Arrays.asList(row));
+        final Series series = new Series();
+        series.setName("test");
+        series.setTags(tags);
+        series.setColumns(COLUMNS);
+        series.setValues(values);
+        return series;
+    }
+
+    private static Series createSeries(final List<String> columns, final Object[]... rows)
+    {
+        final List<List<Object>> values = new ArrayList<>();
+        for (Object[] row : rows)
+            values.add(Arrays.asList(row));
+        final Series series = new Series();
+        series.setName("test");
+        series.setColumns(columns);
+        series.setValues(values);
+        return series;
+    }
+
+    private static QueryResult createResult(final Series... series)
+    {
+        final Result result = new Result();
+        result.setSeries(Arrays.asList(series));
+        final QueryResult results = new QueryResult();
+        results.setResults(Arrays.asList(result));
+        return results;
+    }
+
+    @Test
+    public void testQuery() throws Exception
+    {
+        final String query = InfluxDBQueries.get_aggregate_points("test", Instant.ofEpochSecond(10), Instant.ofEpochSecond(20), 5);
+        System.out.println(query);
+        assertEquals("SELECT mean(\"double.0\") AS \"mean\", min(\"double.0\") AS \"min\", max(\"double.0\") AS \"max\", " +
+                     "stddev(\"double.0\") AS \"stddev\", count(\"double.0\") AS \"count\" FROM \"test\" " +
+                     "WHERE time > 10000000000 AND time <= 20000000000 GROUP BY time(5s),\"severity\",\"status\" fill(none)",
+                     query);
+        assertEquals(1, AggregateValueIterator.getBinSeconds(0.2));
+        assertEquals(7, AggregateValueIterator.getBinSeconds(7.9));
+    }
+
+    @Test
+    public void testDecode() throws Exception
+    {
+        // Samples 1, 2, 3 and 5 without alarm, 4 and 6 in MINOR alarm
+        final QueryResult results = createResult(
+            createSeries("NONE", "NO_ALARM",
+                         new Object[] { "1970-01-01T00:00:00Z", 2.0, 1.0, 3.0, 1.0, 3.0 },
+                         new Object[] { "1970-01-01T00:00:10Z", 5.0, 5.0, 5.0, null, 1.0 }),
+            createSeries("MINOR", "HIGH",
+                         new Object[] { "1970-01-01T00:00:00Z", 5.0, 4.0, 6.0, Math.sqrt(2.0), 2.0 }));
+
+        final List<VType> values = AggregateValueIterator.decodeAggregates(results, null, 10, 6);
+        for (VType value : values)
+            System.out.println(value);
+        assertEquals(2, values.size());
+
+        // Bins merged across severity and status, stamped in the center
+        assertTrue(values.get(0) instanceof ArchiveVStatistics);
+        final ArchiveVStatistics stats = (ArchiveVStatistics) values.get(0);
+        assertEquals(Instant.ofEpochSecond(5), VTypeHelper.getTimestamp(stats));
+        assertEquals(AlarmSeverity.MINOR, stats.getAlarmSeverity());
+        assertEquals("HIGH", stats.getAlarmName());
+        assertEquals(3.2, stats.getAverage(), 1e-9);
+        assertEquals(1.0, stats.getMin(), 0.0);
+        assertEquals(6.0, stats.getMax(), 0.0);
+        assertEquals(Math.sqrt(3.7), stats.getStdDev(), 1e-9);
+        assertEquals(5, stats.getNSamples().intValue());
+
+        // Single sample
+        assertTrue(values.get(1) instanceof ArchiveVNumber);
+        assertEquals(Instant.ofEpochSecond(15), VTypeHelper.getTimestamp(values.get(1)));
+        assertEquals(5.0, ((ArchiveVNumber) values.get(1)).getValue().doubleValue(), 0.0);
+
+        // Too few samples: Average on client
+        assertNull(AggregateValueIterator.decodeAggregates(results, null, 10, 7));
+    }
+
+    @Test
+    public void testSamplesWithoutValue() throws Exception
+    {
+        final QueryResult results = createResult(
+            createSeries("NONE", "NO_ALARM",
+                         new Object[] { "1970-01-01T00:00:00Z", 2.0, 1.0, 3.0, 1.0, 3.0 }),
+            createSeries("INVALID", "Disconnected",
+                         new Object[] { "1970-01-01T00:00:10Z", 0.0, 0.0, 0.0, null, 1.0 }));
+        assertNull(AggregateValueIterator.decodeAggregates(results, null, 10, 1));
+    }
+
+    @Test
+    public void testSelectTier() throws Exception
+    {
+        final RetentionTiers tiers = RetentionTiers.parse("autogen:90d, rollup_1m:400d:1m, rollup_1h:INF:1h");
+        final Instant now = Instant.ofEpochSecond(1000L * 24 * 60 * 60);
+
+        // Bins smaller than any rollup interval, or not a multiple: Raw tier
+        assertNull(AggregateValueIterator.selectTier(tiers, 30, now.minusSeconds(60), now));
+        assertNull(AggregateValueIterator.selectTier(tiers, 90, now.minusSeconds(60), now));
+        assertNull(AggregateValueIterator.selectTier(RetentionTiers.NONE, 3600, now.minusSeconds(60), now));
+
+        // Coarsest tier that divides the bins
+        assertEquals("rollup_1m", AggregateValueIterator.selectTier(tiers, 120, now.minusSeconds(60), now).getName());
+        assertEquals("rollup_1h", AggregateValueIterator.selectTier(tiers, 7200, now.minusSeconds(60), now).getName());
+        assertEquals("rollup_1m", AggregateValueIterator.selectTier(tiers, 5400, now.minusSeconds(60), now).getName());
+
+        // Start time that has expired from the 1m tier
+        assertNull(AggregateValueIterator.selectTier(tiers, 120, now.minusSeconds(500L * 24 * 60 * 60), now));
+    }
+
+    @Test
+    public void testQueryRollups() throws Exception
+    {
+        final String query = InfluxDBQueries.get_rollup_points("test", "rollup_1m", Instant.ofEpochSecond(10), Instant.ofEpochSecond(20));
+        System.out.println(query);
+        assertEquals("SELECT \"mean\",\"min\",\"max\",\"count\" FROM \"rollup_1m\".\"test\" " +
+                     "WHERE time > 10000000000 AND time <= 20000000000",
+                     query);
+    }
+
+    @Test
+    public void testDecodeRollups() throws Exception
+    {
+        final Tier tier = RetentionTiers.parse("autogen:INF, rollup_1m:INF:1m").getRollupTiers().get(0);
+        // Three 1 minute rollups into 2 minute bins
+        final QueryResult rollups = createResult(
+            createSeries(Arrays.asList("time", "mean", "min", "max", "count"),
+                         new Object[] { "1970-01-01T00:00:00Z", 2.0, 1.0, 3.0, 2.0 },
+                         new Object[] { "1970-01-01T00:01:00Z", 4.0, 3.0, 6.0, 2.0 },
+                         new Object[] { "1970-01-01T00:02:00Z", 7.0, 7.0, 7.0, 1.0 }));
+        final Map<Instant, Bin> bins = new TreeMap<>();
+        final Instant rolled_up = AggregateValueIterator.addRollups(rollups, tier, 120, bins);
+        assertEquals(Instant.ofEpochSecond(180).minusNanos(1), rolled_up);
+
+        // One sample in alarm
+        final List<String> columns = Arrays.asList("time", "double.0", "severity", "status");
+        QueryResult alarms = createResult(
+            createSeries(columns, new Object[] { "1970-01-01T00:01:30Z", 6.0, "MAJOR", "HIHI" }));
+        assertTrue(AggregateValueIterator.addAlarms(alarms, 120, 10, bins));
+
+        final List<VType> values = AggregateValueIterator.toValues(bins, null, 120, 5);
+        for (VType value : values)
+            System.out.println(value);
+        assertEquals(2, values.size());
+        final ArchiveVStatistics stats = (ArchiveVStatistics) values.get(0);
+        assertEquals(Instant.ofEpochSecond(60), VTypeHelper.getTimestamp(stats));
+        assertEquals(AlarmSeverity.MAJOR, stats.getAlarmSeverity());
+        assertEquals("HIHI", stats.getAlarmName());
+        assertEquals(3.0, stats.getAverage(), 1e-9);
+        assertEquals(1.0, stats.getMin(), 0.0);
+        assertEquals(6.0, stats.getMax(), 0.0);
+        assertEquals(0.0, stats.getStdDev(), 0.0);
+        assertEquals(4, stats.getNSamples().intValue());
+        assertEquals(AlarmSeverity.NONE, VTypeHelper.getSeverity(values.get(1)));
+        assertEquals(7.0, ((ArchiveVNumber) values.get(1)).getValue().doubleValue(), 0.0);
+
+        // Rollups skip samples without value, and too many alarms: Use raw tier
+        alarms = createResult(
+            createSeries(columns, new Object[] { "1970-01-01T00:01:30Z", 0.0, "INVALID", "Disconnected" }));
+        assertFalse(AggregateValueIterator.addAlarms(alarms, 120, 10, bins));
+        alarms = createResult(
+            createSeries(columns, new Object[] { "1970-01-01T00:01:30Z", 6.0, "MAJOR", "HIHI" },
+                                  new Object[] { "1970-01-01T00:01:40Z", 6.0, "MAJOR", "HIHI" }));
+        assertFalse(AggregateValueIterator.addAlarms(alarms, 120, 2, bins));
+
+        // No rollups, yet
+        assertNull(AggregateValueIterator.addRollups(createResult(), tier, 120, new TreeMap<>()));
+    }
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.csstudio.apputil.time.BenchmarkTimer;
+import org.csstudio.archive.influxdb.MetaTypes;
+import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
+import org.csstudio.archive.influxdb.PackedDoubleArray;
+import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueLookup;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.diirt.util.array.ArrayDouble;
+import org.diirt.util.array.ListLong;
+import org.diirt.util.array.ListNumber;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.VNumber;
+import org.diirt.vtype.VNumberArray;
+import org.diirt.vtype.VType;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+
+/** JUnit test of decoding array samples
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class ArchiveDecoderTest
+{
+    /** Lookup of the fields of one point */
+    private static class MapLookup extends AbstractInfluxDBValueLookup
+    {
+        final private Map<String, Object> values = new HashMap<>();
+        final private MetaObject meta;
+
+        MapLookup(final String datatype) throws Exception
+        {
+            this(datatype, 2.0);
+        }
+
+        MapLookup(final String datatype, final Object precision) throws Exception
+        {
+            meta = MetaTypes.toMetaObject(Arrays.asList("time", "datatype", "units", "precision"),
+                                          Arrays.asList("2017-03-20T12:00:00Z", datatype, "a.u.", precision));
+            values.put("time", "2017-03-20T12:00:00.000000001Z");
+            values.put("severity", "NONE");
+            values.put("status", "OK");
+        }
+
+        @Override
+        public Object getValue(final String colname)
+        {
+            return values.get(colname);
+        }
+
+        @Override
+        public boolean hasValue(final String colname)
+        {
+            return values.containsKey(colname);
+        }
+
+        @Override
+        public MetaObject getMeta()
+        {
+            return meta;
+        }
+    }
+
+    private static double[] getArray(final VType value)
+    {
+        final ListNumber list = ((VNumberArray)value).getData();
+        final double[] data = new double[list.size()];
+        for (int i=0; i<data.length; ++i)
+            data[i] = list.getDouble(i);
+        return data;
+    }
+
+    @Test
+    public void testLegacyArray() throws Exception
+    {
+        final MapLookup lookup = new MapLookup("ARCHIVE_DOUBLE_ARRAY");
+        lookup.values.put("double.0", 1.0);
+        VType value = new ArchiveDecoder(lookup).decodeSampleValue();
+        assertEquals(1.0, ((VNumber)value).getValue().doubleValue(), 0.0);
+
+        final double[] data = new double[40];
+        for (int i=0; i<data.length; ++i)
+        {
+            data[i] = i * 0.5;
+            lookup.values.put("double." + i, data[i]);
+        }
+        // Column of a longer array in the same query result
+        lookup.values.put("double." + data.length, null);
+        value = new ArchiveDecoder(lookup).decodeSampleValue();
+        assertArrayEquals(data, getArray(value), 0.0);
+    }
+
+    @Test
+    public void testLongArray() throws Exception
+    {
+        final MapLookup lookup = new MapLookup("ARCHIVE_LONG_ARRAY");
+        final long[] data = new long[20];
+        for (int i=0; i<data.length; ++i)
+        {
+            data[i] = i * 1000L - 5;
+            // Integral JSON numbers are read as Long, older results may hold Double
+            lookup.values.put("long." + i, i % 2 == 0 ? Long.valueOf(data[i]) : Double.valueOf(data[i]));
+        }
+        final VType value = new ArchiveDecoder(lookup).decodeSampleValue();
+        final ListNumber list = ((VNumberArray)value).getData();
+        assertTrue(list instanceof ListLong);
+        assertEquals(data.length, list.size());
+        for (int i=0; i<data.length; ++i)
+            assertEquals(data[i], list.getLong(i));
+    }
+
+    @Test
+    public void testLargeLong() throws Exception
+    {
+        // Value beyond 2^53 read from JSON as Long, meta data given as Long
+        final long big = (1L << 53) + 1;
+        final MapLookup lookup = new MapLookup("ARCHIVE_LONG", Long.valueOf(3));
+        assertEquals(3, ((Display) lookup.meta.object).getFormat().getMinimumFractionDigits());
+        lookup.values.put("long.0", Long.valueOf(big));
+        final VType value = new ArchiveDecoder(lookup).decodeSampleValue();
+        assertEquals(big, ((VNumber)value).getValue().longValue());
+    }
+
+    @Test
+    public void testPackedArray() throws Exception
+    {
+        final double[] data = new double[4096];
+        for (int i=0; i<data.length; ++i)
+            data[i] = Math.sin(i * 0.01);
+        data[1] = Double.NaN;
+        data[2] = Double.POSITIVE_INFINITY;
+
+        final String packed = PackedDoubleArray.encode(new ArrayDouble(data));
+        System.out.println("Packed " + data.length + " doubles into " + packed.length() + " characters");
+        assertTrue(packed.length() < data.length * 8);
+
+        final MapLookup lookup = new MapLookup("ARCHIVE_PACKED_DOUBLE_ARRAY");
+        lookup.values.put(PackedDoubleArray.FIELD, packed);
+        final VType value = new ArchiveDecoder(lookup).decodeSampleValue();
+        assertArrayEquals(data, getArray(value), 0.0);
+
+        assertArrayEquals(new double[0], PackedDoubleArray.decode(PackedDoubleArray.encode(new ArrayDouble())), 0.0);
+    }
+
+    private static QueryResult createResult(final List<String> columns, final List<List<Object>> values)
+    {
+        final Series series = new Series();
+        series.setName("test");
+        series.setColumns(columns);
+        series.setValues(values);
+        final Result result = new Result();
+        result.setSeries(Arrays.asList(series));
+        final QueryResult results = new QueryResult();
+        results.setResults(Arrays.asList(result));
+        return results;
+    }
+
+    /** Decode rows of scalar samples like a {@link SampleIterator}
+     *  @param rows Number of rows
+     *  @return Seconds
+     *  @throws Exception on error
+     */
+    private static double decodeRows(final int rows) throws Exception
+    {
+        final List<List<Object>> values = new ArrayList<>(rows);
+        for (int i=0; i<rows; ++i)
+            values.add(Arrays.asList(Instant.ofEpochSecond(1490000000L + i).toString(), i * 0.5,
+                                     i % 100 == 0 ? "MINOR" : "NONE", i % 100 == 0 ? "HIGH" : "NO_ALARM"));
+        final ChunkQueue samples = new ChunkQueue(Long.MAX_VALUE);
+        samples.accept(createResult(Arrays.asList("time", "double.0", "severity", "status"), values));
+        final ChunkQueue metadata = new ChunkQueue(Long.MAX_VALUE);
+        metadata.accept(createResult(Arrays.asList("time", "datatype", "units", "precision"),
+                Arrays.asList(Arrays.asList("2017-03-20T12:00:00Z", "ARCHIVE_DOUBLE", "a.u.", 2.0))));
+        final ChunkReader reader = new ChunkReader(samples, Instant.ofEpochSecond(1490000000L + rows - 1),
+                                                   metadata, Instant.parse("2017-03-20T12:00:00Z"),
+                                                   1, new ArchiveDecoder.Factory());
+        final BenchmarkTimer timer = new BenchmarkTimer();
+        int count = 0;
+        while (reader.step())
+        {
+            final VType value = reader.decodeSampleValue();
+            assertEquals(count * 0.5, ((VNumber)value).getValue().doubleValue(), 0.0);
+            ++count;
+        }
+        timer.stop();
+        assertEquals(rows, count);
+        return timer.getSeconds();
+    }
+
+    @Test
+    public void testPlan() throws Exception
+    {
+        // Same result when decoding via the plan of a chunk reader
+        decodeRows(1000);
+    }
+
+    @Test
+    public void demoDecodeSpeed() throws Exception
+    {
+        final int rows = 200000;
+        // Warm up, then measure
+        decodeRows(rows);
+        for (int run=0; run<3; ++run)
+        {
+            final double secs = decodeRows(rows);
+            System.out.println(rows + " rows in " + secs + " seconds: " + rows/secs + " rows/sec");
+        }
+    }
+}
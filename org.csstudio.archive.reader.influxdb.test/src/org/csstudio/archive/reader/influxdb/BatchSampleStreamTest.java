@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.csstudio.archive.influxdb.ChunkedQueryClient;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.csstudio.archive.reader.influxdb.raw.ReaderConcurrency;
+import org.influxdb.dto.QueryResult;
+import org.junit.Test;
+
+/** JUnit test of the {@link BatchSampleStream}
+ *
+ *  <p>Runs against a minimal stand-in for the InfluxDB query API.
+ */
+@SuppressWarnings("nls")
+public class BatchSampleStreamTest
+{
+    /** Number of samples of each channel */
+    final private static int SAMPLES = 10;
+
+    /** Time of the first sample */
+    final private static long FIRST = 1490000000000000000L;
+
+    /** Responds to <code>SELECT * FROM "a","b" WHERE time >= ...</code>
+     *  with one chunk per sample, one measurement after the other
+     */
+    private static class QueryServer implements AutoCloseable
+    {
+        final private ServerSocket server;
+        final AtomicInteger queries = new AtomicInteger();
+
+        QueryServer() throws IOException
+        {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    while (true)
+                    {
+                        final Socket socket = server.accept();
+                        final Thread connection = new Thread(() -> serve(socket), "Query Server Connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                }
+                catch (IOException ex)
+                {
+                    // Closed
+                }
+            }, "Query Server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getURL()
+        {
+            return "http://localhost:" + server.getLocalPort();
+        }
+
+        private void serve(final Socket socket)
+        {
+            try
+            (
+                final Socket s = socket;
+                final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                final OutputStream out = s.getOutputStream();
+            )
+            {
+                final String request = in.readLine();
+                String header;
+                while ((header = in.readLine()) != null  &&  !header.isEmpty())
+                    ;
+                queries.incrementAndGet();
+                final Matcher q = Pattern.compile("[?&]q=([^& ]*)").matcher(request);
+                final String stmt = q.find() ? URLDecoder.decode(q.group(1), "UTF-8") : "";
+                final Matcher from = Pattern.compile("FROM (.*) WHERE").matcher(stmt);
+                final Matcher time = Pattern.compile("time >= ([0-9]+)").matcher(stmt);
+                final List<String> names = new ArrayList<>();
+                if (from.find())
+                    for (String name : from.group(1).split(","))
+                        names.add(name.replace("\"", ""));
+                final long start = time.find() ? Long.parseLong(time.group(1)) : 0;
+
+                out.write(("HTTP/1.1 200 OK\r\n" +
+                           "Content-Type: application/json\r\n" +
+                           "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                final List<String> chunks = new ArrayList<>();
+                for (String name : names)
+                    for (int i=0; i<SAMPLES; ++i)
+                        if (FIRST + i >= start)
+                            chunks.add("\"series\":[{\"name\":\"" + name + "\"," +
+                                       "\"columns\":[\"time\",\"double.0\"],\"values\":[[" + (FIRST + i) + "," + i + "]]}]");
+                if (chunks.isEmpty())
+                    out.write("{\"results\":[{\"statement_id\":0}]}\n".getBytes(StandardCharsets.US_ASCII));
+                for (int c=0; c<chunks.size(); ++c)
+                {
+                    out.write(("{\"results\":[{\"statement_id\":0," + chunks.get(c) +
+                               ",\"partial\":" + (c < chunks.size()-1) + "}]}\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            }
+            catch (IOException ex)
+            {
+                // Client closed connection
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            server.close();
+        }
+    }
+
+    /** @param queue Queue
+     *  @return Time of the sample in the next chunk
+     *  @throws Exception on error
+     */
+    private static long readTime(final ChunkQueue queue) throws Exception
+    {
+        final QueryResult chunk = queue.poll(5, TimeUnit.SECONDS);
+        assertNotNull(chunk);
+        assertNull(chunk.getError());
+        final List<List<Object>> values = chunk.getResults().get(0).getSeries().get(0).getValues();
+        assertEquals(1, values.size());
+        return ((Number) values.get(0).get(0)).longValue();
+    }
+
+    @Test
+    public void testInterleavedRead() throws Exception
+    {
+        try
+        (
+            final QueryServer server = new QueryServer();
+        )
+        {
+            final ChunkedQueryClient client = new ChunkedQueryClient(server.getURL(), null, null, 2);
+            final ReaderConcurrency concurrency = new ReaderConcurrency();
+            final InfluxDBQueries queries = new InfluxDBQueries(null, client, new DefaultDBNameMap());
+
+            // Each queue only holds one chunk,
+            // so the samples of "a" exceed the budget before those of "b" arrive
+            final Instant last = Instant.ofEpochSecond(0, FIRST + SAMPLES - 1);
+            final BatchSampleStream stream = new BatchSampleStream(queries, concurrency, 1,
+                                                                   Instant.ofEpochSecond(0, FIRST), last);
+            final ChunkQueue a = new ChunkQueue(1), b = new ChunkQueue(1);
+            stream.add("a", a, last);
+            stream.add("b", b, last);
+            stream.start();
+
+            // Reading the channels interleaved receives all samples of both, in order
+            for (int i=0; i<SAMPLES; ++i)
+            {
+                assertEquals(FIRST + i, readTime(a));
+                assertEquals(FIRST + i, readTime(b));
+            }
+            assertNull(a.poll(5, TimeUnit.SECONDS));
+            assertNull(b.poll(5, TimeUnit.SECONDS));
+
+            // Shared query, then one for each channel
+            System.out.println("Queries: " + server.queries.get());
+            assertEquals(3, server.queries.get());
+
+            stream.close("a");
+            stream.close("b");
+            concurrency.close();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.influxdb.ChunkedQueryClient;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.csstudio.archive.reader.influxdb.raw.ReaderConcurrency;
+import org.influxdb.dto.QueryResult;
+import org.junit.Test;
+
+/** JUnit test of recognizing the errors of cancelled queries,
+ *  and of cancelling queries
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class CancellationTest
+{
+    @Test
+    public void testIsCancellation() throws Exception
+    {
+        // Error passed to the chunk consumer of a cancelled query
+        assertTrue(InfluxDBArchiveReader.isCancellation(new Exception(ChunkedQuery.CANCELLED)));
+        // IOException of the aborted HTTP call
+        assertTrue(InfluxDBArchiveReader.isCancellation(new IOException("Canceled")));
+        // Wrapped by the chunk reader
+        assertTrue(InfluxDBArchiveReader.isCancellation(
+                new Exception("Could not set initial metadata object", new Exception(ChunkedQuery.CANCELLED))));
+
+        assertFalse(InfluxDBArchiveReader.isCancellation(new Exception("Query failed with HTTP 400: bad query")));
+        assertFalse(InfluxDBArchiveReader.isCancellation(new Exception("Failure", new Exception())));
+    }
+
+    @Test
+    public void testCancelLateQuery() throws Exception
+    {
+        // Server that accepts connections but never responds
+        try
+        (
+            final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        )
+        {
+            final ChunkedQueryClient client = new ChunkedQueryClient("http://localhost:" + server.getLocalPort(), null, null, 4);
+            final ReaderConcurrency concurrency = new ReaderConcurrency();
+            final ChunkQueue early = new ChunkQueue(1000), late = new ChunkQueue(1000), next = new ChunkQueue(1000);
+            final AtomicReference<ChunkedQuery> early_query = new AtomicReference<>(), late_query = new AtomicReference<>();
+
+            concurrency.open(() ->
+            {
+                // Query that is registered before cancel() is cancelled
+                early_query.set(client.query("SELECT * FROM \"early\"", "test", 10, early));
+                concurrency.addForCancellation(early_query.get());
+                concurrency.cancel();
+                assertTrue(early_query.get().isCancelled());
+
+                // Query of an iterator that was still being opened is cancelled as it's registered
+                late_query.set(client.query("SELECT * FROM \"late\"", "test", 10, late));
+                concurrency.addForCancellation(late_query.get());
+                assertTrue(late_query.get().isCancelled());
+                return null;
+            });
+
+            // Reader remains usable for the next read
+            final ChunkedQuery next_query = client.query("SELECT * FROM \"next\"", "test", 10, next);
+            concurrency.open(() ->
+            {
+                concurrency.addForCancellation(next_query);
+                return null;
+            });
+            assertFalse(next_query.isCancelled());
+            concurrency.cancel();
+            assertTrue(next_query.isCancelled());
+
+            for (ChunkQueue queue : new ChunkQueue[] { early, late, next })
+            {
+                final QueryResult result = queue.poll(5, TimeUnit.SECONDS);
+                assertEquals(ChunkedQuery.CANCELLED, result.getError());
+            }
+            concurrency.close();
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+
+/** JUnit test of the memory budget for received chunks
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class ChunkQueueTest
+{
+    /** @param id Chunk ID, stored as the series name
+     *  @param rows Number of rows
+     *  @return Chunk
+     */
+    private static QueryResult createChunk(final int id, final int rows)
+    {
+        final List<List<Object>> values = new ArrayList<>();
+        for (int i=0; i<rows; ++i)
+            values.add(Arrays.asList("2017-03-20T12:00:00Z", Double.valueOf(i)));
+        final Series series = new Series();
+        series.setName(Integer.toString(id));
+        series.setColumns(Arrays.asList("time", "double.0"));
+        series.setValues(values);
+        final Result result = new Result();
+        result.setSeries(Arrays.asList(series));
+        final QueryResult chunk = new QueryResult();
+        chunk.setResults(Arrays.asList(result));
+        return chunk;
+    }
+
+    private static String getID(final QueryResult chunk)
+    {
+        return chunk.getResults().get(0).getSeries().get(0).getName();
+    }
+
+    @Test
+    public void testBudget() throws Exception
+    {
+        final int chunks = 50;
+        final long chunk_bytes = ChunkQueue.estimateBytes(createChunk(0, 1000));
+        final long budget = 2 * chunk_bytes;
+        final ChunkQueue queue = new ChunkQueue(budget);
+
+        // Producer as fast as possible, like the HTTP client
+        final Thread producer = new Thread(() ->
+        {
+            for (int i=0; i<chunks; ++i)
+                queue.accept(createChunk(i, 1000));
+            queue.accept(ChunkedQuery.END);
+        });
+        producer.start();
+
+        // Slow consumer receives each chunk once, in order
+        for (int i=0; i<chunks; ++i)
+        {
+            final QueryResult chunk = queue.poll(5, TimeUnit.SECONDS);
+            assertEquals(Integer.toString(i), getID(chunk));
+            if (i % 10 == 0)
+                Thread.sleep(20);
+        }
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        // End of the response, also when polled again
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        System.out.println("Budget " + budget + " bytes, most buffered: " + queue.getMaxBufferedBytes());
+        assertTrue(queue.getMaxBufferedBytes() <= budget);
+        assertEquals(0, queue.getBufferedBytes());
+    }
+
+    @Test
+    public void testLargeChunk() throws Exception
+    {
+        // Chunk that exceeds the budget is still accepted when the queue is empty
+        final ChunkQueue queue = new ChunkQueue(100);
+        final QueryResult chunk = createChunk(1, 1000);
+        queue.accept(chunk);
+        assertSame(chunk, queue.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOffer() throws Exception
+    {
+        // Chunk that exceeds the budget is refused without waiting, end is not
+        final ChunkQueue queue = new ChunkQueue(100);
+        assertTrue(queue.offer(createChunk(1, 1000)));
+        assertFalse(queue.offer(createChunk(2, 1000)));
+        assertTrue(queue.offer(ChunkedQuery.END));
+        assertEquals("1", getID(queue.poll(1, TimeUnit.SECONDS)));
+        assertNull(queue.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testClose() throws Exception
+    {
+        final ChunkQueue queue = new ChunkQueue(100);
+        queue.accept(createChunk(1, 10));
+        // Producer blocks on the full queue ...
+        final Thread producer = new Thread(() -> queue.accept(createChunk(2, 10)));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        // .. until the reader closes the queue
+        queue.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, queue.getBufferedBytes());
+
+        // Closed queue is not the end of the data
+        try
+        {
+            queue.poll(1, TimeUnit.SECONDS);
+            fail("Closed queue returned a chunk or end of data");
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Closed: " + ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        final ChunkQueue queue = new ChunkQueue(100);
+        try
+        {
+            queue.poll(100, TimeUnit.MILLISECONDS);
+            fail("Timeout returned a chunk or end of data");
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Timeout: " + ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testErrorOnFullQueue() throws Exception
+    {
+        // Error and end of the response are delivered without waiting for room
+        final ChunkQueue queue = new ChunkQueue(100);
+        queue.accept(createChunk(1, 10));
+        final QueryResult error = new QueryResult();
+        error.setError(ChunkedQuery.CANCELLED);
+        queue.accept(error);
+        queue.accept(ChunkedQuery.END);
+
+        assertEquals("1", getID(queue.poll(1, TimeUnit.SECONDS)));
+        assertSame(error, queue.poll(1, TimeUnit.SECONDS));
+        assertNull(queue.poll(1, TimeUnit.SECONDS));
+    }
+}
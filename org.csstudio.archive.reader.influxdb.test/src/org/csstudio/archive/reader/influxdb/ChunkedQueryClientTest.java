@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.csstudio.archive.influxdb.ChunkedQueryClient;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.influxdb.dto.QueryResult;
+import org.junit.Test;
+
+/** JUnit test of the limit on concurrent chunked queries that are paused by their consumers
+ *
+ *  <p>Runs against a minimal stand-in for the InfluxDB query API.
+ */
+@SuppressWarnings("nls")
+public class ChunkedQueryClientTest
+{
+    /** Number of chunks in each response */
+    final private static int CHUNKS = 5;
+
+    /** Responds to each query with {@link #CHUNKS} chunks of a series named like the database */
+    private static class QueryServer implements AutoCloseable
+    {
+        final private ServerSocket server;
+        final AtomicInteger requests = new AtomicInteger();
+
+        QueryServer() throws IOException
+        {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    while (true)
+                    {
+                        final Socket socket = server.accept();
+                        final Thread connection = new Thread(() -> serve(socket), "Query Server Connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                }
+                catch (IOException ex)
+                {
+                    // Closed
+                }
+            }, "Query Server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getURL()
+        {
+            return "http://localhost:" + server.getLocalPort();
+        }
+
+        private void serve(final Socket socket)
+        {
+            try
+            (
+                final Socket s = socket;
+                final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                final OutputStream out = s.getOutputStream();
+            )
+            {
+                final String request = in.readLine();
+                String header;
+                while ((header = in.readLine()) != null  &&  !header.isEmpty())
+                    ;
+                requests.incrementAndGet();
+                final Matcher db = Pattern.compile("[?&]db=([^& ]*)").matcher(request);
+                final String name = db.find() ? db.group(1) : "";
+                out.write(("HTTP/1.1 200 OK\r\n" +
+                           "Content-Type: application/json\r\n" +
+                           "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                for (int i=0; i<CHUNKS; ++i)
+                {
+                    out.write(("{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"" + name + "\"," +
+                               "\"columns\":[\"time\",\"double.0\"],\"values\":[[" + (1490000000000000000L + i) + "," + i + "]]}]," +
+                               "\"partial\":" + (i < CHUNKS-1) + "}]}\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            }
+            catch (IOException ex)
+            {
+                // Client closed connection
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMoreQueriesThanLimit() throws Exception
+    {
+        // Like iterators that are opened but not read,
+        // each query is paused by a queue that only holds one chunk
+        final int max_queries = 2, queries = 4 * max_queries;
+        try
+        (
+            final QueryServer server = new QueryServer();
+        )
+        {
+            final ChunkedQueryClient client = new ChunkedQueryClient(server.getURL(), null, null, max_queries);
+            final List<ChunkQueue> queues = new ArrayList<>();
+            for (int i=0; i<queries; ++i)
+            {
+                final ChunkQueue queue = new ChunkQueue(1);
+                client.query("SELECT * FROM \"ch" + i + "\"", "ch" + i, 1, queue);
+                queues.add(queue);
+            }
+
+            // Paused queries count against the limit, the others wait
+            Thread.sleep(500);
+            assertEquals(max_queries, server.requests.get());
+
+            // Reading the queries in order lets the waiting ones run
+            for (int i=0; i<queries; ++i)
+            {
+                for (int c=0; c<CHUNKS; ++c)
+                {
+                    final QueryResult chunk = queues.get(i).poll(5, TimeUnit.SECONDS);
+                    assertNotNull(chunk);
+                    assertEquals("ch" + i, chunk.getResults().get(0).getSeries().get(0).getName());
+                    assertEquals(Long.valueOf(1490000000000000000L + c),
+                                 chunk.getResults().get(0).getSeries().get(0).getValues().get(0).get(0));
+                }
+                // Complete response ends with null, not a timeout
+                assertNull(queues.get(i).poll(5, TimeUnit.SECONDS));
+                assertTrue(server.requests.get() <= Math.min(queries, i + 1 + max_queries));
+            }
+            assertEquals(queries, server.requests.get());
+            client.close();
+        }
+    }
+}
@@ -14,6 +14,8 @@ import static org.junit.Assert.assertTrue;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
@@ -289,6 +291,41 @@ public class InfluxDBArchiveReaderTest
         }
     }
 
+    /** Get raw data for several channels with one query */
+    @Test
+    public void testBatchRawData() throws Exception
+    {
+        if (reader == null  ||  array_channel_name == null)
+            return;
+        final Instant end = Instant.now();
+        final Instant start = end.minus(WAVEFORM_TIMERANGE);
+
+        final BenchmarkTimer timer = new BenchmarkTimer();
+        final Map<String, ValueIterator> batch = reader.getRawValues(Arrays.asList(channel_name, array_channel_name), start, end);
+        int total = 0;
+        for (Map.Entry<String, ValueIterator> entry : batch.entrySet())
+        {
+            // Same samples as reading the channel by itself
+            final ValueIterator values = entry.getValue();
+            final ValueIterator single = reader.getRawValues(0, entry.getKey(), start, end);
+            int count = 0;
+            while (values.hasNext())
+            {
+                final VType value = values.next();
+                assertTrue(single.hasNext());
+                assertEquals(single.next().toString(), value.toString());
+                ++count;
+            }
+            assertTrue(! single.hasNext());
+            single.close();
+            values.close();
+            System.out.println(entry.getKey() + ": " + count + " samples");
+            total += count;
+        }
+        timer.stop();
+        System.out.println(total + " samples in " + timer);
+    }
+
     /** Get raw data for waveform */
     @Test
     public void testRawWaveformData() throws Exception
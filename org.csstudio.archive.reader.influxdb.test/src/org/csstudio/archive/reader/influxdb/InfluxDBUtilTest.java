@@ -1,13 +1,18 @@
 package org.csstudio.archive.reader.influxdb;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.time.Instant;
+import java.util.List;
 
+import org.csstudio.archive.influxdb.ChunkedQueryClient;
 import org.csstudio.archive.influxdb.InfluxDBDataSource;
 import org.csstudio.archive.influxdb.InfluxDBQueries;
 import org.csstudio.archive.influxdb.InfluxDBSeriesInfo;
 import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Series;
 import org.junit.Test;
 
 public class InfluxDBUtilTest {
@@ -35,6 +40,48 @@ public class InfluxDBUtilTest {
         assertTrue(InfluxDBUtil.fromInfluxDBTimeFormat(timestr2).equals(time2));
     }
 
+    /** Nanosecond time stamps of epoch=ns queries */
+    @Test
+    public void testNanoTimeStamps() throws Exception {
+        final Instant time = Instant.ofEpochMilli(1484845213540L).plusNanos(555);
+        final long nanos = InfluxDBUtil.toNanoLong(time);
+        assertEquals(1484845213540000555L, nanos);
+        assertEquals(time, InfluxDBUtil.fromInfluxDBTimeFormat(Long.valueOf(nanos)));
+
+        final Instant before_epoch = Instant.ofEpochSecond(-2, 1);
+        assertEquals(before_epoch, InfluxDBUtil.fromNanoLong(InfluxDBUtil.toNanoLong(before_epoch)));
+
+        // A double cannot hold that many digits
+        assertTrue(Double.valueOf(nanos).longValue() != nanos);
+
+        final String json = "{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"sim://sine\","
+                + "\"tags\":{\"dev\":\"a\"},"
+                + "\"columns\":[\"time\",\"double.0\",\"status\",\"flag\",\"none\",\"long.0\"],"
+                + "\"values\":[[1484845213540000555,3.5,\"OK\",true,null,1],"
+                + "[1484845213540000556,4,\"LOW\",false,null,9007199254740993]]}]}]}";
+        final QueryResult result = ChunkedQueryClient.parse(json);
+        assertEquals(null, result.getError());
+        final Series series = result.getResults().get(0).getSeries().get(0);
+        assertEquals("sim://sine", series.getName());
+        assertEquals("a", series.getTags().get("dev"));
+        final List<Object> row = series.getValues().get(1);
+        assertEquals(Long.valueOf(1484845213540000556L), row.get(0));
+        // Float field that holds a whole number remains Double
+        assertEquals(Double.valueOf(4.0), row.get(1));
+        assertEquals(Double.valueOf(3.5), series.getValues().get(0).get(1));
+        assertEquals("LOW", row.get(2));
+        assertEquals(Boolean.FALSE, row.get(3));
+        assertEquals(null, row.get(4));
+        // Integer field is exact, also beyond 2^53
+        assertEquals(Long.valueOf(1), series.getValues().get(0).get(5));
+        assertEquals(Long.valueOf(9007199254740993L), row.get(5));
+        assertTrue(Double.valueOf(9007199254740993L).longValue() != 9007199254740993L);
+        assertEquals(time, InfluxDBUtil.fromInfluxDBTimeFormat(series.getValues().get(0).get(0)));
+
+        final QueryResult error = ChunkedQueryClient.parse("{\"results\":[{\"statement_id\":0,\"error\":\"database not found: x\"}]}");
+        assertEquals("database not found: x", error.getResults().get(0).getError());
+    }
+
     @Test
     public void testSeriesParsing() throws Exception {
 
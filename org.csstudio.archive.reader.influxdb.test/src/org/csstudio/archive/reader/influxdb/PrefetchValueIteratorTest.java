@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.csstudio.archive.reader.ValueIterator;
+import org.csstudio.archive.reader.influxdb.raw.PrefetchValueIterator;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.VType;
+import org.junit.Test;
+
+/** JUnit test of opening iterators in the background
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class PrefetchValueIteratorTest
+{
+    /** Iterator over a few numbers */
+    private static class TestIterator implements ValueIterator
+    {
+        private int next = 0;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < 3;
+        }
+
+        @Override
+        public VType next() throws Exception
+        {
+            return new ArchiveVNumber(Instant.ofEpochSecond(next), AlarmSeverity.NONE, "", null, next++);
+        }
+
+        @Override
+        public void close()
+        {
+            closed.set(true);
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception
+    {
+        final ExecutorService pool = PrefetchValueIterator.createPool();
+        // Each opener waits for all others, so they only open when run in parallel
+        final int channels = 4;
+        final CountDownLatch all_opening = new CountDownLatch(channels);
+        final List<ValueIterator> iterators = new ArrayList<>();
+        for (int i=0; i<channels; ++i)
+            iterators.add(new PrefetchValueIterator(pool, () ->
+            {
+                all_opening.countDown();
+                if (! all_opening.await(5, TimeUnit.SECONDS))
+                    throw new Exception("Not opened in parallel");
+                return new TestIterator();
+            }));
+
+        for (ValueIterator iter : iterators)
+        {
+            int count = 0;
+            while (iter.hasNext())
+            {
+                iter.next();
+                ++count;
+            }
+            assertEquals(3, count);
+            iter.close();
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testError() throws Exception
+    {
+        final ExecutorService pool = PrefetchValueIterator.createPool();
+        final ValueIterator iter = new PrefetchValueIterator(pool, () ->
+        {
+            throw new Exception("Unknown channel");
+        });
+        // Error is reported by next(), once
+        assertTrue(iter.hasNext());
+        try
+        {
+            iter.next();
+            fail("Did not report error");
+        }
+        catch (Exception ex)
+        {
+            assertEquals("Unknown channel", ex.getMessage());
+        }
+        assertFalse(iter.hasNext());
+        iter.close();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCloseWhileOpening() throws Exception
+    {
+        final ExecutorService pool = PrefetchValueIterator.createPool();
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final TestIterator base = new TestIterator();
+        final ValueIterator iter = new PrefetchValueIterator(pool, () ->
+        {
+            opening.countDown();
+            closed.await();
+            return base;
+        });
+        opening.await();
+        iter.close();
+        closed.countDown();
+
+        // Iterator that completes opening after close() is closed
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(base.closed.get());
+        assertFalse(iter.hasNext());
+    }
+}
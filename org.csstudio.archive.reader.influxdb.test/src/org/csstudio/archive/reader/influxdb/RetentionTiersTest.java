@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.csstudio.archive.influxdb.RetentionTiers;
+import org.junit.Test;
+
+/** JUnit test of retention tier provisioning statements, no InfluxDB needed */
+@SuppressWarnings("nls")
+public class RetentionTiersTest
+{
+    final private static String SPEC = "autogen:90d, rollup_1m:INF:1m, rollup_1h:INF:1h";
+
+    @Test
+    public void testDurations() throws Exception
+    {
+        assertEquals(0, RetentionTiers.parseDuration("INF"));
+        assertEquals(90L*24*3600*1000000000L, RetentionTiers.parseDuration("90d"));
+        // InfluxDB reports durations like this
+        assertEquals(RetentionTiers.parseDuration("90d"), RetentionTiers.parseDuration("2160h0m0s"));
+        assertEquals(0, RetentionTiers.parseDuration("0s"));
+        assertEquals(5400L*1000000000L, RetentionTiers.parseDuration("1h30m"));
+        assertEquals(RetentionTiers.parseDuration("1w"), RetentionTiers.parseDuration("7d"));
+        assertEquals(1500000L, RetentionTiers.parseDuration("1ms500u"));
+        for (String bad : new String[] { "", "90", "d", "90 d", "1.5h" })
+            try
+            {
+                RetentionTiers.parseDuration(bad);
+                fail("Accepted '" + bad + "'");
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // Expected
+            }
+    }
+
+    @Test
+    public void testParse() throws Exception
+    {
+        assertTrue(RetentionTiers.parse("").isEmpty());
+
+        final RetentionTiers tiers = RetentionTiers.parse(SPEC);
+        System.out.println(tiers);
+        assertEquals("autogen", tiers.getRawTier().getName());
+        assertEquals(2, tiers.getRollupTiers().size());
+        assertEquals(60L*1000000000L, tiers.getRollupTiers().get(0).getIntervalNanos());
+
+        for (String bad : new String[] { "raw:90d:1m", "raw:90d, rollup:INF", "raw:90d, raw:INF:1h", "raw", "raw:soon" })
+            try
+            {
+                RetentionTiers.parse(bad);
+                fail("Accepted '" + bad + "'");
+            }
+            catch (Exception ex)
+            {
+                System.out.println("Rejected '" + bad + "': " + ex.getMessage());
+            }
+    }
+
+    @Test
+    public void testStatements() throws Exception
+    {
+        final RetentionTiers tiers = RetentionTiers.parse(SPEC);
+
+        // New database: Only has 'autogen', kept forever
+        final Map<String, Long> policies = new HashMap<>();
+        policies.put("autogen", 0L);
+        final Set<String> queries = new HashSet<>();
+        List<String> statements = tiers.getStatements("data", policies, "autogen", queries, false);
+        for (String statement : statements)
+            System.out.println(statement);
+        assertEquals(5, statements.size());
+        assertEquals("ALTER RETENTION POLICY \"autogen\" ON \"data\" DURATION 90d DEFAULT", statements.get(0));
+        assertEquals("CREATE RETENTION POLICY \"rollup_1m\" ON \"data\" DURATION INF REPLICATION 1", statements.get(1));
+        assertEquals("CREATE CONTINUOUS QUERY \"cq_rollup_1h\" ON \"data\" BEGIN " +
+                     "SELECT mean(\"double.0\") AS \"mean\", min(\"double.0\") AS \"min\", max(\"double.0\") AS \"max\", count(\"double.0\") AS \"count\" " +
+                     "INTO \"data\".\"rollup_1h\".:MEASUREMENT FROM \"data\".\"autogen\"./.*/ " +
+                     "WHERE \"severity\" != 'INVALID' AND \"severity\" != 'UNDEFINED' " +
+                     "AND \"status\" != 'NaN' AND \"status\" != 'Infinity' AND \"status\" != '-Infinity' " +
+                     "GROUP BY time(1h) END",
+                     statements.get(4));
+
+        // Provisioned database, as reported by InfluxDB: Nothing to do
+        policies.put("autogen", RetentionTiers.parseDuration("2160h0m0s"));
+        policies.put("rollup_1m", 0L);
+        policies.put("rollup_1h", 0L);
+        queries.add("cq_rollup_1m");
+        queries.add("cq_rollup_1h");
+        assertEquals(Collections.emptyList(), tiers.getStatements("data", policies, "autogen", queries, false));
+
+        // Replace queries on request
+        statements = tiers.getStatements("data", policies, "autogen", queries, true);
+        assertEquals(4, statements.size());
+        assertEquals("DROP CONTINUOUS QUERY \"cq_rollup_1m\" ON \"data\"", statements.get(0));
+
+        // Raw tier must be the default
+        statements = tiers.getStatements("data", policies, "rollup_1m", queries, false);
+        assertEquals(1, statements.size());
+        assertTrue(statements.get(0).endsWith("DEFAULT"));
+    }
+}
@@ -0,0 +1,561 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBResults;
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.influxdb.MetaTypes;
+import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.csstudio.archive.influxdb.RetentionTiers;
+import org.csstudio.archive.influxdb.RetentionTiers.Tier;
+import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueIterator;
+import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueLookup;
+import org.csstudio.archive.reader.influxdb.raw.Activator;
+import org.csstudio.archive.reader.influxdb.raw.DecodePlan;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVStatistics;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.VType;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Series;
+
+/** Value Iterator that provides 'optimized' data computed by InfluxDB.
+ *
+ *  <p>The mean, min, max and count of the samples in each time bin
+ *  are computed with GROUP BY time() on the server,
+ *  so only one point per bin is transferred instead of every raw sample.
+ *  Like the {@link AveragedValueIterator}, bins are aligned to multiples
+ *  of the bin width, stamped in the center of the bin,
+ *  and carry the highest severity found within the bin.
+ *
+ *  <p>When the data database has {@link RetentionTiers},
+ *  bins that are a multiple of a rollup interval are computed
+ *  from the coarsest such tier, which already holds the mean, min, max and count
+ *  of each interval, instead of the raw samples.
+ *  The rollups skip samples without a valid value and have no alarm information,
+ *  so the few samples in alarm are read from the raw tier to set the severity of their bin.
+ *  The raw tier is used for all bins when there are samples without a valid value
+ *  or more samples in alarm than requested bins,
+ *  and for the newest bins that the continuous query has not rolled up, yet.
+ *  Rollups have no standard deviation, so it is reported as 0 for bins read from a tier.
+ *
+ *  <p>Only applies to numeric scalar channels.
+ *  Use {@link #create(InfluxDBArchiveReader, String, Instant, Instant, double, int)},
+ *  which returns <code>null</code> when the samples need to be
+ *  averaged on the client.
+ */
+@SuppressWarnings("nls")
+public class AggregateValueIterator extends AbstractInfluxDBValueIterator
+{
+    /** Values decoded from the aggregate query */
+    private List<VType> values;
+
+    /** Iteration index into <code>values</code>, points to what
+     *  <code>next()</code> will return or -1
+     */
+    private int index;
+
+    /** Statistics of one time bin, merged from the series for each severity and status */
+    static class Bin
+    {
+        private AlarmSeverity severity = null;
+        private String status = "";
+        private long count = 0;
+        private double sum = 0.0, sum_of_squares = 0.0;
+        private double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        private boolean has_stddev = true;
+
+        void add(final AlarmSeverity severity, final String status,
+                 final double mean, final double min, final double max, final double stddev, final long count)
+        {
+            // Maximize the severity
+            if (this.severity == null  ||  severity.ordinal() > this.severity.ordinal())
+            {
+                this.severity = severity;
+                this.status = status;
+            }
+            this.count += count;
+            sum += mean * count;
+            // Sum of squares from the sample standard deviation
+            sum_of_squares += stddev * stddev * (count - 1) + mean * mean * count;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+        }
+
+        /** Add a rollup interval, which has no standard deviation */
+        void addRollup(final double mean, final double min, final double max, final long count)
+        {
+            add(AlarmSeverity.NONE, "", mean, min, max, 0.0, count);
+            has_stddev = false;
+        }
+
+        /** Maximize severity for a sample in alarm that's already included in the rollup */
+        void addAlarm(final AlarmSeverity severity, final String status)
+        {
+            if (this.severity == null  ||  severity.ordinal() > this.severity.ordinal())
+            {
+                this.severity = severity;
+                this.status = status;
+            }
+        }
+
+        VType toVType(final Instant time, final Display display)
+        {
+            if (count == 1)
+                return new ArchiveVNumber(time, severity, status, display, sum);
+            final double mean = sum / count;
+            final double variance = (sum_of_squares - mean * sum) / (count - 1);
+            final double stddev = has_stddev  &&  variance > 0.0 ? Math.sqrt(variance) : 0.0;
+            return new ArchiveVStatistics(time, severity, status, display,
+                                          mean, min, max, stddev, (int) Math.min(count, Integer.MAX_VALUE));
+        }
+    }
+
+    /** Lookup of the columns in one row of a query result */
+    private static class RowLookup extends AbstractInfluxDBValueLookup
+    {
+        final private List<String> columns;
+        final private List<Object> row;
+        final private MetaObject meta;
+
+        RowLookup(final List<String> columns, final List<Object> row, final MetaObject meta)
+        {
+            this.columns = columns;
+            this.row = row;
+            this.meta = meta;
+        }
+
+        @Override
+        public Object getValue(final String colname)
+        {
+            final int idx = columns.indexOf(colname);
+            return idx < 0 ? null : row.get(idx);
+        }
+
+        @Override
+        public boolean hasValue(final String colname)
+        {
+            return columns.contains(colname);
+        }
+
+        @Override
+        public MetaObject getMeta()
+        {
+            return meta;
+        }
+
+        @Override
+        public DecodePlan getPlan()
+        {
+            return new DecodePlan(columns);
+        }
+
+        @Override
+        public List<Object> getRow()
+        {
+            return row;
+        }
+    }
+
+    private AggregateValueIterator(final InfluxDBArchiveReader reader,
+            final String channel_name, final List<VType> values) throws Exception
+    {
+        super(reader, channel_name);
+        this.values = values;
+        index = values.isEmpty() ? -1 : 0;
+    }
+
+    /** @param seconds Averaging period as computed by the reader
+     *  @return Width of the time bins in seconds, same as {@link AveragedValueIterator}
+     */
+    static long getBinSeconds(final double seconds)
+    {
+        return seconds < 1.0 ? 1 : (long) seconds;
+    }
+
+    /** Aggregate samples in InfluxDB
+     *  @param reader InfluxDBArchiveReader
+     *  @param channel_name Channel name
+     *  @param start Start time
+     *  @param end End time
+     *  @param seconds Averaging period
+     *  @param count Desired value count
+     *  @return {@link AggregateValueIterator}, or <code>null</code> when
+     *          the channel is not a numeric scalar, has fewer than two samples per bin,
+     *          or has samples without a value in the time range
+     *  @throws Exception on error
+     */
+    public static AggregateValueIterator create(final InfluxDBArchiveReader reader,
+            final String channel_name, final Instant start, final Instant end,
+            final double seconds, final int count) throws Exception
+    {
+        final InfluxDBQueries queries = reader.getQueries();
+
+        // Meta data in effect at the start, and changes within the time range
+        final QueryResult meta_data = queries.multi_get_channel_meta_data(channel_name,
+                InfluxDBQueries.get_channel_points("*", channel_name, null, start, -1L),
+                InfluxDBQueries.get_channel_points("*", channel_name, start, end, null));
+        final List<MetaObject> meta = new ArrayList<>();
+        for (int i=0; i<2; ++i)
+        {
+            final QueryResult results = InfluxDBResults.getResult(meta_data, i);
+            if (InfluxDBResults.getValueCount(results) > 0)
+                meta.addAll(MetaTypes.toMetaObjects(results));
+        }
+        if (meta.isEmpty())
+            return null;
+        for (MetaObject m : meta)
+            if (m.storeas != StoreAs.ARCHIVE_DOUBLE)
+            {
+                Activator.getLogger().log(Level.FINE, "Averaging {0} ({1}) on client", new Object[] { channel_name, m.storeas });
+                return null;
+            }
+
+        // Aggregated samples, and the last sample at or before the start time
+        final long bin_seconds = getBinSeconds(seconds);
+        final Display display = Display.class.cast(meta.get(0).object);
+        final String before_start = InfluxDBQueries.get_channel_points("*", channel_name, null, start, -1L);
+        List<VType> values = null;
+        QueryResult samples = null;
+        final Tier tier = selectTier(queries.getRetentionTiers(channel_name), bin_seconds, start, Instant.now());
+        if (tier != null)
+        {
+            samples = queries.multi_get_channel_samples(channel_name,
+                    InfluxDBQueries.get_rollup_points(channel_name, tier.getName(), start, end),
+                    InfluxDBQueries.get_alarm_points(channel_name, start, end, count),
+                    before_start);
+            if (samples.hasError())
+                throw new Exception("Error when reading rollup tier " + tier.getName() + " of '" + channel_name + "' : " + samples.getError());
+            values = readRollups(queries, channel_name, tier, samples, end, display, bin_seconds, count);
+        }
+        if (values == null)
+        {
+            samples = queries.multi_get_channel_samples(channel_name,
+                    InfluxDBQueries.get_aggregate_points(channel_name, start, end, bin_seconds),
+                    before_start);
+            if (samples.hasError())
+                throw new Exception("Error when aggregating samples of '" + channel_name + "' : " + samples.getError());
+            values = decodeAggregates(InfluxDBResults.getResult(samples, 0), display, bin_seconds, 2L * count);
+        }
+        if (values == null)
+        {
+            Activator.getLogger().log(Level.FINE, "Averaging {0} on client", channel_name);
+            return null;
+        }
+
+        // Like SampleIterator, start with the last sample at or before the start time
+        final List<Series> series = InfluxDBResults.getNonEmptySeries(
+                InfluxDBResults.getResult(samples, InfluxDBResults.getResultCount(samples) - 1));
+        if (! series.isEmpty())
+        {
+            final Series first = series.get(0);
+            final RowLookup row = new RowLookup(first.getColumns(), first.getValues().get(0), meta.get(0));
+            values.add(0, new ArchiveDecoder(row).decodeSampleValue());
+        }
+
+        return new AggregateValueIterator(reader, channel_name, values);
+    }
+
+    /** @param tiers Retention tiers of the channel
+     *  @param seconds Width of the time bins
+     *  @param start Start time
+     *  @param now Current time
+     *  @return Coarsest rollup tier whose interval evenly divides the bins
+     *          and that still holds the start time, or <code>null</code>
+     */
+    static Tier selectTier(final RetentionTiers tiers, final long seconds, final Instant start, final Instant now)
+    {
+        final long bin_nanos = seconds * 1000000000L;
+        Tier selected = null;
+        for (Tier tier : tiers.getRollupTiers())
+        {
+            final long interval = tier.getIntervalNanos();
+            if (interval <= 0  ||  interval > bin_nanos  ||  bin_nanos % interval != 0)
+                continue;
+            final long duration = RetentionTiers.parseDuration(tier.getDuration());
+            if (duration > 0  &&  start.isBefore(now.minusNanos(duration)))
+                continue;
+            if (selected == null  ||  interval > selected.getIntervalNanos())
+                selected = tier;
+        }
+        return selected;
+    }
+
+    /** Read bins from a rollup tier, and the newest bins from the raw tier
+     *  @param queries Queries
+     *  @param channel_name Channel name
+     *  @param tier Rollup tier
+     *  @param samples Results of {@link InfluxDBQueries#get_rollup_points(String, String, Instant, Instant)}
+     *                 and {@link InfluxDBQueries#get_alarm_points(String, Instant, Instant, long)}
+     *  @param end End time
+     *  @param display Display info
+     *  @param seconds Width of the time bins
+     *  @param count Desired value count
+     *  @return One value per time bin, or <code>null</code> if the raw tier needs to be used
+     *  @throws Exception on error
+     */
+    private static List<VType> readRollups(final InfluxDBQueries queries, final String channel_name, final Tier tier,
+            final QueryResult samples, final Instant end, final Display display,
+            final long seconds, final int count) throws Exception
+    {
+        final Map<Instant, Bin> bins = new TreeMap<>();
+        final Instant rolled_up = addRollups(InfluxDBResults.getResult(samples, 0), tier, seconds, bins);
+        if (rolled_up == null)
+        {
+            Activator.getLogger().log(Level.FINE, "No rollups for {0} in {1}", new Object[] { channel_name, tier.getName() });
+            return null;
+        }
+        if (! addAlarms(InfluxDBResults.getResult(samples, 1), seconds, count, bins))
+        {
+            Activator.getLogger().log(Level.FINE, "Samples of {0} in alarm or without value, not using {1}",
+                                      new Object[] { channel_name, tier.getName() });
+            return null;
+        }
+        // Samples after the newest rollup interval
+        if (rolled_up.isBefore(end))
+        {
+            final QueryResult newest = queries.get_channel_aggregates(channel_name, rolled_up, end, seconds);
+            if (newest.hasError())
+                throw new Exception("Error when aggregating samples of '" + channel_name + "' : " + newest.getError());
+            if (addAggregates(newest, bins) < 0)
+                return null;
+        }
+        return toValues(bins, display, seconds, 2L * count);
+    }
+
+    /** @param time Time stamp
+     *  @param seconds Width of the time bins
+     *  @return Start of the time bin that holds the time stamp
+     */
+    private static Instant getBinStart(final Instant time, final long seconds)
+    {
+        return Instant.ofEpochSecond(Math.floorDiv(time.getEpochSecond(), seconds) * seconds);
+    }
+
+    /** Add result of {@link InfluxDBQueries#get_rollup_points(String, String, Instant, Instant)}
+     *  @param results Mean, min, max and count per rollup interval
+     *  @param tier Rollup tier
+     *  @param seconds Width of the time bins, a multiple of the rollup interval
+     *  @param bins Bins to update
+     *  @return End of the newest rollup interval, last nanosecond included,
+     *          or <code>null</code> if there are no rollups
+     *  @throws Exception on error
+     */
+    static Instant addRollups(final QueryResult results, final Tier tier,
+            final long seconds, final Map<Instant, Bin> bins) throws Exception
+    {
+        Instant newest = null;
+        for (Series series : InfluxDBResults.getNonEmptySeries(results))
+        {
+            final List<String> cols = series.getColumns();
+            final int time_idx = cols.indexOf("time");
+            final int mean_idx = cols.indexOf(RetentionTiers.MEAN);
+            final int min_idx = cols.indexOf(RetentionTiers.MIN);
+            final int max_idx = cols.indexOf(RetentionTiers.MAX);
+            final int count_idx = cols.indexOf(RetentionTiers.COUNT);
+            if (time_idx < 0  ||  mean_idx < 0  ||  min_idx < 0  ||  max_idx < 0  ||  count_idx < 0)
+                throw new Exception("Missing columns in rollup tier " + tier.getName() + ": " + cols);
+            for (List<Object> row : series.getValues())
+            {
+                final Instant time = InfluxDBUtil.fromInfluxDBTimeFormat(row.get(time_idx));
+                if (newest == null  ||  time.isAfter(newest))
+                    newest = time;
+                final Object count = row.get(count_idx);
+                if (count == null  ||  ((Number) count).longValue() <= 0)
+                    continue;
+                getBin(bins, getBinStart(time, seconds)).addRollup(
+                        ((Number) row.get(mean_idx)).doubleValue(),
+                        ((Number) row.get(min_idx)).doubleValue(),
+                        ((Number) row.get(max_idx)).doubleValue(),
+                        ((Number) count).longValue());
+            }
+        }
+        return newest == null ? null : newest.plusNanos(tier.getIntervalNanos() - 1);
+    }
+
+    /** Add result of {@link InfluxDBQueries#get_alarm_points(String, Instant, Instant, long)}
+     *  @param results Samples in alarm
+     *  @param seconds Width of the time bins
+     *  @param limit Limit of the query
+     *  @param bins Bins to update
+     *  @return <code>false</code> if there are samples that the rollups skip,
+     *          or so many samples in alarm that the raw tier should be used
+     *  @throws Exception on error
+     */
+    static boolean addAlarms(final QueryResult results, final long seconds, final long limit,
+            final Map<Instant, Bin> bins) throws Exception
+    {
+        if (InfluxDBResults.getValueCount(results) >= limit)
+            return false;
+        for (Series series : InfluxDBResults.getNonEmptySeries(results))
+        {
+            final List<String> cols = series.getColumns();
+            final int time_idx = cols.indexOf("time");
+            final int severity_idx = cols.indexOf("severity");
+            final int status_idx = cols.indexOf("status");
+            if (time_idx < 0  ||  severity_idx < 0  ||  status_idx < 0)
+                throw new Exception("Missing columns in samples: " + cols);
+            for (List<Object> row : series.getValues())
+            {
+                final AlarmSeverity severity = ArchiveDecoder.decodeSeverity((String) row.get(severity_idx),
+                                                                             (String) row.get(status_idx));
+                // Samples that the rollups skip
+                if (severity == AlarmSeverity.INVALID  ||  severity == AlarmSeverity.UNDEFINED)
+                    return false;
+                final Bin bin = bins.get(getBinStart(InfluxDBUtil.fromInfluxDBTimeFormat(row.get(time_idx)), seconds));
+                if (bin != null)
+                    bin.addAlarm(severity, (String) row.get(status_idx));
+            }
+        }
+        return true;
+    }
+
+    private static Bin getBin(final Map<Instant, Bin> bins, final Instant time)
+    {
+        Bin bin = bins.get(time);
+        if (bin == null)
+        {
+            bin = new Bin();
+            bins.put(time, bin);
+        }
+        return bin;
+    }
+
+    /** Decode result of {@link InfluxDBQueries#get_channel_aggregates(String, Instant, Instant, long)}
+     *  @param results Mean, min, max, stddev and count per bin, one series for each severity and status
+     *  @param display Display info
+     *  @param seconds Width of the time bins
+     *  @param min_samples Minimum number of samples
+     *  @return One value per time bin, or <code>null</code> if there are fewer than <code>min_samples</code>
+     *          or samples without a value, which need to be averaged on the client
+     *  @throws Exception on error
+     */
+    static List<VType> decodeAggregates(final QueryResult results, final Display display,
+            final long seconds, final long min_samples) throws Exception
+    {
+        final Map<Instant, Bin> bins = new TreeMap<>();
+        if (addAggregates(results, bins) < 0)
+            return null;
+        return toValues(bins, display, seconds, min_samples);
+    }
+
+    /** Add result of {@link InfluxDBQueries#get_channel_aggregates(String, Instant, Instant, long)}
+     *  @param results Mean, min, max, stddev and count per bin, one series for each severity and status
+     *  @param bins Bins to update
+     *  @return Number of samples, -1 if there are samples without a value
+     *  @throws Exception on error
+     */
+    private static long addAggregates(final QueryResult results, final Map<Instant, Bin> bins) throws Exception
+    {
+        long samples = 0;
+        for (Series series : InfluxDBResults.getNonEmptySeries(results))
+        {
+            final Map<String, String> tags = series.getTags();
+            final String severity_str = tags == null ? null : tags.get("severity");
+            final String status = tags == null ? null : tags.get("status");
+            if (severity_str == null  ||  status == null)
+                return -1;
+            // Disconnected, NaN, ...: The client passes these through, ending the current average
+            final AlarmSeverity severity = ArchiveDecoder.decodeSeverity(severity_str, status);
+            if (severity == AlarmSeverity.UNDEFINED)
+                return -1;
+
+            final List<String> cols = series.getColumns();
+            final int time_idx = cols.indexOf("time");
+            final int mean_idx = cols.indexOf(RetentionTiers.MEAN);
+            final int min_idx = cols.indexOf(RetentionTiers.MIN);
+            final int max_idx = cols.indexOf(RetentionTiers.MAX);
+            final int stddev_idx = cols.indexOf(InfluxDBQueries.STDDEV);
+            final int count_idx = cols.indexOf(RetentionTiers.COUNT);
+            if (time_idx < 0  ||  mean_idx < 0  ||  min_idx < 0  ||  max_idx < 0  ||  stddev_idx < 0  ||  count_idx < 0)
+                throw new Exception("Missing columns in aggregated samples: " + cols);
+            for (List<Object> row : series.getValues())
+            {
+                final long count = ((Number) row.get(count_idx)).longValue();
+                if (count <= 0)
+                    continue;
+                final Instant time = InfluxDBUtil.fromInfluxDBTimeFormat(row.get(time_idx));
+                // InfluxDB has no standard deviation for a single sample
+                final Object stddev = row.get(stddev_idx);
+                getBin(bins, time).add(severity, status,
+                        ((Number) row.get(mean_idx)).doubleValue(),
+                        ((Number) row.get(min_idx)).doubleValue(),
+                        ((Number) row.get(max_idx)).doubleValue(),
+                        stddev == null ? 0.0 : ((Number) stddev).doubleValue(),
+                        count);
+                samples += count;
+            }
+        }
+        return samples;
+    }
+
+    /** @param bins Bins
+     *  @param display Display info
+     *  @param seconds Width of the time bins
+     *  @param min_samples Minimum number of samples
+     *  @return One value per time bin, or <code>null</code> if there are fewer than <code>min_samples</code>
+     */
+    static List<VType> toValues(final Map<Instant, Bin> bins, final Display display,
+            final long seconds, final long min_samples)
+    {
+        long samples = 0;
+        for (Bin bin : bins.values())
+            samples += bin.count;
+        if (samples < min_samples)
+            return null;
+
+        final List<VType> values = new ArrayList<>(bins.size());
+        for (Map.Entry<Instant, Bin> entry : bins.entrySet())
+        {
+            // Time stamp in center of bin, same as AveragedValueIterator
+            final Instant bin_time = entry.getKey().plusSeconds(seconds).minus(Duration.ofSeconds(seconds/2));
+            values.add(entry.getValue().toVType(bin_time, display));
+        }
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext()
+    {
+        return index >= 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public VType next() throws Exception
+    {
+        if (index < 0)
+            throw new Exception("AggregateValueIterator.next(" + measurement + ") called after end");
+        final VType result = values.get(index);
+        ++index;
+        if (index >= values.size())
+            index = -1;
+        return result;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close()
+    {
+        super.close();
+        index = -1;
+        values = null;
+    }
+}
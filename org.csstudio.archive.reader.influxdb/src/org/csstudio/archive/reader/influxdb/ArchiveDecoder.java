@@ -10,17 +10,23 @@ package org.csstudio.archive.reader.influxdb;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 import org.csstudio.archive.influxdb.InfluxDBUtil;
 import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
+import org.csstudio.archive.influxdb.PackedDoubleArray;
 import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueDecoder;
 import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueLookup;
+import org.csstudio.archive.reader.influxdb.raw.DecodePlan;
 import org.csstudio.archive.vtype.ArchiveVEnum;
 import org.csstudio.archive.vtype.ArchiveVNumber;
 import org.csstudio.archive.vtype.ArchiveVNumberArray;
 import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.array.ArrayLong;
 import org.diirt.vtype.AlarmSeverity;
 import org.diirt.vtype.Display;
 import org.diirt.vtype.VType;
@@ -33,6 +39,9 @@ public class ArchiveDecoder extends AbstractInfluxDBValueDecoder
     /** Status string for <code>Double.NaN</code> samples */
     final private static String NOT_A_NUMBER_STATUS = "NaN";
 
+    /** Status strings for infinite samples, see InfluxDBSampleEncoder */
+    final private static String POSITIVE_INFINITY_STATUS = "Infinity", NEGATIVE_INFINITY_STATUS = "-Infinity";
+
     private final AbstractInfluxDBValueLookup vals;
 
     public ArchiveDecoder(final AbstractInfluxDBValueLookup vals) {
@@ -58,7 +67,15 @@ public class ArchiveDecoder extends AbstractInfluxDBValueDecoder
         {
             throw new Exception ("Tried to set severity from null string.");
         }
+        return decodeSeverity(severity_str, status);
+    }
 
+    /** @param severity_str Severity tag
+     *  @param status Status tag
+     *  @return Severity, {@link AlarmSeverity#UNDEFINED} for samples without a value
+     */
+    static AlarmSeverity decodeSeverity(final String severity_str, final String status)
+    {
         // Hard-coded knowledge:
         // When the status indicates
         // that the archive is off or channel was disconnected,
@@ -80,38 +97,116 @@ public class ArchiveDecoder extends AbstractInfluxDBValueDecoder
         }
     }
 
+    /** Severity and status of samples, shared by samples with the same tags */
+    private static class Alarm
+    {
+        final String severity_str;
+        final String status;
+        final AlarmSeverity severity;
+
+        Alarm(final String severity_str, final String status, final AlarmSeverity severity)
+        {
+            this.severity_str = severity_str;
+            this.status = status;
+            this.severity = severity;
+        }
+    }
+
+    /** Most recently decoded alarm, usually the same for consecutive samples */
+    private Alarm last_alarm = null;
+
+    /** Decoded alarms by status and severity tag */
+    final private Map<String, Map<String, Alarm>> alarms = new HashMap<>();
+
+    /** @param severity_str Severity tag
+     *  @param status Status tag
+     *  @return Decoded severity with the status, shared by all samples with the same tags
+     *  @throws Exception on error
+     */
+    private Alarm decodeAlarm(final String severity_str, final String status) throws Exception
+    {
+        if (last_alarm != null  &&  last_alarm.status.equals(status)  &&  last_alarm.severity_str.equals(severity_str))
+            return last_alarm;
+        final Map<String, Alarm> by_severity = alarms.computeIfAbsent(status, s -> new HashMap<>());
+        Alarm alarm = by_severity.get(severity_str);
+        if (alarm == null)
+        {
+            alarm = new Alarm(severity_str, status, filterSeverity(severity_str, status));
+            by_severity.put(severity_str, alarm);
+        }
+        last_alarm = alarm;
+        return alarm;
+    }
+
+    /** @param row Values of a row
+     *  @param column Column index from the {@link DecodePlan}
+     *  @return Value of the column, <code>null</code> if the column is missing
+     */
+    private static Object get(final List<Object> row, final int column)
+    {
+        return column < 0 ? null : row.get(column);
+    }
+
     @Override
     public VType decodeSampleValue() throws Exception
     {
         final MetaObject meta = vals.getMeta();
 
-        final Instant time = InfluxDBUtil.fromInfluxDBTimeFormat(vals.getValue("time"));
-        final String status = (String) vals.getValue("status");
-        if (status == null)
+        DecodePlan plan = vals.getPlan();
+        List<Object> row = vals.getRow();
+        if (plan == null  ||  row == null)
+        {
+            plan = DecodePlan.probe(vals);
+            row = new ArrayList<>(plan.getColumns().size());
+            for (String column : plan.getColumns())
+                row.add(vals.getValue(column));
+        }
+
+        // Chunk reader already decoded the time stamp
+        Instant time = vals.getTime();
+        if (time == null)
+        {
+            final Object time_val = get(row, plan.time);
+            if (time_val == null)
+                throw new Exception ("No time field found when decoding sample");
+            time = InfluxDBUtil.fromInfluxDBTimeFormat(time_val);
+        }
+        final String status_str = (String) get(row, plan.status);
+        if (status_str == null)
         {
             throw new Exception ("No status field found when decoding sample");
         }
-        final AlarmSeverity severity = filterSeverity((String) vals.getValue("severity"), status);
+        final Alarm alarm = decodeAlarm((String) get(row, plan.severity), status_str);
+        final AlarmSeverity severity = alarm.severity;
+        final String status = alarm.status;
 
         switch (meta.storeas)
         {
         case ARCHIVE_DOUBLE:
         case ARCHIVE_DOUBLE_ARRAY:
         {
-            return decodeDoubleSamples(time, severity, status, Display.class.cast(meta.object));
+            return decodeDoubleSamples(time, severity, status, Display.class.cast(meta.object), plan, row);
+        }
+        case ARCHIVE_LONG_ARRAY:
+        {
+            return decodeLongSamples(time, severity, status, Display.class.cast(meta.object), plan, row);
+        }
+        case ARCHIVE_PACKED_DOUBLE_ARRAY:
+        {
+            return decodePackedDoubleSamples(time, severity, status, Display.class.cast(meta.object), plan, row);
         }
         case ARCHIVE_LONG:
         {
-            return decodeLongSample(time, severity, status, Display.class.cast(meta.object));
+            return decodeLongSample(time, severity, status, Display.class.cast(meta.object), plan, row);
         }
         case ARCHIVE_ENUM:
         {
-            return decodeEnumSample(time, severity, status, (List<String>)meta.object);
+            return decodeEnumSample(time, severity, status, (List<String>)meta.object, plan, row);
         }
         case ARCHIVE_STRING:
         case ARCHIVE_UNKNOWN:
         {
-            Object val = vals.getValue("string.0");
+            Object val = get(row, plan.string);
             if (val == null)
             {
                 throw new Exception ("Did not find string.0 field where expected");
@@ -125,61 +220,57 @@ public class ArchiveDecoder extends AbstractInfluxDBValueDecoder
 
     }
 
-    private Double fieldToDouble(Object val) throws Exception
+    private double fieldToDouble(Object val) throws Exception
     {
-        Double dbl;
+        if (val instanceof Number)
+            return ((Number) val).doubleValue();
         try
         {
-            dbl = Double.class.cast(val);
+            return Double.parseDouble(val.toString());
         }
-        catch (Exception e)
+        catch (Exception e1)
         {
-            try
-            {
-                dbl = Double.valueOf(val.toString());
-            }
-            catch (Exception e1)
-            {
-                throw new Exception ("Could not transform object to Double: " + val.getClass().getName());
-            }
+            throw new Exception ("Could not transform object to Double: " + val.getClass().getName());
         }
-        return dbl;
     }
 
-    private Long fieldToLong(Object val) throws Exception
+    private long fieldToLong(Object val) throws Exception
     {
-        Long lval;
-        //        try
-        //        {
-        //            lval = Long.class.cast(val);
-        //        }
-        //        catch (Exception e)
-        //        {
+        if (val instanceof Number)
+            return ((Number) val).longValue();
+        final String text = val.toString();
         try
         {
-            lval = Double.valueOf(val.toString()).longValue();
+            return Long.parseLong(text);
         }
-        catch (Exception e1)
+        catch (NumberFormatException e)
         {
-            throw new Exception ("Could not transform object to Long: " + val.getClass().getName());
+            try
+            {
+                return Double.valueOf(text).longValue();
+            }
+            catch (Exception e1)
+            {
+                throw new Exception ("Could not transform object to Long: " + val.getClass().getName());
+            }
         }
-        //}
-        return lval;
     }
 
-    protected VType decodeEnumSample(final Instant time, final AlarmSeverity severity, final String status, List<String> labels) throws Exception
+    protected VType decodeEnumSample(final Instant time, final AlarmSeverity severity, final String status, List<String> labels,
+            final DecodePlan plan, final List<Object> row) throws Exception
     {
-        Object val = vals.getValue("long.0");
+        Object val = plan.longs.length > 0 ? row.get(plan.longs[0]) : null;
         if (val == null)
         {
             throw new Exception ("Did not find long.0 field where expected");
         }
-        return new ArchiveVEnum(time, severity, status, labels, fieldToLong(val).intValue());
+        return new ArchiveVEnum(time, severity, status, labels, (int) fieldToLong(val));
     }
 
-    protected VType decodeLongSample(final Instant time, final AlarmSeverity severity, final String status, Display display) throws Exception
+    protected VType decodeLongSample(final Instant time, final AlarmSeverity severity, final String status, Display display,
+            final DecodePlan plan, final List<Object> row) throws Exception
     {
-        Object val = vals.getValue("long.0");
+        Object val = plan.longs.length > 0 ? row.get(plan.longs[0]) : null;
         if (val == null)
         {
             Activator.getLogger().log(Level.SEVERE, this.toString());
@@ -188,42 +279,71 @@ public class ArchiveDecoder extends AbstractInfluxDBValueDecoder
         return new ArchiveVNumber(time, severity, status, display, fieldToLong(val));
     }
 
-    protected VType decodeDoubleSamples(final Instant time, final AlarmSeverity severity, final String status, Display display) throws Exception
+    protected VType decodeDoubleSamples(final Instant time, final AlarmSeverity severity, final String status, Display display,
+            final DecodePlan plan, final List<Object> row) throws Exception
     {
-        Object val = vals.getValue("double.0");
+        final int[] columns = plan.doubles;
+        Object val = columns.length > 0 ? row.get(columns[0]) : null;
         if (val == null)
         {
             throw new Exception ("Did not find double.0 field where expected");
         }
 
-        List<Double> data = new ArrayList<Double>();
+        final double first;
         if (status.equals(NOT_A_NUMBER_STATUS))
-            data.add(Double.NaN);
+            first = Double.NaN;
+        else if (status.equals(POSITIVE_INFINITY_STATUS))
+            first = Double.POSITIVE_INFINITY;
+        else if (status.equals(NEGATIVE_INFINITY_STATUS))
+            first = Double.NEGATIVE_INFINITY;
         else
-            data.add(fieldToDouble(val));
+            first = fieldToDouble(val);
+        val = columns.length > 1 ? row.get(columns[1]) : null;
+        if (val == null)
+            return new ArchiveVNumber(time, severity, status, display, first);
 
+        // Columns of longer arrays in the same query result are null
+        final double[] data = new double[columns.length];
+        data[0] = first;
         int len = 1;
         while (val != null)
         {
-            String fname = "double." + Integer.toString(len);
-            if (vals.hasValue(fname))
-                val = vals.getValue(fname);
-            else
-                val = null;
-            if (val != null) {
-                data.add(fieldToDouble(val));
-                len++;
-            }
+            data[len++] = fieldToDouble(val);
+            val = len < columns.length ? row.get(columns[len]) : null;
         }
+        return new ArchiveVNumberArray(time, severity, status, display,
+                                       len == data.length ? data : Arrays.copyOf(data, len));
+    }
 
-        if (data.size() == 1)
-            return new ArchiveVNumber(time, severity, status, display, data.get(0));
-        else
+    protected VType decodeLongSamples(final Instant time, final AlarmSeverity severity, final String status, Display display,
+            final DecodePlan plan, final List<Object> row) throws Exception
+    {
+        final int[] columns = plan.longs;
+        Object val = columns.length > 0 ? row.get(columns[0]) : null;
+        if (val == null)
         {
-            final double dd[] = new double[data.size()];
-            return new ArchiveVNumberArray(time, severity, status, display, dd);
+            throw new Exception ("Did not find long.0 field where expected");
         }
-    }
 
+        final long[] data = new long[columns.length];
+        int len = 0;
+        while (val != null)
+        {
+            data[len++] = fieldToLong(val);
+            val = len < columns.length ? row.get(columns[len]) : null;
+        }
+        return new ArchiveVNumberArray(time, severity, status, display,
+                                       new ArrayLong(len == data.length ? data : Arrays.copyOf(data, len)));
+    }
 
+    protected VType decodePackedDoubleSamples(final Instant time, final AlarmSeverity severity, final String status, Display display,
+            final DecodePlan plan, final List<Object> row) throws Exception
+    {
+        final Object val = get(row, plan.packed);
+        if (val == null)
+        {
+            throw new Exception ("Did not find " + PackedDoubleArray.FIELD + " field where expected");
+        }
+        return new ArchiveVNumberArray(time, severity, status, display, PackedDoubleArray.decode(val.toString()));
+    }
 }
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueIterator;
+import org.diirt.vtype.VType;
+
+/** Value Iterator for the samples of one channel in a {@link BatchSampleQuery}
+ *
+ *  <p>Unlike the {@link SampleIterator}, the first sample is only read
+ *  by the first call to {@link #hasNext()} or {@link #next()},
+ *  because the samples of this channel may arrive after those of other channels.
+ */
+@SuppressWarnings("nls")
+public class BatchSampleIterator extends AbstractInfluxDBValueIterator
+{
+    /** Query that provides the samples, <code>null</code> if none */
+    final private BatchSampleQuery batch;
+
+    /** Reader for the samples of this channel, <code>null</code> if none */
+    final private ChunkReader samples;
+
+    /** Has the first sample been read? */
+    private boolean started;
+
+    /** 'Current' value that <code>next()</code> will return,
+     *  or <code>null</code>
+     */
+    private VType next_value = null;
+
+    /** Error to report in <code>next()</code> */
+    private Exception error;
+
+    /** Initialize
+     *  @param reader InfluxDBArchiveReader
+     *  @param channel_name Channel name
+     *  @param batch Query that provides the samples
+     *  @param samples Reader for the samples of this channel
+     *  @throws Exception on error
+     */
+    BatchSampleIterator(final InfluxDBArchiveReader reader, final String channel_name,
+            final BatchSampleQuery batch, final ChunkReader samples) throws Exception
+    {
+        super(reader, channel_name);
+        this.batch = batch;
+        this.samples = samples;
+        started = false;
+        error = null;
+    }
+
+    /** Initialize for a channel without samples
+     *  @param reader InfluxDBArchiveReader
+     *  @param channel_name Channel name
+     *  @param error Error to report, or <code>null</code> if there are simply no samples
+     *  @throws Exception on error
+     */
+    BatchSampleIterator(final InfluxDBArchiveReader reader, final String channel_name,
+            final Exception error) throws Exception
+    {
+        super(reader, channel_name);
+        batch = null;
+        samples = null;
+        started = true;
+        this.error = error;
+    }
+
+    /** Read the first sample */
+    private void start()
+    {
+        if (started)
+            return;
+        started = true;
+        try
+        {
+            fetchNext();
+        }
+        catch (Exception ex)
+        {
+            error = ex;
+        }
+    }
+
+    /** Prepare the value that <code>next()</code> will return,
+     *  closing the iterator at the end of the samples or when the reader was cancelled
+     *  @throws Exception on error
+     */
+    private void fetchNext() throws Exception
+    {
+        try
+        {
+            if (samples.step())
+            {
+                next_value = samples.decodeSampleValue();
+                return;
+            }
+        }
+        catch (Exception ex)
+        {
+            if (! InfluxDBArchiveReader.isCancellation(ex))
+                throw ex;
+        }
+        close();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasNext()
+    {
+        start();
+        return error != null  ||  next_value != null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public VType next() throws Exception
+    {
+        start();
+        if (error != null)
+        {
+            final Exception ex = error;
+            error = null;
+            close();
+            throw ex;
+        }
+        if (next_value == null)
+            throw new Exception("BatchSampleIterator.next(" + measurement + ") called after end");
+
+        // Remember value to return...
+        final VType result = next_value;
+
+        // ... and prepare next value
+        fetchNext();
+
+        return result;
+    }
+
+    /** Release all database resources.
+     *  OK to call more than once.
+     */
+    @Override
+    public void close()
+    {
+        super.close();
+        if (batch != null)
+            batch.close(measurement);
+        next_value = null;
+    }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBQueries.DBNameMap;
+import org.csstudio.archive.influxdb.InfluxDBResults;
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.reader.ValueIterator;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.csstudio.archive.reader.influxdb.raw.Preferences;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/** Raw samples of several channels, read with one streaming query per database
+ *
+ *  <p>Instead of separate queries for each channel, the samples of all channels
+ *  in a database are requested with one <code>SELECT * FROM "a","b","c" ...</code>.
+ *  The series of the result are routed to a {@link BatchSampleIterator}
+ *  for each channel as the chunks arrive.
+ *  The sample before the start time, the last sample and the meta data
+ *  of all channels are likewise read with one request per database.
+ *
+ *  <p>InfluxDB returns the samples of one channel after the other,
+ *  sorted by channel name.
+ *  Reading the iterators in that order keeps the memory use within
+ *  the budget of one iterator.
+ *  When reading a channel out of order, the samples of the preceding channels
+ *  are buffered until their budget is used up, at which point the
+ *  {@link BatchSampleStream} continues with a separate query for each channel.
+ */
+@SuppressWarnings("nls")
+class BatchSampleQuery
+{
+    final private InfluxDBArchiveReader reader;
+
+    /** Queues for the samples of each channel */
+    final private Map<String, ChunkQueue> sample_queues = new HashMap<>();
+
+    /** Queues for the meta data of each channel */
+    final private Map<String, ChunkQueue> metadata_queues = new HashMap<>();
+
+    /** Stream of the samples, <code>null</code> until started */
+    private volatile BatchSampleStream stream = null;
+
+    /** Row of a query result */
+    private static class Row
+    {
+        final List<String> columns;
+        final List<Object> values;
+        final Instant time;
+
+        Row(final List<String> columns, final List<Object> values) throws Exception
+        {
+            this.columns = columns;
+            this.values = values;
+            time = InfluxDBUtil.fromInfluxDBTimeFormat(values.get(columns.indexOf("time")));
+        }
+    }
+
+    /** Fetch raw samples of several channels
+     *  @param reader InfluxDBArchiveReader
+     *  @param channel_names Channel names
+     *  @param start Start time
+     *  @param end End time
+     *  @return {@link ValueIterator} for the raw samples of each channel,
+     *          in the order in which InfluxDB returns them
+     *  @throws Exception on error
+     */
+    static Map<String, ValueIterator> open(final InfluxDBArchiveReader reader, final Collection<String> channel_names,
+            final Instant start, final Instant end) throws Exception
+    {
+        // Group channels by data database, sorted like the series of the result
+        final DBNameMap dbnames = reader.getDBNames();
+        final Map<String, List<String>> by_db = new TreeMap<>();
+        for (String name : new TreeSet<>(channel_names))
+            by_db.computeIfAbsent(dbnames.getDataDBName(name), db -> new ArrayList<>()).add(name);
+
+        final Map<String, ValueIterator> iterators = new LinkedHashMap<>();
+        try
+        {
+            for (List<String> channels : by_db.values())
+                new BatchSampleQuery(reader).start(channels, start, end, iterators);
+        }
+        catch (Exception ex)
+        {
+            for (ValueIterator iter : iterators.values())
+                iter.close();
+            throw ex;
+        }
+        return iterators;
+    }
+
+    private BatchSampleQuery(final InfluxDBArchiveReader reader)
+    {
+        this.reader = reader;
+    }
+
+    /** @param results Query result
+     *  @return Rows of each series, by series name
+     *  @throws Exception on error
+     */
+    private static Map<String, List<Row>> getRows(final QueryResult results) throws Exception
+    {
+        final Map<String, List<Row>> rows = new HashMap<>();
+        for (Series series : InfluxDBResults.getNonEmptySeries(results))
+        {
+            final List<Row> series_rows = rows.computeIfAbsent(series.getName(), name -> new ArrayList<>());
+            for (List<Object> values : series.getValues())
+                series_rows.add(new Row(series.getColumns(), values));
+        }
+        return rows;
+    }
+
+    /** @param name Series name
+     *  @param rows Rows
+     *  @return Result with one series for each row
+     */
+    private static QueryResult toResult(final String name, final List<Row> rows)
+    {
+        final List<Series> series = new ArrayList<>(rows.size());
+        for (Row row : rows)
+        {
+            final Series single = new Series();
+            single.setName(name);
+            single.setColumns(row.columns);
+            single.setValues(Arrays.asList(row.values));
+            series.add(single);
+        }
+        final Result result = new Result();
+        result.setSeries(series);
+        final QueryResult results = new QueryResult();
+        results.setResults(Arrays.asList(result));
+        return results;
+    }
+
+    /** Query the samples of channels in one database
+     *  @param channels Channels, sorted by name
+     *  @param start Start time
+     *  @param end End time
+     *  @param iterators Map to which iterators for the channels are added
+     *  @throws Exception on error
+     */
+    private void start(final List<String> channels, final Instant start, final Instant end,
+            final Map<String, ValueIterator> iterators) throws Exception
+    {
+        final InfluxDBQueries queries = reader.getQueries();
+
+        // Last sample at or before the start time and the end time of each channel
+        final QueryResult bounds = queries.multi_get_channel_samples(channels.get(0),
+                InfluxDBQueries.get_measurements_points("*", channels, null, start, -1L),
+                InfluxDBQueries.get_measurements_points("*", channels, null, end, -1L));
+        if (bounds.hasError())
+            throw new Exception("Error when reading samples of " + channels + " : " + bounds.getError());
+        final Map<String, List<Row>> first = getRows(InfluxDBResults.getResult(bounds, 0));
+        final Map<String, List<Row>> last = getRows(InfluxDBResults.getResult(bounds, 1));
+
+        // Start of each channel's samples
+        final Map<String, Instant> sample_start = new HashMap<>();
+        for (String channel : channels)
+        {
+            final List<Row> rows = first.get(channel);
+            sample_start.put(channel, rows == null ? start : rows.get(0).time);
+        }
+        final Map<String, List<Row>> meta = readMetaData(queries, channels, sample_start, end);
+
+        final long budget = Preferences.getBufferBytes();
+        final BatchSampleStream streamed = new BatchSampleStream(queries, reader.getConcurrency(),
+                Preferences.getChunkSize(), start.plusNanos(1), end);
+        for (String channel : channels)
+        {
+            // No samples before the end time
+            if (! last.containsKey(channel))
+            {
+                iterators.put(channel, new BatchSampleIterator(reader, channel, null));
+                continue;
+            }
+            final List<Row> channel_meta = meta.get(channel);
+            if (channel_meta == null)
+            {
+                iterators.put(channel, new BatchSampleIterator(reader, channel,
+                        new Exception("No meta data for channel " + channel)));
+                continue;
+            }
+
+            // Meta data is read before the samples, so samples get the whole budget
+            final ChunkQueue sample_queue = new ChunkQueue(budget);
+            final ChunkQueue metadata_queue = new ChunkQueue(budget);
+            metadata_queue.accept(toResult(channel, channel_meta));
+            metadata_queue.accept(ChunkedQuery.END);
+            final List<Row> first_sample = first.get(channel);
+            if (first_sample != null)
+                sample_queue.accept(toResult(channel, first_sample));
+            sample_queues.put(channel, sample_queue);
+            metadata_queues.put(channel, metadata_queue);
+
+            final Instant sample_endtime = last.get(channel).get(0).time;
+            final Instant metadata_endtime = channel_meta.get(channel_meta.size() - 1).time;
+            final ChunkReader samples = new ChunkReader(sample_queue, sample_endtime, metadata_queue, metadata_endtime,
+                                                        reader.getTimeout(), new ArchiveDecoder.Factory());
+            iterators.put(channel, new BatchSampleIterator(reader, channel, this, samples));
+
+            if (sample_endtime.isAfter(start))
+                streamed.add(channel, sample_queue, sample_endtime);
+            else
+                sample_queue.accept(ChunkedQuery.END);
+        }
+
+        if (streamed.isEmpty())
+            return;
+        // Samples after the start time, one channel after the other
+        stream = streamed;
+        streamed.start();
+    }
+
+    /** Read meta data of channels with one request per meta data database
+     *  @param queries Queries
+     *  @param channels Channels, all in the same data database
+     *  @param sample_start Time of each channel's first sample
+     *  @param end End time
+     *  @return Meta data in effect at the first sample and later changes, by channel name
+     *  @throws Exception on error
+     */
+    private Map<String, List<Row>> readMetaData(final InfluxDBQueries queries, final List<String> channels,
+            final Map<String, Instant> sample_start, final Instant end) throws Exception
+    {
+        final DBNameMap dbnames = reader.getDBNames();
+        final Map<String, List<String>> by_db = new HashMap<>();
+        for (String channel : channels)
+            by_db.computeIfAbsent(dbnames.getMetaDBName(channel), db -> new ArrayList<>()).add(channel);
+
+        final Map<String, List<Row>> meta = new HashMap<>();
+        for (List<String> meta_channels : by_db.values())
+        {
+            Instant earliest = end;
+            for (String channel : meta_channels)
+                if (sample_start.get(channel).isBefore(earliest))
+                    earliest = sample_start.get(channel);
+            // Meta data in effect at the earliest sample, and all changes after that
+            final QueryResult results = queries.multi_get_channel_meta_data(meta_channels.get(0),
+                    InfluxDBQueries.get_measurements_points("*", meta_channels, null, earliest, -1L),
+                    InfluxDBQueries.get_measurements_points("*", meta_channels, earliest.plusNanos(1), end, null));
+            if (results.hasError())
+                throw new Exception("Error when reading meta data of " + meta_channels + " : " + results.getError());
+            final Map<String, List<Row>> before = getRows(InfluxDBResults.getResult(results, 0));
+            final Map<String, List<Row>> after = getRows(InfluxDBResults.getResult(results, 1));
+
+            for (String channel : meta_channels)
+            {
+                final List<Row> rows = new ArrayList<>();
+                if (before.containsKey(channel))
+                    rows.addAll(before.get(channel));
+                if (after.containsKey(channel))
+                    rows.addAll(after.get(channel));
+                if (rows.isEmpty())
+                    continue;
+                // Skip to the meta data in effect at this channel's first sample
+                final Instant channel_start = sample_start.get(channel);
+                int index = 0;
+                while (index + 1 < rows.size()  &&  ! rows.get(index + 1).time.isAfter(channel_start))
+                    ++index;
+                meta.put(channel, new ArrayList<>(rows.subList(index, rows.size())));
+            }
+        }
+        return meta;
+    }
+
+    /** Called when the iterator of a channel is closed.
+     *  Stops the query once all iterators are closed.
+     *  @param channel Channel name
+     */
+    void close(final String channel)
+    {
+        final ChunkQueue sample_queue = sample_queues.get(channel);
+        if (sample_queue != null)
+            sample_queue.close();
+        final ChunkQueue metadata_queue = metadata_queues.get(channel);
+        if (metadata_queue != null)
+            metadata_queue.close();
+        final BatchSampleStream started = stream;
+        if (started != null)
+            started.close(channel);
+    }
+}
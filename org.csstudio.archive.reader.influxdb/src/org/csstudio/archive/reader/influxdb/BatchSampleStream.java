@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.reader.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
+import org.csstudio.archive.influxdb.InfluxDBResults;
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
+import org.csstudio.archive.reader.influxdb.raw.ReaderConcurrency;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/** Samples of several channels, streamed to the {@link ChunkQueue} of each channel
+ *
+ *  <p>Starts with one query for all channels.
+ *  InfluxDB returns the samples of one channel after the other,
+ *  and as long as each channel's queue has room within its budget,
+ *  that one query serves all channels.
+ *
+ *  <p>When a channel's queue is full, for example because another channel
+ *  is read first, waiting for it would stall every channel behind it.
+ *  The shared query is then cancelled, and each channel that has not received
+ *  all its samples continues with its own query, starting after the last sample
+ *  that it received.
+ *  A full queue then only pauses the query of its own channel.
+ *
+ *  <p>Errors and the end of the data are passed to the queues without waiting.
+ */
+@SuppressWarnings("nls")
+class BatchSampleStream implements Consumer<QueryResult>
+{
+    /** Queue and state of one channel */
+    private static class Channel
+    {
+        final ChunkQueue queue;
+
+        /** Time of the channel's last sample */
+        final Instant last_sample;
+
+        /** Time of the last sample passed to the queue, <code>null</code> if none.
+         *  Only accessed by the shared query
+         */
+        Instant received = null;
+
+        /** Query of this channel once the shared query has been split. SYNC on BatchSampleStream */
+        ChunkedQuery query = null;
+
+        Channel(final ChunkQueue queue, final Instant last_sample)
+        {
+            this.queue = queue;
+            this.last_sample = last_sample;
+        }
+    }
+
+    final private InfluxDBQueries queries;
+    final private ReaderConcurrency concurrency;
+    final private int chunk_size;
+    final private Instant start, end;
+
+    /** Channels by name. Complete before the query starts, then only read */
+    final private Map<String, Channel> channels = new LinkedHashMap<>();
+
+    /** Query for all channels, <code>null</code> when done. SYNC on this */
+    private ChunkedQuery shared = null;
+
+    /** Has the shared query been replaced by one query per channel? SYNC on this */
+    private boolean split = false;
+
+    /** @param queries Queries
+     *  @param concurrency Cancellation of the queries
+     *  @param chunk_size Number of samples per chunk
+     *  @param start Start time (inclusive)
+     *  @param end End time (inclusive)
+     */
+    BatchSampleStream(final InfluxDBQueries queries, final ReaderConcurrency concurrency,
+                      final int chunk_size, final Instant start, final Instant end)
+    {
+        this.queries = queries;
+        this.concurrency = concurrency;
+        this.chunk_size = chunk_size;
+        this.start = start;
+        this.end = end;
+    }
+
+    /** Add a channel before the query is started
+     *  @param name Channel name, all in the same data database
+     *  @param queue Queue for the samples of the channel
+     *  @param last_sample Time of the channel's last sample up to the end time
+     */
+    void add(final String name, final ChunkQueue queue, final Instant last_sample)
+    {
+        channels.put(name, new Channel(queue, last_sample));
+    }
+
+    /** @return <code>true</code> if no channel has been added */
+    boolean isEmpty()
+    {
+        return channels.isEmpty();
+    }
+
+    /** Start the query for all channels
+     *  @throws Exception on error
+     */
+    void start() throws Exception
+    {
+        final ChunkedQuery query = queries.chunk_get_channels_samples(chunk_size, new ArrayList<>(channels.keySet()),
+                                                                       start, end, this);
+        final boolean replaced;
+        synchronized (this)
+        {
+            replaced = split;
+            if (! replaced)
+                shared = query;
+        }
+        // Already split while the query was being started?
+        if (replaced)
+        {
+            if (query != null)
+                query.cancel();
+        }
+        else
+            concurrency.addForCancellation(query);
+    }
+
+    /** @param error Error message
+     *  @return Result with that error
+     */
+    private static QueryResult createError(final String error)
+    {
+        final QueryResult result = new QueryResult();
+        result.setError(error);
+        return result;
+    }
+
+    /** Route a chunk of the shared query to the queues of the channels
+     *  @param chunk Chunk from the query
+     */
+    @Override
+    public void accept(final QueryResult chunk)
+    {
+        synchronized (this)
+        {
+            // Ignore the cancellation of a shared query that was replaced
+            if (split)
+                return;
+        }
+        if (chunk == ChunkedQuery.END  ||  chunk.hasError())
+        {
+            // End, failed or cancelled: Report to every channel
+            for (Channel channel : channels.values())
+                channel.queue.accept(chunk);
+            final ChunkedQuery done;
+            synchronized (this)
+            {
+                done = shared;
+                shared = null;
+            }
+            concurrency.removeFromCancellation(done);
+            return;
+        }
+        for (Series series : InfluxDBResults.getNonEmptySeries(chunk))
+        {
+            final Channel channel = channels.get(series.getName());
+            if (channel == null)
+                continue;
+            final Result result = new Result();
+            result.setSeries(Arrays.asList(series));
+            final QueryResult channel_chunk = new QueryResult();
+            channel_chunk.setResults(Arrays.asList(result));
+            if (! channel.queue.offer(channel_chunk))
+            {
+                split(series.getName());
+                return;
+            }
+            try
+            {
+                final List<Object> last_row = series.getValues().get(series.getValues().size() - 1);
+                channel.received = InfluxDBUtil.fromInfluxDBTimeFormat(last_row.get(series.getColumns().indexOf("time")));
+            }
+            catch (Exception ex)
+            {
+                // Without the time of the received samples, the query could not be split
+                fail("Cannot read samples of " + series.getName() + ": " + ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    /** Replace the shared query by one query for each channel that still needs samples
+     *  @param full Channel whose queue is full
+     */
+    private void split(final String full)
+    {
+        Activator.getLogger().log(Level.FINE, "Samples of {0} exceed the buffer, reading remaining channels with separate queries", full);
+        final ChunkedQuery cancelled;
+        synchronized (this)
+        {
+            split = true;
+            cancelled = shared;
+            shared = null;
+            for (Map.Entry<String, Channel> entry : channels.entrySet())
+            {
+                final Channel channel = entry.getValue();
+                if (channel.queue.isClosed())
+                    continue;
+                if (channel.received != null  &&  ! channel.received.isBefore(channel.last_sample))
+                {
+                    channel.queue.accept(ChunkedQuery.END);
+                    continue;
+                }
+                final Instant next = channel.received == null ? start : channel.received.plusNanos(1);
+                try
+                {
+                    channel.query = queries.chunk_get_channel_samples(chunk_size, entry.getKey(), next, end, null, channel.queue);
+                }
+                catch (Exception ex)
+                {
+                    channel.queue.accept(createError("Cannot read samples of " + entry.getKey() + ": " + ex.getMessage()));
+                    continue;
+                }
+                concurrency.addForCancellation(channel.query);
+            }
+        }
+        if (cancelled != null)
+        {
+            cancelled.cancel();
+            concurrency.removeFromCancellation(cancelled);
+        }
+    }
+
+    /** Report error to all channels and stop the shared query
+     *  @param error Error message
+     */
+    private void fail(final String error)
+    {
+        final ChunkedQuery cancelled;
+        synchronized (this)
+        {
+            split = true;
+            cancelled = shared;
+            shared = null;
+        }
+        final QueryResult result = createError(error);
+        for (Channel channel : channels.values())
+            channel.queue.accept(result);
+        if (cancelled != null)
+        {
+            cancelled.cancel();
+            concurrency.removeFromCancellation(cancelled);
+        }
+    }
+
+    /** Called when the samples of a channel are no longer needed.
+     *  Closes its queue, stops its query,
+     *  and stops the shared query once all queues are closed.
+     *  @param name Channel name
+     */
+    void close(final String name)
+    {
+        final Channel channel = channels.get(name);
+        if (channel == null)
+            return;
+        channel.queue.close();
+
+        final List<ChunkedQuery> done = new ArrayList<>();
+        synchronized (this)
+        {
+            if (channel.query != null)
+            {
+                done.add(channel.query);
+                channel.query = null;
+            }
+            boolean all_closed = true;
+            for (Channel c : channels.values())
+                if (! c.queue.isClosed())
+                {
+                    all_closed = false;
+                    break;
+                }
+            if (all_closed  &&  shared != null)
+            {
+                done.add(shared);
+                shared = null;
+            }
+        }
+        for (ChunkedQuery query : done)
+        {
+            query.cancel();
+            concurrency.removeFromCancellation(query);
+        }
+    }
+}
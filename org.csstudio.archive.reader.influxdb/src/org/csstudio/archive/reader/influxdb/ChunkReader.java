@@ -12,7 +12,6 @@ import java.time.Instant;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -21,6 +20,7 @@ import org.csstudio.archive.influxdb.MetaTypes;
 import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
 import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueDecoder;
 import org.csstudio.archive.reader.influxdb.raw.Activator;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
 import org.csstudio.archive.reader.influxdb.raw.RawChunkReader;
 import org.influxdb.dto.QueryResult;
 
@@ -31,7 +31,7 @@ import org.influxdb.dto.QueryResult;
 public class ChunkReader extends RawChunkReader
 {
     /** Queue of result chunks of the metadata query */
-    final BlockingQueue<QueryResult> metadata_queue;
+    final ChunkQueue metadata_queue;
 
     /** Expected last timestamp for metadata */
     final Instant last_metadata_time;
@@ -43,8 +43,8 @@ public class ChunkReader extends RawChunkReader
     final protected Queue<MetaObject> next_metadata = new LinkedList<MetaObject>();
 
 
-    ChunkReader(final BlockingQueue<QueryResult> sample_queue, final Instant last_sample_time,
-            final BlockingQueue<QueryResult> metadata_queue, final Instant last_metadata_time,
+    ChunkReader(final ChunkQueue sample_queue, final Instant last_sample_time,
+            final ChunkQueue metadata_queue, final Instant last_metadata_time,
             final int timeout_secs, final AbstractInfluxDBValueDecoder.Factory decoder_factory)
     {
         super(sample_queue, last_sample_time, timeout_secs, decoder_factory);
@@ -55,14 +55,24 @@ public class ChunkReader extends RawChunkReader
         this.next_meta = null;
     }
 
+    /** Set <code>next_meta</code>, <code>null</code> at the end of the metadata
+     *  @throws Exception on error, timeout, or when cancelled
+     */
     private void step_next_metadata() throws Exception
     {
         next_meta = next_metadata.poll();
         while (next_meta == null)
         {
+            final QueryResult results = metadata_queue.poll(timeout_secs, TimeUnit.SECONDS);
+            if (results == null)
+            {
+                Activator.getLogger().log(Level.FINE, "Metadata ended before expected last metadata time {0}", last_metadata_time);
+                return;
+            }
+            // Failed or cancelled query
+            checkError(results);
             try
             {
-                final QueryResult results = metadata_queue.poll(timeout_secs, TimeUnit.SECONDS);
                 //Activator.getLogger().log(Level.FINEST, () -> "Got metadata chunk " + InfluxDBResults.toString(results) );
                 next_metadata.addAll(MetaTypes.toMetaObjects(results));
             }
@@ -87,6 +97,8 @@ public class ChunkReader extends RawChunkReader
             {
                 throw new Exception ("Could not set initial metadata object", e);
             }
+            if (next_meta == null)
+                throw new Exception("No metadata for samples");
 
             cur_meta = next_meta;
             Activator.getLogger().log(Level.FINE, "Set current metadata {0}, last timestamp is {1}", new Object[] {cur_meta, last_metadata_time});
@@ -151,12 +163,6 @@ public class ChunkReader extends RawChunkReader
 
 
 
-    @Override
-    public boolean hasValue(final String colname)
-    {
-        return cur_column_map.containsKey(colname);
-    }
-
     @Override
     public MetaObject getMeta()
     {
@@ -13,7 +13,10 @@ package org.csstudio.archive.reader.influxdb;
 //import java.sql.Statement;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
 
+import org.csstudio.archive.influxdb.ChunkedQuery;
 import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
 import org.csstudio.archive.influxdb.InfluxDBQueries;
 import org.csstudio.archive.influxdb.InfluxDBQueries.DBNameMap;
@@ -26,6 +29,8 @@ import org.csstudio.archive.reader.ArchiveReader;
 import org.csstudio.archive.reader.UnknownChannelException;
 import org.csstudio.archive.reader.ValueIterator;
 import org.csstudio.archive.reader.influxdb.raw.ConnectionCache;
+import org.csstudio.archive.reader.influxdb.raw.InfluxDBRawReader;
+import org.csstudio.archive.reader.influxdb.raw.ReaderConcurrency;
 import org.diirt.util.time.TimeDuration;
 import org.influxdb.InfluxDB;
 import org.influxdb.dto.QueryResult;
@@ -43,10 +48,15 @@ public class InfluxDBArchiveReader implements ArchiveReader
     final private int password;
     /** Timeout when waiting for chunks of data */
     final private int timeout;
+    /** Compute optimized values in InfluxDB? */
+    final private boolean server_side_optimization;
     //
     final private ConnectionCache.Entry influxdb;
     final private InfluxDBQueries influxQuery;
 
+    /** Cancellation of queries and threads that open iterators */
+    final private ReaderConcurrency concurrency = new ReaderConcurrency();
+
     final static private DBNameMap dbnames = new DefaultDBNameMap();
 
     ///** Map of status IDs to Status strings */
@@ -82,6 +92,19 @@ public class InfluxDBArchiveReader implements ArchiveReader
      */
     public InfluxDBArchiveReader(final String url, final String user, final String password)
             throws Exception
+    {
+        this(url, user, password, InfluxDBArchivePreferences.useGzip());
+    }
+
+    /** Initialize
+     *  @param url Database URL
+     *  @param user .. user
+     *  @param password .. password
+     *  @param gzip Compress requests with gzip?
+     *  @throws Exception on error
+     */
+    public InfluxDBArchiveReader(final String url, final String user, final String password, final boolean gzip)
+            throws Exception
     {
         this.url = url;
         this.user = user;
@@ -89,8 +112,9 @@ public class InfluxDBArchiveReader implements ArchiveReader
 
         //TODO: other Influx read optimizations?
         timeout = InfluxDBArchivePreferences.getChunkTimeoutSecs();
-        influxdb = ConnectionCache.get(url, user, password);
-        influxQuery = new InfluxDBQueries(influxdb.getConnection(), dbnames);
+        server_side_optimization = InfluxDBArchivePreferences.useServerSideOptimization();
+        influxdb = ConnectionCache.get(url, user, password, gzip);
+        influxQuery = new InfluxDBQueries(influxdb.getConnection(), influxdb.getChunkedQueryClient(), dbnames);
     }
 
 
@@ -108,6 +132,12 @@ public class InfluxDBArchiveReader implements ArchiveReader
         return new ConnectionInfo(influxdb.getConnection());
     }
 
+    /** @return Database names */
+    DBNameMap getDBNames()
+    {
+        return dbnames;
+    }
+
     /** @return Query statements */
     InfluxDBQueries getQueries()
     {
@@ -225,7 +255,27 @@ public class InfluxDBArchiveReader implements ArchiveReader
     public ValueIterator getRawValues(final String channel_name,
             final Instant start, final Instant end) throws Exception
     {
-        return new SampleIterator(this, channel_name, start, end);
+        return concurrency.open(() -> new SampleIterator(this, channel_name, start, end));
+    }
+
+    /** Fetch raw samples of several channels
+     *
+     *  <p>Reads the samples of all channels in a database with one streaming query
+     *  instead of several queries per channel.
+     *  InfluxDB returns one channel after the other, sorted by name,
+     *  so the iterators should be read in the order of the returned map,
+     *  or concurrently.
+     *
+     *  @param channel_names Channel names in influxdb
+     *  @param start Start time
+     *  @param end End time
+     *  @return {@link ValueIterator} for the raw samples of each channel
+     *  @throws Exception on error
+     */
+    public Map<String, ValueIterator> getRawValues(final Collection<String> channel_names,
+            final Instant start, final Instant end) throws Exception
+    {
+        return BatchSampleQuery.open(this, channel_names, start, end);
     }
 
     /** {@inheritDoc} */
@@ -236,6 +286,20 @@ public class InfluxDBArchiveReader implements ArchiveReader
         // MySQL version of the stored proc. requires count > 1
         if (count <= 1)
             throw new Exception("Count must be > 1");
+
+        return concurrency.open(() -> openOptimizedValues(name, start, end, count));
+    }
+
+    /** @param name Channel name
+     *  @param start Start time
+     *  @param end End time
+     *  @param count Desired value count
+     *  @return {@link ValueIterator} for optimized values
+     *  @throws Exception on error
+     */
+    private ValueIterator openOptimizedValues(final String name,
+            final Instant start, final Instant end, final int count) throws Exception
+    {
         //final int channel_id = getChannelID(name);
 
         //        // Use stored procedure in RDB server?
@@ -258,15 +322,24 @@ public class InfluxDBArchiveReader implements ArchiveReader
         //                throw new Exception("Cannot count samples");
         //            counted = result.getInt(1);
         //        }
+        final double seconds = TimeDuration.toSecondsDouble(Duration.between(start, end)) / count;
+
+        // Let InfluxDB compute the statistics of each bin
+        if (server_side_optimization)
+        {
+            final ValueIterator aggregated = AggregateValueIterator.create(this, name, start, end, seconds, count);
+            if (aggregated != null)
+                return aggregated;
+        }
+
         // Fetch raw data and perform averaging
-        final ValueIterator raw_data = getRawValues(name, start, end);
+        final ValueIterator raw_data = new SampleIterator(this, name, start, end);
 
         //        // If there weren't that many, that's it
         //        if (counted < count)
         //            return raw_data;
 
         // Else: Perform averaging to reduce sample count
-        final double seconds = TimeDuration.toSecondsDouble(Duration.between(start, end)) / count;
         return new AveragedValueIterator(raw_data, seconds);
     }
 
@@ -296,67 +369,64 @@ public class InfluxDBArchiveReader implements ArchiveReader
         return 1;
     }
 
-    //    /** Add a statement to the list of statements-to-cancel in cancel()
-    //     *  @param statement Statement to cancel
-    //     *  @see #cancel()
-    //     */
-    //    void addForCancellation(final Statement statement)
-    //    {
-    //        synchronized (cancellable_statements)
-    //        {
-    //            cancellable_statements.add(statement);
-    //        }
-    //    }
-    //
-    //    /** Remove a statement to the list of statements-to-cancel in cancel()
-    //     *  @param statement Statement that should no longer be cancelled
-    //     *  @see #cancel()
-    //     */
-    //    void removeFromCancellation(final Statement statement)
-    //    {
-    //        synchronized (cancellable_statements)
-    //        {
-    //            cancellable_statements.remove(statement);
-    //        }
-    //    }
+    /** Add a query to the list of queries-to-cancel in cancel()
+     *  @param query Query to cancel, may be <code>null</code>
+     *  @see #cancel()
+     */
+    void addForCancellation(final ChunkedQuery query)
+    {
+        concurrency.addForCancellation(query);
+    }
+
+    /** Remove a query from the list of queries-to-cancel in cancel()
+     *  @param query Query that should no longer be cancelled, may be <code>null</code>
+     *  @see #cancel()
+     */
+    void removeFromCancellation(final ChunkedQuery query)
+    {
+        concurrency.removeFromCancellation(query);
+    }
 
-    /** Check if an exception indicates Oracle operation was canceled,
+    /** @return Cancellation of the queries of this reader */
+    ReaderConcurrency getConcurrency()
+    {
+        return concurrency;
+    }
+
+    /** Check if an exception indicates InfluxDB query was canceled,
      *  i.e. this program requested the operation to abort
      *  @param ex Exception (Throwable) to test
      *  @return <code>true</code> if it looks like the result of cancellation.
      */
     public static boolean isCancellation(final Throwable ex)
     {
-        //        final String message = ex.getMessage();
-        //        if (message == null)
-        //            return false;
-        //        if (message.startsWith(ORACLE_CANCELLATION))
-        //            return true;
-        //        if (message.startsWith(ORACLE_RECURSIVE_ERROR))
-        //        {
-        //            final Throwable cause = ex.getCause();
-        //            if (cause != null)
-        //                return isCancellation(cause);
-        //        }
-        return false;
+        return InfluxDBRawReader.isCancellation(ex);
     }
 
+    /** Abort all chunked queries that are still streaming results,
+     *  and those of iterators of the current read that are still being opened.
+     *  Their iterators end with the samples received so far.
+     *  Later reads are not affected.
+     *  @see ReaderConcurrency#cancel()
+     */
     @Override
     public void cancel()
     {
+        concurrency.cancel();
     }
 
     /** {@inheritDoc} */
     @Override
     public void close()
     {
-        cancel();
+        concurrency.close();
         ConnectionCache.release(influxdb);
     }
 
+    /** {@inheritDoc} */
     @Override
     public void enableConcurrency(boolean concurrency) {
-        //TODO: does enable concurrency mean anything for InfluxDB?
+        this.concurrency.enableConcurrency(concurrency);
     }
 
 
@@ -44,12 +44,13 @@ public class InfluxDBArchiveReaderFactory implements ArchiveReaderFactory
         if (instance == null)
             throw new Exception("InfluxDBArchiveReaderFactory requires Plugin infrastructure");
 
-        String actual_url = null, user = null, password = null;
+        String actual_url = null, user = null, password = null, gzip = null;
         try {
             InfluxDBDataSource ds = InfluxDBDataSource.decodeURL(encoded_url);
             actual_url = ds.getURL();
             user = ds.getArg(InfluxDBDataSource.USER_KEY);
             password = ds.getArg(InfluxDBDataSource.PASSW_KEY);
+            gzip = ds.getArg(InfluxDBDataSource.GZIP_KEY);
         } catch (Exception e) {
             actual_url = null;
         }
@@ -73,7 +74,9 @@ public class InfluxDBArchiveReaderFactory implements ArchiveReaderFactory
             if ((password != null) && (password.isEmpty()))
                 password = null;
 
-            return new InfluxDBArchiveReader(actual_url, user, password);
+            final boolean use_gzip = (gzip == null) ? InfluxDBArchivePreferences.useGzip() : Boolean.parseBoolean(gzip);
+
+            return new InfluxDBArchiveReader(actual_url, user, password, use_gzip);
         }
     }
 }
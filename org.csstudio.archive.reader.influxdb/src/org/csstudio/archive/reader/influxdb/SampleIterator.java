@@ -8,12 +8,12 @@
 package org.csstudio.archive.reader.influxdb;
 
 import java.time.Instant;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.function.Consumer;
 
+import org.csstudio.archive.influxdb.ChunkedQuery;
+import org.csstudio.archive.influxdb.InfluxDBQueries;
 import org.csstudio.archive.influxdb.InfluxDBResults;
 import org.csstudio.archive.reader.influxdb.raw.AbstractInfluxDBValueIterator;
+import org.csstudio.archive.reader.influxdb.raw.ChunkQueue;
 import org.csstudio.archive.reader.influxdb.raw.Preferences;
 import org.diirt.vtype.VType;
 import org.influxdb.dto.QueryResult;
@@ -25,10 +25,19 @@ import org.influxdb.dto.QueryResult;
 public class SampleIterator extends AbstractInfluxDBValueIterator
 {
     /** Queue of result chunks of the sample query */
-    final BlockingQueue<QueryResult> sample_queue = new LinkedBlockingQueue<>();
+    final ChunkQueue sample_queue;
 
     /** Queue of result chunks of the metadata query */
-    final BlockingQueue<QueryResult> metadata_queue = new LinkedBlockingQueue<>();
+    final ChunkQueue metadata_queue;
+
+    /** Reader that cancels the queries */
+    final private InfluxDBArchiveReader influx_reader;
+
+    /** Query for the samples, <code>null</code> when not started or not cancellable */
+    private ChunkedQuery sample_query = null;
+
+    /** Query for the metadata, <code>null</code> when not started or not cancellable */
+    private ChunkedQuery metadata_query = null;
 
     /** 'Current' value that <code>next()</code> will return,
      *  or <code>null</code>
@@ -52,18 +61,31 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
             final Instant end) throws Exception
     {
         super(reader, channel_name);
+        influx_reader = reader;
         Instant sample_endtime, sample_starttime, metadata_endtime, metadata_starttime;
         // QueryResult results = null;
 
         sample_chunk_size = Preferences.getChunkSize();
         metadata_chunk_size = Preferences.getChunkSize();
-
-        //Get the timestamp of the last sample at or before the indicated start time.
-        sample_starttime = InfluxDBResults.getTimestamp(reader.getQueries().get_newest_channel_samples(channel_name, null, start, 1L));
+        // Samples use most of the memory budget
+        final long budget = Preferences.getBufferBytes();
+        sample_queue = new ChunkQueue(budget - budget / 4);
+        metadata_queue = new ChunkQueue(budget / 4);
+
+        // Determine the sample and metadata time range with one request per database
+        final QueryResult sample_bounds = reader.getQueries().multi_get_channel_samples(channel_name,
+                // Last sample at or before the indicated start time
+                InfluxDBQueries.get_channel_points("*", channel_name, null, start, -1L),
+                // Oldest sample in range
+                InfluxDBQueries.get_channel_points("*", channel_name, start, end, 1L),
+                // Last sample in range
+                InfluxDBQueries.get_channel_points("*", channel_name, null, end, -1L));
+
+        sample_starttime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 0));
         if (sample_starttime == null)
         {
-            //No samples at or before start, find oldest sample in range
-            sample_starttime = InfluxDBResults.getTimestamp(reader.getQueries().get_channel_samples(channel_name, start, end, 1L));
+            //No samples at or before start, use oldest sample in range
+            sample_starttime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 1));
 
             //No samples before the end time. We are done
             if (sample_starttime == null)
@@ -73,38 +95,62 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
                 return;
             }
         }
+        sample_endtime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(sample_bounds, 2));
+
+        final QueryResult metadata_bounds = reader.getQueries().multi_get_channel_meta_data(channel_name,
+                // Last metadata at or before the sample start time
+                InfluxDBQueries.get_channel_points("*", channel_name, null, sample_starttime, -1L),
+                // Last metadata before the end time
+                InfluxDBQueries.get_channel_points("*", channel_name, null, end, -1L));
+        metadata_starttime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(metadata_bounds, 0));
+        metadata_endtime = InfluxDBResults.getTimestamp(InfluxDBResults.getResult(metadata_bounds, 1));
+
+        // Each response is read on a thread of the chunked query client.
+        // Queues block that thread when full,
+        // which pauses reading the response until this iterator catches up
+        try
+        {
+            sample_query = reader.getQueries().chunk_get_channel_samples(sample_chunk_size, channel_name, sample_starttime, end, null,
+                    sample_queue);
+            reader.addForCancellation(sample_query);
+
+            metadata_query = reader.getQueries().chunk_get_channel_metadata(metadata_chunk_size, channel_name, metadata_starttime, end, null,
+                    metadata_queue);
+            reader.addForCancellation(metadata_query);
+
+            samples = new ChunkReader(sample_queue, sample_endtime, metadata_queue, metadata_endtime, reader.getTimeout(),
+                    new ArchiveDecoder.Factory());
 
-        //Get the timestamp of the last sample in the range.
-        sample_endtime = InfluxDBResults.getTimestamp(reader.getQueries().get_newest_channel_samples(channel_name, sample_starttime, end, 1L));
-
-        //Find the last timestamp of the metadata before the end time
-        metadata_endtime = InfluxDBResults.getTimestamp(reader.getQueries().get_newest_meta_data(channel_name, null, end, 1L));
-        //Get the timestamp of the last metadata at or before the sample start time.
-        metadata_starttime = InfluxDBResults.getTimestamp(reader.getQueries().get_newest_meta_data(channel_name, null, sample_starttime, 1L));
-
-        reader.getQueries().chunk_get_channel_samples(sample_chunk_size, channel_name, sample_starttime, end, null,
-                new Consumer<QueryResult>() {
-            @Override
-            public void accept(QueryResult result) {
-                sample_queue.add(result);
-                //Activator.getLogger().log(Level.FINE, () -> "Got chunk of sample vals size " + InfluxDBResults.getValueCount(result) + " for total size: " + sample_queue.size());
-                sample_queue.add(result);
-            }});
-
-        reader.getQueries().chunk_get_channel_metadata(metadata_chunk_size, channel_name, metadata_starttime, end, null,
-                new Consumer<QueryResult>() {
-            @Override
-            public void accept(QueryResult result) {
-                metadata_queue.add(result);
-            }});
-
-        samples = new ChunkReader(sample_queue, sample_endtime, metadata_queue, metadata_endtime, reader.getTimeout(),
-                new ArchiveDecoder.Factory());
-
-        if (samples.step())
-            next_value = samples.decodeSampleValue();
-        else
+            fetchNext();
+        }
+        catch (Exception ex)
+        {
+            // Stop the queries that were started
             close();
+            throw ex;
+        }
+    }
+
+    /** Prepare the value that <code>next()</code> will return,
+     *  closing the iterator at the end of the samples or when the reader was cancelled
+     *  @throws Exception on error
+     */
+    private void fetchNext() throws Exception
+    {
+        try
+        {
+            if (samples.step())
+            {
+                next_value = samples.decodeSampleValue();
+                return;
+            }
+        }
+        catch (Exception ex)
+        {
+            if (! InfluxDBArchiveReader.isCancellation(ex))
+                throw ex;
+        }
+        close();
     }
 
 
@@ -129,10 +175,7 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
         final VType result = next_value;
 
         // ... and prepare next value
-        if (samples.step())
-            next_value = samples.decodeSampleValue();
-        else
-            close();
+        fetchNext();
 
         return result;
     }
@@ -144,6 +187,21 @@ public class SampleIterator extends AbstractInfluxDBValueIterator
     public void close()
     {
         super.close();
+        // Stop streaming results that will not be read
+        if (sample_query != null)
+        {
+            sample_query.cancel();
+            influx_reader.removeFromCancellation(sample_query);
+            sample_query = null;
+        }
+        if (metadata_query != null)
+        {
+            metadata_query.cancel();
+            influx_reader.removeFromCancellation(metadata_query);
+            metadata_query = null;
+        }
+        sample_queue.close();
+        metadata_queue.close();
         next_value = null;
     }
 }
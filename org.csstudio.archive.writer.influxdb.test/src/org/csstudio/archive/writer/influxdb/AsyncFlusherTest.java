@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.csstudio.archive.writer.influxdb.AsyncFlusher.Overflow;
+import org.junit.Test;
+
+/** JUnit test of the background writer
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class AsyncFlusherTest
+{
+    final private Queue<LineProtocolBuffer> spare = new ConcurrentLinkedQueue<>();
+
+    /** @return Batch with points named "name.0", "name.1", ... */
+    private static LineProtocolBuffer createPoints(final String name, final int count)
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(1024);
+        for (int i=0; i<count; ++i)
+            points.addLine(name + "." + i + " double.0=" + i + " " + (1490000000000000000L + i));
+        return points;
+    }
+
+    /** Sender that records the first point of each batch and can be held */
+    private static class TestSender implements WriteSpool.Sender
+    {
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        final CountDownLatch release;
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        TestSender(final boolean hold)
+        {
+            release = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        @Override
+        public void send(final String dbName, final LineProtocolBuffer points) throws Exception
+        {
+            entered.countDown();
+            release.await();
+            final String line = points.toString();
+            sent.add(dbName + ":" + line.substring(0, line.indexOf('.')));
+        }
+    }
+
+    @Test
+    public void testOrder() throws Exception
+    {
+        final TestSender sender = new TestSender(false);
+        final AsyncFlusher flusher = new AsyncFlusher(sender, spare, null, 1000, 2, Overflow.BLOCK);
+        for (int i=0; i<50; ++i)
+            for (String db : new String[] { "a", "b", "c" })
+                flusher.submit(db, createPoints("p" + i, 3));
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals(150, flusher.getWrittenBatches());
+
+        // Batches of each database are written in the order they were submitted
+        for (String db : new String[] { "a", "b", "c" })
+        {
+            final List<String> written = new ArrayList<>();
+            for (String batch : sender.sent)
+                if (batch.startsWith(db + ":"))
+                    written.add(batch);
+            assertEquals(50, written.size());
+            for (int i=0; i<50; ++i)
+                assertEquals(db + ":p" + i, written.get(i));
+        }
+        assertEquals(0, flusher.close(1));
+        System.out.println(flusher);
+    }
+
+    @Test
+    public void testBlock() throws Exception
+    {
+        final TestSender sender = new TestSender(true);
+        final AsyncFlusher flusher = new AsyncFlusher(sender, spare, null, 10, 1, Overflow.BLOCK);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+        flusher.submit("db", createPoints("b", 5));
+        flusher.submit("db", createPoints("c", 5));
+
+        // Queue is full, next submit blocks until batches are written
+        final CountDownLatch submitted = new CountDownLatch(1);
+        final Thread thread = new Thread(() ->
+        {
+            try
+            {
+                flusher.submit("db", createPoints("d", 5));
+                submitted.countDown();
+            }
+            catch (Exception ex)
+            {
+                ex.printStackTrace();
+            }
+        });
+        thread.start();
+        assertFalse(submitted.await(500, TimeUnit.MILLISECONDS));
+        sender.release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals(4, sender.sent.size());
+        assertEquals(0, flusher.getDroppedSamples());
+        assertEquals(0, flusher.getRejectedSamples());
+        flusher.close(1);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        final TestSender sender = new TestSender(true);
+        final AsyncFlusher flusher = new AsyncFlusher(sender, spare, null, 10, 1, Overflow.DROP_OLDEST);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+        flusher.submit("db", createPoints("b", 5));
+        flusher.submit("db", createPoints("c", 5));
+        // Drops the oldest queued batch "b", not the one being written
+        flusher.submit("db", createPoints("d", 5));
+        assertEquals(5, flusher.getDroppedSamples());
+        sender.release.countDown();
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals("[db:a, db:c, db:d]", sender.sent.toString());
+        flusher.close(1);
+    }
+
+    @Test
+    public void testReject() throws Exception
+    {
+        final TestSender sender = new TestSender(true);
+        final AsyncFlusher flusher = new AsyncFlusher(sender, spare, null, 10, 1, Overflow.REJECT);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+        flusher.submit("db", createPoints("b", 5));
+        flusher.submit("db", createPoints("c", 5));
+        try
+        {
+            flusher.submit("db", createPoints("d", 5));
+            fail("Accepted batch into full queue");
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Rejected: " + ex.getMessage());
+        }
+        assertEquals(5, flusher.getRejectedSamples());
+        sender.release.countDown();
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals("[db:a, db:b, db:c]", sender.sent.toString());
+        flusher.close(1);
+    }
+
+    @Test
+    public void testRetry() throws Exception
+    {
+        // Fail twice, then succeed
+        final AtomicInteger attempts = new AtomicInteger();
+        final AsyncFlusher flusher = new AsyncFlusher((db, points) ->
+        {
+            if (attempts.incrementAndGet() <= 2)
+                throw new IOException("Connection refused");
+        }, spare, null, 100, 1, Overflow.BLOCK);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals(3, attempts.get());
+        assertEquals(2, flusher.getRetriedBatches());
+        assertEquals(5, flusher.getWrittenSamples());
+        assertEquals(0, flusher.getFailedSamples());
+        // Error is still reported
+        try
+        {
+            flusher.checkError();
+            fail("Did not report error");
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Reported: " + ex.getMessage());
+        }
+
+        // Rejected points are not retried
+        attempts.set(0);
+        final AsyncFlusher rejecting = new AsyncFlusher((db, points) ->
+        {
+            attempts.incrementAndGet();
+            throw new WriteException("unable to parse", WriteException.Kind.PERMANENT, 400, null);
+        }, spare, null, 100, 1, Overflow.BLOCK);
+        rejecting.submit("db", createPoints("a", 5));
+        assertTrue(rejecting.waitUntilIdle(10));
+        assertEquals(1, attempts.get());
+        assertEquals(5, rejecting.getFailedSamples());
+        assertEquals(0, rejecting.getRetriedBatches());
+        flusher.close(1);
+        rejecting.close(1);
+    }
+
+    @Test
+    public void testRefused() throws Exception
+    {
+        // Refused twice, then the configuration is fixed
+        final AtomicInteger attempts = new AtomicInteger();
+        final AsyncFlusher flusher = new AsyncFlusher((db, points) ->
+        {
+            if (attempts.incrementAndGet() <= 2)
+                throw new WriteException("authorization failed", WriteException.Kind.REFUSED, 401, null);
+        }, spare, null, 100, 1, Overflow.BLOCK);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(flusher.waitUntilIdle(10));
+        assertEquals(3, attempts.get());
+        assertEquals(5, flusher.getWrittenSamples());
+        assertEquals(0, flusher.getFailedSamples());
+        try
+        {
+            flusher.checkError();
+            fail("Did not report error");
+        }
+        catch (Exception ex)
+        {
+            assertEquals(WriteException.Kind.REFUSED, ((WriteException) ex.getCause()).getKind());
+        }
+        flusher.close(1);
+
+        // With spool, refused points are kept in the spool and the error is reported
+        final File file = File.createTempFile("spool", ".dat");
+        file.delete();
+        final WriteSpool.Sender refused = (db, points) ->
+        {
+            throw new WriteException("database not found", WriteException.Kind.REFUSED, 404, null);
+        };
+        final WriteSpool spool = new WriteSpool(file, 1024*1024, WriteSpool.FSync.ALWAYS, 1024*1024, refused);
+        final AsyncFlusher spooled = new AsyncFlusher(refused, spare, spool, 100, 1, Overflow.BLOCK);
+        spooled.submit("db", createPoints("b", 5));
+        assertTrue(spooled.waitUntilIdle(10));
+        assertTrue(spool.getBacklog() >= 1);
+        try
+        {
+            spooled.checkError();
+            fail("Did not report error");
+        }
+        catch (Exception ex)
+        {
+            assertEquals(WriteException.Kind.REFUSED, ((WriteException) ex.getCause()).getKind());
+        }
+        spooled.close(1);
+        assertEquals(0, spooled.getLostSamples());
+        spool.close();
+        file.delete();
+    }
+
+    @Test
+    public void testCloseWithPendingBatches() throws Exception
+    {
+        // Database remains unreachable
+        final AsyncFlusher flusher = new AsyncFlusher((db, points) ->
+        {
+            throw new IOException("Connection refused");
+        }, spare, null, 100, 1, Overflow.BLOCK);
+        flusher.submit("db", createPoints("a", 5));
+        flusher.submit("db", createPoints("b", 5));
+        assertEquals(10, flusher.close(1));
+        // A batch that was being written when closed is lost once that write fails
+        for (int i=0; i<50  &&  flusher.getLostSamples() < 10; ++i)
+            Thread.sleep(100);
+        assertEquals(10, flusher.getLostSamples());
+        assertEquals(0, flusher.getQueuedSamples());
+        System.out.println(flusher);
+
+        // Closed flusher does not accept batches
+        try
+        {
+            flusher.submit("db", createPoints("c", 5));
+            fail("Accepted batch after close");
+        }
+        catch (Exception ex)
+        {
+            System.out.println("Closed: " + ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseWithSpool() throws Exception
+    {
+        final File file = File.createTempFile("spool", ".dat");
+        file.delete();
+        final WriteSpool.Sender offline = (db, points) ->
+        {
+            throw new IOException("Connection refused");
+        };
+        final WriteSpool spool = new WriteSpool(file, 1024*1024, WriteSpool.FSync.ALWAYS, 1024*1024, offline);
+        final TestSender sender = new TestSender(true);
+        final AsyncFlusher flusher = new AsyncFlusher(sender, spare, spool, 100, 1, Overflow.BLOCK);
+        flusher.submit("db", createPoints("a", 5));
+        assertTrue(sender.entered.await(5, TimeUnit.SECONDS));
+        flusher.submit("db", createPoints("b", 5));
+
+        // "a" is still being written, "b" is returned to the spool
+        assertEquals(10, flusher.close(1));
+        assertEquals(0, flusher.getLostSamples());
+        assertTrue(spool.getBacklog() >= 1);
+        sender.release.countDown();
+        spool.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/** Minimal stand-in for an InfluxDB server
+ *
+ *  <p>Answers ping, returns no data for queries unless a query handler is set,
+ *  and counts the points written to each database.
+ *  Writes can be made to fail.
+ *  Allows testing the writer without InfluxDB.
+ */
+@SuppressWarnings("nls")
+class FakeInfluxDB implements AutoCloseable
+{
+    final private ServerSocket server;
+    final private Map<String, AtomicLong> points = new ConcurrentHashMap<>();
+    final private AtomicLong requests = new AtomicLong();
+    final private AtomicLong series_runs = new AtomicLong();
+    final private AtomicLong queries = new AtomicLong();
+    private volatile Function<String, String> query_handler = null;
+    final private AtomicInteger write_failures = new AtomicInteger();
+    private volatile int failure_code;
+    private volatile String failure_body;
+    private volatile String last_write_path = "";
+
+    FakeInfluxDB() throws IOException
+    {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(this::accept, "Fake InfluxDB");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return URL of the server */
+    String getURL()
+    {
+        return "http://localhost:" + server.getLocalPort();
+    }
+
+    /** @param dbName Database
+     *  @return Number of points written to the database
+     */
+    long getPoints(final String dbName)
+    {
+        final AtomicLong count = points.get(dbName);
+        return count == null ? 0 : count.get();
+    }
+
+    /** @return Number of write requests */
+    long getWriteRequests()
+    {
+        return requests.get();
+    }
+
+    /** Each run of consecutive points with the same series key
+     *  requires InfluxDB to locate the series in its index and cache.
+     *  The fewer runs per point, the less work for the server.
+     *  @return Number of runs of points with the same series key in write requests
+     */
+    long getSeriesRuns()
+    {
+        return series_runs.get();
+    }
+
+    /** @return Number of query requests */
+    long getQueries()
+    {
+        return queries.get();
+    }
+
+    /** @param handler Function that receives the query text and returns the JSON response, <code>null</code> for no data */
+    void setQueryHandler(final Function<String, String> handler)
+    {
+        query_handler = handler;
+    }
+
+    /** @param count Number of write requests that will fail
+     *  @param code HTTP response code for failed writes
+     *  @param body Response body for failed writes
+     */
+    void failWrites(final int count, final int code, final String body)
+    {
+        failure_code = code;
+        failure_body = body;
+        write_failures.set(count);
+    }
+
+    /** @param name Name of a query parameter, for example "rp"
+     *  @return Value of that parameter in the last successful write request
+     *  @throws IOException on error
+     */
+    String getWriteParameter(final String name) throws IOException
+    {
+        return getParameter(last_write_path, name);
+    }
+
+    private String query(final String path) throws IOException
+    {
+        queries.incrementAndGet();
+        final Function<String, String> handler = query_handler;
+        if (handler == null)
+            return "{\"results\":[{\"statement_id\":0}]}";
+        return handler.apply(getParameter(path, "q"));
+    }
+
+    private void accept()
+    {
+        try
+        {
+            while (true)
+            {
+                final Socket socket = server.accept();
+                final Thread thread = new Thread(() -> serve(socket), "Fake InfluxDB Connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (IOException ex)
+        {
+            // Closed
+        }
+    }
+
+    /** Handle requests of one keep-alive connection */
+    private void serve(final Socket socket)
+    {
+        try
+        (
+            final Socket s = socket;
+            final DataInputStream in = new DataInputStream(s.getInputStream());
+            final OutputStream out = s.getOutputStream();
+        )
+        {
+            String request;
+            while ((request = readLine(in)) != null)
+            {
+                int length = 0;
+                boolean gzip = false;
+                String header;
+                while ((header = readLine(in)) != null  &&  !header.isEmpty())
+                {
+                    final String lower = header.toLowerCase();
+                    if (lower.startsWith("content-length:"))
+                        length = Integer.parseInt(header.substring(15).trim());
+                    else if (lower.startsWith("content-encoding:")  &&  lower.contains("gzip"))
+                        gzip = true;
+                }
+                final byte[] body = new byte[length];
+                in.readFully(body);
+
+                final String path = request.split(" ")[1];
+                if (path.startsWith("/ping"))
+                    respond(out, 204, "X-Influxdb-Version: 1.2.0\r\n", "");
+                else if (path.startsWith("/query"))
+                    respond(out, 200, "Content-Type: application/json\r\n", query(path));
+                else if (path.startsWith("/write"))
+                {
+                    if (write_failures.getAndUpdate(n -> Math.max(0, n-1)) > 0)
+                        respond(out, failure_code, "Content-Type: application/json\r\n", failure_body);
+                    else
+                    {
+                        last_write_path = path;
+                        countPoints(getParameter(path, "db"), gzip ? unzip(body) : body);
+                        respond(out, 204, "", "");
+                    }
+                }
+                else
+                    respond(out, 404, "", "");
+            }
+        }
+        catch (IOException ex)
+        {
+            // Client closed connection
+        }
+    }
+
+    private void countPoints(final String dbName, final byte[] body)
+    {
+        int lines = 0, runs = 0;
+        int key_start = 0, key_len = -1;
+        int start = 0;
+        while (start < body.length)
+        {
+            // Series key ends at first space that is not escaped
+            int pos = start;
+            while (pos < body.length  &&  body[pos] != ' '  &&  body[pos] != '\n')
+                pos += body[pos] == '\\' ? 2 : 1;
+            final int len = Math.min(pos, body.length) - start;
+            if (len != key_len  ||  ! sameBytes(body, start, key_start, len))
+                ++runs;
+            key_start = start;
+            key_len = len;
+            while (pos < body.length  &&  body[pos] != '\n')
+                ++pos;
+            ++lines;
+            start = pos + 1;
+        }
+        series_runs.addAndGet(runs);
+        points.computeIfAbsent(dbName, db -> new AtomicLong()).addAndGet(lines);
+        requests.incrementAndGet();
+    }
+
+    private static boolean sameBytes(final byte[] data, final int a, final int b, final int len)
+    {
+        for (int i=0; i<len; ++i)
+            if (data[a+i] != data[b+i])
+                return false;
+        return true;
+    }
+
+    private static String getParameter(final String path, final String name) throws IOException
+    {
+        final int query = path.indexOf('?');
+        if (query < 0)
+            return "";
+        for (String param : path.substring(query+1).split("&"))
+            if (param.startsWith(name + "="))
+                return URLDecoder.decode(param.substring(name.length()+1), "UTF-8");
+        return "";
+    }
+
+    private static byte[] unzip(final byte[] body) throws IOException
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body)))
+        {
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                result.write(buf, 0, len);
+        }
+        return result.toByteArray();
+    }
+
+    private static void respond(final OutputStream out, final int code, final String headers, final String body) throws IOException
+    {
+        final byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        final String response = "HTTP/1.1 " + code + (code < 300 ? " OK" : " Error") + "\r\n" + headers +
+                                "Content-Length: " + content.length + "\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.US_ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    /** @return Line without CR LF, <code>null</code> at end of stream */
+    private static String readLine(final InputStream in) throws IOException
+    {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0)
+        {
+            if (c == '\n')
+            {
+                final int len = line.length();
+                if (len > 0  &&  line.charAt(len-1) == '\r')
+                    line.setLength(len-1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.close();
+    }
+}
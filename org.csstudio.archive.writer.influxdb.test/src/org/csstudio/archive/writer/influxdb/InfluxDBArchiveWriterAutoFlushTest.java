@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.writer.WriteChannel;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.ValueFactory;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.junit.Test;
+
+/** JUnit test of writes that happen without flush()
+ *
+ *  <p>Runs against {@link FakeInfluxDB}
+ *  with the default auto flush settings of 5000 points or 2 seconds.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBArchiveWriterAutoFlushTest
+{
+    final private Display display = ValueFactory.newDisplay(0.0, 1.0, 2.0, "a.u.", NumberFormats.format(2), 8.0, 9.0, 10.0, 0.0, 10.0);
+
+    final private String data_db = new DefaultDBNameMap().getDataDBName("auto_PV");
+
+    private void addSamples(final InfluxDBArchiveWriter writer, final int count) throws Exception
+    {
+        final WriteChannel channel = writer.getChannel("auto_PV");
+        final Instant base = Instant.ofEpochSecond(1490000000L);
+        for (int i=0; i<count; ++i)
+            writer.addSample(channel, new ArchiveVNumber(base.plusMillis(i), AlarmSeverity.NONE, "OK", display, i));
+    }
+
+    /** @return Number of points in data database after waiting up to 5 seconds for the expected number */
+    private long awaitPoints(final FakeInfluxDB server, final long expected) throws Exception
+    {
+        for (int i=0; i<50  &&  server.getPoints(data_db) < expected; ++i)
+            Thread.sleep(100);
+        return server.getPoints(data_db);
+    }
+
+    @Test
+    public void testFlushBySize() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false);
+            final long start = System.currentTimeMillis();
+            addSamples(writer, Preferences.getAutoFlushPoints() + 100);
+            // Full batch is written on the auto flush thread, not by the thread that adds samples
+            assertTrue(awaitPoints(server, Preferences.getAutoFlushPoints()) >= Preferences.getAutoFlushPoints());
+            System.out.println("Full batch written after " + (System.currentTimeMillis() - start) + " ms");
+            assertTrue(System.currentTimeMillis() - start < Preferences.getAutoFlushAge());
+
+            writer.flush();
+            assertEquals(Preferences.getAutoFlushPoints() + 100, server.getPoints(data_db));
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testFlushByAge() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false);
+            addSamples(writer, 10);
+            assertEquals(0, server.getPoints(data_db));
+            final long start = System.currentTimeMillis();
+            assertEquals(10, awaitPoints(server, 10));
+            System.out.println("Aged batch written after " + (System.currentTimeMillis() - start) + " ms");
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testFlushAfterError() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false);
+            // Automatic write fails, points remain for the next flush
+            server.failWrites(100, 500, "{\"error\":\"timeout\"}");
+            addSamples(writer, Preferences.getAutoFlushPoints());
+            Thread.sleep(1000);
+            assertEquals(0, server.getPoints(data_db));
+
+            server.failWrites(0, 500, "");
+            writer.flush();
+            assertEquals(Preferences.getAutoFlushPoints(), server.getPoints(data_db));
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testSplitLargeBatch() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final InfluxDBHttpWriter writer = new InfluxDBHttpWriter(server.getURL(), null, null, false, 1024, WriteRetry.NONE);
+            final LineProtocolBuffer points = new LineProtocolBuffer(1024);
+            for (int i=0; i<500; ++i)
+                points.addLine("split_PV double.0=" + i + " " + (1490000000000000000L + i));
+            writer.write("split", "autogen", ConsistencyLevel.ONE, points);
+
+            // Batch is split into requests of at most 1024 bytes, no point is lost or duplicated
+            assertTrue(server.getWriteRequests() >= points.size() / 1024);
+            assertEquals(500, server.getPoints("split"));
+            System.out.println(writer);
+        }
+    }
+}
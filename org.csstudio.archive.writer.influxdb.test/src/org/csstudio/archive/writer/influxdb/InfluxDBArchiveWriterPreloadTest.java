@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.junit.Test;
+
+/** JUnit test of the meta data preload on writer startup
+ *
+ *  <p>Runs against {@link FakeInfluxDB}.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBArchiveWriterPreloadTest
+{
+    final private static int CHANNELS = 2500;
+
+    /** @return JSON for query of measurement names or newest meta data */
+    private static String answer(final String query)
+    {
+        final StringBuilder json = new StringBuilder("{\"results\":[{\"statement_id\":0,\"series\":[");
+        if (query.startsWith("SHOW MEASUREMENTS"))
+        {
+            json.append("{\"name\":\"measurements\",\"columns\":[\"name\"],\"values\":[");
+            for (int c=0; c<CHANNELS; ++c)
+                json.append(c > 0 ? "," : "").append("[\"preload_PV_").append(c).append("\"]");
+            json.append("]}");
+        }
+        else
+        {
+            final Matcher names = Pattern.compile("\"([^\"]+)\"").matcher(query);
+            boolean first = true;
+            while (names.find())
+            {
+                if (! first)
+                    json.append(',');
+                first = false;
+                json.append("{\"name\":\"").append(names.group(1))
+                    .append("\",\"columns\":[\"time\",\"datatype\",\"null_metadata\"],")
+                    .append("\"values\":[[\"2017-03-20T12:00:00Z\",\"ARCHIVE_STRING\",true]]}");
+            }
+        }
+        return json.append("]}]}").toString();
+    }
+
+    @Test
+    public void testPreload() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            server.setQueryHandler(InfluxDBArchiveWriterPreloadTest::answer);
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false);
+            // One query for the names, one per batch of 1000 channels
+            assertEquals(1 + 3, server.getQueries());
+
+            // Preloaded channel has its meta data
+            InfluxDBWriteChannel channel = (InfluxDBWriteChannel) writer.getChannel("preload_PV_2499");
+            assertEquals(StoreAs.ARCHIVE_STRING, channel.getStorageType());
+
+            // Unknown channel is new, no query
+            channel = (InfluxDBWriteChannel) writer.getChannel("new_PV");
+            assertEquals(StoreAs.ARCHIVE_UNKNOWN, channel.getStorageType());
+            assertEquals(1 + 3, server.getQueries());
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.ValueFactory;
+import org.junit.Test;
+
+/** Multi-threaded stress and throughput test of the archive writer
+ *
+ *  <p>Several threads add samples for the same channels concurrently.
+ *  Runs against {@link FakeInfluxDB}, which counts the written points,
+ *  so it measures the writer without the InfluxDB server.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBArchiveWriterStressTest
+{
+    final private static int THREADS = 8;
+    final private static int CHANNELS = 100;
+    final private static int SAMPLES = 1000;
+
+    final Display display = ValueFactory.newDisplay(0.0, 1.0, 2.0, "a.u.", NumberFormats.format(2), 8.0, 9.0, 10.0, 0.0, 10.0);
+
+    @Test
+    public void testConcurrentWriters() throws Exception
+    {
+        final DefaultDBNameMap dbnames = new DefaultDBNameMap();
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false);
+            for (int c=0; c<CHANNELS; ++c)
+                writer.getChannel("stress_PV_" + c);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Exception> error = new AtomicReference<>();
+            final List<Thread> threads = new ArrayList<>();
+            for (int t=0; t<THREADS; ++t)
+            {
+                final int thread_id = t;
+                final Thread thread = new Thread(() ->
+                {
+                    try
+                    {
+                        start.await();
+                        final Instant base = Instant.ofEpochSecond(1490000000L + thread_id * 100000L);
+                        for (int i=0; i<SAMPLES; ++i)
+                        {
+                            final Instant stamp = base.plusMillis(i);
+                            for (int c=0; c<CHANNELS; ++c)
+                                writer.addSample(writer.getChannel("stress_PV_" + c),
+                                                 new ArchiveVNumber(stamp, AlarmSeverity.NONE, "OK", display, i + c * 0.001));
+                            // Some threads also flush while others keep adding samples
+                            if (thread_id % 4 == 0  &&  i % 100 == 0)
+                                writer.flush();
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        error.set(ex);
+                    }
+                }, "Stress " + t);
+                threads.add(thread);
+                thread.start();
+            }
+
+            final long started = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            writer.flush();
+            final double secs = (System.nanoTime() - started) / 1e9;
+            if (error.get() != null)
+                throw error.get();
+
+            final long samples = (long)THREADS * CHANNELS * SAMPLES;
+            System.out.format("%d threads added %d samples in %.2f sec: %.0f samples/sec, %d write requests\n",
+                              THREADS, samples, secs, samples / secs, server.getWriteRequests());
+            System.out.println(writer.getHttpWriter());
+
+            // Every sample written once, meta data only once per channel
+            final String data_db = dbnames.getDataDBName("stress_PV_0");
+            final String meta_db = dbnames.getMetaDBName("stress_PV_0");
+            assertEquals(samples, server.getPoints(data_db));
+            assertEquals(CHANNELS, server.getPoints(meta_db));
+
+            // Metrics agree
+            final WriterMetrics.Snapshot metrics = writer.getMetrics().snapshot();
+            System.out.println(metrics);
+            assertEquals(samples, metrics.getDatabases().get(data_db).getSamples());
+            assertEquals(samples, metrics.getTypes().get(StoreAs.ARCHIVE_DOUBLE).getPoints());
+            assertEquals(CHANNELS, metrics.getDatabases().get(meta_db).getMetaPoints());
+            assertEquals(0, metrics.getTotal(WriterMetrics.Counts::getFailures));
+            assertEquals(writer.getHttpWriter().getBytesWritten(), metrics.getTotal(WriterMetrics.Counts::getBytes));
+            writer.close();
+        }
+    }
+}
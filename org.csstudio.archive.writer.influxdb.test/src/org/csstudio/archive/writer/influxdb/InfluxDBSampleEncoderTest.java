@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.influxdb.MetaTypes;
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.csstudio.archive.influxdb.PackedDoubleArray;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVNumberArray;
+import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.array.ArrayLong;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.VNumber;
+import org.diirt.vtype.VNumberArray;
+import org.diirt.vtype.VType;
+import org.diirt.vtype.ValueFactory;
+import org.influxdb.dto.Point;
+import org.junit.Test;
+
+/** JUnit test and timing demo of the line protocol sample encoder
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBSampleEncoderTest
+{
+    final Display display = ValueFactory.newDisplay(0.0, 1.0, 2.0, "a.u.", NumberFormats.format(2), 8.0, 9.0, 10.0, 0.0, 10.0);
+    final Instant stamp = Instant.ofEpochSecond(1490000000L, 123456789);
+
+    /** @return Line protocol from buffer encoder, without trailing newline */
+    private String encode(final InfluxDBWriteChannel channel, final VType sample) throws Exception
+    {
+        return encode(channel, sample, MetaTypes.writeVtypeAs(sample));
+    }
+
+    /** @return Line protocol from buffer encoder, without trailing newline */
+    private String encode(final InfluxDBWriteChannel channel, final VType sample, final StoreAs storeas) throws Exception
+    {
+        final LineProtocolBuffer buffer = new LineProtocolBuffer(100);
+        InfluxDBSampleEncoder.encodeSample(buffer, channel, stamp, sample, storeas);
+        assertEquals(1, buffer.getPointCount());
+        final String text = buffer.toString();
+        return text.substring(0, text.length() - 1);
+    }
+
+    @Test
+    public void testLineProtocol() throws Exception
+    {
+        final InfluxDBWriteChannel channel = new InfluxDBWriteChannel("test PV,with=specials");
+        VType sample = new ArchiveVNumber(stamp, AlarmSeverity.MINOR, "LOW", display, 3.14);
+        System.out.println(encode(channel, sample));
+        assertEquals("test\\ PV\\,with\\=specials,severity=MINOR,status=LOW double.0=3.14 1490000000123456789",
+                     encode(channel, sample));
+
+        final InfluxDBWriteChannel x = new InfluxDBWriteChannel("x");
+        sample = new ArchiveVNumber(stamp, AlarmSeverity.NONE, "OK", display, 2.0);
+        assertEquals("x,severity=NONE,status=OK double.0=2 1490000000123456789", encode(x, sample));
+
+        sample = new ArchiveVNumber(stamp, AlarmSeverity.MAJOR, "HIHI", display, -42L);
+        assertEquals(StoreAs.ARCHIVE_LONG, MetaTypes.writeVtypeAs(sample));
+        assertEquals("x,severity=MAJOR,status=HIHI long.0=-42i 1490000000123456789", encode(x, sample));
+
+        sample = new ArchiveVNumber(stamp, AlarmSeverity.NONE, "OK", display, Double.NaN);
+        assertEquals("x,severity=UNDEFINED,status=NaN double.0=0 1490000000123456789", encode(x, sample));
+
+        sample = new ArchiveVNumberArray(stamp, AlarmSeverity.NONE, "OK", display, 1.5, -2.25, 3.0);
+        assertEquals("x,severity=NONE,status=OK double.0=1.5,double.1=-2.25,double.2=3 1490000000123456789",
+                     encode(x, sample));
+        assertEquals("x,severity=NONE,status=OK " + PackedDoubleArray.FIELD + "=\"" +
+                     PackedDoubleArray.encode(((VNumberArray)sample).getData()) + "\" 1490000000123456789",
+                     encode(x, sample, StoreAs.ARCHIVE_PACKED_DOUBLE_ARRAY));
+
+        sample = new ArchiveVNumberArray(stamp, AlarmSeverity.NONE, "OK", display, new ArrayLong(1, -2, 3000000000L));
+        assertEquals(StoreAs.ARCHIVE_LONG_ARRAY, MetaTypes.writeVtypeAs(sample));
+        assertEquals("x,severity=NONE,status=OK long.0=1i,long.1=-2i,long.2=3000000000i 1490000000123456789",
+                     encode(x, sample));
+
+        sample = new ArchiveVString(stamp, AlarmSeverity.INVALID, "Bad \"quote\"", "Text with \"quotes\", \u00b5A");
+        System.out.println(encode(x, sample));
+        assertEquals("x,severity=INVALID,status=Bad\\ \"quote\" string.0=\"Text with \\\"quotes\\\", \u00b5A\" 1490000000123456789",
+                     encode(x, sample));
+    }
+
+    @Test
+    public void testDoubleFormat() throws Exception
+    {
+        final InfluxDBWriteChannel channel = new InfluxDBWriteChannel("x");
+        final VType sample = new ArchiveVNumberArray(stamp, AlarmSeverity.NONE, "OK", display, 1e-5, 1e20, Double.NaN, -0.5);
+        assertEquals("x,severity=NONE,status=OK double.0=1.0E-5,double.1=1.0E20,double.2=0,double.3=-0.5 1490000000123456789",
+                     encode(channel, sample));
+        assertEquals(StoreAs.ARCHIVE_DOUBLE_ARRAY, MetaTypes.writeVtypeAs(sample));
+    }
+
+    @Test
+    public void testInfinity() throws Exception
+    {
+        // Line protocol has no infinity, so the largest value is written with a status that tells the reader
+        final InfluxDBWriteChannel channel = new InfluxDBWriteChannel("x");
+        VType sample = new ArchiveVNumber(stamp, AlarmSeverity.NONE, "OK", display, Double.POSITIVE_INFINITY);
+        assertEquals("x,severity=UNDEFINED,status=Infinity double.0=1.7976931348623157E308 1490000000123456789",
+                     encode(channel, sample));
+
+        sample = new ArchiveVNumber(stamp, AlarmSeverity.MINOR, "LOW", display, Double.NEGATIVE_INFINITY);
+        assertEquals("x,severity=UNDEFINED,status=-Infinity double.0=-1.7976931348623157E308 1490000000123456789",
+                     encode(channel, sample));
+
+        sample = new ArchiveVNumberArray(stamp, AlarmSeverity.NONE, "OK", display, 1.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        assertEquals("x,severity=NONE,status=OK double.0=1,double.1=1.7976931348623157E308,double.2=-1.7976931348623157E308 1490000000123456789",
+                     encode(channel, sample));
+
+        try
+        {
+            new LineProtocolBuffer(100).addField("double.0=".getBytes(StandardCharsets.UTF_8), Double.POSITIVE_INFINITY);
+            fail("Wrote infinity");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Expected
+        }
+    }
+
+    /** Compare time to encode a batch of samples
+     *  with the buffer encoder and with {@link Point#lineProtocol()}
+     */
+    @Test
+    public void demoEncoderSpeed() throws Exception
+    {
+        final int SAMPLES = 1000000;
+        final InfluxDBWriteChannel channel = new InfluxDBWriteChannel("demo_PV");
+        final VType[] samples = new VType[1000];
+        for (int i=0; i<samples.length; ++i)
+            samples[i] = new ArchiveVNumber(stamp.plusMillis(i), AlarmSeverity.NONE, "OK", display, i * 0.1);
+        final StoreAs storeas = MetaTypes.writeVtypeAs(samples[0]);
+
+        final LineProtocolBuffer buffer = new LineProtocolBuffer(64 * 1024);
+        for (int run=0; run<3; ++run)
+        {
+            // Baseline: Same samples as influxdb-java Point
+            long start = System.nanoTime();
+            long point_bytes = 0;
+            for (int i=0; i<SAMPLES; ++i)
+            {
+                final VNumber sample = (VNumber) samples[i % samples.length];
+                final Point point = Point.measurement(channel.getName())
+                                         .time(InfluxDBUtil.toNanoLong(stamp), TimeUnit.NANOSECONDS)
+                                         .tag("severity", sample.getAlarmSeverity().name())
+                                         .tag("status", sample.getAlarmName())
+                                         .addField("double.0", sample.getValue().doubleValue())
+                                         .build();
+                point_bytes += point.lineProtocol().length() + 1;
+            }
+            final double point_secs = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int i=0; i<SAMPLES; ++i)
+            {
+                if (buffer.getPointCount() >= 5000)
+                {
+                    bytes += buffer.size();
+                    buffer.reset();
+                }
+                InfluxDBSampleEncoder.encodeSample(buffer, channel, stamp, samples[i % samples.length], storeas);
+            }
+            final double buffer_secs = (System.nanoTime() - start) / 1e9;
+
+            System.out.format("Point encoder:  %8.0f samples/sec (%d bytes)\n", SAMPLES / point_secs, point_bytes);
+            System.out.format("Buffer encoder: %8.0f samples/sec (%d bytes), %.1f times faster\n",
+                              SAMPLES / buffer_secs, bytes + buffer.size(), point_secs / buffer_secs);
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.csstudio.archive.influxdb.InfluxDBQueries.DefaultDBNameMap;
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.ValueFactory;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.junit.Test;
+
+/** JUnit test of UDP writes
+ *
+ *  <p>Runs against a loopback UDP receiver and {@link FakeInfluxDB}.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBUdpWriterTest
+{
+    /** Counts points received via UDP */
+    private static class Receiver implements AutoCloseable
+    {
+        final DatagramSocket socket;
+        final AtomicLong points = new AtomicLong(), datagrams = new AtomicLong();
+        volatile int max_size = 0;
+
+        Receiver() throws IOException
+        {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            socket.setReceiveBufferSize(8 * 1024 * 1024);
+            final Thread thread = new Thread(this::receive, "UDP Receiver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void receive()
+        {
+            final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            try
+            {
+                while (true)
+                {
+                    socket.receive(packet);
+                    final byte[] data = packet.getData();
+                    final int length = packet.getLength();
+                    // Every datagram holds complete lines
+                    if (length > 0  &&  data[length-1] == '\n')
+                    {
+                        int lines = 0;
+                        for (int i=0; i<length; ++i)
+                            if (data[i] == '\n')
+                                ++lines;
+                        points.addAndGet(lines);
+                    }
+                    max_size = Math.max(max_size, length);
+                    datagrams.incrementAndGet();
+                }
+            }
+            catch (IOException ex)
+            {
+                // Closed
+            }
+        }
+
+        /** Wait until expected number of points was received, or timeout */
+        long waitForPoints(final long expected) throws InterruptedException
+        {
+            final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (points.get() < expected  &&  System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            return points.get();
+        }
+
+        @Override
+        public void close()
+        {
+            socket.close();
+        }
+    }
+
+    final private Display display = ValueFactory.newDisplay(0.0, 1.0, 2.0, "a.u.", NumberFormats.format(2), 8.0, 9.0, 10.0, 0.0, 10.0);
+
+    private static LineProtocolBuffer createPoints(final int channels, final int samples)
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(1024*1024);
+        for (int i=0; i<samples; ++i)
+            for (int c=0; c<channels; ++c)
+                points.addLine("fast_PV_" + c + ",severity=NONE,status=OK double.0=" + (i + c*0.001) + " " + (1490000000000000000L + i*1000000L));
+        return points;
+    }
+
+    @Test
+    public void testThroughput() throws Exception
+    {
+        final int runs = 50;
+        final LineProtocolBuffer points = createPoints(100, 50);
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+            final Receiver receiver = new Receiver();
+        )
+        {
+            final InfluxDBHttpWriter http = new InfluxDBHttpWriter(server.getURL(), null, null, false, 1024*1024, WriteRetry.NONE);
+            final InfluxDBUdpWriter udp = new InfluxDBUdpWriter(server.getURL(), 1400);
+
+            long start = System.nanoTime();
+            for (int run=0; run<runs; ++run)
+                http.write("fast", "autogen", ConsistencyLevel.ALL, points);
+            final double http_secs = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int run=0; run<runs; ++run)
+                udp.write(receiver.socket.getLocalPort(), points);
+            final double udp_secs = (System.nanoTime() - start) / 1e9;
+            final long total = (long)runs * points.getPointCount();
+            final long received = receiver.waitForPoints(total);
+
+            System.out.format("HTTP: %d points in %.3f sec, %.0f points/sec\n", total, http_secs, total / http_secs);
+            System.out.format("UDP : %d points in %.3f sec, %.0f points/sec, %d received in %d datagrams\n",
+                              total, udp_secs, total / udp_secs, received, receiver.datagrams.get());
+            assertEquals(total, server.getPoints("fast"));
+            // Loopback may still drop datagrams when the receiver falls behind
+            assertTrue(received > 0);
+            assertTrue(receiver.max_size <= 1400);
+            http.close();
+            udp.close();
+        }
+    }
+
+    @Test
+    public void testRouting() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+            final Receiver receiver = new Receiver();
+        )
+        {
+            final DefaultDBNameMap dbnames = new DefaultDBNameMap()
+            {
+                @Override
+                public int getUDPPort(final String db_name)
+                {
+                    return db_name.equals(this.db_name) ? receiver.socket.getLocalPort() : 0;
+                }
+            };
+            final String data_db = dbnames.getDataDBName("x"), meta_db = dbnames.getMetaDBName("x");
+            final InfluxDBArchiveWriter writer = new InfluxDBArchiveWriter(server.getURL(), null, null, false, dbnames);
+            final Instant start = Instant.ofEpochSecond(1490000000L);
+            for (int i=0; i<100; ++i)
+            {
+                final Instant stamp = start.plusMillis(i);
+                writer.addSample(writer.getChannel("udp_fast"), new ArchiveVNumber(stamp, AlarmSeverity.NONE, "OK", display, i));
+                writer.addSample(writer.getChannel("udp_text"), new ArchiveVString(stamp, AlarmSeverity.NONE, "OK", "Text " + i));
+            }
+            writer.flush();
+
+            // Numbers via UDP, strings and all meta data via HTTP
+            assertEquals(100, receiver.waitForPoints(100));
+            assertEquals(100, server.getPoints(data_db));
+            assertEquals(2, server.getPoints(meta_db));
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** JUnit test of the latency histogram */
+@SuppressWarnings("nls")
+public class LatencyHistogramTest
+{
+    @Test
+    public void testPercentiles() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.snapshot().getPercentileMillis(99), 0.0);
+
+        // 1 .. 100 ms
+        for (int i=1; i<=100; ++i)
+            histogram.record(i * 1000000L);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        System.out.println(snapshot);
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50.5, snapshot.getMeanMillis(), 0.001);
+        assertEquals(100.0, snapshot.getMaxMillis(), 0.0);
+        // Buckets are accurate within a factor of 2
+        final double median = snapshot.getPercentileMillis(50);
+        assertTrue(median >= 50.0  &&  median <= 100.0);
+        assertEquals(100.0, snapshot.getPercentileMillis(99), 0.0);
+        assertTrue(snapshot.getPercentileMillis(1) <= 2.0);
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.junit.Test;
+
+/** JUnit test and benchmark of sorting batches by series
+ *
+ *  <p>The benchmark runs against {@link FakeInfluxDB}.
+ *  It shows the CPU time of the sort in the writer,
+ *  and as the server-side gain the number of series runs
+ *  that InfluxDB would need to look up.
+ *  The actual ingest time needs to be measured with InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class LineProtocolBufferSortTest
+{
+    @Test
+    public void testSort() throws Exception
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(100);
+        points.addLine("b,severity=NONE double.0=1 300");
+        points.addLine("a\\ b double.0=2 200");
+        points.addLine("b,severity=NONE double.0=3 100");
+        points.addLine("a double.0=4 500");
+        points.addLine("b,severity=NONE double.0=5 100");
+        points.addLine("c string.0=\"no time\"");
+        points.addLine("a\\ b string.0=\"x 1\" 100");
+        final int size = points.size();
+
+        assertTrue(points.sortBySeries());
+        System.out.println(points);
+        // Escaped space is part of the series key,
+        // points with same series and time keep their order
+        assertEquals("a double.0=4 500\n" +
+                     "a\\ b string.0=\"x 1\" 100\n" +
+                     "a\\ b double.0=2 200\n" +
+                     "b,severity=NONE double.0=3 100\n" +
+                     "b,severity=NONE double.0=5 100\n" +
+                     "b,severity=NONE double.0=1 300\n" +
+                     "c string.0=\"no time\"\n",
+                     points.toString());
+        assertEquals(7, points.getPointCount());
+        assertEquals(size, points.size());
+
+        // Already sorted
+        assertFalse(points.sortBySeries());
+
+        // Buffer remains usable
+        points.addLine("a double.0=6 100");
+        assertTrue(points.sortBySeries());
+        assertTrue(points.toString().startsWith("a double.0=6 100\na double.0=4 500\n"));
+    }
+
+    /** @return Batch as collected by the writer: All channels for one time stamp, then the next time stamp */
+    private static LineProtocolBuffer createBatch(final int channels, final int samples)
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(1024*1024);
+        for (int i=0; i<samples; ++i)
+            for (int c=0; c<channels; ++c)
+                points.addLine("sort_PV_" + c + ",severity=NONE,status=OK double.0=" + (i + c*0.001) + " " + (1490000000000000000L + i*1000000L));
+        return points;
+    }
+
+    @Test
+    public void testBenchmark() throws Exception
+    {
+        final int channels = 1000, samples = 5, runs = 200;
+        final LineProtocolBuffer batch = createBatch(channels, samples);
+        final LineProtocolBuffer points = new LineProtocolBuffer(batch.size());
+        final long total = (long)runs * batch.getPointCount();
+
+        try (final FakeInfluxDB server = new FakeInfluxDB())
+        {
+            final InfluxDBHttpWriter writer = new InfluxDBHttpWriter(server.getURL(), null, null, false, 1024*1024, WriteRetry.NONE);
+
+            // Arrival order
+            long start = System.nanoTime();
+            for (int run=0; run<runs; ++run)
+            {
+                points.reset();
+                points.addLines(batch);
+                writer.write("unsorted", "autogen", ConsistencyLevel.ALL, points);
+            }
+            final double unsorted_secs = (System.nanoTime() - start) / 1e9;
+            final long unsorted_runs = server.getSeriesRuns();
+
+            // Sorted before the write
+            long sort_nanos = 0;
+            start = System.nanoTime();
+            for (int run=0; run<runs; ++run)
+            {
+                points.reset();
+                points.addLines(batch);
+                final long sort_start = System.nanoTime();
+                assertTrue(points.sortBySeries());
+                sort_nanos += System.nanoTime() - sort_start;
+                writer.write("sorted", "autogen", ConsistencyLevel.ALL, points);
+            }
+            final double sorted_secs = (System.nanoTime() - start) / 1e9;
+            final long sorted_runs = server.getSeriesRuns() - unsorted_runs;
+
+            System.out.format("Unsorted: %d points in %.3f sec, %d series runs (%.2f per point)\n",
+                              total, unsorted_secs, unsorted_runs, unsorted_runs / (double)total);
+            System.out.format("Sorted  : %d points in %.3f sec, %d series runs (%.3f per point), sort %.0f ns/point\n",
+                              total, sorted_secs, sorted_runs, sorted_runs / (double)total, sort_nanos / (double)total);
+
+            assertEquals(total, server.getPoints("unsorted"));
+            assertEquals(total, server.getPoints("sorted"));
+            // Interleaved batch: Every point starts a new run.
+            // Sorted: One run per channel and batch
+            assertEquals(total, unsorted_runs);
+            assertEquals((long)runs * channels, sorted_runs);
+            writer.close();
+        }
+    }
+}
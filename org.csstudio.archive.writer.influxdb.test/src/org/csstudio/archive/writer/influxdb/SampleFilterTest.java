@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.csstudio.archive.vtype.ArchiveVNumber;
+import org.csstudio.archive.vtype.ArchiveVNumberArray;
+import org.csstudio.archive.vtype.ArchiveVString;
+import org.diirt.util.text.NumberFormats;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
+import org.diirt.vtype.VType;
+import org.diirt.vtype.ValueFactory;
+import org.junit.Test;
+
+/** JUnit test of the deadband sample filter
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class SampleFilterTest
+{
+    final Display display = ValueFactory.newDisplay(0.0, 1.0, 2.0, "a.u.", NumberFormats.format(2), 8.0, 9.0, 10.0, 0.0, 10.0);
+    final Instant start = Instant.ofEpochSecond(1490000000L);
+
+    private boolean accept(final SampleFilter filter, final int secs, final VType sample)
+    {
+        return filter.accept(start.plusSeconds(secs), sample, false);
+    }
+
+    private VType number(final double value)
+    {
+        return new ArchiveVNumber(start, AlarmSeverity.NONE, "OK", display, value);
+    }
+
+    @Test
+    public void testDeadband() throws Exception
+    {
+        final SampleFilter filter = new SampleFilter(0.5, 0.0, Duration.ofSeconds(60));
+        assertTrue(accept(filter, 0, number(1.0)));
+        assertFalse(accept(filter, 1, number(1.0)));
+        assertFalse(accept(filter, 2, number(1.4)));
+        // Deadband is relative to the last written value, not the last sample
+        assertTrue(accept(filter, 3, number(1.6)));
+        assertFalse(accept(filter, 4, number(1.2)));
+        // Change in severity or status is always written
+        assertTrue(accept(filter, 5, new ArchiveVNumber(start, AlarmSeverity.MINOR, "LOW", display, 1.6)));
+        assertTrue(accept(filter, 6, number(1.6)));
+        assertTrue(accept(filter, 7, number(Double.NaN)));
+        assertFalse(accept(filter, 8, number(Double.NaN)));
+        assertTrue(accept(filter, 9, number(1.6)));
+        // Heartbeat
+        assertFalse(accept(filter, 68, number(1.6)));
+        assertTrue(accept(filter, 69, number(1.6)));
+        // Meta data change
+        assertTrue(filter.accept(start.plusSeconds(70), number(1.6), true));
+    }
+
+    @Test
+    public void testChangeOnly() throws Exception
+    {
+        final SampleFilter filter = new SampleFilter(0.0, 0.0, Duration.ofSeconds(60));
+        assertTrue(accept(filter, 0, new ArchiveVString(start, AlarmSeverity.NONE, "OK", "Fault")));
+        assertFalse(accept(filter, 1, new ArchiveVString(start, AlarmSeverity.NONE, "OK", "Fault")));
+        assertTrue(accept(filter, 2, new ArchiveVString(start, AlarmSeverity.NONE, "OK", "OK")));
+
+        assertTrue(accept(filter, 3, new ArchiveVNumberArray(start, AlarmSeverity.NONE, "OK", display, 1, 2, 3)));
+        assertFalse(accept(filter, 4, new ArchiveVNumberArray(start, AlarmSeverity.NONE, "OK", display, 1, 2, 3)));
+        assertTrue(accept(filter, 5, new ArchiveVNumberArray(start, AlarmSeverity.NONE, "OK", display, 1, 2, 3.001)));
+        assertTrue(accept(filter, 6, new ArchiveVNumberArray(start, AlarmSeverity.NONE, "OK", display, 1, 2)));
+    }
+
+    @Test
+    public void testRelativeDeadband() throws Exception
+    {
+        final SampleFilter filter = new SampleFilter(0.0, 0.01, Duration.ofSeconds(60));
+        assertTrue(accept(filter, 0, number(1000.0)));
+        assertFalse(accept(filter, 1, number(1009.0)));
+        assertTrue(accept(filter, 2, number(1011.0)));
+    }
+}
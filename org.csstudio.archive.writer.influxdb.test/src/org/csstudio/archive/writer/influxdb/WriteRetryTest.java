@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.csstudio.archive.writer.influxdb.WriteException.Kind;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.junit.Test;
+
+/** JUnit test of write retries and write policies
+ *
+ *  <p>Runs against {@link FakeInfluxDB}.
+ */
+@SuppressWarnings("nls")
+public class WriteRetryTest
+{
+    private static LineProtocolBuffer createPoints(final int count)
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(1024);
+        for (int i=0; i<count; ++i)
+            points.addLine("x double.0=" + i + " " + (1490000000000000000L + i));
+        return points;
+    }
+
+    @Test
+    public void testClassify()
+    {
+        assertEquals(Kind.RETRYABLE, WriteException.classify(500, "{\"error\":\"timeout\"}"));
+        assertEquals(Kind.RETRYABLE, WriteException.classify(503, ""));
+        assertEquals(Kind.RETRYABLE, WriteException.classify(429, ""));
+        assertEquals(Kind.PARTIAL, WriteException.classify(500, "{\"error\":\"partial write\"}"));
+        assertEquals(Kind.PERMANENT, WriteException.classify(400,
+                "{\"error\":\"partial write: field type conflict: input field \\\"double.0\\\" on measurement \\\"x\\\" is type string, already exists as type float dropped=1\"}"));
+        assertEquals(Kind.PERMANENT, WriteException.classify(400, "{\"error\":\"unable to parse 'x y'\"}"));
+        assertEquals(Kind.PERMANENT, WriteException.classify(400, "{\"error\":\"partial write: points beyond retention policy dropped=3\"}"));
+        assertEquals(Kind.PERMANENT, WriteException.classify(400, "{\"error\":\"partial write: max-values-per-tag limit exceeded dropped=1\"}"));
+
+        // Valid points that the server refuses until its configuration is fixed
+        assertEquals(Kind.REFUSED, WriteException.classify(404, "{\"error\":\"database not found: \\\"nonexisting\\\"\"}"));
+        assertEquals(Kind.REFUSED, WriteException.classify(400, "{\"error\":\"retention policy not found: two_years\"}"));
+        assertEquals(Kind.REFUSED, WriteException.classify(401, "{\"error\":\"authorization failed\"}"));
+        assertEquals(Kind.REFUSED, WriteException.classify(403, "{\"error\":\"\\\"archiver\\\" user is not authorized to write to database \\\"data\\\"\"}"));
+        assertEquals(Kind.REFUSED, WriteException.classify(413, ""));
+
+        // Only rejected points would fail again
+        assertTrue(WriteException.isPermanent(new WriteException("x", Kind.PERMANENT, 400, null)));
+        assertFalse(WriteException.isPermanent(new WriteException("x", Kind.REFUSED, 401, null)));
+        assertFalse(WriteException.isPermanent(new WriteException("x", Kind.RETRYABLE, 500, null)));
+        assertFalse(WriteException.isPermanent(new WriteException("x", Kind.PARTIAL, 500, null)));
+    }
+
+    @Test
+    public void testBackoff() throws Exception
+    {
+        // Record the delays instead of waiting
+        final List<Long> delays = new ArrayList<>();
+        final WriteRetry retry = new WriteRetry(10, 100, 1000, delays::add);
+        final AtomicInteger attempts = new AtomicInteger();
+        try
+        {
+            retry.run(() ->
+            {
+                attempts.incrementAndGet();
+                throw new IOException("Connection refused");
+            }, "Test");
+            fail("Write succeeded");
+        }
+        catch (IOException ex)
+        {
+            // Expected after all retries
+        }
+        assertEquals(11, attempts.get());
+        assertEquals(10, retry.getRetries());
+        assertEquals(10, delays.size());
+        for (int i=0; i<10; ++i)
+        {
+            final long limit = Math.min(1000, 100L << i);
+            final long delay = delays.get(i);
+            assertTrue(delay >= limit/2  &&  delay <= limit);
+        }
+
+        // No delay when the first attempt succeeds
+        delays.clear();
+        retry.run(() -> {}, "Test");
+        assertTrue(delays.isEmpty());
+
+        // Write that succeeds on the third attempt
+        attempts.set(0);
+        retry.run(() ->
+        {
+            if (attempts.incrementAndGet() < 3)
+                throw new WriteException("timeout", Kind.RETRYABLE, 500, null);
+        }, "Test");
+        assertEquals(3, attempts.get());
+        assertEquals(2, delays.size());
+    }
+
+    @Test
+    public void testRetry() throws Exception
+    {
+        try
+        (
+            final FakeInfluxDB server = new FakeInfluxDB();
+        )
+        {
+            final WriteRetry retry = new WriteRetry(3, 1, 10);
+            final InfluxDBHttpWriter writer = new InfluxDBHttpWriter(server.getURL(), null, null, false, 1024, retry);
+
+            // Transient errors are retried
+            server.failWrites(2, 500, "{\"error\":\"timeout\"}");
+            writer.write("test", "two_years", ConsistencyLevel.QUORUM, createPoints(10));
+            assertEquals(10, server.getPoints("test"));
+            assertEquals(2, retry.getRetries());
+            assertEquals("two_years", server.getWriteParameter("rp"));
+            assertEquals("quorum", server.getWriteParameter("consistency"));
+
+            // .. up to the configured number of retries
+            server.failWrites(4, 500, "{\"error\":\"partial write\"}");
+            try
+            {
+                writer.write("test", "autogen", ConsistencyLevel.ALL, createPoints(10));
+                fail("Write succeeded");
+            }
+            catch (WriteException ex)
+            {
+                assertEquals(Kind.PARTIAL, ex.getKind());
+            }
+            assertEquals(5, retry.getRetries());
+            assertEquals(10, server.getPoints("test"));
+
+            // Rejected points are not retried
+            server.failWrites(1, 400, "{\"error\":\"partial write: field type conflict dropped=1\"}");
+            try
+            {
+                writer.write("test", "autogen", ConsistencyLevel.ALL, createPoints(10));
+                fail("Write succeeded");
+            }
+            catch (WriteException ex)
+            {
+                assertEquals(Kind.PERMANENT, ex.getKind());
+                assertEquals(400, ex.getCode());
+            }
+            assertEquals(5, retry.getRetries());
+
+            // Refused writes are not retried right away, the caller keeps the points
+            server.failWrites(1, 401, "{\"error\":\"authorization failed\"}");
+            try
+            {
+                writer.write("test", "autogen", ConsistencyLevel.ALL, createPoints(10));
+                fail("Write succeeded");
+            }
+            catch (WriteException ex)
+            {
+                assertEquals(Kind.REFUSED, ex.getKind());
+                assertFalse(WriteException.isPermanent(ex));
+            }
+            assertEquals(5, retry.getRetries());
+
+            // A large batch is split into several requests.
+            // Only the failed request is retried, and requests after a rejected one are still written.
+            final LineProtocolBuffer points = createPoints(200);
+            final long requests = server.getWriteRequests();
+            server.failWrites(1, 400, "{\"error\":\"unable to parse\"}");
+            try
+            {
+                writer.write("large", "autogen", ConsistencyLevel.ALL, points);
+                fail("Write succeeded");
+            }
+            catch (WriteException ex)
+            {
+                assertEquals(Kind.PERMANENT, ex.getKind());
+            }
+            assertTrue(server.getWriteRequests() > requests);
+            assertTrue(server.getPoints("large") > 0);
+            assertTrue(server.getPoints("large") < 200);
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testPolicies() throws Exception
+    {
+        final WritePolicy defaults = new WritePolicy("autogen", ConsistencyLevel.ALL);
+        final Map<String, WritePolicy> policies = WritePolicy.parse(" data=two_years:quorum, meta=forever ,other=:ONE", defaults);
+        assertEquals(3, policies.size());
+        assertEquals("two_years", policies.get("data").getRetention());
+        assertEquals(ConsistencyLevel.QUORUM, policies.get("data").getConsistency());
+        assertEquals("forever", policies.get("meta").getRetention());
+        assertEquals(ConsistencyLevel.ALL, policies.get("meta").getConsistency());
+        assertEquals("autogen", policies.get("other").getRetention());
+        assertEquals(ConsistencyLevel.ONE, policies.get("other").getConsistency());
+        assertTrue(WritePolicy.parse("", defaults).isEmpty());
+        try
+        {
+            WritePolicy.parse("data=x:SOME", defaults);
+            fail("Accepted unknown consistency");
+        }
+        catch (Exception ex)
+        {
+            // Expected
+        }
+    }
+}
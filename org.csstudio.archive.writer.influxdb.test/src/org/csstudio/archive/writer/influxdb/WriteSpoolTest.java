@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+/** JUnit test of the write-ahead spool
+ *
+ *  <p>Runs without InfluxDB.
+ */
+@SuppressWarnings("nls")
+public class WriteSpoolTest
+{
+    private LineProtocolBuffer makePoints(final String line)
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(100);
+        points.addLine(line);
+        return points;
+    }
+
+    private void waitForBacklog(final WriteSpool spool) throws Exception
+    {
+        for (int i=0; i<100  &&  spool.getBacklog() > 0; ++i)
+            Thread.sleep(100);
+        assertEquals(0, spool.getBacklog());
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        final File file = File.createTempFile("spool", ".dat");
+        file.delete();
+        final List<String> sent = new CopyOnWriteArrayList<>();
+
+        WriteSpool spool = new WriteSpool(file, 1024*1024, WriteSpool.FSync.ALWAYS, 1024*1024,
+                                          (db, points) -> sent.add(db + ": " + points));
+        // Acknowledged batch is not replayed
+        WriteSpool.Record record = spool.append("db1", makePoints("a value=1 1"));
+        assertNotNull(record);
+        spool.acknowledge(record);
+
+        // Failed batch is replayed
+        record = spool.append("db2", makePoints("b value=2 2"));
+        spool.fail(record);
+        waitForBacklog(spool);
+        System.out.println(spool);
+        assertEquals(1, sent.size());
+        assertEquals("db2: b value=2 2\n", sent.get(0));
+
+        // Batch that cannot be sent remains in the spool across restart
+        sent.clear();
+        spool.close();
+        spool = new WriteSpool(file, 1024*1024, WriteSpool.FSync.ALWAYS, 1024*1024,
+                               (db, points) -> { throw new Exception("Offline"); });
+        record = spool.append("db3", makePoints("c value=3 3"));
+        spool.fail(record);
+        spool.close();
+
+        spool = new WriteSpool(file, 1024*1024, WriteSpool.FSync.ALWAYS, 1024*1024,
+                               (db, points) -> sent.add(db + ": " + points));
+        waitForBacklog(spool);
+        System.out.println(spool);
+        assertEquals(1, sent.size());
+        assertEquals("db3: c value=3 3\n", sent.get(0));
+        spool.close();
+        file.delete();
+    }
+}
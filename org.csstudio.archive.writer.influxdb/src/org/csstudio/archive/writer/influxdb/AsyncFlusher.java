@@ -0,0 +1,623 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/** Background writer for batches of points
+ *
+ *  <p>Batches are queued per database and written by dedicated
+ *  flusher threads, so the thread adding samples does not wait
+ *  for the HTTP round trip to InfluxDB.
+ *  Each database is always served by the same flusher thread,
+ *  which keeps the write order within a database.
+ *
+ *  <p>The queue is bounded by the total number of queued samples.
+ *  When it is full, the {@link Overflow} policy decides if the
+ *  caller blocks, the oldest queued batch is dropped, or the new
+ *  batch is rejected with an exception.
+ *  With a {@link WriteSpool}, batches are spooled when they are queued.
+ *  Batches that fail to write, or that the overflow policy drops
+ *  or rejects, then remain in the spool for replay instead of being lost.
+ *  Without a spool, a batch that fails to write remains at the head of its lane
+ *  and is retried after a delay, so the queue fills up while a database is unreachable.
+ *  Batches that InfluxDB permanently rejects are neither kept nor retried.
+ *
+ *  <p>{@link #close(long)} writes what is queued until the timeout,
+ *  then returns the batches that are still queued to the spool,
+ *  or reports them as lost.
+ */
+@SuppressWarnings("nls")
+public class AsyncFlusher
+{
+    /** What to do when a batch does not fit into the queue */
+    public enum Overflow
+    {
+        /** Block the caller until there is room */
+        BLOCK,
+        /** Drop the oldest queued batch */
+        DROP_OLDEST,
+        /** Throw an exception for the new batch */
+        REJECT
+    }
+
+    /** Queued batch of points for one database */
+    private static class Batch
+    {
+        final long sequence;
+        final String dbName;
+        final LineProtocolBuffer points;
+        final WriteSpool.Record record;
+        final int size;
+
+        Batch(final long sequence, final String dbName, final LineProtocolBuffer points, final WriteSpool.Record record)
+        {
+            this.sequence = sequence;
+            this.dbName = dbName;
+            this.points = points;
+            this.record = record;
+            this.size = points.getPointCount();
+        }
+    }
+
+    /** Queue and thread for a subset of the databases */
+    private class Lane implements Runnable
+    {
+        final Deque<Batch> batches = new ArrayDeque<>();
+        final Condition not_empty = lock.newCondition();
+        final Thread thread;
+
+        /** Delay before retrying a failed batch */
+        private long retry_ms = MIN_RETRY_MS;
+
+        Lane(final int index)
+        {
+            thread = new Thread(this, "InfluxDB Flusher " + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                final Batch batch;
+                lock.lock();
+                try
+                {
+                    while (batches.isEmpty()  &&  !closed  &&  !aborted)
+                        not_empty.awaitUninterruptibly();
+                    batch = aborted ? null : batches.poll();
+                    if (batch == null)
+                        return;
+                    queued -= batch.size;
+                    in_flight += batch.size;
+                    not_full.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                final boolean done = write(batch);
+                if (done)
+                {
+                    retry_ms = MIN_RETRY_MS;
+                    recycle(batch.points);
+                }
+                lock.lock();
+                try
+                {
+                    in_flight -= batch.size;
+                    if (! done)
+                        retry(batch);
+                    idle.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** Place failed batch back at the head of the lane and wait before retrying it.
+         *  Caller holds lock.
+         */
+        private void retry(final Batch batch)
+        {
+            if (aborted)
+            {
+                lost.addAndGet(batch.size);
+                recycle(batch.points);
+                return;
+            }
+            batches.addFirst(batch);
+            queued += batch.size;
+            retried_batches.incrementAndGet();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(retry_ms);
+            retry_ms = Math.min(MAX_RETRY_MS, retry_ms * 2);
+            while (nanos > 0  &&  !aborted)
+                try
+                {
+                    nanos = not_empty.awaitNanos(nanos);
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+        }
+    }
+
+    /** Delay before retrying a failed batch without spool, doubled up to the maximum */
+    final private static long MIN_RETRY_MS = 100, MAX_RETRY_MS = 10000;
+
+    final private WriteSpool.Sender sender;
+
+    /** Buffers that have been written or dropped, for re-use by the caller */
+    final private Queue<LineProtocolBuffer> spare;
+
+    /** Spool or <code>null</code> */
+    final private WriteSpool spool;
+
+    final private int capacity;
+    final private Overflow overflow;
+
+    /** Lock for all lanes and counters that are not atomic */
+    final private ReentrantLock lock = new ReentrantLock();
+    final private Condition not_full = lock.newCondition();
+    final private Condition idle = lock.newCondition();
+    final private Lane[] lanes;
+
+    private boolean closed = false;
+
+    /** Set by close() after the timeout: Lanes stop, queued batches are no longer written */
+    private boolean aborted = false;
+    private long next_sequence = 0;
+    private int queued = 0;
+    private int max_queued = 0;
+    private int in_flight = 0;
+
+    /** Error of a background write that was not yet reported by {@link #checkError()} */
+    private Exception error = null;
+
+    final private long start_millis = System.currentTimeMillis();
+    final private AtomicLong accepted = new AtomicLong();
+    final private AtomicLong written = new AtomicLong();
+    final private AtomicLong written_batches = new AtomicLong();
+    final private AtomicLong failed = new AtomicLong();
+    final private AtomicLong failed_batches = new AtomicLong();
+    final private AtomicLong dropped = new AtomicLong();
+    final private AtomicLong rejected = new AtomicLong();
+    final private AtomicLong retried_batches = new AtomicLong();
+    final private AtomicLong lost = new AtomicLong();
+
+    /** Initialize and start flusher threads
+     *  @param sender Sends a batch to InfluxDB
+     *  @param spare Queue to which buffers are returned once they have been written
+     *  @param spool Spool for batches, <code>null</code> to only keep them in memory
+     *  @param capacity Maximum number of queued samples
+     *  @param threads Number of flusher threads
+     *  @param overflow What to do when the queue is full
+     */
+    public AsyncFlusher(final WriteSpool.Sender sender, final Queue<LineProtocolBuffer> spare, final WriteSpool spool,
+                        final int capacity, final int threads, final Overflow overflow)
+    {
+        this.spool = spool;
+        this.sender = sender;
+        this.spare = spare;
+        this.capacity = Math.max(1, capacity);
+        this.overflow = overflow;
+        lanes = new Lane[Math.max(1, threads)];
+        for (int i=0; i<lanes.length; ++i)
+            lanes[i] = new Lane(i);
+        for (Lane lane : lanes)
+            lane.thread.start();
+    }
+
+    /** Queue batch for background write
+     *
+     *  <p>The caller must no longer use the buffer.
+     *  It is placed in the spare queue once written or dropped.
+     *  @param dbName Database to which the batch will be written
+     *  @param points Points to write
+     *  @throws Exception when the batch is rejected, or on interruption while blocked
+     */
+    public void submit(final String dbName, final LineProtocolBuffer points) throws Exception
+    {
+        final int size = points.getPointCount();
+        if (size <= 0)
+        {
+            recycle(points);
+            return;
+        }
+        final Lane lane = lanes[Math.floorMod(dbName.hashCode(), lanes.length)];
+        final WriteSpool.Record record = (spool == null) ? null : spool.append(dbName, points);
+        lock.lockInterruptibly();
+        try
+        {
+            if (closed)
+            {
+                if (record != null)
+                    spool.fail(record);
+                throw new Exception("Cannot queue " + size + " samples for " + dbName + ", writer is closed");
+            }
+            // A batch larger than the whole queue is admitted once the queue is empty
+            while (queued > 0  &&  queued + size > capacity)
+            {
+                switch (overflow)
+                {
+                case REJECT:
+                    rejected.addAndGet(size);
+                    if (record != null)
+                    {   // Leave it to the spool
+                        spool.fail(record);
+                        recycle(points);
+                        return;
+                    }
+                    throw new Exception("Write queue full with " + queued + " of " + capacity +
+                                        " samples, rejected " + size + " samples for " + dbName);
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                case BLOCK:
+                default:
+                    not_full.await();
+                    if (closed)
+                    {
+                        if (record != null)
+                            spool.fail(record);
+                        throw new Exception("Cannot queue " + size + " samples for " + dbName + ", writer is closed");
+                    }
+                }
+            }
+            lane.batches.add(new Batch(next_sequence++, dbName, points, record));
+            queued += size;
+            if (queued > max_queued)
+                max_queued = queued;
+            accepted.addAndGet(size);
+            lane.not_empty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Remove the oldest batch from any lane. Caller holds lock. */
+    private void dropOldest()
+    {
+        Lane oldest = null;
+        for (Lane lane : lanes)
+        {
+            final Batch head = lane.batches.peek();
+            if (head != null  &&  (oldest == null  ||  head.sequence < oldest.batches.peek().sequence))
+                oldest = lane;
+        }
+        if (oldest == null)
+            return;
+        final Batch batch = oldest.batches.poll();
+        queued -= batch.size;
+        dropped.addAndGet(batch.size);
+        if (batch.record != null)
+            spool.fail(batch.record);
+        else
+            Activator.getLogger().log(Level.WARNING, "Write queue full, dropped {0} samples for {1}",
+                                      new Object[] { batch.size, batch.dbName });
+        recycle(batch.points);
+    }
+
+    private void recycle(final LineProtocolBuffer points)
+    {
+        points.reset();
+        spare.offer(points);
+    }
+
+    /** Write batch, called by flusher thread
+     *  @param batch Batch to write
+     *  @return <code>true</code> when done with the batch,
+     *          <code>false</code> if it needs to be retried
+     */
+    private boolean write(final Batch batch)
+    {
+        try
+        {
+            sender.send(batch.dbName, batch.points);
+            if (batch.record != null)
+                spool.acknowledge(batch.record);
+            written.addAndGet(batch.size);
+            written_batches.incrementAndGet();
+            return true;
+        }
+        catch (Exception ex)
+        {
+            final boolean permanent = WriteException.isPermanent(ex);
+            if (batch.record != null  &&  !permanent)
+            {   // Not lost, will be replayed from spool
+                spool.fail(batch.record);
+                failed.addAndGet(batch.size);
+                failed_batches.incrementAndGet();
+                Activator.getLogger().log(Level.WARNING, "Write of " + batch.size + " points to " +
+                                          batch.dbName + " failed, kept in spool: " + ex.getMessage());
+                // Refused writes need attention even though the points are kept
+                if (WriteException.isRefused(ex))
+                    setError(ex);
+                return true;
+            }
+            setError(ex);
+            if (! permanent)
+            {
+                Activator.getLogger().log(Level.WARNING, "Write of " + batch.size + " points to " +
+                                          batch.dbName + " failed, will retry: " + ex.getMessage());
+                return false;
+            }
+            if (batch.record != null)
+                spool.acknowledge(batch.record);
+            failed.addAndGet(batch.size);
+            failed_batches.incrementAndGet();
+            Activator.getLogger().log(Level.WARNING, "Write of " + batch.size + " points to " +
+                                      batch.dbName + " rejected", ex);
+            return true;
+        }
+    }
+
+    /** @param ex Error to report in checkError() */
+    private void setError(final Exception ex)
+    {
+        lock.lock();
+        try
+        {
+            error = ex;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Report failed background write
+     *  @throws Exception for the most recent failed background write since the last call
+     */
+    public void checkError() throws Exception
+    {
+        final Exception ex;
+        lock.lock();
+        try
+        {
+            ex = error;
+            error = null;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (ex != null)
+            throw new Exception("Write of points failed " + ex.getMessage(), ex);
+    }
+
+    /** Wait until all queued batches have been written
+     *  @param timeout_secs Seconds to wait
+     *  @return <code>true</code> if all was written, <code>false</code> on timeout
+     *  @throws InterruptedException on interruption
+     */
+    public boolean waitUntilIdle(final long timeout_secs) throws InterruptedException
+    {
+        long nanos = TimeUnit.SECONDS.toNanos(timeout_secs);
+        lock.lock();
+        try
+        {
+            while (queued > 0  ||  in_flight > 0)
+            {
+                if (nanos <= 0)
+                    return false;
+                nanos = idle.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Stop accepting batches, write what is queued and stop flusher threads
+     *
+     *  <p>Batches that are still queued after the timeout are not written.
+     *  With a spool, they remain in the spool for replay on the next start,
+     *  otherwise they are lost.
+     *  A batch that is still being written at the timeout is lost
+     *  unless that write succeeds, or it is kept in the spool.
+     *
+     *  @param timeout_secs Seconds to wait for queued batches to be written
+     *  @return Number of samples that were not written, 0 if all was written
+     */
+    public int close(final long timeout_secs)
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            not_full.signalAll();
+            for (Lane lane : lanes)
+                lane.not_empty.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout_secs);
+        for (Lane lane : lanes)
+        {
+            try
+            {
+                lane.thread.join(Math.max(1, end - System.currentTimeMillis()));
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Fail what is left
+        int spooled = 0, not_written = 0, writing;
+        lock.lock();
+        try
+        {
+            aborted = true;
+            for (Lane lane : lanes)
+            {
+                Batch batch;
+                while ((batch = lane.batches.poll()) != null)
+                {
+                    queued -= batch.size;
+                    if (batch.record != null)
+                    {
+                        spool.fail(batch.record);
+                        spooled += batch.size;
+                    }
+                    else
+                    {
+                        lost.addAndGet(batch.size);
+                        not_written += batch.size;
+                    }
+                    recycle(batch.points);
+                }
+                lane.not_empty.signalAll();
+            }
+            writing = in_flight;
+            idle.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (not_written > 0)
+            Activator.getLogger().log(Level.WARNING, "Closed write queue, {0} samples were not written and are lost",
+                                      not_written);
+        if (spooled > 0)
+            Activator.getLogger().log(Level.WARNING, "Closed write queue, {0} samples were not written and remain in spool",
+                                      spooled);
+        if (writing > 0)
+            Activator.getLogger().log(Level.WARNING, "Closed write queue while {0} samples were still being written",
+                                      writing);
+        return not_written + spooled + writing;
+    }
+
+    /** @return Number of samples currently waiting in the queue */
+    public int getQueuedSamples()
+    {
+        lock.lock();
+        try
+        {
+            return queued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** @return Highest number of samples that were waiting in the queue */
+    public int getMaxQueuedSamples()
+    {
+        lock.lock();
+        try
+        {
+            return max_queued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** @return Maximum number of queued samples */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /** @return Number of samples that were accepted into the queue */
+    public long getAcceptedSamples()
+    {
+        return accepted.get();
+    }
+
+    /** @return Number of samples that were written */
+    public long getWrittenSamples()
+    {
+        return written.get();
+    }
+
+    /** @return Number of batches that were written */
+    public long getWrittenBatches()
+    {
+        return written_batches.get();
+    }
+
+    /** @return Number of samples in batches that failed to write */
+    public long getFailedSamples()
+    {
+        return failed.get();
+    }
+
+    /** @return Number of batches that failed to write */
+    public long getFailedBatches()
+    {
+        return failed_batches.get();
+    }
+
+    /** @return Number of samples dropped because the queue was full */
+    public long getDroppedSamples()
+    {
+        return dropped.get();
+    }
+
+    /** @return Number of batches that were retried after a failed write */
+    public long getRetriedBatches()
+    {
+        return retried_batches.get();
+    }
+
+    /** @return Number of samples that were lost because the writer was closed before they could be written */
+    public long getLostSamples()
+    {
+        return lost.get();
+    }
+
+    /** @return Number of samples rejected because the queue was full */
+    public long getRejectedSamples()
+    {
+        return rejected.get();
+    }
+
+    /** @return Average number of samples written per second since start */
+    public double getWriteRate()
+    {
+        final long millis = System.currentTimeMillis() - start_millis;
+        if (millis <= 0)
+            return 0.0;
+        return written.get() * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("AsyncFlusher: %d of %d samples queued (max %d), %d written (%.1f/sec), " +
+                             "%d failed, %d batches retried, %d dropped, %d rejected, %d lost on close",
+                             getQueuedSamples(), capacity, getMaxQueuedSamples(), getWrittenSamples(), getWriteRate(),
+                             getFailedSamples(), getRetriedBatches(), getDroppedSamples(), getRejectedSamples(),
+                             getLostSamples());
+    }
+}
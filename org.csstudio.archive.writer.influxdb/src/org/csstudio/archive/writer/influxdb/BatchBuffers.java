@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+/** Line protocol batches per database
+ *
+ *  <p>Batches are striped:
+ *  Each thread adds to the buffers of 'its' stripe,
+ *  so threads adding samples rarely contend for the same lock.
+ *  When batches are written, the buffers of all stripes
+ *  for a database are merged.
+ *
+ *  <p>Batches that could not be written are kept apart from the stripes
+ *  and written before any points that were added later.
+ *
+ *  <p>Buffers that have been written are kept for re-use.
+ */
+class BatchBuffers
+{
+    /** Buffers of one stripe. Synchronize on the stripe to access. */
+    static class Stripe
+    {
+        final private BatchBuffers batches;
+        final private Map<String, LineProtocolBuffer> buffers = new HashMap<>();
+
+        Stripe(final BatchBuffers batches)
+        {
+            this.batches = batches;
+        }
+
+        /** @param dbName Database
+         *  @return Buffer for the database, created if necessary
+         */
+        LineProtocolBuffer get(final String dbName)
+        {
+            LineProtocolBuffer buffer = buffers.get(dbName);
+            if (buffer == null)
+            {
+                buffer = batches.obtain();
+                buffers.put(dbName, buffer);
+            }
+            return buffer;
+        }
+
+        /** @param dbName Database
+         *  @return Buffer that the caller now owns, <code>null</code> if there was none
+         */
+        LineProtocolBuffer remove(final String dbName)
+        {
+            return buffers.remove(dbName);
+        }
+    }
+
+    final private Stripe[] stripes;
+    final private int capacity;
+
+    /** Buffers that were written, ready for re-use */
+    final private Queue<LineProtocolBuffer> spare = new ConcurrentLinkedQueue<>();
+
+    /** Batches that could not be written, per database. Synchronize to access */
+    final private Map<String, LineProtocolBuffer> restored = new HashMap<>();
+
+    /** @param stripe_count Number of stripes
+     *  @param capacity Initial capacity of a buffer in bytes
+     */
+    BatchBuffers(final int stripe_count, final int capacity)
+    {
+        this.capacity = capacity;
+        stripes = new Stripe[Math.max(1, stripe_count)];
+        for (int i=0; i<stripes.length; ++i)
+            stripes[i] = new Stripe(this);
+    }
+
+    /** @return Stripe for the calling thread */
+    Stripe getStripe()
+    {
+        return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    }
+
+    /** @return Spare or new buffer */
+    private LineProtocolBuffer obtain()
+    {
+        final LineProtocolBuffer buffer = spare.poll();
+        if (buffer != null)
+            return buffer;
+        return new LineProtocolBuffer(capacity);
+    }
+
+    /** @param buffer Buffer that is no longer used, to be re-used */
+    void recycle(final LineProtocolBuffer buffer)
+    {
+        buffer.reset();
+        spare.offer(buffer);
+    }
+
+    /** @return Queue of spare buffers, to which a background writer may return buffers */
+    Queue<LineProtocolBuffer> getSpareBuffers()
+    {
+        return spare;
+    }
+
+    /** Take all batches out of the stripes
+     *  @return Merged batch per database. Caller now owns the buffers
+     */
+    Map<String, LineProtocolBuffer> takeAll()
+    {
+        return take(buffer -> true);
+    }
+
+    /** Take batches that reached a maximum age out of the stripes
+     *  @param now Current time in millisec
+     *  @param age Age in millisec
+     *  @return Merged batch per database. Caller now owns the buffers
+     */
+    Map<String, LineProtocolBuffer> takeAged(final long now, final long age)
+    {
+        return take(buffer -> now - buffer.getStartMillis() >= age);
+    }
+
+    /** Take batches that reached a maximum size out of the stripes
+     *  @param points Number of points, 0 to ignore
+     *  @param bytes Number of bytes, 0 to ignore
+     *  @return Merged batch per database. Caller now owns the buffers
+     */
+    Map<String, LineProtocolBuffer> takeFull(final int points, final int bytes)
+    {
+        return take(buffer -> (points > 0  &&  buffer.getPointCount() >= points)  ||
+                              (bytes > 0  &&  buffer.size() >= bytes));
+    }
+
+    /** @param selected Test for the buffers to take
+     *  @return Restored batches of all databases and selected buffers, merged per database
+     */
+    private Map<String, LineProtocolBuffer> take(final Predicate<LineProtocolBuffer> selected)
+    {
+        final Map<String, LineProtocolBuffer> result;
+        synchronized (restored)
+        {
+            result = new HashMap<>(restored);
+            restored.clear();
+        }
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                final Iterator<Map.Entry<String, LineProtocolBuffer>> entries = stripe.buffers.entrySet().iterator();
+                while (entries.hasNext())
+                {
+                    final Map.Entry<String, LineProtocolBuffer> entry = entries.next();
+                    final LineProtocolBuffer buffer = entry.getValue();
+                    if (buffer.getPointCount() <= 0  ||  ! selected.test(buffer))
+                        continue;
+                    entries.remove();
+                    merge(result, entry.getKey(), buffer);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Add buffer to the merged buffer of a database */
+    private void merge(final Map<String, LineProtocolBuffer> merged, final String dbName, final LineProtocolBuffer buffer)
+    {
+        final LineProtocolBuffer existing = merged.get(dbName);
+        if (existing == null)
+            merged.put(dbName, buffer);
+        else
+        {
+            existing.addLines(buffer);
+            recycle(buffer);
+        }
+    }
+
+    /** Return a batch that could not be written, to be written before all newer points
+     *  @param dbName Database
+     *  @param buffer Batch that was taken out
+     */
+    void restore(final String dbName, final LineProtocolBuffer buffer)
+    {
+        synchronized (restored)
+        {
+            final LineProtocolBuffer newer = restored.put(dbName, buffer);
+            if (newer != null)
+            {   // Keep the older points first
+                buffer.addLines(newer);
+                recycle(newer);
+            }
+        }
+    }
+}
@@ -7,11 +7,26 @@
  ******************************************************************************/
 package org.csstudio.archive.writer.influxdb;
 
+import java.io.File;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 import org.csstudio.archive.influxdb.InfluxDBArchivePreferences;
 import org.csstudio.archive.influxdb.InfluxDBQueries;
@@ -23,20 +38,21 @@ import org.csstudio.archive.influxdb.InfluxDBUtil.ConnectionInfo;
 import org.csstudio.archive.influxdb.MetaTypes;
 import org.csstudio.archive.influxdb.MetaTypes.MetaObject;
 import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
-import org.csstudio.archive.vtype.MetaDataHelper;
 import org.csstudio.archive.vtype.VTypeHelper;
 import org.csstudio.archive.writer.ArchiveWriter;
 import org.csstudio.archive.writer.WriteChannel;
-import org.diirt.vtype.Display;
-import org.diirt.vtype.VEnum;
+import org.diirt.vtype.VNumberArray;
 import org.diirt.vtype.VType;
 import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDB.ConsistencyLevel;
-import org.influxdb.dto.BatchPoints;
 import org.influxdb.dto.Point;
 import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
 
 /** ArchiveWriter implementation for InfluxDB
+ *
+ *  <p>Samples may be added by several threads concurrently.
+ *  Points of one thread and database are written in the order they were added.
  *  @author Megan Grodowitz
  */
 @SuppressWarnings("nls")
@@ -45,72 +61,90 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
     /** InfluxDB connection */
     final private InfluxDB influxdb;
 
+    /** Writer for line protocol batches */
+    final private InfluxDBHttpWriter writer;
+
     /** InfluxDB statements */
     final private InfluxDBQueries influxQuery;
 
     /** Cache of channels by name */
-    final private Map<String, InfluxDBWriteChannel> channels = new HashMap<String, InfluxDBWriteChannel>();
+    final private Map<String, InfluxDBWriteChannel> channels = new ConcurrentHashMap<String, InfluxDBWriteChannel>();
 
-    final static private DBNameMap dbnames = new DefaultDBNameMap();
+    /** Database names of channels */
+    final private DBNameMap dbnames;
 
-    static class batchPointSets
-    {
-        /** Batched points to be written, per database */
-        final private Map<String, BatchPoints> dbPoints = new HashMap<String, BatchPoints>();
+    /** Writer for scalar samples of databases with UDP port */
+    final private InfluxDBUdpWriter udp;
 
-        private BatchPoints getMakePoints(final String dbName)
-        {
-            BatchPoints points = dbPoints.get(dbName);
-            if (points == null)
-            {
-                //TODO: set retention and consistency policies
-                points = BatchPoints
-                        .database(dbName)
-                        .retentionPolicy("autogen")
-                        .consistency(ConsistencyLevel.ALL)
-                        .build();
-                dbPoints.put(dbName, points);
-            }
-            return points;
-        }
+    /** UDP port by data database, 0 for HTTP */
+    final private Map<String, Integer> udp_ports = new ConcurrentHashMap<>();
 
-        public BatchPoints getChannelSamplePoints(final String channel_name) throws Exception
-        {
-            return getMakePoints(dbnames.getDataDBName(channel_name));
-        }
+    /** Meta data databases from which all channels were preloaded.
+     *  Channels in these databases that are not in the cache are new.
+     */
+    final private Set<String> preloaded_meta_dbs = new HashSet<>();
 
-        public BatchPoints getChannelMetaPoints(final String channel_name) throws Exception
-        {
-            return getMakePoints(dbnames.getMetaDBName(channel_name));
-        }
+    /** Seconds to wait for queued samples to be written on close */
+    final private static long CLOSE_TIMEOUT_SECS = 30;
 
-        public BatchPoints getDBPoints(final String dbName) throws Exception
-        {
-            BatchPoints points = dbPoints.get(dbName);
-            if (points == null)
-            {
-                throw new Exception("No points stored for DB " + dbName);
-            }
-            return points;
-        }
+    /** Write-ahead spool, <code>null</code> if not used */
+    final private WriteSpool spool;
 
-        public void removeDBPoints(final String dbName)
-        {
-            dbPoints.remove(dbName);
-        }
+    /** Background writer, <code>null</code> when batches are written in flush() */
+    final private AsyncFlusher async;
 
-        public Set<String> getDBNames()
-        {
-            return dbPoints.keySet();
-        }
+    /** Number of points, bytes and age in millisec of a database batch that trigger a write, 0 to disable */
+    final private int auto_flush_points, auto_flush_bytes, auto_flush_age_ms;
 
-        public void clear()
-        {
-            dbPoints.clear();
-        }
-    };
+    /** Channels with sample filter, <code>null</code> for none */
+    final private Pattern filter_channels;
+
+    /** Counters and latency histograms */
+    final private WriterMetrics metrics = new WriterMetrics();
 
-    final batchPointSets batchSets = new batchPointSets();
+    /** Number of writers created, to give each a distinct JMX name */
+    final private static AtomicInteger instances = new AtomicInteger();
+
+    /** Minimum array size for packed storage, 0 to disable */
+    final private int packed_array_min_size = Preferences.getPackedArrayMinSize();
+
+    /** Thread that writes full batches and, on a timer, batches by age. <code>null</code> if disabled */
+    final private ScheduledExecutorService auto_flush_timer;
+
+    /** Has a write of full batches been scheduled on the auto flush thread? */
+    final private AtomicBoolean auto_flush_scheduled = new AtomicBoolean();
+
+    /** Time before which automatic writes are suspended after an error */
+    private volatile long auto_flush_retry_millis = 0;
+
+    /** Lock that serializes flush() calls and automatic writes.
+     *  Batches are taken out of the buffers and written or queued
+     *  while holding the lock, so batches of a database are written in order.
+     */
+    final private Object flush_lock = new Object();
+
+    /** Threads that write the batches of several databases in parallel within flush(),
+     *  <code>null</code> for background writer or single flush thread
+     */
+    final private ExecutorService flush_pool;
+
+    /** Retention policy and consistency level for databases without specific policy */
+    final private WritePolicy default_policy = Preferences.getWritePolicy();
+
+    /** Retention policy and consistency level by database */
+    final private Map<String, WritePolicy> policies = Preferences.getWritePolicies(default_policy);
+
+    /** Sort batches by series and time before writing? */
+    final private boolean sort_batches = Preferences.sortBatches();
+
+    /** Initial size of a line protocol buffer in bytes */
+    final private static int BUFFER_CAPACITY = 64 * 1024;
+
+    /** Batched points to be written, per database */
+    final private BatchBuffers batches = new BatchBuffers(Preferences.getBatchStripes(), BUFFER_CAPACITY);
+
+    /** Batched points to be sent via UDP, per database */
+    final private BatchBuffers udp_batches = new BatchBuffers(Preferences.getBatchStripes(), BUFFER_CAPACITY);
 
     //    /** Severity (ID, name) cache */
     //    private SeverityCache severities;
@@ -137,12 +171,162 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
      */
     public InfluxDBArchiveWriter(final String url, final String user, final String password) throws Exception
     {
-        influxdb = InfluxDBUtil.connect(url, user, password);
+        this(url, user, password, InfluxDBArchivePreferences.useGzip());
+    }
+
+    /** Initialize
+     *  @param url InfluxDB URL
+     *  @param user .. user name
+     *  @param password .. password
+     *  @param gzip Compress written points with gzip?
+     *  @throws Exception on error, for example InfluxDB connection error
+     */
+    public InfluxDBArchiveWriter(final String url, final String user, final String password, final boolean gzip) throws Exception
+    {
+        this(url, user, password, gzip, new DefaultDBNameMap());
+    }
+
+    /** Initialize
+     *  @param url InfluxDB URL
+     *  @param user .. user name
+     *  @param password .. password
+     *  @param gzip Compress written points with gzip?
+     *  @param dbnames Databases for channels, and their UDP ports
+     *  @throws Exception on error, for example InfluxDB connection error
+     */
+    public InfluxDBArchiveWriter(final String url, final String user, final String password, final boolean gzip,
+                                 final DBNameMap dbnames) throws Exception
+    {
+        this.dbnames = dbnames;
+        final String filter = Preferences.getFilterChannels();
+        filter_channels = filter.isEmpty() ? null : Pattern.compile(filter);
+        influxdb = InfluxDBUtil.connect(url, user, password, gzip);
         influxQuery = new InfluxDBQueries(influxdb, dbnames);
+        writer = new InfluxDBHttpWriter(url, user, password, gzip, Preferences.getMaxRequestBytes(), Preferences.getWriteRetry());
+        udp = new InfluxDBUdpWriter(url, Preferences.getUDPDatagramSize());
+        final String spool_file = Preferences.getSpoolFile();
+        if (spool_file.isEmpty())
+            spool = null;
+        else
+            spool = new WriteSpool(new File(spool_file), Preferences.getSpoolSize(), Preferences.getSpoolFSync(),
+                    Preferences.getSpoolReplayRate(), this::send);
+        if (Preferences.useAsyncWrite())
+        {
+            async = new AsyncFlusher(this::send, batches.getSpareBuffers(), spool,
+                    Preferences.getAsyncQueueSize(),
+                    Preferences.getAsyncFlushThreads(), Preferences.getAsyncOverflow());
+            flush_pool = null;
+        }
+        else
+        {
+            async = null;
+            final int threads = Preferences.getFlushThreads();
+            if (threads > 1)
+            {
+                final AtomicInteger thread_count = new AtomicInteger();
+                flush_pool = Executors.newFixedThreadPool(threads, runnable ->
+                {
+                    final Thread thread = new Thread(runnable, "InfluxDB Flush " + thread_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            else
+                flush_pool = null;
+        }
+        auto_flush_points = Preferences.getAutoFlushPoints();
+        auto_flush_bytes = Preferences.getAutoFlushBytes();
+        auto_flush_age_ms = Preferences.getAutoFlushAge();
+        if (auto_flush_age_ms > 0  ||  auto_flush_points > 0  ||  auto_flush_bytes > 0)
+        {
+            auto_flush_timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                final Thread thread = new Thread(runnable, "InfluxDB Auto Flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (auto_flush_age_ms > 0)
+            {
+                final long period = Math.max(10, auto_flush_age_ms / 4);
+                auto_flush_timer.scheduleWithFixedDelay(this::flushAged, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+        else
+            auto_flush_timer = null;
+        metrics.register(url + " #" + instances.incrementAndGet());
+        final int preload_batch = Preferences.getPreloadMetaBatch();
+        if (preload_batch > 0)
+            preloadMetaData(preload_batch);
         //        severities = new SeverityCache(influxdb, sql);
         //        stati = new StatusCache(influxdb, sql);
     }
 
+    /** Fill channel cache with the newest meta data of all channels in the meta data databases
+     *
+     *  <p>Replaces one query per channel in getChannel() with one query
+     *  for the channel names and one query for each batch of channels.
+     *  On error, channels that were not preloaded are queried when first used.
+     *
+     *  @param batch Number of channels per query
+     */
+    private void preloadMetaData(final int batch)
+    {
+        for (String dbName : dbnames.getMetaDBNames())
+        {
+            final long start = System.nanoTime();
+            try
+            {
+                final List<String> names = new ArrayList<>();
+                for (Series series : InfluxDBResults.getNonEmptySeries(checkResult(influxQuery.get_measurement_names(dbName))))
+                    for (List<Object> values : series.getValues())
+                        names.add(values.get(0).toString());
+
+                int count = 0;
+                for (int i=0; i<names.size(); i+=batch)
+                {
+                    final QueryResult results = influxQuery.get_newest_meta_datum(dbName, names.subList(i, Math.min(i+batch, names.size())));
+                    for (Series series : InfluxDBResults.getNonEmptySeries(checkResult(results)))
+                    {
+                        final InfluxDBWriteChannel channel = newChannel(series.getName());
+                        try
+                        {
+                            channel.setMetaData(MetaTypes.toMetaObject(series.getColumns(), series.getValues().get(0)));
+                        }
+                        catch (Exception ex)
+                        {   // Channel remains without meta data, which will then be written again
+                            Activator.getLogger().log(Level.WARNING, "Cannot preload meta data for " + series.getName(), ex);
+                        }
+                        channels.put(series.getName(), channel);
+                        ++count;
+                    }
+                }
+                preloaded_meta_dbs.add(dbName);
+                Activator.getLogger().log(Level.INFO,
+                        String.format("Preloaded meta data of %d channels from %s in %.1f sec",
+                                      count, dbName, (System.nanoTime() - start) / 1e9));
+            }
+            catch (Exception ex)
+            {
+                Activator.getLogger().log(Level.WARNING, "Cannot preload meta data from " + dbName, ex);
+            }
+        }
+    }
+
+    /** @param results Query results
+     *  @return Results
+     *  @throws Exception if results report an error
+     */
+    private static QueryResult checkResult(final QueryResult results) throws Exception
+    {
+        if (results.getError() != null)
+            throw new Exception(results.getError());
+        if (results.getResults() != null)
+            for (Result result : results.getResults())
+                if (result.getError() != null)
+                    throw new Exception(result.getError());
+        return results;
+    }
+
     public ConnectionInfo getConnectionInfo() throws Exception
     {
         return new ConnectionInfo(influxdb);
@@ -153,13 +337,71 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
         return influxQuery;
     }
 
+    /** @return Writer for line protocol with its byte counters */
+    public InfluxDBHttpWriter getHttpWriter()
+    {
+        return writer;
+    }
+
+    /** @return Writer for scalar samples sent via UDP */
+    public InfluxDBUdpWriter getUdpWriter()
+    {
+        return udp;
+    }
+
+    /** @return Write-ahead spool, <code>null</code> if not used */
+    public WriteSpool getSpool()
+    {
+        return spool;
+    }
+
+    /** @return Number of samples dropped by channel filters */
+    public long getFilteredSampleCount()
+    {
+        return metrics.getFilteredSamples();
+    }
+
+    /** @return Counters and latency histograms */
+    public WriterMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** @return Background writer with its queue and throughput counters,
+     *          <code>null</code> when samples are written in flush()
+     */
+    public AsyncFlusher getAsyncFlusher()
+    {
+        return async;
+    }
+
+    /** @param name Channel name
+     *  @return Channel with sample filter if configured for the name
+     */
+    private InfluxDBWriteChannel newChannel(final String name)
+    {
+        final InfluxDBWriteChannel channel = new InfluxDBWriteChannel(name);
+        if (filter_channels != null  &&  filter_channels.matcher(name).matches())
+            channel.setFilter(new SampleFilter(Preferences.getFilterDeadband(),
+                                               Preferences.getFilterRelativeDeadband(),
+                                               Duration.ofSeconds(Preferences.getFilterHeartbeat())));
+        return channel;
+    }
+
     @Override
     public WriteChannel getChannel(final String name) throws Exception
     {
         // Check cache
         InfluxDBWriteChannel channel = channels.get(name);
         if (channel == null)
-        {    // Get channel information from InfluxDB
+        {
+            if (preloaded_meta_dbs.contains(dbnames.getMetaDBName(name)))
+            {   // Preload found no meta data, so this is a new channel
+                channel = newChannel(name);
+                final InfluxDBWriteChannel existing = channels.putIfAbsent(name, channel);
+                return existing != null ? existing : channel;
+            }
+            // Get channel information from InfluxDB
             QueryResult results = influxQuery.get_newest_meta_datum(name);
             if (InfluxDBResults.getValueCount(results) <= 0)
             {
@@ -171,9 +413,12 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
             {
                 throw new Exception("Metadata results for channel " + name + " did not parse into single object: " + results);
             }
-            channel = new InfluxDBWriteChannel(name);
+            channel = newChannel(name);
             channel.setMetaData(meta.get(0));
-            channels.put(name, channel);
+            // Another thread may have added the channel in the meantime
+            final InfluxDBWriteChannel existing = channels.putIfAbsent(name, channel);
+            if (existing != null)
+                return existing;
         }
         return channel;
     }
@@ -192,8 +437,11 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
         {
             throw new Exception("Channel already exists in Database " + name);
         }
-        channel = new InfluxDBWriteChannel(name);
-        channels.put(name, channel);
+        channel = newChannel(name);
+        if (channels.putIfAbsent(name, channel) != null)
+        {
+            throw new Exception("Channel already exists in Writer " + name);
+        }
 
         return channel;
     }
@@ -202,68 +450,213 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
     public void addSample(final WriteChannel channel, final VType sample) throws Exception
     {
         final InfluxDBWriteChannel influxdb_channel = (InfluxDBWriteChannel) channel;
-        final StoreAs storeas = MetaTypes.writeVtypeAs(sample);
+        final StoreAs storeas = packArray(influxdb_channel, sample, MetaTypes.writeVtypeAs(sample));
         final Instant stamp = VTypeHelper.getTimestamp(sample);
+        final String dbName = dbnames.getDataDBName(channel.getName());
+        final int udp_port = getUDPPort(dbName, storeas);
+        final boolean full;
+
+        final BatchBuffers.Stripe stripe = batches.getStripe();
+        synchronized (stripe)
+        {
+            if (! writeMetaData(stripe, influxdb_channel, stamp, sample, storeas))
+            {
+                metrics.sampleFiltered(dbName);
+                return;
+            }
+            if (udp_port > 0)
+                full = false;
+            else
+                full = encodeSample(stripe, dbName, influxdb_channel, stamp, sample, storeas);
+        }
+        if (udp_port > 0)
+        {   // Meta data was added to the HTTP batch, the sample goes to the UDP batch
+            final BatchBuffers.Stripe udp_stripe = udp_batches.getStripe();
+            final LineProtocolBuffer udp_full;
+            synchronized (udp_stripe)
+            {
+                udp_full = encodeSample(udp_stripe, dbName, influxdb_channel, stamp, sample, storeas)
+                         ? udp_stripe.remove(dbName) : null;
+            }
+            if (udp_full != null)
+                sendUDP(dbName, udp_full);
+        }
+        // Write outside of the stripe lock, other threads may continue to add samples
+        else if (full  &&  System.currentTimeMillis() >= auto_flush_retry_millis)
+        {
+            if (async != null)
+                flushFull(); // Queue right away, blocks when the background writer is configured to block
+            else if (auto_flush_scheduled.compareAndSet(false, true))
+                auto_flush_timer.execute(this::flushFull);
+        }
+    }
 
-        writeMetaData(influxdb_channel, stamp, sample, storeas);
-        batchSets.getChannelSamplePoints(channel.getName()).point(InfluxDBSampleEncoder.encodeSample(influxdb_channel, stamp, sample, storeas));
+    /** Encode sample
+     *  @param stripe Stripe of batches, caller must synchronize on it
+     *  @param dbName Database
+     *  @param channel Channel
+     *  @param stamp Time stamp of sample
+     *  @param sample Sample
+     *  @param storeas How the sample is stored
+     *  @return <code>true</code> if the batch of the database reached the size for an automatic write
+     *  @throws Exception on error
+     */
+    private boolean encodeSample(final BatchBuffers.Stripe stripe, final String dbName,
+                                 final InfluxDBWriteChannel channel, final Instant stamp,
+                                 final VType sample, final StoreAs storeas) throws Exception
+    {
+        final LineProtocolBuffer points = stripe.get(dbName);
+        final int start_points = points.getPointCount(), start_bytes = points.size();
+        final long start = System.nanoTime();
+        InfluxDBSampleEncoder.encodeSample(points, channel, stamp, sample, storeas);
+        metrics.sampleEncoded(dbName, storeas, points.getPointCount() - start_points,
+                              points.size() - start_bytes, System.nanoTime() - start);
+
+        return (auto_flush_points > 0  &&  points.getPointCount() >= auto_flush_points)  ||
+               (auto_flush_bytes > 0  &&  points.size() >= auto_flush_bytes);
     }
 
-    /** Write meta data if it was never written or has changed
-     *  @param channel Channel for which to write the meta data
-     *  @param sample Sample that may have meta data to write
+    /** @param dbName Data database
+     *  @param storeas How a sample is stored
+     *  @return UDP port for the sample, 0 for HTTP
      */
-    private void writeMetaData(final InfluxDBWriteChannel channel, final Instant stamp, final VType sample, final StoreAs storeas) throws Exception
+    private int getUDPPort(final String dbName, final StoreAs storeas)
     {
-        switch(storeas)
+        if (storeas != StoreAs.ARCHIVE_DOUBLE  &&  storeas != StoreAs.ARCHIVE_LONG)
+            return 0;
+        return udp_ports.computeIfAbsent(dbName, dbnames::getUDPPort);
+    }
+
+    /** Send batch via UDP and recycle it.
+     *  Errors are logged, the points are lost.
+     *  @param dbName Database
+     *  @param points Batch that was taken out of the UDP buffers
+     */
+    private void sendUDP(final String dbName, final LineProtocolBuffer points)
+    {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try
         {
-        case ARCHIVE_DOUBLE :
-        case ARCHIVE_LONG :
-        case ARCHIVE_DOUBLE_ARRAY :
-        case ARCHIVE_LONG_ARRAY :
+            if (sort_batches)
+                points.sortBySeries();
+            udp.write(udp_ports.get(dbName), points);
+            success = true;
+        }
+        catch (Exception ex)
         {
-            if (sample instanceof Display)
-            {
-                final Display display = (Display)sample;
-                if ((channel.getStorageType() == storeas) && (MetaDataHelper.equals(display, channel.getMetadata())))
-                    return;
-                Point point = MetaTypes.toDisplayMetaPoint(display, channel.getName(), stamp, storeas);
-                batchSets.getChannelMetaPoints(channel.getName()).point(point);
-                channel.setMetaData(display, storeas);
-            }
-            else {
-                throw new Exception ("Cannot determine meta data object for " + storeas.name() + " with sample type " + sample.getClass().getName());
-            }
+            Activator.getLogger().log(Level.WARNING, "UDP write of " + points.getPointCount() + " points to " + dbName + " failed", ex);
         }
-        break;
-        case ARCHIVE_ENUM :
+        finally
         {
-            if (sample instanceof VEnum)
-            {
-                final List<String> labels = ((VEnum)sample).getLabels();
-                if ((channel.getStorageType() == storeas) && (MetaDataHelper.equals(labels, channel.getMetadata())))
-                    return;
-                Point point = MetaTypes.toEnumMetaPoint(labels, channel.getName(), stamp, storeas);
-                batchSets.getChannelMetaPoints(channel.getName()).point(point);
-                channel.setMetaData(labels, storeas);
-            }
-            else {
-                throw new Exception ("Cannot determine meta data object for " + storeas.name() + " with sample type " + sample.getClass().getName());
-            }
+            metrics.batchWritten(dbName, points.size(), System.nanoTime() - start, success);
+            udp_batches.recycle(points);
         }
-        break;
-        case ARCHIVE_STRING :
-        case ARCHIVE_UNKNOWN :
-            if ((channel.getStorageType() == storeas) && (channel.getMetadata() == null))
+    }
+
+    /** @param channel Channel
+     *  @param sample Sample
+     *  @param storeas How the sample would be stored
+     *  @return How the sample is stored, packed for large arrays
+     */
+    private StoreAs packArray(final InfluxDBWriteChannel channel, final VType sample, final StoreAs storeas)
+    {
+        if (storeas != StoreAs.ARCHIVE_DOUBLE_ARRAY  ||  packed_array_min_size <= 0)
+            return storeas;
+        // Keep packing smaller arrays of a packed channel to avoid writing new meta data back and forth
+        if (channel.getStorageType() == StoreAs.ARCHIVE_PACKED_DOUBLE_ARRAY  ||
+            ((VNumberArray)sample).getData().size() >= packed_array_min_size)
+            return StoreAs.ARCHIVE_PACKED_DOUBLE_ARRAY;
+        return storeas;
+    }
+
+    /** Timer: Write batches that reached the maximum age */
+    private void flushAged()
+    {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, LineProtocolBuffer> entry : udp_batches.takeAged(now, auto_flush_age_ms).entrySet())
+            sendUDP(entry.getKey(), entry.getValue());
+        synchronized (flush_lock)
+        {
+            if (now < auto_flush_retry_millis)
+                return;
+            autoFlush(batches.takeAged(now, auto_flush_age_ms));
+        }
+    }
+
+    /** Write batches that reached the size for an automatic write */
+    private void flushFull()
+    {
+        auto_flush_scheduled.set(false);
+        synchronized (flush_lock)
+        {
+            if (System.currentTimeMillis() < auto_flush_retry_millis)
                 return;
-            Point point = MetaTypes.toNullMetaPoint(channel.getName(), stamp, storeas);
-            batchSets.getChannelMetaPoints(channel.getName()).point(point);
-            channel.setMetaData(null, storeas);
-            break;
-        default:
-            throw new Exception ("Sample generated unhandled meta store type: " + storeas.name());
+            autoFlush(batches.takeFull(auto_flush_points, auto_flush_bytes));
+        }
+    }
+
+    /** Write batches, or hand them to background writer,
+     *  without throwing an exception.
+     *  After an error, automatic writes are suspended for a while,
+     *  leaving the points for the next flush() or a later attempt.
+     *  Caller must hold the flush lock.
+     *  @param taken Batches that were taken out of the buffers, per database
+     */
+    private void autoFlush(final Map<String, LineProtocolBuffer> taken)
+    {
+        try
+        {
+            writeAll(taken);
         }
+        catch (Exception ex)
+        {
+            auto_flush_retry_millis = System.currentTimeMillis() + Math.max(1000, auto_flush_age_ms);
+            Activator.getLogger().log(Level.WARNING, "Automatic write failed", ex);
+        }
+    }
 
+    /** Write meta data if it was never written or has changed,
+     *  and check if the sample passes the filter of the channel
+     *  @param stripe Stripe of batches to which meta data is added, caller must synchronize on it
+     *  @param channel Channel for which to write the meta data
+     *  @param sample Sample that may have meta data to write
+     *  @return <code>true</code> if the sample is to be written
+     */
+    private boolean writeMetaData(final BatchBuffers.Stripe stripe, final InfluxDBWriteChannel channel,
+                                  final Instant stamp, final VType sample, final StoreAs storeas) throws Exception
+    {
+        // Threads adding samples for the same channel compare and update its meta data one at a time
+        synchronized (channel)
+        {
+            final boolean new_meta = writeChannelMetaData(stripe, channel, stamp, sample, storeas);
+            final SampleFilter filter = channel.getFilter();
+            return filter == null  ||  filter.accept(stamp, sample, new_meta);
+        }
+    }
+
+    /** @param stripe Stripe of batches to which meta data is added
+     *  @param channel Channel
+     *  @param point Meta data point
+     *  @param storeas How samples of the channel are stored
+     */
+    private void addMetaPoint(final BatchBuffers.Stripe stripe, final InfluxDBWriteChannel channel,
+                              final Point point, final StoreAs storeas)
+    {
+        final String dbName = dbnames.getMetaDBName(channel.getName());
+        stripe.get(dbName).addLine(point.lineProtocol());
+        metrics.metaDataEncoded(dbName, storeas);
+    }
+
+    /** @return <code>true</code> if meta data was written */
+    private boolean writeChannelMetaData(final BatchBuffers.Stripe stripe, final InfluxDBWriteChannel channel,
+                                      final Instant stamp, final VType sample, final StoreAs storeas) throws Exception
+    {
+        final Point point = InfluxDBSampleEncoder.encodeMetaData(channel, stamp, sample, storeas);
+        if (point == null)
+            return false;
+        addMetaPoint(stripe, channel, point, storeas);
+        return true;
     }
 
 
@@ -273,28 +666,184 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
     @Override
     public void flush() throws Exception
     {
-        Set<String> dbNames = batchSets.getDBNames();
+        synchronized (flush_lock)
+        {
+            auto_flush_retry_millis = 0;
+            flushAll();
+        }
+    }
+
+    /** Write batches of all databases */
+    private void flushAll() throws Exception
+    {
+        for (Map.Entry<String, LineProtocolBuffer> entry : udp_batches.takeAll().entrySet())
+            sendUDP(entry.getKey(), entry.getValue());
+        writeAll(batches.takeAll());
+        // Report earlier background write errors
+        if (async != null)
+            async.checkError();
+    }
+
+    /** Write batches, or hand them to background writer.
+     *  Caller must hold the flush lock.
+     *  @param taken Batches that were taken out of the buffers, per database
+     *  @throws Exception on error, after returning the points that were not written to the buffers
+     */
+    private void writeAll(final Map<String, LineProtocolBuffer> taken) throws Exception
+    {
+        if (async != null)
+        {
+            for (Map.Entry<String, LineProtocolBuffer> entry : taken.entrySet())
+                async.submit(entry.getKey(), entry.getValue());
+            return;
+        }
+
+        // On error, points that were not written are returned to the batches for the next flush
+        if (flush_pool == null  ||  taken.size() <= 1)
+        {
+            final Iterator<Map.Entry<String, LineProtocolBuffer>> entries = taken.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                final Map.Entry<String, LineProtocolBuffer> entry = entries.next();
+                try
+                {
+                    writeBatch(entry.getKey(), entry.getValue());
+                }
+                catch (Exception e)
+                {
+                    while (entries.hasNext())
+                    {
+                        final Map.Entry<String, LineProtocolBuffer> remaining = entries.next();
+                        batches.restore(remaining.getKey(), remaining.getValue());
+                    }
+                    throw new Exception("Write of points failed " + e.getMessage(), e);
+                }
+            }
+            return;
+        }
+
+        // Write databases in parallel, one task per database to keep the order within each database
+        final List<String> dbNames = new ArrayList<>(taken.keySet());
+        final List<Future<?>> writes = new ArrayList<>(dbNames.size());
         for (String dbName : dbNames)
         {
-            BatchPoints batchPoints = batchSets.getDBPoints(dbName);
+            final LineProtocolBuffer points = taken.get(dbName);
+            writes.add(flush_pool.submit(() ->
+            {
+                writeBatch(dbName, points);
+                return null;
+            }));
+        }
+
+        // Wait for all, then report every failed database
+        final StringBuilder failures = new StringBuilder();
+        final List<Throwable> causes = new ArrayList<>();
+        for (int i=0; i<writes.size(); ++i)
+        {
             try
             {
-                influxdb.write(batchPoints);
+                writes.get(i).get();
+            }
+            catch (ExecutionException ex)
+            {
+                final Throwable cause = ex.getCause();
+                if (failures.length() > 0)
+                    failures.append("; ");
+                failures.append(dbNames.get(i)).append(": ").append(cause.getMessage());
+                causes.add(cause);
+            }
+        }
+        if (! causes.isEmpty())
+        {
+            final Exception ex = new Exception("Write of points failed " + failures, causes.get(0));
+            for (int i=1; i<causes.size(); ++i)
+                ex.addSuppressed(causes.get(i));
+            throw ex;
+        }
+    }
+
+    /** Send points to a database with its retention policy and consistency level
+     *  @param dbName Database
+     *  @param points Points to write
+     *  @throws Exception on error
+     */
+    private void send(final String dbName, final LineProtocolBuffer points) throws Exception
+    {
+        final WritePolicy policy = policies.getOrDefault(dbName, default_policy);
+        final long start = System.nanoTime();
+        boolean success = false;
+        try
+        {
+            if (sort_batches)
+                points.sortBySeries();
+            writer.write(dbName, policy.getRetention(), policy.getConsistency(), points);
+            success = true;
+        }
+        finally
+        {
+            metrics.batchWritten(dbName, points.size(), System.nanoTime() - start, success);
+        }
+    }
+
+    /** Write a batch of one database and recycle its buffer
+     *  @param dbName Database
+     *  @param points Batch that was taken out of the buffers
+     *  @throws Exception on error, after returning the points to the buffers or spool
+     *                    unless InfluxDB rejected them
+     */
+    private void writeBatch(final String dbName, final LineProtocolBuffer points) throws Exception
+    {
+        final WriteSpool.Record record = (spool == null) ? null : spool.append(dbName, points);
+        try
+        {
+            send(dbName, points);
+        }
+        catch (Exception ex)
+        {
+            if (WriteException.isPermanent(ex))
+            {   // Writing the points again would fail again
+                if (record != null)
+                    spool.acknowledge(record);
+                batches.recycle(points);
+                throw ex;
             }
-            catch (Exception e)
+            if (record == null)
             {
-                throw new Exception("Write of points failed " + e.getMessage(), e);
+                batches.restore(dbName, points);
+                throw ex;
             }
-            //TODO: Creates concurrent modification errors? Why?
-            //batchSets.removeDBPoints(dbName);
+            // Not lost, will be replayed from spool
+            spool.fail(record);
+            Activator.getLogger().log(Level.WARNING, "Write of " + points.getPointCount() + " points to " +
+                                      dbName + " failed, kept in spool: " + ex.getMessage());
+            batches.recycle(points);
+            // Refused writes need attention even though the points are kept
+            if (WriteException.isRefused(ex))
+                throw ex;
+            return;
         }
-        batchSets.clear();
+        if (record != null)
+            spool.acknowledge(record);
+        batches.recycle(points);
     }
 
     /** {@inheritDoc} */
     @Override
     public void close()
     {
+        if (auto_flush_timer != null)
+        {   // Wait for a running auto-flush, so that the final flush includes what it did not write
+            auto_flush_timer.shutdown();
+            try
+            {
+                if (! auto_flush_timer.awaitTermination(CLOSE_TIMEOUT_SECS, TimeUnit.SECONDS))
+                    Activator.getLogger().log(Level.WARNING, "Automatic write did not complete on close");
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
         channels.clear();
         //        if (severities != null)
         //        {
@@ -307,7 +856,31 @@ public class InfluxDBArchiveWriter implements ArchiveWriter
         //            stati = null;
         //        }
 
-        //TODO: do we need to flush points here?
+        // Write what was buffered since the last flush
+        try
+        {
+            flush();
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Error writing remaining samples on close", ex);
+        }
+        if (async != null)
+        {
+            final int not_written = async.close(CLOSE_TIMEOUT_SECS);
+            Activator.getLogger().log(not_written > 0 ? Level.WARNING : Level.INFO, async.toString());
+        }
+        metrics.unregister();
+        Activator.getLogger().log(Level.INFO, metrics.toString());
+        if (flush_pool != null)
+            flush_pool.shutdown();
+        if (spool != null)
+            spool.close();
+        Activator.getLogger().log(Level.FINE, writer.toString());
+        writer.close();
+        if (udp.getDatagrams() > 0)
+            Activator.getLogger().log(Level.FINE, udp.toString());
+        udp.close();
         influxdb.close();
     }
 }
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.influxdb.InfluxDB.ConsistencyLevel;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/** Write {@link LineProtocolBuffer} content to the InfluxDB HTTP API
+ *
+ *  <p>Posts the bytes of the buffer to <code>/write</code> as they are,
+ *  without turning them into <code>Point</code>s or a <code>String</code>
+ *  like <code>InfluxDB.write(BatchPoints)</code>.
+ *
+ *  <p>Buffers larger than the maximum request size are split
+ *  at line boundaries into several requests.
+ *
+ *  <p>When enabled, the request body is compressed with gzip.
+ *  Line protocol with its repeated tag and field names compresses well,
+ *  see dbdocs/gzip_transport.txt in org.csstudio.archive.influxdb.
+ *
+ *  <p>Failed requests are retried as configured by the {@link WriteRetry}.
+ *  Only the failed request of a split buffer is repeated.
+ *  When InfluxDB permanently rejects the points of one request,
+ *  the remaining requests are still written before that error is reported.
+ *
+ *  <p>Thread safe, calls may be issued by several flusher threads.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBHttpWriter
+{
+    final private static MediaType LINE_PROTOCOL = MediaType.parse("text/plain; charset=utf-8");
+
+    final private OkHttpClient client;
+
+    /** Compress request body? */
+    final private boolean gzip;
+
+    /** Maximum size of a request body before compression */
+    final private int max_request_bytes;
+
+    /** Bytes of line protocol written, and bytes actually sent as request body */
+    final private AtomicLong bytes_written = new AtomicLong(), bytes_sent = new AtomicLong();
+
+    /** Number of HTTP requests */
+    final private AtomicLong requests = new AtomicLong();
+
+    /** URL of the write endpoint with precision and credentials, but no database */
+    final private HttpUrl write_url;
+
+    /** Retry of failed requests */
+    final private WriteRetry retry;
+
+    /** Initialize
+     *  @param url InfluxDB URL
+     *  @param user .. user name
+     *  @param password .. password
+     *  @param gzip Compress request body with gzip?
+     *  @param max_request_bytes Maximum size of a request, larger buffers are split
+     *  @param retry Retry of failed requests
+     *  @throws Exception on invalid URL
+     */
+    public InfluxDBHttpWriter(final String url, final String user, final String password, final boolean gzip,
+                              final int max_request_bytes, final WriteRetry retry) throws Exception
+    {
+        this.gzip = gzip;
+        this.retry = retry;
+        this.max_request_bytes = Math.max(1024, max_request_bytes);
+        final HttpUrl base = HttpUrl.parse(url);
+        if (base == null)
+            throw new Exception("Invalid InfluxDB URL " + url);
+        final HttpUrl.Builder builder = base.newBuilder()
+                                            .addPathSegment("write")
+                                            .addQueryParameter("precision", "n");
+        if (! (user == null || user.isEmpty() || password == null || password.isEmpty()))
+            builder.addQueryParameter("u", user)
+                   .addQueryParameter("p", password);
+        write_url = builder.build();
+        client = new OkHttpClient.Builder().build();
+    }
+
+    /** Write points
+     *  @param dbName Database
+     *  @param retention Retention policy
+     *  @param consistency Write consistency
+     *  @param points Points to write
+     *  @throws Exception on error, including a response from InfluxDB that indicates failure.
+     *                   A {@link WriteException} tells if a retry of the points may succeed.
+     */
+    public void write(final String dbName, final String retention, final ConsistencyLevel consistency,
+                      final LineProtocolBuffer points) throws Exception
+    {
+        if (points.size() <= 0)
+            return;
+        final HttpUrl url = write_url.newBuilder()
+                                     .addQueryParameter("db", dbName)
+                                     .addQueryParameter("rp", retention)
+                                     .addQueryParameter("consistency", consistency.value())
+                                     .build();
+        final byte[] data = points.getData();
+        final int end = points.size();
+        WriteException rejected = null;
+        int start = 0;
+        while (start < end)
+        {
+            // Split before the line that would exceed the maximum request size.
+            // A single line larger than the maximum is sent by itself.
+            int stop = end;
+            if (end - start > max_request_bytes)
+            {
+                stop = start + max_request_bytes;
+                while (stop > start  &&  data[stop - 1] != '\n')
+                    --stop;
+                if (stop <= start)
+                {
+                    stop = start + max_request_bytes;
+                    while (stop < end  &&  data[stop - 1] != '\n')
+                        ++stop;
+                }
+            }
+            final int offset = start, length = stop - start;
+            try
+            {
+                retry.run(() -> write(url, dbName, data, offset, length), "Write to " + dbName);
+            }
+            catch (WriteException ex)
+            {   // Points of other requests may still be accepted
+                if (! WriteException.isPermanent(ex))
+                    throw ex;
+                if (rejected == null)
+                    rejected = ex;
+                else
+                    rejected.addSuppressed(ex);
+            }
+            start = stop;
+        }
+        if (rejected != null)
+            throw rejected;
+    }
+
+    /** Write one request
+     *  @param url Write URL
+     *  @param dbName Database, for error message
+     *  @param data Buffer with line protocol
+     *  @param offset Start of request body in data
+     *  @param length Length of request body
+     *  @throws Exception on error
+     */
+    private void write(final HttpUrl url, final String dbName, final byte[] data, final int offset, final int length) throws Exception
+    {
+        final Request.Builder request = new Request.Builder().url(url);
+        final long sent;
+        if (gzip)
+        {
+            final Buffer compressed = new Buffer();
+            try (final BufferedSink sink = Okio.buffer(new GzipSink(compressed)))
+            {
+                sink.write(data, offset, length);
+            }
+            sent = compressed.size();
+            request.header("Content-Encoding", "gzip")
+                   .post(RequestBody.create(LINE_PROTOCOL, compressed.readByteString()));
+        }
+        else
+        {
+            sent = length;
+            request.post(RequestBody.create(LINE_PROTOCOL, data, offset, length));
+        }
+        bytes_written.addAndGet(length);
+        bytes_sent.addAndGet(sent);
+        requests.incrementAndGet();
+        try (final Response response = client.newCall(request.build()).execute())
+        {
+            if (! response.isSuccessful())
+            {
+                final String body = response.body().string();
+                throw new WriteException("Write of " + length + " bytes to " + dbName +
+                                         " failed with HTTP " + response.code() + ": " + body,
+                                         WriteException.classify(response.code(), body), response.code(), null);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new WriteException("Write of " + length + " bytes to " + dbName + " failed: " + ex.getMessage(),
+                                     WriteException.Kind.RETRYABLE, 0, ex);
+        }
+    }
+
+    /** @return Number of line protocol bytes written */
+    public long getBytesWritten()
+    {
+        return bytes_written.get();
+    }
+
+    /** @return Number of bytes sent as request body, less than {@link #getBytesWritten()} when compressed */
+    public long getBytesSent()
+    {
+        return bytes_sent.get();
+    }
+
+    /** @return Number of HTTP write requests */
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("InfluxDBHttpWriter%s: %d bytes written in %d requests, %d bytes sent, %d retries",
+                             gzip ? " (gzip)" : "", getBytesWritten(), getRequests(), getBytesSent(), retry.getRetries());
+    }
+
+    /** Release connections */
+    public void close()
+    {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
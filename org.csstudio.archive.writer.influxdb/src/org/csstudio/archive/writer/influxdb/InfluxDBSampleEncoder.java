@@ -9,14 +9,21 @@
 package org.csstudio.archive.writer.influxdb;
 
 import java.time.Instant;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import org.csstudio.archive.influxdb.InfluxDBUtil;
+import org.csstudio.archive.influxdb.MetaTypes;
 import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+import org.csstudio.archive.influxdb.PackedDoubleArray;
+import org.csstudio.archive.vtype.MetaDataHelper;
 import org.csstudio.archive.vtype.VTypeHelper;
 import org.diirt.util.array.ListNumber;
 import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.Display;
 import org.diirt.vtype.VEnum;
 import org.diirt.vtype.VNumber;
 import org.diirt.vtype.VNumberArray;
@@ -25,8 +32,13 @@ import org.diirt.vtype.VType;
 import org.influxdb.dto.Point;
 
 /** Encode VType values into InfluxDB sample points
+ *
+ *  <p>Samples are appended as line protocol to a {@link LineProtocolBuffer}
+ *  using pre-escaped names so that no objects are created per sample.
+ *  Meta data, which changes rarely, is encoded as a {@link Point}.
  *  @author Megan Grodowitz
  */
+@SuppressWarnings("nls")
 public class InfluxDBSampleEncoder
 {
 
@@ -35,144 +47,327 @@ public class InfluxDBSampleEncoder
     /** Status string for <code>Double.NaN</code> samples */
     final private static String NOT_A_NUMBER_STATUS = "NaN";
 
+    /** Status strings for infinite samples, written as the largest finite value of the same sign */
+    final private static String POSITIVE_INFINITY_STATUS = "Infinity", NEGATIVE_INFINITY_STATUS = "-Infinity";
 
-    /** Perform 'batched' insert for sample.
-     *  <p>Needs eventual flush()
+    /** Field names "prefix.N=" for line protocol by index N, extended on demand */
+    private static class FieldNames
+    {
+        final private String prefix;
+        private volatile byte[][] names = new byte[0][];
+
+        FieldNames(final String prefix, final int count)
+        {
+            this.prefix = prefix;
+            grow(count - 1);
+        }
+
+        byte[] get(final int index)
+        {
+            final byte[][] current = names;
+            if (index < current.length)
+                return current[index];
+            return grow(index);
+        }
+
+        private synchronized byte[] grow(final int index)
+        {
+            final int old_count = names.length;
+            if (index >= old_count)
+            {
+                final byte[][] extended = Arrays.copyOf(names, Math.max(index + 1, old_count * 2));
+                for (int i=old_count; i<extended.length; ++i)
+                    extended[i] = keyEq(prefix + i);
+                names = extended;
+            }
+            return names[index];
+        }
+    }
+
+    final private static FieldNames DOUBLE_FIELDS = new FieldNames("double.", 1024);
+    final private static FieldNames LONG_FIELDS = new FieldNames("long.", 64);
+    final private static byte[] STRING_FIELD = keyEq("string.0");
+    final private static byte[] PACKED_FIELD = keyEq(PackedDoubleArray.FIELD);
+
+    final private static byte[] SEVERITY_TAG = keyEq("severity");
+    final private static byte[] STATUS_TAG = keyEq("status");
+    final private static byte[] NOT_A_NUMBER_STATUS_VALUE = LineProtocolBuffer.escapeKey(NOT_A_NUMBER_STATUS);
+    final private static byte[] POSITIVE_INFINITY_STATUS_VALUE = LineProtocolBuffer.escapeKey(POSITIVE_INFINITY_STATUS);
+    final private static byte[] NEGATIVE_INFINITY_STATUS_VALUE = LineProtocolBuffer.escapeKey(NEGATIVE_INFINITY_STATUS);
+
+    /** Escaped severity tag values by {@link AlarmSeverity} ordinal */
+    final private static byte[][] SEVERITY_VALUES = new byte[AlarmSeverity.values().length][];
+    static
+    {
+        for (AlarmSeverity severity : AlarmSeverity.values())
+            SEVERITY_VALUES[severity.ordinal()] = LineProtocolBuffer.escapeKey(severity.toString());
+    }
+
+    /** Maximum number of cached status tag values */
+    final private static int MAX_CACHED_STATUS = 1000;
+
+    /** Escaped status tag values */
+    final private static Map<String, byte[]> STATUS_VALUES = new ConcurrentHashMap<>();
+
+    /** @param name Tag or field name
+     *  @return Escaped name followed by '='
+     */
+    private static byte[] keyEq(final String name)
+    {
+        final byte[] escaped = LineProtocolBuffer.escapeKey(name);
+        final byte[] result = Arrays.copyOf(escaped, escaped.length + 1);
+        result[escaped.length] = '=';
+        return result;
+    }
+
+    /** @param status Status text
+     *  @return Escaped status tag value
+     */
+    private static byte[] getStatusValue(final String status)
+    {
+        byte[] value = STATUS_VALUES.get(status);
+        if (value == null)
+        {
+            value = LineProtocolBuffer.escapeKey(status);
+            if (STATUS_VALUES.size() < MAX_CACHED_STATUS)
+                STATUS_VALUES.put(status, value);
+        }
+        return value;
+    }
+
+    /** Encode meta data of a sample if it was never written for the channel or has changed
+     *
+     *  <p>Caller must synchronize on the channel
+     *  @param channel Channel, updated with the meta data of the sample
+     *  @param stamp Time stamp of the sample
+     *  @param sample Sample that may have new meta data
+     *  @param storeas How the sample is stored
+     *  @return Meta data point to write, <code>null</code> if meta data is unchanged
+     *  @throws Exception on error
+     */
+    public static Point encodeMetaData(final InfluxDBWriteChannel channel, final Instant stamp,
+                                       final VType sample, final StoreAs storeas) throws Exception
+    {
+        final Point point;
+        switch(storeas)
+        {
+        case ARCHIVE_DOUBLE :
+        case ARCHIVE_LONG :
+        case ARCHIVE_DOUBLE_ARRAY :
+        case ARCHIVE_LONG_ARRAY :
+        case ARCHIVE_PACKED_DOUBLE_ARRAY :
+        {
+            if (sample instanceof Display)
+            {
+                final Display display = (Display)sample;
+                if ((channel.getStorageType() == storeas) && (MetaDataHelper.equals(display, channel.getMetadata())))
+                    return null;
+                point = MetaTypes.toDisplayMetaPoint(display, channel.getName(), stamp, storeas);
+                channel.setMetaData(display, storeas);
+            }
+            else {
+                throw new Exception ("Cannot determine meta data object for " + storeas.name() + " with sample type " + sample.getClass().getName());
+            }
+        }
+        break;
+        case ARCHIVE_ENUM :
+        {
+            if (sample instanceof VEnum)
+            {
+                final List<String> labels = ((VEnum)sample).getLabels();
+                if ((channel.getStorageType() == storeas) && (MetaDataHelper.equals(labels, channel.getMetadata())))
+                    return null;
+                point = MetaTypes.toEnumMetaPoint(labels, channel.getName(), stamp, storeas);
+                channel.setMetaData(labels, storeas);
+            }
+            else {
+                throw new Exception ("Cannot determine meta data object for " + storeas.name() + " with sample type " + sample.getClass().getName());
+            }
+        }
+        break;
+        case ARCHIVE_STRING :
+        case ARCHIVE_UNKNOWN :
+            if ((channel.getStorageType() == storeas) && (channel.getMetadata() == null))
+                return null;
+            point = MetaTypes.toNullMetaPoint(channel.getName(), stamp, storeas);
+            channel.setMetaData(null, storeas);
+            break;
+        default:
+            throw new Exception ("Sample generated unhandled meta store type: " + storeas.name());
+        }
+        return point;
+    }
+
+    /** Add sample to line protocol buffer.
+     *  <p>Needs eventual write of the buffer
+     *  @param buffer Buffer for the database of the channel
      *  @param channel Channel
-     *  @param sample Sample to insert
+     *  @param stamp Time stamp of the sample
+     *  @param sample Sample to add
+     *  @param storeas How the sample is stored
      *  @throws Exception on error
      */
-    public static Point encodeSample(final InfluxDBWriteChannel channel, final Instant stamp, final VType sample, final StoreAs storeas) throws Exception
+    public static void encodeSample(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final Instant stamp, final VType sample, final StoreAs storeas) throws Exception
     {
-        final String severity = VTypeHelper.getSeverity(sample).toString();
+        final AlarmSeverity severity = VTypeHelper.getSeverity(sample);
         final String status = VTypeHelper.getMessage(sample);
+        final long nanos = InfluxDBUtil.toNanoLong(stamp);
 
         switch (storeas)
         {
         case ARCHIVE_DOUBLE :
         {
             final Number number = ((VNumber)sample).getValue();
-            return encodeDoubleSamples(channel, stamp, severity, status, number.doubleValue(), null);
+            encodeDoubleSamples(buffer, channel, nanos, severity, status, number.doubleValue(), null);
+            break;
         }
         case ARCHIVE_DOUBLE_ARRAY:
         {
             final ListNumber data = ((VNumberArray)sample).getData();
-            return encodeDoubleSamples(channel, stamp, severity, status, data.getDouble(0), data);
+            encodeDoubleSamples(buffer, channel, nanos, severity, status, data.getDouble(0), data);
+            break;
+        }
+        case ARCHIVE_LONG_ARRAY:
+        {
+            encodeLongSamples(buffer, channel, nanos, severity, status, ((VNumberArray)sample).getData());
+            break;
+        }
+        case ARCHIVE_PACKED_DOUBLE_ARRAY:
+        {
+            startPoint(buffer, channel, severity, status);
+            buffer.addField(PACKED_FIELD, PackedDoubleArray.encode(((VNumberArray)sample).getData()));
+            buffer.endPoint(nanos);
+            break;
         }
         case ARCHIVE_LONG:
         {
             final Number number = ((VNumber)sample).getValue();
-            return encodeLongSample(channel, stamp, severity, status, number.longValue());
-
+            encodeLongSample(buffer, channel, nanos, severity, status, number.longValue());
+            break;
         }
         case ARCHIVE_ENUM:
         {
-            return encodeLongSample(channel, stamp, severity, status, ((VEnum)sample).getIndex());
+            encodeLongSample(buffer, channel, nanos, severity, status, ((VEnum)sample).getIndex());
+            break;
         }
         case ARCHIVE_STRING:
         {
-            return encodeTextSample(channel, stamp, severity, status, ((VString)sample).getValue());
+            encodeTextSample(buffer, channel, nanos, severity, status, ((VString)sample).getValue());
+            break;
         }
         case ARCHIVE_UNKNOWN:
         {
-            return encodeTextSample(channel, stamp, severity, status, sample.toString());
+            encodeTextSample(buffer, channel, nanos, severity, status, sample.toString());
+            break;
         }
         default:
             throw new Exception ("Tried to encode sample with unhandled store type: " + storeas.name());
         }
     }
 
-    /** Encode Double or array of doubles into database sample point
-     * @param channel Information about the channel being written
-     * @param stamp sample timestamp
-     * @param severity alarm severity
-     * @param status status string
-     * @param dbl first value
-     * @param additional list of values if this is an array (null if single number)
-     * @return
-     * @return
-     * @throws Exception
-     */
-    private static Point encodeDoubleSamples(final InfluxDBWriteChannel channel,
-            final Instant stamp, final String severity,
-            final String status, final double dbl, final ListNumber additional) throws Exception
+    private static void startPoint(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final AlarmSeverity severity, final String status)
     {
-        org.influxdb.dto.Point.Builder point;
+        buffer.startPoint(channel.getMeasurement());
+        buffer.addTag(SEVERITY_TAG, SEVERITY_VALUES[severity.ordinal()]);
+        if (status != null)
+            buffer.addTag(STATUS_TAG, getStatusValue(status));
+    }
 
-        //TODO: Catch other number states than NaN (e.g. INF)? Add tags instead of status string?
-        if (Double.isNaN(dbl))
-        {
-            //TODO: nano precision may be lost Long time field (library limitation)
-            point = Point.measurement(channel.getName())
-                    .time(InfluxDBUtil.toNanoLong(stamp), TimeUnit.NANOSECONDS)
-                    .tag("severity", AlarmSeverity.UNDEFINED.name())
-                    .tag("status", NOT_A_NUMBER_STATUS)
-                    .addField("double.0", 0.0d);
-        }
+    /** Encode Double or array of doubles as line protocol
+     *  @param buffer Buffer
+     *  @param channel Channel
+     *  @param nanos Time stamp
+     *  @param severity Alarm severity
+     *  @param status Status string
+     *  @param dbl First value
+     *  @param additional List of values if this is an array, <code>null</code> for a single number
+     */
+    private static void encodeDoubleSamples(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final long nanos, final AlarmSeverity severity,
+            final String status, final double dbl, final ListNumber additional)
+    {
+        // Line protocol has no NaN or infinity.
+        // Write a finite value, with a status that allows the reader to restore the original value.
+        if (Double.isFinite(dbl))
+            startPoint(buffer, channel, severity, status);
         else
         {
-            point = Point.measurement(channel.getName())
-                    .time(InfluxDBUtil.toNanoLong(stamp), TimeUnit.NANOSECONDS)
-                    .tag("severity", severity)
-                    .tag("status", status)
-                    .addField("double.0", dbl);
+            buffer.startPoint(channel.getMeasurement());
+            buffer.addTag(SEVERITY_TAG, SEVERITY_VALUES[AlarmSeverity.UNDEFINED.ordinal()]);
+            if (Double.isNaN(dbl))
+                buffer.addTag(STATUS_TAG, NOT_A_NUMBER_STATUS_VALUE);
+            else
+                buffer.addTag(STATUS_TAG, dbl > 0 ? POSITIVE_INFINITY_STATUS_VALUE : NEGATIVE_INFINITY_STATUS_VALUE);
         }
+        buffer.addField(DOUBLE_FIELDS.get(0), toFinite(dbl));
 
         if (additional != null)
         {
-            //handle arrays (Recommended way is lots of fields)
             final int N = additional.size();
             for (int i = 1; i < N; i++)
-            {
-                String fname = "double." + Integer.toString(i);
-                // Patch NaN.
-                // Conundrum: Should we set the status/severity to indicate NaN?
-                final double dbli = additional.getDouble(i);
-                if (Double.isNaN(dbli))
-                    point.addField(fname, 0.0);
-                else
-                    point.addField(fname, dbli);
-            }
+                buffer.addField(DOUBLE_FIELDS.get(i), toFinite(additional.getDouble(i)));
         }
-
-        return point.build();
+        buffer.endPoint(nanos);
     }
 
-    /** Encode a long value into database sample point  */
-    private static Point encodeLongSample(final InfluxDBWriteChannel channel,
-            final Instant stamp, final String severity,
-            final String status, final long num) throws Exception
+    /** @param value Number
+     *  @return Value, 0 for NaN, largest finite value of the same sign for infinity
+     */
+    private static double toFinite(final double value)
     {
-        Point point = Point.measurement(channel.getName())
-                .time(InfluxDBUtil.toNanoLong(stamp), TimeUnit.NANOSECONDS)
-                .tag("severity", severity)
-                .tag("status", status)
-                .addField("long.0", num).
-                build();
+        if (Double.isNaN(value))
+            return 0.0;
+        if (value == Double.POSITIVE_INFINITY)
+            return Double.MAX_VALUE;
+        if (value == Double.NEGATIVE_INFINITY)
+            return -Double.MAX_VALUE;
+        return value;
+    }
 
-        return point;
+    /** Encode a long value as line protocol */
+    private static void encodeLongSample(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final long nanos, final AlarmSeverity severity,
+            final String status, final long num)
+    {
+        startPoint(buffer, channel, severity, status);
+        buffer.addField(LONG_FIELDS.get(0), num);
+        buffer.endPoint(nanos);
     }
 
-    /** Encode a string value into database sample point */
-    private static Point encodeTextSample(final InfluxDBWriteChannel channel,
-            final Instant stamp, final String severity,
-            final String status, String txt) throws Exception
+    /** Encode array of integers as line protocol, one "long.N" field per element */
+    private static void encodeLongSamples(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final long nanos, final AlarmSeverity severity,
+            final String status, final ListNumber data) throws Exception
     {
-        if (txt.length() > MAX_TEXT_SAMPLE_LENGTH)
-        {
-            Activator.getLogger().log(Level.INFO,
-                    "Value of {0} exceeds {1} chars: {2}",
-                    new Object[] { channel.getName(), MAX_TEXT_SAMPLE_LENGTH, txt });
-            txt = txt.substring(0, MAX_TEXT_SAMPLE_LENGTH);
-        }
-        Point point = Point.measurement(channel.getName())
-                .time(InfluxDBUtil.toNanoLong(stamp), TimeUnit.NANOSECONDS)
-                .tag("severity", severity)
-                .tag("status", status)
-                .addField("string.0", txt).
-                build();
+        final int N = data.size();
+        if (N <= 0)
+            throw new Exception("Cannot encode empty array for " + channel.getName());
+        startPoint(buffer, channel, severity, status);
+        for (int i = 0; i < N; i++)
+            buffer.addField(LONG_FIELDS.get(i), data.getLong(i));
+        buffer.endPoint(nanos);
+    }
 
-        return point;
+    /** Encode a string value as line protocol */
+    private static void encodeTextSample(final LineProtocolBuffer buffer, final InfluxDBWriteChannel channel,
+            final long nanos, final AlarmSeverity severity,
+            final String status, final String txt)
+    {
+        startPoint(buffer, channel, severity, status);
+        buffer.addField(STRING_FIELD, limitText(channel, txt));
+        buffer.endPoint(nanos);
     }
 
+    /** @return Text, truncated to the maximum sample length */
+    private static String limitText(final InfluxDBWriteChannel channel, final String txt)
+    {
+        if (txt.length() <= MAX_TEXT_SAMPLE_LENGTH)
+            return txt;
+        Activator.getLogger().log(Level.INFO,
+                "Value of {0} exceeds {1} chars: {2}",
+                new Object[] { channel.getName(), MAX_TEXT_SAMPLE_LENGTH, txt });
+        return txt.substring(0, MAX_TEXT_SAMPLE_LENGTH);
+    }
 }
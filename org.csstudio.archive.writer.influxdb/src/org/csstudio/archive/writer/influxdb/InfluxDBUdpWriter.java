@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+
+/** Write {@link LineProtocolBuffer} content to InfluxDB UDP listeners
+ *
+ *  <p>Packs whole lines into datagrams of up to the maximum size,
+ *  which should fit into one network packet to avoid IP fragmentation.
+ *  A single line larger than that is sent in a datagram by itself.
+ *
+ *  <p>UDP writes are not acknowledged.
+ *  Points are lost when the listener is not running or its buffer overflows,
+ *  and errors like a field type conflict are only logged by InfluxDB.
+ *
+ *  <p>Thread safe.
+ */
+@SuppressWarnings("nls")
+public class InfluxDBUdpWriter
+{
+    final private InetAddress host;
+    final private DatagramChannel channel;
+    final private int max_datagram;
+
+    final private AtomicLong bytes = new AtomicLong(), datagrams = new AtomicLong();
+
+    /** Initialize
+     *  @param url InfluxDB URL, only the host is used
+     *  @param max_datagram Maximum datagram size in bytes
+     *  @throws Exception on error
+     */
+    public InfluxDBUdpWriter(final String url, final int max_datagram) throws Exception
+    {
+        final HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null)
+            throw new Exception("Invalid InfluxDB URL " + url);
+        host = InetAddress.getByName(parsed.host());
+        this.max_datagram = Math.max(512, Math.min(65507, max_datagram));
+        channel = DatagramChannel.open();
+    }
+
+    /** @return Maximum datagram size in bytes */
+    public int getMaxDatagramSize()
+    {
+        return max_datagram;
+    }
+
+    /** Write points
+     *  @param port UDP port of the database
+     *  @param points Points to write
+     *  @throws IOException on error
+     */
+    public void write(final int port, final LineProtocolBuffer points) throws IOException
+    {
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        final byte[] data = points.getData();
+        final int end = points.size();
+        int start = 0;
+        while (start < end)
+        {
+            // Same as splitting HTTP requests, at the last line that fits,
+            // or after the first line if that alone is too large
+            int stop = end;
+            if (end - start > max_datagram)
+            {
+                stop = start + max_datagram;
+                while (stop > start  &&  data[stop - 1] != '\n')
+                    --stop;
+                if (stop <= start)
+                {
+                    stop = start + max_datagram;
+                    while (stop < end  &&  data[stop - 1] != '\n')
+                        ++stop;
+                }
+            }
+            channel.send(ByteBuffer.wrap(data, start, stop - start), address);
+            bytes.addAndGet(stop - start);
+            datagrams.incrementAndGet();
+            start = stop;
+        }
+    }
+
+    /** @return Number of bytes sent */
+    public long getBytesSent()
+    {
+        return bytes.get();
+    }
+
+    /** @return Number of datagrams sent */
+    public long getDatagrams()
+    {
+        return datagrams.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("InfluxDBUdpWriter to %s: %d bytes in %d datagrams",
+                             host.getHostAddress(), getBytesSent(), getDatagrams());
+    }
+
+    /** Release socket */
+    public void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            // Ignore
+        }
+    }
+}
@@ -18,8 +18,11 @@ import org.csstudio.archive.writer.WriteChannel;
 public class InfluxDBWriteChannel implements WriteChannel
 {
     final private String name;
+    /** Name escaped for line protocol */
+    final private byte[] measurement;
     private Object meta = null;
     private StoreAs storeas = StoreAs.ARCHIVE_UNKNOWN;
+    private SampleFilter filter = null;
 
     /** Initialize
      *  @param name Channel name
@@ -27,6 +30,7 @@ public class InfluxDBWriteChannel implements WriteChannel
     public InfluxDBWriteChannel(final String name)
     {
         this.name = name;
+        this.measurement = LineProtocolBuffer.escapeKey(name);
     }
 
     /** {@inheritDoc} */
@@ -36,6 +40,12 @@ public class InfluxDBWriteChannel implements WriteChannel
         return name;
     }
 
+    /** @return Channel name as measurement, escaped for line protocol */
+    public byte[] getMeasurement()
+    {
+        return measurement;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String toString()
@@ -67,6 +77,18 @@ public class InfluxDBWriteChannel implements WriteChannel
         this.storeas = mo.storeas;
     }
 
+    /** @return Filter for samples, <code>null</code> to write all samples */
+    public SampleFilter getFilter()
+    {
+        return filter;
+    }
+
+    /** @param filter Filter for samples, <code>null</code> to write all samples */
+    public void setFilter(final SampleFilter filter)
+    {
+        this.filter = filter;
+    }
+
     public String toLongString()
     {
         String metaclass;
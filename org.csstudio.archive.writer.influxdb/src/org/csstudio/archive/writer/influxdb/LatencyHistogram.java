@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram of durations
+ *
+ *  <p>Bucket N counts durations of less than 2^N microseconds
+ *  that did not fit into bucket N-1,
+ *  so percentiles are accurate within a factor of two
+ *  from a microsecond to several days.
+ *
+ *  <p>Thread safe, recording does not lock.
+ */
+@SuppressWarnings("nls")
+public class LatencyHistogram
+{
+    final private static int BUCKETS = 40;
+
+    final private LongAdder[] buckets = new LongAdder[BUCKETS];
+    final private LongAdder total_nanos = new LongAdder();
+    final private LongAccumulator max_nanos = new LongAccumulator(Math::max, 0);
+
+    /** Values of the histogram at one time */
+    public static class Snapshot
+    {
+        final private long[] counts;
+        final private long count, total_nanos, max_nanos;
+
+        Snapshot(final long[] counts, final long total_nanos, final long max_nanos)
+        {
+            this.counts = counts;
+            long sum = 0;
+            for (long c : counts)
+                sum += c;
+            this.count = sum;
+            this.total_nanos = total_nanos;
+            this.max_nanos = max_nanos;
+        }
+
+        /** @return Number of recorded durations */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /** @return Mean duration in milliseconds, 0 if nothing was recorded */
+        public double getMeanMillis()
+        {
+            return count > 0 ? total_nanos / 1e6 / count : 0.0;
+        }
+
+        /** @return Longest duration in milliseconds */
+        public double getMaxMillis()
+        {
+            return max_nanos / 1e6;
+        }
+
+        /** @param percentile Percentile, 0..100
+         *  @return Duration in milliseconds that the given percentage of durations did not exceed,
+         *          upper limit of the bucket
+         */
+        public double getPercentileMillis(final double percentile)
+        {
+            if (count <= 0)
+                return 0.0;
+            final long rank = (long) Math.ceil(count * Math.max(0.0, Math.min(100.0, percentile)) / 100.0);
+            long seen = 0;
+            for (int i=0; i<counts.length; ++i)
+            {
+                seen += counts[i];
+                if (seen >= rank  &&  seen > 0)
+                    return Math.min((1L << i) / 1e3, getMaxMillis());
+            }
+            return getMaxMillis();
+        }
+
+        /** @param other Other snapshot, may be <code>null</code>
+         *  @return Snapshot of the durations of both
+         */
+        Snapshot add(final Snapshot other)
+        {
+            if (other == null)
+                return this;
+            final long[] sum = counts.clone();
+            for (int i=0; i<sum.length; ++i)
+                sum[i] += other.counts[i];
+            return new Snapshot(sum, total_nanos + other.total_nanos, Math.max(max_nanos, other.max_nanos));
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count %d, mean %.3f ms, 50%% < %.3f ms, 99%% < %.3f ms, max %.3f ms",
+                                 count, getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+        }
+    }
+
+    /** Create empty histogram */
+    public LatencyHistogram()
+    {
+        for (int i=0; i<BUCKETS; ++i)
+            buckets[i] = new LongAdder();
+    }
+
+    /** @param nanos Duration in nanoseconds */
+    public void record(final long nanos)
+    {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        buckets[Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        total_nanos.add(nanos);
+        max_nanos.accumulate(nanos);
+    }
+
+    /** @return Current values */
+    public Snapshot snapshot()
+    {
+        final long[] counts = new long[BUCKETS];
+        for (int i=0; i<BUCKETS; ++i)
+            counts[i] = buckets[i].sum();
+        return new Snapshot(counts, total_nanos.sum(), max_nanos.get());
+    }
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Reusable buffer of points in InfluxDB line protocol
+ *
+ *  <p>Points are appended as UTF-8 bytes,
+ *  <code>measurement[,tag=value...] field=value[,field=value...] time\n</code>,
+ *  with the time in nanoseconds.
+ *  After the buffer has been written, {@link #reset()} allows
+ *  re-use without allocating a new array.
+ *
+ *  <p>Not thread safe.
+ */
+@SuppressWarnings("nls")
+public class LineProtocolBuffer
+{
+    private byte[] data;
+    private int size = 0;
+
+    /** Array into which {@link #sortBySeries()} copies the sorted points, swapped with data */
+    private byte[] sorted = null;
+    private int points = 0;
+
+    /** Time when the first point was added since creation or reset */
+    private long start_millis = 0;
+
+    /** Is the next field the first one of the current point? */
+    private boolean first_field = true;
+
+    /** Buffer for formatting numbers */
+    final private byte[] digits = new byte[20];
+
+    /** @param capacity Initial capacity in bytes */
+    public LineProtocolBuffer(final int capacity)
+    {
+        data = new byte[Math.max(64, capacity)];
+    }
+
+    /** @return Content of buffer, valid from 0 to {@link #size()} */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /** @return Number of bytes in buffer */
+    public int size()
+    {
+        return size;
+    }
+
+    /** @return Number of complete points in buffer */
+    public int getPointCount()
+    {
+        return points;
+    }
+
+    /** @return Time when the first point was added, only valid while the buffer has points */
+    public long getStartMillis()
+    {
+        return start_millis;
+    }
+
+    /** Note start time if this is the first point */
+    private void checkStart()
+    {
+        if (size == 0)
+            start_millis = System.currentTimeMillis();
+    }
+
+    /** Clear buffer for re-use */
+    public void reset()
+    {
+        size = 0;
+        points = 0;
+        first_field = true;
+    }
+
+    private void ensure(final int extra)
+    {
+        if (size + extra > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+    }
+
+    private void append(final byte b)
+    {
+        ensure(1);
+        data[size++] = b;
+    }
+
+    private void append(final byte[] bytes)
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /** Start a point
+     *  @param measurement Measurement name, escaped via {@link #escapeKey(String)}
+     */
+    public void startPoint(final byte[] measurement)
+    {
+        checkStart();
+        append(measurement);
+        first_field = true;
+    }
+
+    /** Add tag to current point, must be called before the first field
+     *  @param key_eq Tag name followed by '=', escaped via {@link #escapeKey(String)}
+     *  @param value Tag value, escaped via {@link #escapeKey(String)}
+     */
+    public void addTag(final byte[] key_eq, final byte[] value)
+    {
+        // Like org.influxdb.dto.Point, skip tags with empty value
+        if (value.length <= 0)
+            return;
+        append((byte) ',');
+        append(key_eq);
+        append(value);
+    }
+
+    private void startField(final byte[] name_eq)
+    {
+        append(first_field ? (byte) ' ' : (byte) ',');
+        first_field = false;
+        append(name_eq);
+    }
+
+    /** Add floating point field to current point
+     *  @param name_eq Field name followed by '=', escaped via {@link #escapeKey(String)}
+     *  @param value Finite value
+     *  @throws IllegalArgumentException for NaN or infinite value, which line protocol cannot represent
+     */
+    public void addField(final byte[] name_eq, final double value)
+    {
+        if (! Double.isFinite(value))
+            throw new IllegalArgumentException("Cannot write " + value + " in line protocol");
+        startField(name_eq);
+        appendDouble(value);
+    }
+
+    /** Add integer field to current point
+     *  @param name_eq Field name followed by '=', escaped via {@link #escapeKey(String)}
+     *  @param value Value
+     */
+    public void addField(final byte[] name_eq, final long value)
+    {
+        startField(name_eq);
+        appendLong(value);
+        append((byte) 'i');
+    }
+
+    /** Add string field to current point
+     *  @param name_eq Field name followed by '=', escaped via {@link #escapeKey(String)}
+     *  @param value Value
+     */
+    public void addField(final byte[] name_eq, final String value)
+    {
+        startField(name_eq);
+        append((byte) '"');
+        appendEscaped(value, false);
+        append((byte) '"');
+    }
+
+    /** Complete current point
+     *  @param nanos Time stamp in nanoseconds since epoch
+     */
+    public void endPoint(final long nanos)
+    {
+        append((byte) ' ');
+        appendLong(nanos);
+        append((byte) '\n');
+        ++points;
+    }
+
+    /** Add a complete point
+     *  @param line Point in line protocol, without trailing newline
+     */
+    public void addLine(final String line)
+    {
+        checkStart();
+        append(line.getBytes(StandardCharsets.UTF_8));
+        append((byte) '\n');
+        ++points;
+    }
+
+    /** Add complete points
+     *  @param lines Remaining bytes are points in line protocol, each terminated by newline
+     *  @param count Number of points
+     */
+    public void addLines(final ByteBuffer lines, final int count)
+    {
+        final int len = lines.remaining();
+        checkStart();
+        ensure(len);
+        lines.get(data, size, len);
+        size += len;
+        points += count;
+    }
+
+    /** Add all points of another buffer
+     *  @param other Buffer with points to append, remains unchanged
+     */
+    public void addLines(final LineProtocolBuffer other)
+    {
+        if (other.size <= 0)
+            return;
+        if (size == 0  ||  other.start_millis < start_millis)
+            start_millis = other.start_millis;
+        ensure(other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+        points += other.points;
+    }
+
+    /** Sort points by series key, that is measurement and tags, and then by time stamp
+     *
+     *  <p>InfluxDB ingests a batch faster when the points of each series are
+     *  next to each other and in time order.
+     *  Points with the same series key and time stamp keep their order,
+     *  so the last one still replaces the earlier ones.
+     *  Points without time stamp sort before those with a time stamp.
+     *
+     *  @return <code>true</code> if points were moved, <code>false</code> if they were already sorted
+     */
+    public boolean sortBySeries()
+    {
+        // Locate start, end of series key and time stamp of each line
+        int lines = 0;
+        for (int i=0; i<size; ++i)
+            if (data[i] == '\n')
+                ++lines;
+        if (lines < 2)
+            return false;
+        final int[] starts = new int[lines + 1];
+        final int[] key_ends = new int[lines];
+        final long[] stamps = new long[lines];
+        int start = 0;
+        for (int line=0; line<lines; ++line)
+        {
+            starts[line] = start;
+            // Series key ends at the first space that is not escaped
+            int pos = start;
+            while (data[pos] != ' '  &&  data[pos] != '\n')
+                pos += (data[pos] == '\\'  &&  data[pos+1] != '\n') ? 2 : 1;
+            key_ends[line] = pos;
+            while (data[pos] != '\n')
+                ++pos;
+            stamps[line] = parseTimestamp(key_ends[line], pos);
+            start = pos + 1;
+        }
+        starts[lines] = start;
+
+        // Check if already sorted
+        boolean ordered = true;
+        for (int line=1; ordered && line<lines; ++line)
+            ordered = compare(starts, key_ends, stamps, line-1, line) <= 0;
+        if (ordered)
+            return false;
+
+        // Stable sort of line indices, then copy lines in that order
+        final Integer[] order = new Integer[lines];
+        for (int line=0; line<lines; ++line)
+            order[line] = line;
+        Arrays.sort(order, (a, b) -> compare(starts, key_ends, stamps, a, b));
+        if (sorted == null  ||  sorted.length < data.length)
+            sorted = new byte[data.length];
+        int dest = 0;
+        for (int line : order)
+        {
+            final int len = starts[line+1] - starts[line];
+            System.arraycopy(data, starts[line], sorted, dest, len);
+            dest += len;
+        }
+        final byte[] previous = data;
+        data = sorted;
+        sorted = previous;
+        return true;
+    }
+
+    /** @param key_end End of series key
+     *  @param end End of line
+     *  @return Time stamp at end of line, {@link Long#MIN_VALUE} if there is none
+     */
+    private long parseTimestamp(final int key_end, final int end)
+    {
+        int pos = end;
+        while (pos > key_end  &&  data[pos-1] >= '0'  &&  data[pos-1] <= '9')
+            --pos;
+        final boolean negative = pos > key_end  &&  data[pos-1] == '-';
+        final int space = negative ? pos-2 : pos-1;
+        if (pos >= end  ||  space <= key_end  ||  data[space] != ' ')
+            return Long.MIN_VALUE;
+        long value = 0;
+        for (int i=pos; i<end; ++i)
+            value = value * 10 + (data[i] - '0');
+        return negative ? -value : value;
+    }
+
+    /** Compare lines by series key, then time stamp */
+    private int compare(final int[] starts, final int[] key_ends, final long[] stamps, final int a, final int b)
+    {
+        final int a_len = key_ends[a] - starts[a], b_len = key_ends[b] - starts[b];
+        final int len = Math.min(a_len, b_len);
+        for (int i=0; i<len; ++i)
+        {
+            final int diff = (data[starts[a] + i] & 0xFF) - (data[starts[b] + i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        if (a_len != b_len)
+            return a_len - b_len;
+        return Long.compare(stamps[a], stamps[b]);
+    }
+
+    /** Append digits of a number */
+    private void appendLong(long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            append("-9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0)
+        {
+            append((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do
+        {
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        while (value > 0);
+        final int len = digits.length - pos;
+        ensure(len);
+        System.arraycopy(digits, pos, data, size, len);
+        size += len;
+    }
+
+    /** Append floating point number.
+     *  Whole numbers are written without fraction, which line protocol
+     *  still reads as floating point because there is no 'i' suffix.
+     */
+    private void appendDouble(final double value)
+    {
+        if (value == Math.rint(value)  &&  Math.abs(value) < 1e15)
+            appendLong((long) value);
+        else
+        {
+            final String text = Double.toString(value);
+            final int len = text.length();
+            ensure(len);
+            for (int i=0; i<len; ++i)
+                data[size++] = (byte) text.charAt(i);
+        }
+    }
+
+    /** Append text as UTF-8
+     *  @param text Text to append
+     *  @param key Escape as key (measurement, tag, field name)? Otherwise as string field value
+     */
+    private void appendEscaped(final String text, final boolean key)
+    {
+        final int len = text.length();
+        ensure(len);
+        for (int i=0; i<len; ++i)
+        {
+            final char c = text.charAt(i);
+            if (c >= 0x80)
+            {   // Not plain ASCII: Encode remaining text as UTF-8.
+                // Multi-byte UTF-8 sequences never contain the ASCII characters that need escapes.
+                final byte[] bytes = text.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensure(bytes.length * 2);
+                for (byte b : bytes)
+                    appendEscaped(b, key);
+                return;
+            }
+            appendEscaped((byte) c, key);
+        }
+    }
+
+    private void appendEscaped(final byte b, final boolean key)
+    {
+        if (key ? (b == ' '  ||  b == ','  ||  b == '=')
+                : (b == '"'  ||  b == '\\'))
+            append((byte) '\\');
+        append(b);
+    }
+
+    /** @param text Measurement, tag or field name, or tag value
+     *  @return Escaped UTF-8 bytes for line protocol
+     */
+    public static byte[] escapeKey(final String text)
+    {
+        final LineProtocolBuffer buf = new LineProtocolBuffer(text.length() + 8);
+        buf.appendEscaped(text, true);
+        return Arrays.copyOf(buf.data, buf.size);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(data, 0, size, StandardCharsets.UTF_8);
+    }
+}
@@ -7,8 +7,13 @@
  ******************************************************************************/
 package org.csstudio.archive.writer.influxdb;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Level;
+
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.preferences.IPreferencesService;
+import org.influxdb.InfluxDB.ConsistencyLevel;
 
 /** Access to InfluxDB archive preferences
  *  @author Kay Kasemir
@@ -17,14 +22,263 @@ import org.eclipse.core.runtime.preferences.IPreferencesService;
 public class Preferences
 {
     public static final String MAX_TEXT_SAMPLE_LENGTH = "max_text_sample_length";
+    public static final String ASYNC_WRITE = "async_write";
+    public static final String ASYNC_QUEUE_SIZE = "async_queue_size";
+    public static final String ASYNC_FLUSH_THREADS = "async_flush_threads";
+    public static final String ASYNC_OVERFLOW = "async_overflow";
+    public static final String FLUSH_THREADS = "flush_threads";
+    public static final String BATCH_STRIPES = "batch_stripes";
+    public static final String PRELOAD_META_BATCH = "preload_meta_batch";
+    public static final String PACKED_ARRAY_MIN_SIZE = "packed_array_min_size";
+    public static final String FILTER_CHANNELS = "filter_channels";
+    public static final String FILTER_DEADBAND = "filter_deadband";
+    public static final String FILTER_DEADBAND_RELATIVE = "filter_deadband_relative";
+    public static final String FILTER_HEARTBEAT_SECS = "filter_heartbeat_secs";
+    public static final String AUTO_FLUSH_POINTS = "auto_flush_points";
+    public static final String AUTO_FLUSH_KB = "auto_flush_kb";
+    public static final String AUTO_FLUSH_AGE_MS = "auto_flush_age_ms";
+    public static final String MAX_REQUEST_KB = "max_request_kb";
+    public static final String UDP_DATAGRAM_SIZE = "udp_datagram_size";
+    public static final String SORT_BATCHES = "sort_batches";
+    public static final String WRITE_RETENTION = "write_retention";
+    public static final String WRITE_CONSISTENCY = "write_consistency";
+    public static final String WRITE_POLICIES = "write_policies";
+    public static final String WRITE_RETRIES = "write_retries";
+    public static final String WRITE_RETRY_MS = "write_retry_ms";
+    public static final String WRITE_RETRY_MAX_MS = "write_retry_max_ms";
+    public static final String SPOOL_FILE = "spool_file";
+    public static final String SPOOL_SIZE_MB = "spool_size_mb";
+    public static final String SPOOL_FSYNC = "spool_fsync";
+    public static final String SPOOL_REPLAY_KB_PER_SEC = "spool_replay_kb_per_sec";
 
     /** @return Maximum length of text samples written to SAMPLE.STR_VAL */
     public static int getMaxStringSampleLength()
+    {
+        return getInt(MAX_TEXT_SAMPLE_LENGTH, 80);
+    }
+
+    /** @return Write samples from background threads instead of in flush()? */
+    public static boolean useAsyncWrite()
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return false;
+        return prefs.getBoolean(Activator.ID, ASYNC_WRITE, false, null);
+    }
+
+    /** @return Maximum number of samples queued for background write */
+    public static int getAsyncQueueSize()
+    {
+        return getInt(ASYNC_QUEUE_SIZE, 500000);
+    }
+
+    /** @return Number of background writer threads */
+    public static int getAsyncFlushThreads()
+    {
+        return getInt(ASYNC_FLUSH_THREADS, 2);
+    }
+
+    /** @return What to do when the background write queue is full */
+    public static AsyncFlusher.Overflow getAsyncOverflow()
+    {
+        final String setting = getString(ASYNC_OVERFLOW, AsyncFlusher.Overflow.BLOCK.name());
+        try
+        {
+            return AsyncFlusher.Overflow.valueOf(setting.trim().toUpperCase());
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Unknown " + ASYNC_OVERFLOW + " setting '" + setting + "', using BLOCK");
+            return AsyncFlusher.Overflow.BLOCK;
+        }
+    }
+
+    /** @return Number of threads that write the databases in parallel within flush() */
+    public static int getFlushThreads()
+    {
+        return getInt(FLUSH_THREADS, 4);
+    }
+
+    /** @return Number of stripes for batches of samples added by concurrent threads */
+    public static int getBatchStripes()
+    {
+        final int stripes = getInt(BATCH_STRIPES, 0);
+        if (stripes > 0)
+            return Math.min(stripes, 64);
+        return Math.min(Runtime.getRuntime().availableProcessors(), 16);
+    }
+
+    /** @return Minimum number of elements for storing an array packed into one field, 0 to disable */
+    public static int getPackedArrayMinSize()
+    {
+        return getInt(PACKED_ARRAY_MIN_SIZE, 0);
+    }
+
+    /** @return Regular expression for names of channels whose samples are filtered, empty for none */
+    public static String getFilterChannels()
+    {
+        return getString(FILTER_CHANNELS, "").trim();
+    }
+
+    /** @return Absolute deadband of the sample filter */
+    public static double getFilterDeadband()
+    {
+        return getDouble(FILTER_DEADBAND, 0.0);
+    }
+
+    /** @return Deadband of the sample filter relative to the last written value */
+    public static double getFilterRelativeDeadband()
+    {
+        return getDouble(FILTER_DEADBAND_RELATIVE, 0.0);
+    }
+
+    /** @return Seconds after which the sample filter writes an unchanged sample */
+    public static int getFilterHeartbeat()
+    {
+        return Math.max(1, getInt(FILTER_HEARTBEAT_SECS, 300));
+    }
+
+    /** @return Number of channels per query when meta data is preloaded on startup, 0 to disable */
+    public static int getPreloadMetaBatch()
+    {
+        return getInt(PRELOAD_META_BATCH, 1000);
+    }
+
+    /** @return Number of points in a database batch that triggers a write, 0 to disable */
+    public static int getAutoFlushPoints()
+    {
+        return getInt(AUTO_FLUSH_POINTS, 5000);
+    }
+
+    /** @return Size of a database batch in bytes that triggers a write, 0 to disable */
+    public static int getAutoFlushBytes()
+    {
+        return getInt(AUTO_FLUSH_KB, 1024) * 1024;
+    }
+
+    /** @return Age of a database batch in milliseconds that triggers a write, 0 to disable */
+    public static int getAutoFlushAge()
+    {
+        return getInt(AUTO_FLUSH_AGE_MS, 2000);
+    }
+
+    /** @return Maximum size of one write request in bytes, larger batches are split */
+    public static int getMaxRequestBytes()
+    {
+        return getInt(MAX_REQUEST_KB, 1024) * 1024;
+    }
+
+    /** @return Maximum size of a UDP datagram in bytes */
+    public static int getUDPDatagramSize()
+    {
+        return getInt(UDP_DATAGRAM_SIZE, 1400);
+    }
+
+    /** @return Sort points of each batch by series and time before writing? */
+    public static boolean sortBatches()
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return false;
+        return prefs.getBoolean(Activator.ID, SORT_BATCHES, false, null);
+    }
+
+    /** @return Retention policy and consistency level for databases that have no policy in {@link #getWritePolicies} */
+    public static WritePolicy getWritePolicy()
+    {
+        final String retention = getString(WRITE_RETENTION, "autogen").trim();
+        final String setting = getString(WRITE_CONSISTENCY, ConsistencyLevel.ALL.name());
+        ConsistencyLevel consistency;
+        try
+        {
+            consistency = WritePolicy.parseConsistency(setting);
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Unknown " + WRITE_CONSISTENCY + " setting '" + setting + "', using ALL");
+            consistency = ConsistencyLevel.ALL;
+        }
+        return new WritePolicy(retention.isEmpty() ? "autogen" : retention, consistency);
+    }
+
+    /** @param defaults Policy that provides what the setting leaves out
+     *  @return Retention policy and consistency level by database
+     */
+    public static Map<String, WritePolicy> getWritePolicies(final WritePolicy defaults)
+    {
+        final String setting = getString(WRITE_POLICIES, "");
+        try
+        {
+            return WritePolicy.parse(setting, defaults);
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Invalid " + WRITE_POLICIES + " setting '" + setting + "'", ex);
+            return Collections.emptyMap();
+        }
+    }
+
+    /** @return Retry of failed write requests */
+    public static WriteRetry getWriteRetry()
+    {
+        return new WriteRetry(getInt(WRITE_RETRIES, 5), getInt(WRITE_RETRY_MS, 100), getInt(WRITE_RETRY_MAX_MS, 10000));
+    }
+
+    /** @return Path of write-ahead spool file, empty to disable */
+    public static String getSpoolFile()
+    {
+        return getString(SPOOL_FILE, "").trim();
+    }
+
+    /** @return Size of spool file in bytes */
+    public static int getSpoolSize()
+    {
+        final long mb = Math.max(1, Math.min(2047, getInt(SPOOL_SIZE_MB, 256)));
+        return (int) (mb * 1024 * 1024);
+    }
+
+    /** @return When to force spooled data to disk */
+    public static WriteSpool.FSync getSpoolFSync()
+    {
+        final String setting = getString(SPOOL_FSYNC, WriteSpool.FSync.INTERVAL.name());
+        try
+        {
+            return WriteSpool.FSync.valueOf(setting.trim().toUpperCase());
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Unknown " + SPOOL_FSYNC + " setting '" + setting + "', using INTERVAL");
+            return WriteSpool.FSync.INTERVAL;
+        }
+    }
+
+    /** @return Maximum rate for replaying spooled batches, bytes per second */
+    public static long getSpoolReplayRate()
+    {
+        return getInt(SPOOL_REPLAY_KB_PER_SEC, 512) * 1024L;
+    }
+
+    private static int getInt(final String key, final int default_value)
     {
         final IPreferencesService prefs = Platform.getPreferencesService();
         if (prefs == null)
-            return 80;
-        return prefs.getInt(Activator.ID, MAX_TEXT_SAMPLE_LENGTH, 80, null);
+            return default_value;
+        return prefs.getInt(Activator.ID, key, default_value, null);
     }
 
+    private static double getDouble(final String key, final double default_value)
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return default_value;
+        return prefs.getDouble(Activator.ID, key, default_value, null);
+    }
+
+    private static String getString(final String key, final String default_value)
+    {
+        final IPreferencesService prefs = Platform.getPreferencesService();
+        if (prefs == null)
+            return default_value;
+        return prefs.getString(Activator.ID, key, default_value, null);
+    }
 }
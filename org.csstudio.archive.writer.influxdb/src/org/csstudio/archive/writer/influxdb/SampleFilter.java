@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+import org.csstudio.archive.vtype.VTypeHelper;
+import org.diirt.util.array.ListNumber;
+import org.diirt.vtype.AlarmSeverity;
+import org.diirt.vtype.VEnum;
+import org.diirt.vtype.VNumber;
+import org.diirt.vtype.VNumberArray;
+import org.diirt.vtype.VString;
+import org.diirt.vtype.VType;
+
+/** Deadband filter for the samples of one channel
+ *
+ *  <p>Drops samples whose severity and status are unchanged
+ *  and whose value did not change beyond the deadband,
+ *  compared to the last sample that was written.
+ *  A heartbeat sample is still written when the last written sample
+ *  is older than the heartbeat period,
+ *  so readers looking for the last sample before some time
+ *  never need to search further back than that.
+ *
+ *  <p>Not thread safe, synchronize on the channel.
+ */
+public class SampleFilter
+{
+    final private double deadband, relative;
+    final private Duration heartbeat;
+
+    private Instant last_stamp = null;
+    private AlarmSeverity last_severity;
+    private String last_status;
+    /** Value of last written number or enum, or elements of array */
+    private double[] last_values = new double[1];
+    private int last_count;
+    private String last_text;
+
+    /** @param deadband Absolute deadband, 0 to write every change
+     *  @param relative Deadband relative to the last written value, e.g. 0.01 for 1%
+     *  @param heartbeat Period after which a sample is written even if unchanged
+     */
+    public SampleFilter(final double deadband, final double relative, final Duration heartbeat)
+    {
+        this.deadband = Math.max(0, deadband);
+        this.relative = Math.max(0, relative);
+        this.heartbeat = heartbeat;
+    }
+
+    /** @param stamp Time stamp of the sample
+     *  @param sample Sample
+     *  @param force Write the sample in any case, for example because its meta data changed?
+     *  @return <code>true</code> if the sample should be written
+     */
+    public boolean accept(final Instant stamp, final VType sample, final boolean force)
+    {
+        final AlarmSeverity severity = VTypeHelper.getSeverity(sample);
+        final String status = VTypeHelper.getMessage(sample);
+        if (force  ||  last_stamp == null                    ||
+            ! stamp.isAfter(last_stamp)                      ||
+            ! stamp.isBefore(last_stamp.plus(heartbeat))     ||
+            severity != last_severity                        ||
+            ! Objects.equals(status, last_status)            ||
+            valueChanged(sample))
+        {
+            last_stamp = stamp;
+            last_severity = severity;
+            last_status = status;
+            remember(sample);
+            return true;
+        }
+        return false;
+    }
+
+    /** @return <code>true</code> if value differs from last written value beyond the deadband */
+    private boolean valueChanged(final VType sample)
+    {
+        if (sample instanceof VNumber)
+            return last_count != 1  ||  outsideDeadband(last_values[0], ((VNumber)sample).getValue().doubleValue());
+        if (sample instanceof VEnum)
+            return last_count != 1  ||  last_values[0] != ((VEnum)sample).getIndex();
+        if (sample instanceof VString)
+            return ! Objects.equals(last_text, ((VString)sample).getValue());
+        if (sample instanceof VNumberArray)
+        {
+            final ListNumber data = ((VNumberArray)sample).getData();
+            final int N = data.size();
+            if (N != last_count)
+                return true;
+            for (int i=0; i<N; ++i)
+                if (outsideDeadband(last_values[i], data.getDouble(i)))
+                    return true;
+            return false;
+        }
+        // Unknown type, always write
+        return true;
+    }
+
+    private boolean outsideDeadband(final double last, final double value)
+    {
+        if (Double.isNaN(last)  ||  Double.isNaN(value))
+            return Double.isNaN(last) != Double.isNaN(value);
+        if (last == value)
+            return false;
+        // Infinite values, or change from or to infinity
+        if (Double.isInfinite(last)  ||  Double.isInfinite(value))
+            return true;
+        return Math.abs(value - last) > Math.max(deadband, relative * Math.abs(last));
+    }
+
+    /** Remember value of sample as the last one written */
+    private void remember(final VType sample)
+    {
+        last_text = null;
+        if (sample instanceof VNumber)
+            setLast(((VNumber)sample).getValue().doubleValue());
+        else if (sample instanceof VEnum)
+            setLast(((VEnum)sample).getIndex());
+        else if (sample instanceof VString)
+        {
+            last_count = 0;
+            last_text = ((VString)sample).getValue();
+        }
+        else if (sample instanceof VNumberArray)
+        {
+            final ListNumber data = ((VNumberArray)sample).getData();
+            last_count = data.size();
+            if (last_values.length < last_count)
+                last_values = new double[last_count];
+            for (int i=0; i<last_count; ++i)
+                last_values[i] = data.getDouble(i);
+        }
+        else
+            last_count = 0;
+    }
+
+    private void setLast(final double value)
+    {
+        last_values[0] = value;
+        last_count = 1;
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+/** Failed write request, classified by what a retry could achieve
+ *
+ *  <p>Writing the same points again is idempotent,
+ *  since InfluxDB replaces a point with the same measurement, tags and time.
+ *  See dbdocs/write_consistency.txt in org.csstudio.archive.influxdb.
+ */
+@SuppressWarnings("nls")
+public class WriteException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Kind of failure */
+    public enum Kind
+    {
+        /** Timeout, connection problem or server error, retry may succeed */
+        RETRYABLE,
+        /** Some but not all replicas accepted the points, retry overwrites them on all replicas */
+        PARTIAL,
+        /** Write is refused, for example authentication failure, missing permission,
+         *  unknown database or retention policy.
+         *  The points are valid and must be kept,
+         *  a write succeeds once the configuration of the server or client is fixed.
+         */
+        REFUSED,
+        /** Points are rejected, for example parse error, field type conflict
+         *  or time stamp outside of the retention policy.
+         *  Retry of the same points would fail again.
+         */
+        PERMANENT
+    }
+
+    final private Kind kind;
+    final private int code;
+
+    /** @param message Message
+     *  @param kind Kind of failure
+     *  @param code HTTP response code, 0 when there was no response
+     *  @param cause Cause or <code>null</code>
+     */
+    public WriteException(final String message, final Kind kind, final int code, final Throwable cause)
+    {
+        super(message, cause);
+        this.kind = kind;
+        this.code = code;
+    }
+
+    /** Classify the response of InfluxDB to a failed write
+     *
+     *  <p>InfluxDB answers 400 for points it cannot accept,
+     *  which includes a "partial write" where only points with a field type conflict
+     *  or outside of the retention policy were dropped.
+     *  Only those errors that are tied to the points are permanent.
+     *  A cluster answers 500 with "partial write" or "timeout"
+     *  when the consistency level was not met,
+     *  even though some replicas may have accepted the points.
+     *  Authentication errors, an unknown database and other
+     *  4xx responses are refused writes of valid points.
+     *
+     *  @param code HTTP response code
+     *  @param body Response body
+     *  @return {@link Kind}
+     */
+    public static Kind classify(final int code, final String body)
+    {
+        final String text = body == null ? "" : body.toLowerCase();
+        if (text.contains("field type conflict")      ||
+            text.contains("unable to parse")          ||
+            text.contains("beyond retention policy"))
+            return Kind.PERMANENT;
+        if (code >= 500)
+            return text.contains("partial write") ? Kind.PARTIAL : Kind.RETRYABLE;
+        // Request timeout, too many requests
+        if (code == 408  ||  code == 429)
+            return Kind.RETRYABLE;
+        // 400 "partial write" for points dropped for other reasons
+        if (code == 400  &&  text.contains("partial write"))
+            return Kind.PERMANENT;
+        // Authentication, permission, database or retention policy not found, ..
+        return Kind.REFUSED;
+    }
+
+    /** @return Kind of failure */
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /** @return <code>true</code> if writing the same points again right away may succeed */
+    public boolean isRetryable()
+    {
+        return kind == Kind.RETRYABLE  ||  kind == Kind.PARTIAL;
+    }
+
+    /** @return HTTP response code, 0 when there was no response */
+    public int getCode()
+    {
+        return code;
+    }
+
+    /** @param ex Error of a write
+     *  @return <code>true</code> if writing the same points again would fail again
+     */
+    public static boolean isPermanent(final Throwable ex)
+    {
+        return ex instanceof WriteException  &&  ((WriteException) ex).kind == Kind.PERMANENT;
+    }
+
+    /** @param ex Error of a write
+     *  @return <code>true</code> if the write was refused until the configuration is fixed
+     */
+    public static boolean isRefused(final Throwable ex)
+    {
+        return ex instanceof WriteException  &&  ((WriteException) ex).kind == Kind.REFUSED;
+    }
+}
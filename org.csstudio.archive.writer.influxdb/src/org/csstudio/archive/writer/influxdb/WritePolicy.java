@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.influxdb.InfluxDB.ConsistencyLevel;
+
+/** Retention policy and consistency level for writes to a database */
+@SuppressWarnings("nls")
+public class WritePolicy
+{
+    final private String retention;
+    final private ConsistencyLevel consistency;
+
+    /** @param retention Retention policy
+     *  @param consistency Consistency level
+     */
+    public WritePolicy(final String retention, final ConsistencyLevel consistency)
+    {
+        this.retention = retention;
+        this.consistency = consistency;
+    }
+
+    /** @return Retention policy */
+    public String getRetention()
+    {
+        return retention;
+    }
+
+    /** @return Consistency level */
+    public ConsistencyLevel getConsistency()
+    {
+        return consistency;
+    }
+
+    /** @param text "ANY", "one", ...
+     *  @return {@link ConsistencyLevel}
+     *  @throws Exception on unknown level
+     */
+    public static ConsistencyLevel parseConsistency(final String text) throws Exception
+    {
+        for (ConsistencyLevel level : ConsistencyLevel.values())
+            if (level.name().equalsIgnoreCase(text.trim()))
+                return level;
+        throw new Exception("Unknown consistency level '" + text + "'");
+    }
+
+    /** Parse policies of several databases
+     *  @param spec "db=retention:CONSISTENCY, db=retention, db=:CONSISTENCY"
+     *  @param defaults Policy that provides what the spec leaves out
+     *  @return Policies by database name
+     *  @throws Exception on error
+     */
+    public static Map<String, WritePolicy> parse(final String spec, final WritePolicy defaults) throws Exception
+    {
+        final Map<String, WritePolicy> policies = new HashMap<>();
+        for (String item : spec.split(","))
+        {
+            item = item.trim();
+            if (item.isEmpty())
+                continue;
+            final int eq = item.indexOf('=');
+            if (eq <= 0)
+                throw new Exception("Expected 'db=retention:CONSISTENCY', got '" + item + "'");
+            final String dbName = item.substring(0, eq).trim();
+            String retention = item.substring(eq + 1).trim();
+            ConsistencyLevel consistency = defaults.consistency;
+            final int colon = retention.indexOf(':');
+            if (colon >= 0)
+            {
+                consistency = parseConsistency(retention.substring(colon + 1));
+                retention = retention.substring(0, colon).trim();
+            }
+            if (retention.isEmpty())
+                retention = defaults.retention;
+            policies.put(dbName, new WritePolicy(retention, consistency));
+        }
+        return policies;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Retention '" + retention + "', consistency " + consistency;
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/** Retry of write requests with exponential backoff and jitter
+ *
+ *  <p>Timeouts, connection errors, server errors and partial writes
+ *  are retried. Errors for points that InfluxDB will never accept
+ *  and refused writes, for example authentication errors, are not.
+ *  The delay before retry N is chosen at random between half of
+ *  and the full <code>initial_ms * 2^N</code>, limited to <code>max_ms</code>,
+ *  so writers that failed at the same time do not all retry at the same time.
+ *
+ *  <p>Thread safe.
+ */
+@SuppressWarnings("nls")
+public class WriteRetry
+{
+    /** One attempt of a write */
+    @FunctionalInterface
+    public interface Attempt
+    {
+        /** @throws Exception on error */
+        public void run() throws Exception;
+    }
+
+    /** Wait between attempts */
+    @FunctionalInterface
+    public interface Sleeper
+    {
+        /** @param millis Delay in milliseconds
+         *  @throws InterruptedException when interrupted
+         */
+        public void sleep(long millis) throws InterruptedException;
+    }
+
+    /** No retries */
+    final public static WriteRetry NONE = new WriteRetry(0, 0, 0);
+
+    final private int retries;
+    final private long initial_ms, max_ms;
+    final private Sleeper sleeper;
+
+    final private AtomicLong retried = new AtomicLong();
+
+    /** @param retries Number of retries after the first attempt, 0 to disable
+     *  @param initial_ms Delay before the first retry
+     *  @param max_ms Maximum delay
+     */
+    public WriteRetry(final int retries, final long initial_ms, final long max_ms)
+    {
+        this(retries, initial_ms, max_ms, Thread::sleep);
+    }
+
+    /** @param retries Number of retries after the first attempt, 0 to disable
+     *  @param initial_ms Delay before the first retry
+     *  @param max_ms Maximum delay
+     *  @param sleeper Waits for the delay before a retry
+     */
+    public WriteRetry(final int retries, final long initial_ms, final long max_ms, final Sleeper sleeper)
+    {
+        this.retries = Math.max(0, retries);
+        this.initial_ms = Math.max(0, initial_ms);
+        this.max_ms = Math.max(this.initial_ms, max_ms);
+        this.sleeper = sleeper;
+    }
+
+    /** @param ex Error of a write attempt
+     *  @return <code>true</code> if the write may succeed when repeated
+     */
+    public static boolean isRetryable(final Throwable ex)
+    {
+        if (ex instanceof WriteException)
+            return ((WriteException) ex).isRetryable();
+        // Timeout, connection refused or reset
+        return ex instanceof IOException;
+    }
+
+    /** @param attempt Write to perform
+     *  @param what Description for log messages
+     *  @throws Exception of the last attempt, or when interrupted while waiting to retry
+     */
+    public void run(final Attempt attempt, final String what) throws Exception
+    {
+        for (int retry = 0;  /**/;  ++retry)
+        {
+            try
+            {
+                attempt.run();
+                return;
+            }
+            catch (Exception ex)
+            {
+                if (retry >= retries  ||  ! isRetryable(ex))
+                    throw ex;
+                final long delay = getDelay(retry);
+                Activator.getLogger().log(Level.FINE, what + " failed, retry " + (retry+1) + " of " + retries +
+                                          " in " + delay + " ms: " + ex.getMessage());
+                retried.incrementAndGet();
+                sleeper.sleep(delay);
+            }
+        }
+    }
+
+    /** @param retry Number of retries so far
+     *  @return Delay in milliseconds before the next retry
+     */
+    private long getDelay(final int retry)
+    {
+        final long limit = Math.min(max_ms, initial_ms << Math.min(retry, 30));
+        final long half = limit / 2;
+        return half + ThreadLocalRandom.current().nextLong(limit - half + 1);
+    }
+
+    /** @return Number of retries performed */
+    public long getRetries()
+    {
+        return retried.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WriteRetry: " + retries + " retries, " + initial_ms + " .. " + max_ms + " ms, " + retried.get() + " retried";
+    }
+}
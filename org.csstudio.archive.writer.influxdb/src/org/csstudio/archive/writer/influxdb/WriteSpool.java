@@ -0,0 +1,450 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/** Write-ahead spool for batches of line protocol
+ *
+ *  <p>Batches are appended to a memory-mapped file before they are sent.
+ *  Once InfluxDB acknowledged a batch, it is marked as such,
+ *  and when all batches in the file have been acknowledged,
+ *  the file is logically truncated to start over.
+ *  Batches that could not be sent remain in the spool as backlog.
+ *  A replay thread sends the backlog, including what was left
+ *  from a previous run, at a limited rate.
+ *
+ *  <p>File layout: Header with magic, version, position of the first
+ *  record that is not acknowledged and end of the last record.
+ *  Each record:
+ *  <pre>
+ *  int    payload length
+ *  int    number of points
+ *  byte   state: IN_FLIGHT, BACKLOG, ACKNOWLEDGED
+ *  short  database name length
+ *  byte[] database name, UTF-8
+ *  byte[] payload, line protocol
+ *  int    CRC32 of database name and payload
+ *  </pre>
+ *
+ *  <p>Thread safe.
+ */
+@SuppressWarnings("nls")
+public class WriteSpool
+{
+    /** When to force spooled data to disk */
+    public enum FSync
+    {
+        /** After every append and acknowledgement */
+        ALWAYS,
+        /** About once per second */
+        INTERVAL,
+        /** Leave it to the operating system */
+        NEVER
+    }
+
+    /** Sends a batch to InfluxDB */
+    @FunctionalInterface
+    public interface Sender
+    {
+        /** @param dbName Database
+         *  @param points Points to send
+         *  @throws Exception on error
+         */
+        public void send(String dbName, LineProtocolBuffer points) throws Exception;
+    }
+
+    /** Spooled batch */
+    public static class Record
+    {
+        final private int position;
+
+        Record(final int position)
+        {
+            this.position = position;
+        }
+    }
+
+    final private static int MAGIC = 0x5350_4F4C; // "SPOL"
+    final private static int VERSION = 1;
+
+    final private static int POS_ACK = 8, POS_WRITE = 12, HEADER_SIZE = 16;
+    /** Record: payload length, points, state, db name length */
+    final private static int RECORD_HEADER = 4 + 4 + 1 + 2, RECORD_TRAILER = 4;
+    final private static int OFFSET_STATE = 8;
+
+    final private static byte IN_FLIGHT = 0, BACKLOG = 1, ACKNOWLEDGED = 2;
+
+    /** Delay after a failed replay, doubled up to the maximum */
+    final private static long MIN_RETRY_MS = 1000, MAX_RETRY_MS = 60000;
+
+    final private File file;
+    final private FileChannel channel;
+    final private MappedByteBuffer map;
+    final private FSync fsync;
+    final private long replay_bytes_per_sec;
+    final private Sender sender;
+    final private Thread replay_thread;
+
+    /** Position of first record that is not acknowledged */
+    private int ack_pos;
+    /** End of last record */
+    private int write_pos;
+    /** Number of records that are being sent */
+    private int in_flight = 0;
+    /** Number of records in backlog, including the one being replayed */
+    private int backlog = 0;
+    private boolean dirty = false;
+    private volatile boolean running = true;
+
+    private long spooled_batches = 0, replayed_batches = 0, full_batches = 0;
+
+    /** Open spool, replaying what was left from a previous run
+     *  @param file Spool file, created if it does not exist
+     *  @param size Size of the spool file in bytes
+     *  @param fsync When to force data to disk
+     *  @param replay_bytes_per_sec Maximum rate at which backlog is replayed
+     *  @param sender Sender used to replay batches
+     *  @throws Exception on error
+     */
+    public WriteSpool(final File file, final int size, final FSync fsync,
+                      final long replay_bytes_per_sec, final Sender sender) throws Exception
+    {
+        this.file = file;
+        this.fsync = fsync;
+        this.replay_bytes_per_sec = Math.max(1, replay_bytes_per_sec);
+        this.sender = sender;
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final int map_size = Math.max(size, (int) Math.min(Integer.MAX_VALUE, channel.size()));
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(map_size, HEADER_SIZE + 1024));
+
+        if (map.getInt(0) == MAGIC  &&  map.getInt(4) == VERSION)
+            recover();
+        else
+        {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            ack_pos = write_pos = HEADER_SIZE;
+            writeHeader();
+        }
+
+        replay_thread = new Thread(this::replay, "InfluxDB Spool Replay");
+        replay_thread.setDaemon(true);
+        replay_thread.start();
+    }
+
+    /** Check records from previous run, turning all that are not acknowledged into backlog */
+    private void recover()
+    {
+        ack_pos = map.getInt(POS_ACK);
+        write_pos = map.getInt(POS_WRITE);
+        if (ack_pos < HEADER_SIZE  ||  write_pos < ack_pos  ||  write_pos > map.capacity())
+        {
+            Activator.getLogger().log(Level.WARNING, "Spool " + file + " has invalid header, discarding content");
+            ack_pos = write_pos = HEADER_SIZE;
+            writeHeader();
+            return;
+        }
+        int pos = ack_pos;
+        while (pos < write_pos)
+        {
+            final int next = checkRecord(pos);
+            if (next < 0)
+            {
+                Activator.getLogger().log(Level.WARNING, "Spool " + file + " has incomplete record at " + pos +
+                                                         ", discarding " + (write_pos - pos) + " bytes");
+                write_pos = pos;
+                break;
+            }
+            if (map.get(pos + OFFSET_STATE) != ACKNOWLEDGED)
+            {
+                map.put(pos + OFFSET_STATE, BACKLOG);
+                ++backlog;
+            }
+            pos = next;
+        }
+        writeHeader();
+        if (backlog > 0)
+            Activator.getLogger().log(Level.INFO, "Spool " + file + " has " + backlog + " batches to replay");
+    }
+
+    /** @param pos Record position
+     *  @return Position of next record, -1 if record is invalid
+     */
+    private int checkRecord(final int pos)
+    {
+        if (pos + RECORD_HEADER > write_pos)
+            return -1;
+        final int payload = map.getInt(pos);
+        final short db_len = map.getShort(pos + 9);
+        final int next = pos + RECORD_HEADER + db_len + payload + RECORD_TRAILER;
+        if (payload < 0  ||  db_len < 0  ||  next > write_pos  ||  next < pos)
+            return -1;
+        final CRC32 crc = new CRC32();
+        final ByteBuffer data = map.duplicate();
+        data.limit(next - RECORD_TRAILER).position(pos + RECORD_HEADER);
+        crc.update(data);
+        if ((int) crc.getValue() != map.getInt(next - RECORD_TRAILER))
+            return -1;
+        return next;
+    }
+
+    private int getNext(final int pos)
+    {
+        return pos + RECORD_HEADER + map.getShort(pos + 9) + map.getInt(pos) + RECORD_TRAILER;
+    }
+
+    private void writeHeader()
+    {
+        map.putInt(POS_ACK, ack_pos);
+        map.putInt(POS_WRITE, write_pos);
+        dirty = true;
+        if (fsync == FSync.ALWAYS)
+            force();
+    }
+
+    private void force()
+    {
+        map.force();
+        dirty = false;
+    }
+
+    /** Append batch before it is sent
+     *  @param dbName Database
+     *  @param points Points
+     *  @return Record to acknowledge or fail, <code>null</code> if spool is full
+     */
+    public synchronized Record append(final String dbName, final LineProtocolBuffer points)
+    {
+        final byte[] db = dbName.getBytes(StandardCharsets.UTF_8);
+        final int length = RECORD_HEADER + db.length + points.size() + RECORD_TRAILER;
+        if (write_pos + length > map.capacity())
+        {
+            compact();
+            if (write_pos + length > map.capacity())
+            {
+                ++full_batches;
+                return null;
+            }
+        }
+        final int pos = write_pos;
+        final ByteBuffer buf = map.duplicate();
+        buf.position(pos);
+        buf.putInt(points.size());
+        buf.putInt(points.getPointCount());
+        buf.put(IN_FLIGHT);
+        buf.putShort((short) db.length);
+        buf.put(db);
+        buf.put(points.getData(), 0, points.size());
+        final CRC32 crc = new CRC32();
+        crc.update(db);
+        crc.update(points.getData(), 0, points.size());
+        buf.putInt((int) crc.getValue());
+
+        write_pos = pos + length;
+        ++in_flight;
+        ++spooled_batches;
+        writeHeader();
+        return new Record(pos);
+    }
+
+    /** Move unacknowledged records to start of file, only possible while nothing is in flight */
+    private void compact()
+    {
+        if (in_flight > 0  ||  ack_pos <= HEADER_SIZE)
+            return;
+        final ByteBuffer src = map.duplicate();
+        src.limit(write_pos).position(ack_pos);
+        final ByteBuffer dst = map.duplicate();
+        dst.position(HEADER_SIZE);
+        dst.put(src.slice());
+        write_pos = HEADER_SIZE + (write_pos - ack_pos);
+        ack_pos = HEADER_SIZE;
+        writeHeader();
+    }
+
+    /** @param record Record that InfluxDB acknowledged */
+    public synchronized void acknowledge(final Record record)
+    {
+        map.put(record.position + OFFSET_STATE, ACKNOWLEDGED);
+        --in_flight;
+        // Advance over acknowledged records, truncate when all were acknowledged
+        while (ack_pos < write_pos  &&  map.get(ack_pos + OFFSET_STATE) == ACKNOWLEDGED)
+            ack_pos = getNext(ack_pos);
+        if (ack_pos >= write_pos)
+            ack_pos = write_pos = HEADER_SIZE;
+        writeHeader();
+    }
+
+    /** @param record Record that could not be sent, to be replayed */
+    public synchronized void fail(final Record record)
+    {
+        map.put(record.position + OFFSET_STATE, BACKLOG);
+        --in_flight;
+        ++backlog;
+        dirty = true;
+        notifyAll();
+    }
+
+    /** @return Number of batches waiting to be replayed */
+    public synchronized int getBacklog()
+    {
+        return backlog;
+    }
+
+    /** Replay thread: Send backlog at limited rate */
+    private void replay()
+    {
+        final LineProtocolBuffer points = new LineProtocolBuffer(64 * 1024);
+        long retry_ms = MIN_RETRY_MS;
+        long last_force = System.currentTimeMillis();
+        while (running)
+        {
+            // Locate next backlog record
+            final Record record;
+            String dbName = null;
+            synchronized (this)
+            {
+                if (fsync == FSync.INTERVAL  &&  dirty  &&  System.currentTimeMillis() - last_force >= 1000)
+                {
+                    force();
+                    last_force = System.currentTimeMillis();
+                }
+                int pos = ack_pos;
+                while (backlog > 0  &&  pos < write_pos  &&  map.get(pos + OFFSET_STATE) != BACKLOG)
+                    pos = getNext(pos);
+                if (backlog <= 0  ||  pos >= write_pos)
+                {
+                    try
+                    {
+                        wait(1000);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    continue;
+                }
+                record = new Record(pos);
+                map.put(pos + OFFSET_STATE, IN_FLIGHT);
+                ++in_flight;
+                // Copy database name and payload
+                final int payload = map.getInt(pos);
+                final int count = map.getInt(pos + 4);
+                final short db_len = map.getShort(pos + 9);
+                final byte[] db = new byte[db_len];
+                final ByteBuffer buf = map.duplicate();
+                buf.position(pos + RECORD_HEADER);
+                buf.get(db);
+                dbName = new String(db, StandardCharsets.UTF_8);
+                buf.limit(buf.position() + payload);
+                points.reset();
+                points.addLines(buf, count);
+            }
+
+            final long start = System.nanoTime();
+            try
+            {
+                sender.send(dbName, points);
+                synchronized (this)
+                {
+                    acknowledge(record);
+                    --backlog;
+                    ++replayed_batches;
+                }
+                retry_ms = MIN_RETRY_MS;
+            }
+            catch (Exception ex)
+            {
+                if (WriteException.isPermanent(ex))
+                {   // Replay would never succeed
+                    Activator.getLogger().log(Level.WARNING, "Spool replay to " + dbName + " rejected, dropping batch", ex);
+                    synchronized (this)
+                    {
+                        acknowledge(record);
+                        --backlog;
+                    }
+                    continue;
+                }
+                synchronized (this)
+                {
+                    map.put(record.position + OFFSET_STATE, BACKLOG);
+                    --in_flight;
+                }
+                Activator.getLogger().log(WriteException.isRefused(ex) ? Level.WARNING : Level.FINE,
+                                          "Spool replay to " + dbName + " failed, retry in " + retry_ms + " ms", ex);
+                sleep(retry_ms);
+                retry_ms = Math.min(MAX_RETRY_MS, retry_ms * 2);
+                continue;
+            }
+            // Limit rate: Wait until the time it should take to send these bytes at the configured rate
+            final long nanos = points.size() * TimeUnit.SECONDS.toNanos(1) / replay_bytes_per_sec;
+            final long remaining = nanos - (System.nanoTime() - start);
+            if (remaining > 0)
+                sleep(TimeUnit.NANOSECONDS.toMillis(remaining));
+        }
+    }
+
+    private void sleep(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ex)
+        {
+            running = false;
+        }
+    }
+
+    /** Stop replay, force data to disk and close file */
+    public void close()
+    {
+        running = false;
+        replay_thread.interrupt();
+        try
+        {
+            replay_thread.join(5000);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            force();
+            try
+            {
+                channel.close();
+            }
+            catch (Exception ex)
+            {
+                Activator.getLogger().log(Level.WARNING, "Cannot close spool " + file, ex);
+            }
+        }
+        Activator.getLogger().log(Level.INFO, toString());
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("WriteSpool %s: %d bytes used of %d, %d batches spooled, %d in backlog, %d replayed, %d did not fit",
+                             file, write_pos - ack_pos, map.capacity(), spooled_batches, backlog, replayed_batches, full_batches);
+    }
+}
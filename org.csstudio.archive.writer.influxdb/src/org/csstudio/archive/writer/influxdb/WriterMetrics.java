@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.csstudio.archive.influxdb.MetaTypes.StoreAs;
+
+/** Counters and latency histograms of an {@link InfluxDBArchiveWriter}
+ *
+ *  <p>Kept per database and per {@link StoreAs} type.
+ *  For a database, the latency is the time to write a batch, including retries.
+ *  For a type, the latency is the time to encode a sample.
+ *
+ *  <p>Thread safe, counting does not lock.
+ */
+@SuppressWarnings("nls")
+public class WriterMetrics implements WriterMetricsMXBean
+{
+    /** Counters of one database or type */
+    private static class Counters
+    {
+        final LongAdder samples = new LongAdder();
+        final LongAdder filtered = new LongAdder();
+        final LongAdder points = new LongAdder();
+        final LongAdder meta_points = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder writes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile LatencyHistogram latency = new LatencyHistogram();
+
+        Counts snapshot()
+        {
+            return new Counts(samples.sum(), filtered.sum(), points.sum(), meta_points.sum(),
+                              bytes.sum(), writes.sum(), failures.sum(), latency.snapshot());
+        }
+
+        void reset()
+        {
+            samples.reset();
+            filtered.reset();
+            points.reset();
+            meta_points.reset();
+            bytes.reset();
+            writes.reset();
+            failures.reset();
+            latency = new LatencyHistogram();
+        }
+    }
+
+    /** Values of the counters of one database or type at one time */
+    public static class Counts
+    {
+        final private long samples, filtered, points, meta_points, bytes, writes, failures;
+        final private LatencyHistogram.Snapshot latency;
+
+        Counts(final long samples, final long filtered, final long points, final long meta_points,
+               final long bytes, final long writes, final long failures, final LatencyHistogram.Snapshot latency)
+        {
+            this.samples = samples;
+            this.filtered = filtered;
+            this.points = points;
+            this.meta_points = meta_points;
+            this.bytes = bytes;
+            this.writes = writes;
+            this.failures = failures;
+            this.latency = latency;
+        }
+
+        /** @return Samples accepted */
+        public long getSamples()
+        {
+            return samples;
+        }
+
+        /** @return Samples dropped by channel filter */
+        public long getFiltered()
+        {
+            return filtered;
+        }
+
+        /** @return Data points encoded */
+        public long getPoints()
+        {
+            return points;
+        }
+
+        /** @return Meta data points encoded */
+        public long getMetaPoints()
+        {
+            return meta_points;
+        }
+
+        /** @return Bytes of line protocol encoded (type) or written (database) */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /** @return Successful batch writes */
+        public long getWrites()
+        {
+            return writes;
+        }
+
+        /** @return Failed batch writes */
+        public long getFailures()
+        {
+            return failures;
+        }
+
+        /** @return Write latency (database) or encode latency (type) */
+        public LatencyHistogram.Snapshot getLatency()
+        {
+            return latency;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder buf = new StringBuilder();
+            buf.append(samples).append(" samples");
+            if (filtered > 0)
+                buf.append(", ").append(filtered).append(" filtered");
+            buf.append(", ").append(points).append(" points");
+            if (meta_points > 0)
+                buf.append(", ").append(meta_points).append(" meta points");
+            buf.append(", ").append(bytes).append(" bytes");
+            if (writes > 0  ||  failures > 0)
+                buf.append(", ").append(writes).append(" writes, ").append(failures).append(" failures");
+            if (latency.getCount() > 0)
+                buf.append(", latency ").append(latency);
+            return buf.toString();
+        }
+    }
+
+    /** Values of all counters at one time */
+    public static class Snapshot
+    {
+        final private Map<String, Counts> databases;
+        final private Map<StoreAs, Counts> types;
+
+        Snapshot(final Map<String, Counts> databases, final Map<StoreAs, Counts> types)
+        {
+            this.databases = Collections.unmodifiableMap(databases);
+            this.types = Collections.unmodifiableMap(types);
+        }
+
+        /** @return Counts by database name */
+        public Map<String, Counts> getDatabases()
+        {
+            return databases;
+        }
+
+        /** @return Counts by type */
+        public Map<StoreAs, Counts> getTypes()
+        {
+            return types;
+        }
+
+        /** @param value Value to add up, for example <code>Counts::getPoints</code>
+         *  @return Sum over all databases
+         */
+        public long getTotal(final ToLongFunction<Counts> value)
+        {
+            return databases.values().stream().mapToLong(value).sum();
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder buf = new StringBuilder("Writer metrics:");
+            for (Map.Entry<String, Counts> entry : databases.entrySet())
+                buf.append("\n  Database ").append(entry.getKey()).append(": ").append(entry.getValue());
+            for (Map.Entry<StoreAs, Counts> entry : types.entrySet())
+                buf.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            return buf.toString();
+        }
+    }
+
+    final private Map<String, Counters> databases = new ConcurrentHashMap<>();
+    final private Counters[] types = new Counters[StoreAs.values().length];
+
+    /** JMX name when registered */
+    private ObjectName jmx_name = null;
+
+    /** Create metrics with all counters at zero */
+    public WriterMetrics()
+    {
+        for (int i=0; i<types.length; ++i)
+            types[i] = new Counters();
+    }
+
+    private Counters get(final String dbName)
+    {
+        final Counters counters = databases.get(dbName);
+        if (counters != null)
+            return counters;
+        return databases.computeIfAbsent(dbName, db -> new Counters());
+    }
+
+    /** @param dbName Database of the sample
+     *  @param storeas Type of the sample
+     *  @param points Number of data points that were encoded
+     *  @param bytes Number of bytes that were encoded
+     *  @param nanos Time spent encoding
+     */
+    public void sampleEncoded(final String dbName, final StoreAs storeas, final int points, final int bytes, final long nanos)
+    {
+        final Counters db = get(dbName);
+        db.samples.increment();
+        db.points.add(points);
+        final Counters type = types[storeas.ordinal()];
+        type.samples.increment();
+        type.points.add(points);
+        type.bytes.add(bytes);
+        type.latency.record(nanos);
+    }
+
+    /** @param dbName Database of a sample that was dropped by the channel filter */
+    public void sampleFiltered(final String dbName)
+    {
+        get(dbName).filtered.increment();
+    }
+
+    /** @param dbName Meta data database
+     *  @param storeas Type for which the meta data was written
+     */
+    public void metaDataEncoded(final String dbName, final StoreAs storeas)
+    {
+        get(dbName).meta_points.increment();
+        types[storeas.ordinal()].meta_points.increment();
+    }
+
+    /** @param dbName Database
+     *  @param bytes Bytes of the batch
+     *  @param nanos Time of the write
+     *  @param success Was the batch written?
+     */
+    public void batchWritten(final String dbName, final int bytes, final long nanos, final boolean success)
+    {
+        final Counters db = get(dbName);
+        if (success)
+        {
+            db.writes.increment();
+            db.bytes.add(bytes);
+        }
+        else
+            db.failures.increment();
+        db.latency.record(nanos);
+    }
+
+    /** @return Current values of all counters */
+    public Snapshot snapshot()
+    {
+        final Map<String, Counts> db_counts = new TreeMap<>();
+        for (Map.Entry<String, Counters> entry : databases.entrySet())
+            db_counts.put(entry.getKey(), entry.getValue().snapshot());
+        final Map<StoreAs, Counts> type_counts = new EnumMap<>(StoreAs.class);
+        for (StoreAs storeas : StoreAs.values())
+        {
+            final Counters counters = types[storeas.ordinal()];
+            if (counters.samples.sum() > 0  ||  counters.meta_points.sum() > 0)
+                type_counts.put(storeas, counters.snapshot());
+        }
+        return new Snapshot(db_counts, type_counts);
+    }
+
+    /** Register with the platform MBean server
+     *  @param name Name that distinguishes this writer from others in the same process
+     */
+    public void register(final String name)
+    {
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName object_name = new ObjectName("org.csstudio.archive.writer.influxdb:type=WriterMetrics,name=" +
+                                                          ObjectName.quote(name));
+            server.registerMBean(this, object_name);
+            jmx_name = object_name;
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Cannot register writer metrics with JMX", ex);
+        }
+    }
+
+    /** Remove from the platform MBean server */
+    public void unregister()
+    {
+        if (jmx_name == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmx_name);
+        }
+        catch (Exception ex)
+        {
+            Activator.getLogger().log(Level.WARNING, "Cannot unregister writer metrics from JMX", ex);
+        }
+        jmx_name = null;
+    }
+
+    private long sum(final Function<Counters, LongAdder> counter)
+    {
+        long sum = 0;
+        for (Counters counters : databases.values())
+            sum += counter.apply(counters).sum();
+        return sum;
+    }
+
+    private Map<String, Long> byDatabase(final Function<Counters, LongAdder> counter)
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Counters> entry : databases.entrySet())
+            result.put(entry.getKey(), counter.apply(entry.getValue()).sum());
+        return result;
+    }
+
+    @Override
+    public long getSamples()
+    {
+        return sum(c -> c.samples);
+    }
+
+    @Override
+    public long getFilteredSamples()
+    {
+        return sum(c -> c.filtered);
+    }
+
+    @Override
+    public long getPoints()
+    {
+        return sum(c -> c.points);
+    }
+
+    @Override
+    public long getMetaPoints()
+    {
+        return sum(c -> c.meta_points);
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return sum(c -> c.bytes);
+    }
+
+    @Override
+    public long getWrites()
+    {
+        return sum(c -> c.writes);
+    }
+
+    @Override
+    public long getFailures()
+    {
+        return sum(c -> c.failures);
+    }
+
+    /** @return Histogram of write latency over all databases */
+    private LatencyHistogram.Snapshot getWriteLatency()
+    {
+        LatencyHistogram.Snapshot result = null;
+        for (Counters counters : databases.values())
+            result = counters.latency.snapshot().add(result);
+        return result == null ? new LatencyHistogram().snapshot() : result;
+    }
+
+    @Override
+    public double getWriteLatencyMeanMillis()
+    {
+        return getWriteLatency().getMeanMillis();
+    }
+
+    @Override
+    public double getWriteLatency99Millis()
+    {
+        return getWriteLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public double getEncodeLatencyMeanMillis()
+    {
+        LatencyHistogram.Snapshot result = null;
+        for (Counters counters : types)
+            result = counters.latency.snapshot().add(result);
+        return result.getMeanMillis();
+    }
+
+    @Override
+    public Map<String, Long> getSamplesByDatabase()
+    {
+        return byDatabase(c -> c.samples);
+    }
+
+    @Override
+    public Map<String, Long> getBytesByDatabase()
+    {
+        return byDatabase(c -> c.bytes);
+    }
+
+    @Override
+    public Map<String, Long> getSamplesByType()
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        for (StoreAs storeas : StoreAs.values())
+        {
+            final long samples = types[storeas.ordinal()].samples.sum();
+            if (samples > 0)
+                result.put(storeas.name(), samples);
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary()
+    {
+        return snapshot().toString();
+    }
+
+    @Override
+    public void reset()
+    {
+        for (Counters counters : databases.values())
+            counters.reset();
+        for (Counters counters : types)
+            counters.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getSummary();
+    }
+}
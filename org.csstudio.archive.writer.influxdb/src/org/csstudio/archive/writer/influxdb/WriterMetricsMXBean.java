@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2017 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.csstudio.archive.writer.influxdb;
+
+import java.util.Map;
+
+/** JMX view of the {@link WriterMetrics}
+ *
+ *  <p>Registered as <code>org.csstudio.archive.writer.influxdb:type=WriterMetrics,name=...</code>
+ */
+public interface WriterMetricsMXBean
+{
+    /** @return Samples accepted by addSample(), not counting filtered samples */
+    public long getSamples();
+
+    /** @return Samples dropped by channel filters */
+    public long getFilteredSamples();
+
+    /** @return Data points encoded */
+    public long getPoints();
+
+    /** @return Meta data points encoded */
+    public long getMetaPoints();
+
+    /** @return Bytes of line protocol written */
+    public long getBytesWritten();
+
+    /** @return Successful batch writes */
+    public long getWrites();
+
+    /** @return Failed batch writes */
+    public long getFailures();
+
+    /** @return Mean time of a batch write in milliseconds */
+    public double getWriteLatencyMeanMillis();
+
+    /** @return 99th percentile of the time of a batch write in milliseconds */
+    public double getWriteLatency99Millis();
+
+    /** @return Mean time to encode a sample in milliseconds */
+    public double getEncodeLatencyMeanMillis();
+
+    /** @return Samples by database */
+    public Map<String, Long> getSamplesByDatabase();
+
+    /** @return Bytes written by database */
+    public Map<String, Long> getBytesByDatabase();
+
+    /** @return Samples by storage type */
+    public Map<String, Long> getSamplesByType();
+
+    /** @return Description of all counters and histograms */
+    public String getSummary();
+
+    /** Set all counters and histograms to zero */
+    public void reset();
+}